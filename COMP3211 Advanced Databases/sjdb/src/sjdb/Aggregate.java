@@ -0,0 +1,90 @@
+package sjdb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents an Aggregate operator, which groups the tuples of
+ * its input by the values of some attributes and outputs one tuple for
+ * each group: the grouping attributes, followed by the result of each
+ * aggregation over the tuples of the group. Without grouping attributes,
+ * the whole input is a single group.
+ */
+public class Aggregate extends UnaryOperator {
+	private List<Attribute> groups;
+	private List<Aggregation> aggregations;
+
+	/**
+	 * Create a new aggregate operator.
+	 * @param input Child operator
+	 * @param groups List of attributes by which tuples are grouped
+	 * @param aggregations List of aggregations computed over each group
+	 */
+	public Aggregate(Operator input, List<Attribute> groups, List<Aggregation> aggregations) {
+		super(input);
+		this.groups = groups;
+		this.aggregations = aggregations;
+	}
+
+	/**
+	 * Return the list of attributes by which tuples are grouped
+	 * @return List of attributes
+	 */
+	public List<Attribute> getGroups() {
+		return this.groups;
+	}
+
+	/**
+	 * Return the list of aggregations computed over each group
+	 * @return List of aggregations
+	 */
+	public List<Aggregation> getAggregations() {
+		return this.aggregations;
+	}
+
+	/**
+	 * Return the attributes read from the input: the grouping attributes
+	 * and the aggregated attributes
+	 * @return List of attributes
+	 */
+	public List<Attribute> getInputAttributes() {
+		List<Attribute> attributes = new ArrayList<Attribute>(this.groups);
+		for (Aggregation aggregation : this.aggregations) {
+			Attribute a = aggregation.getAttribute();
+			if (a != null && !attributes.contains(a)) {
+				attributes.add(a);
+			}
+		}
+		return attributes;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.UnaryOperator#accept(sjdb.OperatorVisitor)
+	 */
+	public void accept(PlanVisitor visitor) {
+		super.accept(visitor);
+		visitor.visit(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		String ret = "";
+
+		if (!this.groups.isEmpty()) {
+			ret += "GROUP [";
+			for (int i = 0; i < this.groups.size(); i++) {
+				ret += (i == 0 ? "" : ",") + this.groups.get(i).getName();
+			}
+			ret += "] ";
+		}
+		ret += "AGGREGATE [";
+		for (int i = 0; i < this.aggregations.size(); i++) {
+			ret += (i == 0 ? "" : ",") + this.aggregations.get(i);
+		}
+		ret += "] (" + getInput().toString() + ")";
+
+		return ret;
+	}
+}
@@ -0,0 +1,57 @@
+package sjdb;
+
+/**
+ * This class represents an aggregation computed over each group of an
+ * Aggregate operator, such as COUNT(*) or AVG(overall). Its result is
+ * output as an attribute named by the aggregation as it is written.
+ */
+public class Aggregation {
+	/**
+	 * The functions by which values are aggregated
+	 */
+	public enum Function { COUNT, SUM, AVG, MIN, MAX }
+
+	private Function function;
+	private Attribute attribute;
+
+	/**
+	 * Create a new aggregation
+	 * @param function Aggregate function
+	 * @param attribute Attribute aggregated, or null for COUNT(*)
+	 */
+	public Aggregation(Function function, Attribute attribute) {
+		this.function = function;
+		this.attribute = attribute;
+	}
+
+	/**
+	 * Return the aggregate function
+	 * @return function
+	 */
+	public Function getFunction() {
+		return this.function;
+	}
+
+	/**
+	 * Return the attribute aggregated
+	 * @return attribute, or null for COUNT(*)
+	 */
+	public Attribute getAttribute() {
+		return this.attribute;
+	}
+
+	/**
+	 * Return the attribute holding the result of the aggregation
+	 * @return output attribute
+	 */
+	public Attribute getOutputAttribute() {
+		return new Attribute(toString());
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return this.function + "(" + (this.attribute == null ? "*" : this.attribute.getName()) + ")";
+	}
+}
@@ -10,10 +10,12 @@ package sjdb;
 public class Attribute {
 
 	private String name;
+	private int id;
 	private int values;
 
 	public Attribute(String name) {
 		this.name = name;
+		this.id = StringDictionary.getInstance().intern(name);
 		this.values = 0;
 	}
 	/**
@@ -22,11 +24,13 @@ public class Attribute {
 	 */
 	public Attribute(String name, int values) {
 		this.name = name;
+		this.id = StringDictionary.getInstance().intern(name);
 		this.values = values;
 	}
 	
 	public Attribute(Attribute attr) {
 		this.name = attr.name;
+		this.id = attr.id;
 		this.values = attr.values;
 	}
 	
@@ -37,6 +41,13 @@ public class Attribute {
 		return name;
 	}
 
+	/**
+	 * @return the dictionary id of the name of the attribute
+	 */
+	public int getId() {
+		return id;
+	}
+
 	/**
 	 * @return the number of distinct values taken by this attribute
 	 */
@@ -47,7 +58,7 @@ public class Attribute {
 	
 	@Override
 	public int hashCode() {
-		return this.name.hashCode();
+		return this.id;
 	}
 	
 	@Override
@@ -60,7 +71,7 @@ public class Attribute {
 		}
 		Attribute rhs = (Attribute) obj;
 		
-		return this.name.equals(rhs.getName());
+		return this.id == rhs.id;
 	}
 	
 	public String toString() {
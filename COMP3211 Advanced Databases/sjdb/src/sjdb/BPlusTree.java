@@ -0,0 +1,242 @@
+package sjdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class implements a B+tree secondary index, which maps the values of
+ * an attribute to the row ids of the tuples holding them. Every node holds
+ * at most a fixed number of keys; leaves hold the row ids for each key and
+ * are linked in key order.
+ *
+ * Keys are compared as strings, so the index answers equality lookups
+ * exactly and orders numbers lexicographically. The number of nodes read by
+ * lookups is counted, so that the cost of index access can be measured.
+ */
+public class BPlusTree {
+	/**
+	 * Default number of keys per node
+	 */
+	public static final int DEFAULT_ORDER = 128;
+
+	private abstract class Node {
+		ArrayList<String> keys = new ArrayList<String>();
+	}
+
+	private class Leaf extends Node {
+		ArrayList<long[]> values = new ArrayList<long[]>();
+		ArrayList<Integer> counts = new ArrayList<Integer>();
+		Leaf next;
+	}
+
+	private class Internal extends Node {
+		ArrayList<Node> children = new ArrayList<Node>();
+	}
+
+	private int order;
+	private Node root;
+	private int height;
+	private long size;
+	private long reads;
+
+	/**
+	 * Create a new empty index with the default order
+	 */
+	public BPlusTree() {
+		this(DEFAULT_ORDER);
+	}
+
+	/**
+	 * Create a new empty index
+	 * @param order Maximum number of keys per node
+	 */
+	public BPlusTree(int order) {
+		this.order = Math.max(3, order);
+		this.root = new Leaf();
+		this.height = 1;
+	}
+
+	/**
+	 * Return the maximum number of keys per node
+	 * @return order
+	 */
+	public int getOrder() {
+		return this.order;
+	}
+
+	/**
+	 * Return the number of levels in the tree
+	 * @return height
+	 */
+	public int getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * Return the number of entries in the index
+	 * @return entry count
+	 */
+	public long size() {
+		return this.size;
+	}
+
+	/**
+	 * Return the number of nodes read by lookups so far
+	 * @return node reads
+	 */
+	public long getNodeReads() {
+		return this.reads;
+	}
+
+	/**
+	 * Estimate the height of a tree of this order holding a number of
+	 * entries, assuming nodes are two-thirds full
+	 * @param entries Number of entries
+	 * @return estimated height
+	 */
+	public int estimateHeight(long entries) {
+		double fanout = Math.max(2.0, order * 2.0 / 3.0);
+		return Math.max(1, (int) Math.ceil(Math.log(Math.max(entries, 1)) / Math.log(fanout)));
+	}
+
+	/**
+	 * Add an entry to the index
+	 * @param key Attribute value
+	 * @param rowId Row id of the tuple holding the value
+	 */
+	public synchronized void insert(String key, long rowId) {
+		Node split = insert(root, key, rowId);
+		if (split != null) {
+			Internal top = new Internal();
+			top.keys.add(firstKey(split));
+			top.children.add(root);
+			top.children.add(split);
+			root = top;
+			height++;
+		}
+		size++;
+	}
+
+	/**
+	 * Insert into a subtree, returning the new right sibling if the
+	 * subtree's root was split
+	 */
+	private Node insert(Node node, String key, long rowId) {
+		if (node instanceof Leaf) {
+			Leaf leaf = (Leaf) node;
+			int i = Collections.binarySearch(leaf.keys, key);
+			if (i >= 0) {
+				int n = leaf.counts.get(i);
+				long[] ids = leaf.values.get(i);
+				if (n == ids.length) {
+					long[] grown = new long[ids.length * 2];
+					System.arraycopy(ids, 0, grown, 0, n);
+					ids = grown;
+					leaf.values.set(i, ids);
+				}
+				ids[n] = rowId;
+				leaf.counts.set(i, n + 1);
+				return null;
+			}
+			i = -i - 1;
+			leaf.keys.add(i, key);
+			leaf.values.add(i, new long[] { rowId });
+			leaf.counts.add(i, 1);
+			return leaf.keys.size() > order ? split(leaf) : null;
+		}
+
+		Internal internal = (Internal) node;
+		int i = child(internal, key);
+		Node split = insert(internal.children.get(i), key, rowId);
+		if (split == null) {
+			return null;
+		}
+		internal.keys.add(i, firstKey(split));
+		internal.children.add(i + 1, split);
+		return internal.keys.size() > order ? split(internal) : null;
+	}
+
+	private Leaf split(Leaf leaf) {
+		int mid = leaf.keys.size() / 2;
+		Leaf right = new Leaf();
+		right.keys.addAll(leaf.keys.subList(mid, leaf.keys.size()));
+		right.values.addAll(leaf.values.subList(mid, leaf.values.size()));
+		right.counts.addAll(leaf.counts.subList(mid, leaf.counts.size()));
+		leaf.keys.subList(mid, leaf.keys.size()).clear();
+		leaf.values.subList(mid, leaf.values.size()).clear();
+		leaf.counts.subList(mid, leaf.counts.size()).clear();
+		right.next = leaf.next;
+		leaf.next = right;
+		return right;
+	}
+
+	private Internal split(Internal internal) {
+		int mid = internal.keys.size() / 2;
+		Internal right = new Internal();
+		// The middle key moves up; the right node keeps the keys after it
+		right.keys.addAll(internal.keys.subList(mid + 1, internal.keys.size()));
+		right.children.addAll(internal.children.subList(mid + 1, internal.children.size()));
+		internal.keys.subList(mid, internal.keys.size()).clear();
+		internal.children.subList(mid + 1, internal.children.size()).clear();
+		return right;
+	}
+
+	/**
+	 * Return the smallest key in a subtree
+	 */
+	private String firstKey(Node node) {
+		while (node instanceof Internal) {
+			node = ((Internal) node).children.get(0);
+		}
+		return node.keys.get(0);
+	}
+
+	/**
+	 * Return the index of the child of an internal node covering a key
+	 */
+	private int child(Internal node, String key) {
+		int i = Collections.binarySearch(node.keys, key);
+		return i >= 0 ? i + 1 : -i - 1;
+	}
+
+	/**
+	 * Return the row ids of the tuples holding a value
+	 * @param key Attribute value
+	 * @return Row ids, in insertion order
+	 */
+	public synchronized long[] search(String key) {
+		Node node = root;
+		reads++;
+		while (node instanceof Internal) {
+			node = ((Internal) node).children.get(child((Internal) node, key));
+			reads++;
+		}
+
+		Leaf leaf = (Leaf) node;
+		int i = Collections.binarySearch(leaf.keys, key);
+		if (i < 0) {
+			return new long[0];
+		}
+		long[] ids = new long[leaf.counts.get(i)];
+		System.arraycopy(leaf.values.get(i), 0, ids, 0, ids.length);
+		return ids;
+	}
+
+	/**
+	 * Return the distinct keys in the index, in order, by following the
+	 * links between leaves
+	 * @return keys
+	 */
+	public synchronized List<String> keys() {
+		Node node = root;
+		while (node instanceof Internal) {
+			node = ((Internal) node).children.get(0);
+		}
+		ArrayList<String> keys = new ArrayList<String>();
+		for (Leaf leaf = (Leaf) node; leaf != null; leaf = leaf.next) {
+			keys.addAll(leaf.keys);
+		}
+		return keys;
+	}
+}
@@ -0,0 +1,78 @@
+package sjdb;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class implements a bitmap index on an attribute, which holds one
+ * compressed bitmap of row ids for each value of the attribute. It suits
+ * attributes with few distinct values, where a B+tree would hold long
+ * lists of row ids for every key; predicates on several indexed attributes
+ * are evaluated by combining their bitmaps before any tuples are read.
+ *
+ * Row ids are held as non-negative ints, so a heap file whose row ids
+ * outgrow them cannot be indexed. Lookups return copies of the bitmaps,
+ * which may be combined while tuples are still being inserted.
+ */
+public class BitmapIndex {
+	private HashMap<String, RoaringBitmap> bitmaps = new HashMap<String, RoaringBitmap>();
+	private long size;
+
+	/**
+	 * Add an entry to the index
+	 * @param value Attribute value
+	 * @param rowId Row id of the tuple holding the value
+	 * @throws IllegalArgumentException if the row id does not fit in a bitmap
+	 */
+	public synchronized void insert(String value, long rowId) {
+		if (rowId < 0 || rowId > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Row id " + rowId + " is too large for a bitmap index");
+		}
+		RoaringBitmap bitmap = bitmaps.get(value);
+		if (bitmap == null) {
+			bitmap = new RoaringBitmap();
+			bitmaps.put(value, bitmap);
+		}
+		bitmap.add((int) rowId);
+		size++;
+	}
+
+	/**
+	 * Return the bitmap of the tuples holding a value
+	 * @param value Attribute value
+	 * @return Copy of the bitmap of row ids, which is empty if no tuple holds the value
+	 */
+	public synchronized RoaringBitmap search(String value) {
+		RoaringBitmap bitmap = bitmaps.get(value);
+		return bitmap == null ? new RoaringBitmap() : bitmap.copy();
+	}
+
+	/**
+	 * Return the values which have bitmaps
+	 * @return copy of the values
+	 */
+	public synchronized Set<String> values() {
+		return new HashSet<String>(bitmaps.keySet());
+	}
+
+	/**
+	 * Return the number of entries in the index
+	 * @return entry count
+	 */
+	public synchronized long size() {
+		return this.size;
+	}
+
+	/**
+	 * Return the approximate number of bytes used by the bitmaps
+	 * @return size in bytes
+	 */
+	public synchronized int getSizeInBytes() {
+		int n = 0;
+		for (RoaringBitmap bitmap : bitmaps.values()) {
+			n += bitmap.getSizeInBytes();
+		}
+		return n;
+	}
+}
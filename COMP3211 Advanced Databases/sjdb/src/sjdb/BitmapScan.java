@@ -0,0 +1,80 @@
+package sjdb;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * This class implements a BitmapScan operator, which feeds the tuples of
+ * a NamedRelation that satisfy several predicates of the form attr=value
+ * into a query plan by ANDing the bitmaps of the values in bitmap indexes
+ * on the attributes, and reading only the tuples left in the result.
+ */
+public class BitmapScan extends Scan {
+	/**
+	 * The predicates answered by the bitmap indexes
+	 */
+	private List<Predicate> predicates;
+
+	/**
+	 * Create a new bitmap scan of a given named relation
+	 * @param relation Named relation to be scanned
+	 * @param predicates Predicates of the form attr=value on attributes with bitmap indexes
+	 */
+	public BitmapScan(NamedRelation relation, List<Predicate> predicates) {
+		super(relation);
+		this.predicates = predicates;
+	}
+
+	/**
+	 * Return the predicates answered by the bitmap indexes
+	 * @return Predicates
+	 */
+	public List<Predicate> getPredicates() {
+		return this.predicates;
+	}
+
+	/**
+	 * Return the bitmap of the tuples satisfying all of the predicates
+	 * @return Bitmap of row ids
+	 */
+	public RoaringBitmap lookup() {
+		NamedRelation relation = (NamedRelation) getRelation();
+		RoaringBitmap result = null;
+
+		for (Predicate predicate : this.predicates) {
+			RoaringBitmap bitmap = relation.getBitmapIndex(predicate.getLeftAttribute()).search(predicate.getRightValue());
+			result = result == null ? bitmap : result.and(bitmap);
+		}
+
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Scan#toString()
+	 */
+	@Override
+	public String toString() {
+		String ret = "BITMAP [";
+		Iterator<Predicate> iter = this.predicates.iterator();
+
+		while (iter.hasNext()) {
+			ret += iter.next().toString();
+			if (iter.hasNext()) {
+				ret += ",";
+			}
+		}
+		ret += "] (" + getRelation().toString() + ")";
+
+		for (BloomFilter filter : getFilters()) {
+			ret = "BLOOM [" + filter.toString() + "] (" + ret + ")";
+		}
+		return ret;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Scan#accept(sjdb.PlanVisitor)
+	 */
+	public void accept(PlanVisitor visitor) {
+		visitor.visit(this);
+	}
+}
@@ -0,0 +1,220 @@
+package sjdb;
+
+/**
+ * This class represents a Bloom filter built on the join key of the build
+ * side of an equi-join and pushed down to a Scan on the probe side, so that
+ * rows which cannot find a join partner are discarded before they reach
+ * any projections or joins.
+ *
+ * The filter is sized from the estimated number of distinct keys on the
+ * build side; its false positive rate and the fraction of probe rows that
+ * it lets through can be computed from those statistics, and the observed
+ * pass rate is recorded as keys are probed.
+ */
+public class BloomFilter {
+	/**
+	 * Default number of bits allocated per distinct build key
+	 */
+	public static final int DEFAULT_BITS_PER_KEY = 10;
+
+	private Attribute probeAttribute;
+	private Attribute buildAttribute;
+	private int keys;
+	private int numBits;
+	private int numHashes;
+	private long[] bits;
+	private long probes;
+	private long passes;
+
+	/**
+	 * Create a new Bloom filter with the default number of bits per key.
+	 * @param probeAttribute Attribute on the probe side checked by the filter
+	 * @param buildAttribute Attribute on the build side used to fill the filter
+	 * @param keys Estimated number of distinct keys on the build side
+	 */
+	public BloomFilter(Attribute probeAttribute, Attribute buildAttribute, int keys) {
+		this(probeAttribute, buildAttribute, keys, DEFAULT_BITS_PER_KEY);
+	}
+
+	/**
+	 * Create a new Bloom filter.
+	 * @param probeAttribute Attribute on the probe side checked by the filter
+	 * @param buildAttribute Attribute on the build side used to fill the filter
+	 * @param keys Estimated number of distinct keys on the build side
+	 * @param bitsPerKey Number of bits allocated per key
+	 */
+	public BloomFilter(Attribute probeAttribute, Attribute buildAttribute, int keys, int bitsPerKey) {
+		this.probeAttribute = probeAttribute;
+		this.buildAttribute = buildAttribute;
+		this.keys = Math.max(keys, 1);
+		// Round the bit array up to a whole number of words
+		this.numBits = (int) Math.max(64, (((long) this.keys * bitsPerKey + 63) / 64) * 64);
+		// k = ln(2) * bits per key minimises the false positive rate
+		this.numHashes = Math.max(1, (int) Math.round(Math.log(2) * bitsPerKey));
+		this.bits = new long[this.numBits / 64];
+	}
+
+	/**
+	 * Return an empty filter of the same size, for another execution of the
+	 * plan holding this filter
+	 * @return Bloom filter
+	 */
+	public BloomFilter copy() {
+		BloomFilter filter = new BloomFilter(this.probeAttribute, this.buildAttribute, this.keys, 1);
+		filter.numBits = this.numBits;
+		filter.numHashes = this.numHashes;
+		filter.bits = new long[this.bits.length];
+		return filter;
+	}
+
+	/**
+	 * Return the attribute on the probe side checked by this filter
+	 * @return probe attribute
+	 */
+	public Attribute getProbeAttribute() {
+		return this.probeAttribute;
+	}
+
+	/**
+	 * Return the attribute on the build side used to fill this filter
+	 * @return build attribute
+	 */
+	public Attribute getBuildAttribute() {
+		return this.buildAttribute;
+	}
+
+	/**
+	 * Return the number of distinct build keys this filter was sized for
+	 * @return number of keys
+	 */
+	public int getKeyCount() {
+		return this.keys;
+	}
+
+	/**
+	 * Return the size of the bit array
+	 * @return number of bits
+	 */
+	public int getBitCount() {
+		return this.numBits;
+	}
+
+	/**
+	 * Return the number of hash functions applied to each key
+	 * @return number of hash functions
+	 */
+	public int getHashCount() {
+		return this.numHashes;
+	}
+
+	/**
+	 * Add a build-side key to the filter
+	 * @param key Key value
+	 */
+	public void add(String key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+
+		for (int i = 0; i < numHashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Test whether a probe-side key may have a partner on the build side.
+	 * A false result is definite; a true result may be a false positive.
+	 * @param key Key value
+	 * @return false if the key is certainly absent from the build side
+	 */
+	public boolean mightContain(String key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		probes++;
+
+		for (int i = 0; i < numHashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+
+		passes++;
+		return true;
+	}
+
+	/**
+	 * Return the expected false positive rate for the number of keys this
+	 * filter was sized for: (1 - e^(-kn/m))^k
+	 * @return false positive rate
+	 */
+	public double getFalsePositiveRate() {
+		return Math.pow(1 - Math.exp(-(double) numHashes * keys / numBits), numHashes);
+	}
+
+	/**
+	 * Return the expected fraction of probe rows that pass the filter, given
+	 * the number of distinct values of the probe attribute. Keys which have a
+	 * partner always pass; the remainder pass at the false positive rate.
+	 * @param probeValues V(S,B) for the probe attribute B
+	 * @return selectivity of the filter
+	 */
+	public double getSelectivity(int probeValues) {
+		if (probeValues <= 0) {
+			return 1.0;
+		}
+		double matched = Math.min(1.0, (double) keys / (double) probeValues);
+		return matched + (1 - matched) * getFalsePositiveRate();
+	}
+
+	/**
+	 * Return the fraction of probed keys that have passed the filter so far
+	 * @return observed selectivity, or 1 if nothing has been probed
+	 */
+	public double getMeasuredSelectivity() {
+		return probes == 0 ? 1.0 : (double) passes / (double) probes;
+	}
+
+	/**
+	 * Return the number of keys probed so far
+	 * @return number of probes
+	 */
+	public long getProbeCount() {
+		return this.probes;
+	}
+
+	/**
+	 * Return the number of probed keys that passed the filter so far
+	 * @return number of passes
+	 */
+	public long getPassCount() {
+		return this.passes;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of a key, finished with a mixing step so that both
+	 * halves are usable as independent hashes
+	 * @param key Key value
+	 * @return hash
+	 */
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return this.probeAttribute.toString() + "=" + this.buildAttribute.toString();
+	}
+}
@@ -0,0 +1,647 @@
+package sjdb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class implements a buffer pool which caches the pages of heap files
+ * in a fixed number of frames. Pages are pinned while in use and unpinned
+ * afterwards; when a page which is not cached is pinned, the replacement
+ * policy chooses an unpinned frame to evict, and the evicted page is
+ * written back if it is dirty.
+ *
+ * The page table is split into stripes by page, and each stripe is
+ * protected by its own lock; the pin count and state of each frame are
+ * protected by the frame's lock. Both are only held for short periods, so
+ * that pins of different pages do not contend. Page contents are protected
+ * by striped read/write latches, so that readers and writers of different
+ * pages do not contend. Locks are taken in the order stripe, frame; the
+ * replacement policy has a lock of its own, and takes frame locks only to
+ * test whether a frame can be evicted.
+ *
+ * A frame chosen for eviction is claimed, and its page is written back if
+ * it is dirty without holding any of the pool's locks. A pin of the page
+ * being written waits for the write, and then reads the page again.
+ *
+ * Pages can be prefetched: a frame is claimed for the page at once, and
+ * the page is read into it on a background thread, so that a sequential
+ * scan can ask for the pages it will need next and find them loaded when
+ * it gets to them. A pin of a page which is still being read waits for it.
+ * If the read fails, the page is removed from the page table, every pin
+ * waiting for it fails, and the frame is returned to the pool once the
+ * last of them has given up its pin.
+ *
+ * The hit ratio, number of evictions and number of dirty pages written are
+ * counted so that the number of frames can be sized for a workload.
+ */
+public class BufferPool {
+	/**
+	 * Size of a page in bytes
+	 */
+	public static final int PAGE_SIZE = 8192;
+
+	// Threads reading prefetched pages, shared by all pools
+	private static final ExecutorService READERS = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "sjdb-read-ahead");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * A frame holding one page
+	 */
+	public static class Frame {
+		private int index;
+		private PageId page;
+		private ByteBuffer data;
+		private int pins;
+		private boolean dirty;
+		private boolean loading;
+		private boolean failed;
+		private boolean claimed;
+
+		private Frame(int index) {
+			this.index = index;
+			this.data = ByteBuffer.allocate(PAGE_SIZE);
+		}
+
+		/**
+		 * Return the contents of the page held in this frame
+		 * @return page buffer
+		 */
+		public ByteBuffer getData() {
+			return this.data;
+		}
+
+		/**
+		 * Return the number of the page held in this frame
+		 * @return page number
+		 */
+		public int getPageNumber() {
+			return this.page.number;
+		}
+	}
+
+	/**
+	 * The identity of a page: its heap file and page number
+	 */
+	private static class PageId {
+		private HeapFile file;
+		private int number;
+
+		PageId(HeapFile file, int number) {
+			this.file = file;
+			this.number = number;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(file) * 31 + number;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof PageId)) {
+				return false;
+			}
+			PageId rhs = (PageId) obj;
+			return this.file == rhs.file && this.number == rhs.number;
+		}
+	}
+
+	private Frame[] frames;
+	private HashMap<PageId, Integer>[] tables;
+	private ReplacementPolicy policy;
+	private ReentrantReadWriteLock[] latches;
+	private ConcurrentLinkedQueue<Frame> free;
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+	private AtomicLong dirtyWrites = new AtomicLong();
+	private AtomicLong prefetches = new AtomicLong();
+
+	/**
+	 * Create a new buffer pool using the CLOCK replacement policy.
+	 * @param frames Number of frames
+	 */
+	public BufferPool(int frames) {
+		this(frames, new ClockPolicy());
+	}
+
+	/**
+	 * Create a new buffer pool.
+	 * @param frames Number of frames
+	 * @param policy Replacement policy
+	 */
+	@SuppressWarnings("unchecked")
+	public BufferPool(int frames, ReplacementPolicy policy) {
+		this.frames = new Frame[frames];
+		this.free = new ConcurrentLinkedQueue<Frame>();
+		for (int i = 0; i < frames; i++) {
+			this.frames[i] = new Frame(i);
+			this.free.add(this.frames[i]);
+		}
+		this.policy = policy;
+		this.policy.init(frames);
+
+		// Use a power of two number of stripes, a few per frame
+		int stripes = Math.min(Integer.highestOneBit(Math.max(16, frames * 4 - 1)) << 1, 1024);
+		this.tables = new HashMap[stripes];
+		this.latches = new ReentrantReadWriteLock[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.tables[i] = new HashMap<PageId, Integer>();
+			this.latches[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/**
+	 * Pin a page of a heap file, reading it into a frame if it is not
+	 * already cached. The page stays in its frame until it is unpinned.
+	 * @param file Heap file
+	 * @param number Page number
+	 * @return Frame holding the page
+	 * @throws IOException if the page cannot be read, or all frames are pinned
+	 */
+	public Frame pin(HeapFile file, int number) throws IOException {
+		return pin(file, number, false);
+	}
+
+	/**
+	 * Pin a new page at the end of a heap file, without reading it.
+	 * @param file Heap file
+	 * @param number Page number
+	 * @return Frame holding the zeroed page
+	 * @throws IOException if all frames are pinned
+	 */
+	public Frame pinNew(HeapFile file, int number) throws IOException {
+		return pin(file, number, true);
+	}
+
+	private Frame pin(HeapFile file, int number, boolean create) throws IOException {
+		PageId id = new PageId(file, number);
+		Frame frame = null;
+
+		while (true) {
+			Frame cached;
+			try {
+				cached = lookup(id);
+			} catch (IOException e) {
+				if (frame != null) {
+					free.add(frame);
+				}
+				throw e;
+			}
+			if (cached != null) {
+				if (frame != null) {
+					free.add(frame);
+				}
+				hits.incrementAndGet();
+				synchronized (policy) {
+					policy.accessed(cached.index);
+				}
+				// Wait for another thread to finish reading the page
+				await(cached, number);
+				return cached;
+			}
+
+			// Claim a frame, then add the page to the page table unless
+			// another thread has added it first
+			if (frame == null) {
+				frame = claim();
+			}
+			if (install(id, frame, create)) {
+				break;
+			}
+		}
+		misses.incrementAndGet();
+		synchronized (policy) {
+			policy.accessed(frame.index);
+		}
+
+		// Read the page outside the pool's locks; other pins of the page wait
+		try {
+			frame.data.clear();
+			if (create) {
+				frame.data.put(new byte[PAGE_SIZE]);
+			} else {
+				file.readPage(number, frame.data);
+			}
+			frame.data.clear();
+		} catch (IOException e) {
+			fail(id, frame);
+			throw e;
+		}
+		synchronized (frame) {
+			frame.loading = false;
+			frame.notifyAll();
+		}
+		return frame;
+	}
+
+	/**
+	 * Start reading a page of a heap file into a frame on a background
+	 * thread, unless it is already cached. The page is not pinned, and is
+	 * not prefetched if every frame is pinned.
+	 * @param file Heap file
+	 * @param number Page number
+	 * @return false if no frame was free for the page
+	 */
+	public boolean prefetch(final HeapFile file, final int number) {
+		final PageId id = new PageId(file, number);
+		final Frame frame;
+
+		if (find(id) != null) {
+			return true;
+		}
+		try {
+			frame = claim();
+		} catch (IOException e) {
+			return false;
+		}
+		// The frame stays pinned until the page has been read
+		if (!install(id, frame, false)) {
+			free.add(frame);
+			return true;
+		}
+		prefetches.incrementAndGet();
+		synchronized (policy) {
+			policy.accessed(frame.index);
+		}
+
+		READERS.execute(() -> {
+			try {
+				frame.data.clear();
+				file.readPage(number, frame.data);
+				frame.data.clear();
+			} catch (IOException e) {
+				// The page is read again by the next pin
+				fail(id, frame);
+				return;
+			}
+			synchronized (frame) {
+				frame.loading = false;
+				frame.pins--;
+				frame.notifyAll();
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Test whether a page is cached and has finished loading, so that
+	 * pinning it will not wait for a read
+	 * @param file Heap file
+	 * @param number Page number
+	 * @return true if the page is loaded
+	 */
+	public boolean isLoaded(HeapFile file, int number) {
+		Frame frame = find(new PageId(file, number));
+		if (frame == null) {
+			return false;
+		}
+		synchronized (frame) {
+			return !frame.loading && !frame.claimed;
+		}
+	}
+
+	/**
+	 * Return the stripe of the page table holding a page
+	 */
+	private HashMap<PageId, Integer> table(PageId id) {
+		int hash = id.hashCode();
+		hash ^= hash >>> 16;
+		return tables[hash & (tables.length - 1)];
+	}
+
+	/**
+	 * Find the frame holding a page, without pinning it
+	 * @return the frame, or null if the page is not cached
+	 */
+	private Frame find(PageId id) {
+		HashMap<PageId, Integer> table = table(id);
+		synchronized (table) {
+			Integer cached = table.get(id);
+			return cached == null ? null : frames[cached];
+		}
+	}
+
+	/**
+	 * Find the frame holding a page and pin it. If the frame has been
+	 * claimed for eviction, waits for it to be released and looks the page
+	 * up again.
+	 * @return the pinned frame, or null if the page is not cached
+	 */
+	private Frame lookup(PageId id) throws IOException {
+		HashMap<PageId, Integer> table = table(id);
+		while (true) {
+			Frame frame;
+			synchronized (table) {
+				Integer cached = table.get(id);
+				if (cached == null) {
+					return null;
+				}
+				frame = frames[cached];
+				synchronized (frame) {
+					if (!frame.claimed) {
+						frame.pins++;
+						return frame;
+					}
+				}
+			}
+
+			synchronized (frame) {
+				while (frame.claimed) {
+					try {
+						frame.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for page " + id.number, e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add a page to the page table in a claimed frame, pinned and loading,
+	 * unless another thread has added it first
+	 * @return false if the page is already in the table
+	 */
+	private boolean install(PageId id, Frame frame, boolean create) {
+		HashMap<PageId, Integer> table = table(id);
+		synchronized (table) {
+			if (table.containsKey(id)) {
+				return false;
+			}
+			synchronized (frame) {
+				frame.page = id;
+				frame.pins = 1;
+				frame.dirty = create;
+				frame.loading = true;
+			}
+			table.put(id, frame.index);
+		}
+		return true;
+	}
+
+	/**
+	 * Wait for a pinned frame to finish loading its page. If the page could
+	 * not be read, the pin is given up and the pin fails.
+	 */
+	private void await(Frame frame, int number) throws IOException {
+		synchronized (frame) {
+			while (frame.loading) {
+				try {
+					frame.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					drop(frame);
+					throw new IOException("Interrupted while waiting for page " + number, e);
+				}
+			}
+			if (frame.failed) {
+				drop(frame);
+				throw new IOException("Page " + number + " could not be read");
+			}
+		}
+	}
+
+	/**
+	 * Record that the page in a frame could not be read: removes the page
+	 * from the page table, wakes the pins waiting for it so that they fail,
+	 * and gives up the pin of the reader
+	 */
+	private void fail(PageId id, Frame frame) {
+		HashMap<PageId, Integer> table = table(id);
+		synchronized (table) {
+			table.remove(id);
+		}
+		synchronized (frame) {
+			frame.failed = true;
+			frame.loading = false;
+			frame.notifyAll();
+			drop(frame);
+		}
+	}
+
+	/**
+	 * Give up a pin of a frame, returning the frame to the pool if its page
+	 * could not be read and this was the last pin; called with the frame's
+	 * lock held.
+	 */
+	private void drop(Frame frame) {
+		frame.pins--;
+		if (frame.failed && frame.pins == 0) {
+			frame.page = null;
+			frame.dirty = false;
+			frame.failed = false;
+			free.add(frame);
+		}
+	}
+
+	/**
+	 * Test whether a frame holds a page which can be evicted; called with
+	 * the frame's lock held.
+	 */
+	private static boolean evictable(Frame frame) {
+		return frame.page != null && frame.pins == 0 && !frame.loading && !frame.claimed;
+	}
+
+	/**
+	 * Claim a frame for a new page: takes a free frame, or chooses a victim
+	 * frame and writes back its page if dirty. The write is made without
+	 * holding any of the pool's locks; pins of the page wait for it, and then
+	 * find the page gone from the page table.
+	 * @return a frame holding no page, owned by the caller
+	 */
+	private Frame claim() throws IOException {
+		Frame frame = free.poll();
+		if (frame != null) {
+			return frame;
+		}
+
+		// The victim may be pinned between being chosen and being claimed
+		while (frame == null) {
+			int index;
+			synchronized (policy) {
+				index = policy.victim(i -> {
+					synchronized (frames[i]) {
+						return evictable(frames[i]);
+					}
+				});
+			}
+			if (index < 0) {
+				throw new IOException("All " + frames.length + " buffer frames are pinned");
+			}
+			synchronized (frames[index]) {
+				if (evictable(frames[index])) {
+					frame = frames[index];
+					frame.claimed = true;
+				}
+			}
+		}
+
+		PageId id = frame.page;
+		if (frame.dirty) {
+			try {
+				ByteBuffer data = frame.data.duplicate();
+				data.clear();
+				id.file.writePage(id.number, data);
+				dirtyWrites.incrementAndGet();
+			} catch (IOException e) {
+				synchronized (frame) {
+					frame.claimed = false;
+					frame.notifyAll();
+				}
+				throw e;
+			}
+		}
+
+		HashMap<PageId, Integer> table = table(id);
+		synchronized (table) {
+			table.remove(id);
+			synchronized (frame) {
+				frame.page = null;
+				frame.dirty = false;
+				frame.claimed = false;
+				frame.notifyAll();
+			}
+		}
+		evictions.incrementAndGet();
+		return frame;
+	}
+
+	/**
+	 * Unpin a page, marking it dirty if it has been modified.
+	 * @param frame Frame holding the page
+	 * @param dirty Whether the page has been modified
+	 */
+	public void unpin(Frame frame, boolean dirty) {
+		synchronized (frame) {
+			frame.pins--;
+			frame.dirty |= dirty;
+		}
+	}
+
+	/**
+	 * Return the latch protecting the contents of a page. Readers of the
+	 * page take the read lock and writers take the write lock.
+	 * @param file Heap file
+	 * @param number Page number
+	 * @return Page latch
+	 */
+	public ReentrantReadWriteLock latch(HeapFile file, int number) {
+		int hash = new PageId(file, number).hashCode();
+		hash ^= hash >>> 16;
+		return latches[hash & (latches.length - 1)];
+	}
+
+	/**
+	 * Write back all dirty pages of a heap file. Each page is claimed while
+	 * it is written, so that it is not evicted meanwhile.
+	 * @param file Heap file
+	 * @throws IOException
+	 */
+	public void flush(HeapFile file) throws IOException {
+		for (Frame frame : frames) {
+			PageId id;
+			synchronized (frame) {
+				if (frame.page == null || frame.page.file != file || !frame.dirty || frame.loading || frame.claimed) {
+					continue;
+				}
+				id = frame.page;
+				frame.claimed = true;
+				frame.dirty = false;
+			}
+			try {
+				ByteBuffer data = frame.data.duplicate();
+				data.clear();
+				file.writePage(id.number, data);
+				dirtyWrites.incrementAndGet();
+			} catch (IOException e) {
+				synchronized (frame) {
+					frame.dirty = true;
+				}
+				throw e;
+			} finally {
+				synchronized (frame) {
+					frame.claimed = false;
+					frame.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the number of frames in the pool
+	 * @return frame count
+	 */
+	public int getFrameCount() {
+		return this.frames.length;
+	}
+
+	/**
+	 * Return the fraction of pins which found their page already cached
+	 * @return hit ratio
+	 */
+	public double getHitRatio() {
+		long hits = getHits();
+		long misses = getMisses();
+		return hits + misses == 0 ? 0.0 : (double) hits / (double) (hits + misses);
+	}
+
+	/**
+	 * Return the number of pins which found their page already cached
+	 * @return hit count
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * Return the number of pins which had to read their page
+	 * @return miss count
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Return the number of pages evicted from the pool
+	 * @return eviction count
+	 */
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+
+	/**
+	 * Return the number of dirty pages written back
+	 * @return dirty write count
+	 */
+	public long getDirtyWrites() {
+		return this.dirtyWrites.get();
+	}
+
+	/**
+	 * Return the number of pages prefetched
+	 * @return prefetch count
+	 */
+	public long getPrefetches() {
+		return this.prefetches.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return policy.toString() + " frames=" + frames.length + " hits=" + getHits() + " misses=" + getMisses()
+				+ " ratio=" + String.format("%.3f", getHitRatio()) + " evictions=" + getEvictions()
+				+ " dirty=" + getDirtyWrites() + " prefetches=" + getPrefetches();
+	}
+}
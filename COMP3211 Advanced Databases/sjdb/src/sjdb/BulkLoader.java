@@ -0,0 +1,348 @@
+package sjdb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class loads a CSV file into a ColumnStore and registers the loaded
+ * relation in the catalogue, with its tuple count and the number of
+ * distinct values of each attribute computed during the load.
+ *
+ * The first line of the file holds the attribute names. The rest of the
+ * file is split into chunks of a fixed number of bytes, and each line
+ * belongs to the chunk holding its first byte. Chunks are parsed in
+ * parallel, a few ahead of the writer, and appended to the column store
+ * in file order, so that row ids follow the order of the file.
+ *
+ * Value counts of STRING attributes are exact, since they are the sizes
+ * of the column dictionaries; value counts of INT attributes are estimated
+ * with HyperLogLog sketches, which are built per chunk and then merged.
+ *
+ * A relation may not be loaded over a materialised view, or over a
+ * relation which a view joins, since the view would no longer match it.
+ */
+public class BulkLoader {
+	/**
+	 * Default size of the chunks parsed in parallel
+	 */
+	public static final int DEFAULT_CHUNK_BYTES = 8 << 20;
+
+	private Catalogue catalogue;
+	private int threads;
+	private int chunkBytes;
+
+	/**
+	 * Create a new bulk loader using one thread per processor
+	 * @param catalogue Catalogue in which loaded relations are registered
+	 */
+	public BulkLoader(Catalogue catalogue) {
+		this(catalogue, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_BYTES);
+	}
+
+	/**
+	 * Create a new bulk loader
+	 * @param catalogue Catalogue in which loaded relations are registered
+	 * @param threads Number of threads parsing chunks
+	 * @param chunkBytes Size of the chunks parsed in parallel
+	 */
+	public BulkLoader(Catalogue catalogue, int threads, int chunkBytes) {
+		this.catalogue = catalogue;
+		this.threads = Math.max(1, threads);
+		this.chunkBytes = Math.max(1, chunkBytes);
+	}
+
+	/**
+	 * Load a CSV file, storing every attribute whose values in the first
+	 * chunk are all integers as INT, and every other attribute as STRING
+	 * @param relName Name of the relation to be created
+	 * @param csv CSV file with a header line
+	 * @param out Column store file to be written
+	 * @return The loaded relation
+	 * @throws DatabaseException
+	 */
+	public NamedRelation load(String relName, File csv, File out) throws DatabaseException {
+		return load(relName, csv, out, null);
+	}
+
+	/**
+	 * Load a CSV file
+	 * @param relName Name of the relation to be created
+	 * @param csv CSV file with a header line
+	 * @param out Column store file to be written
+	 * @param types The type of each attribute, or null to infer them
+	 * @return The loaded relation
+	 * @throws DatabaseException
+	 */
+	public NamedRelation load(String relName, File csv, File out, ColumnStore.Type[] types) throws DatabaseException {
+		// A loaded relation replaces any of the same name, which the views
+		// joining it could not be maintained for
+		for (MaterialisedView view : catalogue.getViews()) {
+			if (view.toString().equals(relName)) {
+				throw new DatabaseException("Named relation " + relName + " is a view");
+			}
+			for (NamedRelation reln : view.getRelations()) {
+				if (reln.toString().equals(relName)) {
+					throw new DatabaseException("Named relation " + relName + " is used by view " + view);
+				}
+			}
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			return load(pool, relName, csv, out, types);
+		} catch (IOException e) {
+			out.delete();
+			throw new DatabaseException("Relation " + relName + " could not be loaded from " + csv, e);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private NamedRelation load(ExecutorService pool, String relName, File csv, File out, ColumnStore.Type[] types)
+			throws IOException, DatabaseException {
+		// Read the attribute names from the header
+		long size = csv.length();
+		long start;
+		String[] names;
+		try (InputStream in = new BufferedInputStream(Channels.newInputStream(
+				FileChannel.open(csv.toPath(), StandardOpenOption.READ)))) {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			start = readLine(in, line);
+			if (start < 0) {
+				throw new IOException(csv + " has no header");
+			}
+			names = parse(decode(line));
+		}
+
+		// Parse chunks in parallel, a few ahead of the writer
+		ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+		long next = start;
+		while (next < size && pending.size() < 2 * threads) {
+			pending.add(pool.submit(new Chunk(csv, next, Math.min(next + chunkBytes, size), names.length)));
+			next += chunkBytes;
+		}
+
+		Chunk chunk = pending.isEmpty() ? new Chunk(csv, start, start, names.length) : get(pending.peek());
+		if (types == null) {
+			types = chunk.types();
+		}
+
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for (String name : names) {
+			attributes.add(new Attribute(name));
+		}
+		HyperLogLog[] sketches = new HyperLogLog[names.length];
+		for (int i = 0; i < sketches.length; i++) {
+			sketches[i] = new HyperLogLog();
+		}
+
+		// Append each chunk in file order
+		ColumnStore.Writer writer = ColumnStore.create(out, attributes, types);
+		try {
+			while (!pending.isEmpty()) {
+				chunk = get(pending.poll());
+				if (next < size) {
+					pending.add(pool.submit(new Chunk(csv, next, Math.min(next + chunkBytes, size), names.length)));
+					next += chunkBytes;
+				}
+				for (String[] row : chunk.rows) {
+					writer.append(row);
+				}
+				for (int i = 0; i < sketches.length; i++) {
+					sketches[i].merge(chunk.sketches[i]);
+				}
+			}
+		} catch (NumberFormatException e) {
+			writer.close();
+			throw new IOException("Attribute stored as INT holds a value which is not an integer", e);
+		}
+
+		// Store the estimated value counts of INT attributes
+		long rows = writer.getRowCount();
+		for (int i = 0; i < attributes.size(); i++) {
+			long values = Math.min(Math.max(sketches[i].estimate(), rows == 0 ? 0 : 1), rows);
+			attributes.set(i, new Attribute(names[i], (int) values));
+		}
+		writer.close();
+
+		// Register the relation with the counts stored in the file
+		catalogue.createRelation(relName, (int) rows);
+		NamedRelation reln = catalogue.attachStorage(relName, out);
+		for (Attribute a : reln.getStorage().getAttributes()) {
+			catalogue.createAttribute(relName, a.getName(), a.getValueCount());
+		}
+		return reln;
+	}
+
+	private static Chunk get(Future<Chunk> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Read a line into a buffer, without its line terminator
+	 * @return number of bytes consumed, or -1 at the end of the input
+	 */
+	private static int readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+		line.reset();
+		int n = 0;
+		int b;
+		while ((b = in.read()) >= 0) {
+			n++;
+			if (b == '\n') {
+				return n;
+			}
+			line.write(b);
+		}
+		return n == 0 ? -1 : n;
+	}
+
+	private static String decode(ByteArrayOutputStream line) {
+		String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+		return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	/**
+	 * Split a CSV line into fields. Fields may be enclosed in double quotes,
+	 * in which case they may hold commas and doubled quotes.
+	 * @param line CSV line
+	 * @return fields
+	 */
+	static String[] parse(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	/**
+	 * A task which parses the lines starting in a range of bytes of the
+	 * file, and sketches the values of each attribute
+	 */
+	private static class Chunk implements Callable<Chunk> {
+		private File csv;
+		private long start;
+		private long end;
+		private int width;
+		private ArrayList<String[]> rows = new ArrayList<String[]>();
+		private HyperLogLog[] sketches;
+		private boolean[] integral;
+
+		Chunk(File csv, long start, long end, int width) {
+			this.csv = csv;
+			this.start = start;
+			this.end = end;
+			this.width = width;
+			this.sketches = new HyperLogLog[width];
+			this.integral = new boolean[width];
+			for (int i = 0; i < width; i++) {
+				sketches[i] = new HyperLogLog();
+				integral[i] = true;
+			}
+		}
+
+		public Chunk call() throws IOException {
+			try (FileChannel channel = FileChannel.open(csv.toPath(), StandardOpenOption.READ)) {
+				// Skip the line which started in the previous chunk, if any
+				long position = Math.max(start - 1, 0);
+				InputStream in = new BufferedInputStream(Channels.newInputStream(channel.position(position)), 1 << 16);
+				ByteArrayOutputStream line = new ByteArrayOutputStream();
+				if (start > 0) {
+					int n = readLine(in, line);
+					position += Math.max(n, 0);
+				}
+
+				while (position < end) {
+					int n = readLine(in, line);
+					if (n < 0) {
+						break;
+					}
+					position += n;
+					if (line.size() == 0) {
+						continue;
+					}
+					add(parse(decode(line)));
+				}
+			}
+			return this;
+		}
+
+		private void add(String[] row) throws IOException {
+			if (row.length != width) {
+				throw new IOException("Line with " + row.length + " fields in a file of " + width + " attributes");
+			}
+			for (int i = 0; i < width; i++) {
+				sketches[i].add(row[i]);
+				if (integral[i]) {
+					integral[i] = isInteger(row[i]);
+				}
+			}
+			rows.add(row);
+		}
+
+		/**
+		 * Return the types of the attributes inferred from this chunk
+		 */
+		ColumnStore.Type[] types() {
+			ColumnStore.Type[] types = new ColumnStore.Type[width];
+			for (int i = 0; i < width; i++) {
+				types[i] = integral[i] && !rows.isEmpty() ? ColumnStore.Type.INT : ColumnStore.Type.STRING;
+			}
+			return types;
+		}
+
+		private static boolean isInteger(String value) {
+			try {
+				Integer.parseInt(value);
+				return true;
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+	}
+}
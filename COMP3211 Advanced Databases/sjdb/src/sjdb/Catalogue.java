@@ -1,6 +1,15 @@
 package sjdb;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class contains the system catalogue for the database; it
@@ -16,18 +25,47 @@ import java.util.HashMap;
  * the attributes therein is stored on the relations or attributes,
  * and not in the catalogue.
  * 
+ * Materialised views are named relations too, and may be created while
+ * queries are being planned over the catalogue.
+ * 
+ * A catalogue may be read from a binary image (see CatalogueImage), whose
+ * relations and attributes are added to the directory only when they
+ * are first looked up.
+ * 
  * @author nmg
  *
  */
 public class Catalogue {
 	
-	private HashMap<String, NamedRelation> relations;
-	private HashMap<String, Attribute> attributes;
+	private Map<String, NamedRelation> relations;
+	private Map<String, Attribute> attributes;
+	private Map<String, MaterialisedView> views;
+	private WriteAheadLog log;
+	private CatalogueImage image;
+	private Set<String> dropped;
 
 
 	public Catalogue() {
-		this.relations = new HashMap<String, NamedRelation>();
-		this.attributes = new HashMap<String, Attribute>();
+		this.relations = new ConcurrentHashMap<String, NamedRelation>();
+		this.attributes = new ConcurrentHashMap<String, Attribute>();
+		this.views = new ConcurrentHashMap<String, MaterialisedView>();
+		this.dropped = ConcurrentHashMap.newKeySet();
+	}
+	
+	/**
+	 * Read the named relations and attributes of a binary catalogue image,
+	 * which is mapped without reading its records. A relation is read from
+	 * the image when first looked up, unless one of the same name has been
+	 * created or dropped.
+	 * 
+	 * @param file
+	 */
+	public void attachImage(File file) throws DatabaseException {
+		try {
+			this.image = CatalogueImage.open(file);
+		} catch (IOException e) {
+			throw new DatabaseException("Catalogue image " + file + " could not be opened", e);
+		}
 	}
 	
 	/**
@@ -56,10 +94,526 @@ public class Catalogue {
 	public Attribute createAttribute(String relName, String attName, int values) {
 		Attribute attr = new Attribute(attName, values);
 		attributes.put(attName, attr);
-		relations.get(relName).addAttribute(attr);
+		find(relName).addAttribute(attr);
 		return attr;
 	}
 	
+	/**
+	 * Remove a NamedRelation from the directory and close its storage,
+	 * along with the Attributes which no other relation holds. A relation
+	 * joined by a materialised view may not be removed, but the view may.
+	 * 
+	 * @param relName
+	 */
+	public synchronized void dropRelation(String relName) throws DatabaseException {
+		NamedRelation reln = getRelation(relName);
+		for (MaterialisedView view : views.values()) {
+			if (view.getRelations().contains(reln)) {
+				throw new DatabaseException("Named relation " + relName + " is used by view " + view);
+			}
+		}
+		views.remove(relName, reln);
+		relations.remove(relName);
+		dropped.add(relName);
+		for (Attribute attr : reln.getAttributes()) {
+			boolean held = false;
+			for (NamedRelation r : relations.values()) {
+				held |= r.getAttributes().contains(attr);
+			}
+			if (image != null) {
+				for (String r : image.getRelationsHolding(attr.getName())) {
+					held |= !dropped.contains(r) && !relations.containsKey(r);
+				}
+			}
+			if (!held) {
+				attributes.remove(attr.getName());
+			}
+		}
+		if (reln.getStorage() != null) {
+			try {
+				reln.getStorage().close();
+			} catch (IOException e) {
+				throw new DatabaseException("Storage for " + relName + " could not be closed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Attach the columnar file holding the tuples of a NamedRelation. The
+	 * file is opened without reading its contents.
+	 * 
+	 * @param relName
+	 * @param file
+	 * @return
+	 */
+	public NamedRelation attachStorage(String relName, File file) throws DatabaseException {
+		NamedRelation reln = getRelation(relName);
+		try {
+			reln.setStorage(ColumnStore.open(file));
+		} catch (IOException e) {
+			throw new DatabaseException("Storage for " + relName + " could not be opened", e);
+		}
+		return reln;
+	}
+	
+	/**
+	 * Attach the heap file holding the tuples of a NamedRelation, creating
+	 * it if it does not exist. Pages of the file are read through the
+	 * given buffer pool.
+	 * 
+	 * @param relName
+	 * @param file
+	 * @param pool
+	 * @return
+	 */
+	public NamedRelation attachHeapFile(String relName, File file, BufferPool pool) throws DatabaseException {
+		NamedRelation reln = getRelation(relName);
+		try {
+			reln.setStorage(HeapFile.open(file, reln.getAttributes(), pool));
+		} catch (IOException e) {
+			throw new DatabaseException("Heap file for " + relName + " could not be opened", e);
+		}
+		return reln;
+	}
+	
+	/**
+	 * Declare a B+tree index on an Attribute of a NamedRelation. If the
+	 * relation has storage attached, the index is built from its tuples.
+	 * 
+	 * @param relName
+	 * @param attName
+	 * @return
+	 */
+	public BPlusTree createIndex(String relName, String attName) throws DatabaseException {
+		NamedRelation reln = getRelation(relName);
+		Attribute attr = new Attribute(attName);
+		if (!reln.getAttributes().contains(attr)) {
+			throw new DatabaseException("Attribute " + attName + " not found in " + relName);
+		}
+
+		BPlusTree index = new BPlusTree();
+		Storage storage = reln.getStorage();
+		if (storage != null) {
+			int column = storage.getAttributes().indexOf(attr);
+			try {
+				TupleCursor cursor = storage.cursor();
+				while (cursor.next()) {
+					index.insert(cursor.getString(column), cursor.getRowId());
+				}
+			} catch (IOException e) {
+				throw new DatabaseException("Index on " + relName + "." + attName + " could not be built", e);
+			}
+		}
+
+		reln.addIndex(attr, index);
+		return index;
+	}
+	
+	/**
+	 * Declare a bitmap index on an Attribute of a NamedRelation. If the
+	 * relation has storage attached, the index is built from its tuples.
+	 * 
+	 * @param relName
+	 * @param attName
+	 * @return
+	 */
+	public BitmapIndex createBitmapIndex(String relName, String attName) throws DatabaseException {
+		NamedRelation reln = getRelation(relName);
+		Attribute attr = new Attribute(attName);
+		if (!reln.getAttributes().contains(attr)) {
+			throw new DatabaseException("Attribute " + attName + " not found in " + relName);
+		}
+
+		BitmapIndex index = new BitmapIndex();
+		Storage storage = reln.getStorage();
+		if (storage != null) {
+			int column = storage.getAttributes().indexOf(attr);
+			try {
+				TupleCursor cursor = storage.cursor();
+				while (cursor.next()) {
+					index.insert(cursor.getString(column), cursor.getRowId());
+				}
+			} catch (IOException | IllegalArgumentException e) {
+				throw new DatabaseException("Bitmap index on " + relName + "." + attName + " could not be built", e);
+			}
+		}
+
+		reln.addBitmapIndex(attr, index);
+		return index;
+	}
+	
+	/**
+	 * Create a materialised view holding the result of a query which
+	 * selects, projects and joins named relations, and add it to the
+	 * directory. The result is written to a heap file, so that tuples may
+	 * be added to it as tuples are inserted into the relations it joins,
+	 * and the view has its tuple count, and value counts estimated as it
+	 * is written.
+	 * 
+	 * @param viewName
+	 * @param query Query in the format read by QueryParser
+	 * @param file Heap file to be written, which must be empty or not exist
+	 * @param pool Buffer pool through which the heap file is read
+	 * @return
+	 */
+	public synchronized MaterialisedView createView(String viewName, String query, File file, BufferPool pool)
+			throws DatabaseException {
+		if (find(viewName) != null) {
+			throw new DatabaseException("Named relation " + viewName + " already exists");
+		}
+		if (file.length() > 0) {
+			throw new DatabaseException("File " + file + " for " + viewName + " is not empty");
+		}
+		
+		// Check that the view only selects, projects and joins
+		ViewRewriter.Query definition;
+		PreparedStatement statement;
+		try {
+			definition = ViewRewriter.Query.decompose(new QueryParser(this, new StringReader(query)).parse());
+			statement = new PreparedStatement(this, query);
+		} catch (Exception e) {
+			throw new DatabaseException("View " + viewName + " could not be planned", e);
+		}
+		boolean valid = definition != null && statement.getParameterCount() == 0
+				&& (definition.head.isEmpty() || definition.head.size() == 1 && definition.head.get(0) instanceof Project);
+		for (int i = 0; valid && i < definition.relations.size(); i++) {
+			valid = !(definition.relations.get(i) instanceof MaterialisedView);
+		}
+		if (!valid) {
+			throw new DatabaseException("View " + viewName + " must only select, project and join named relations");
+		}
+		
+		// Write the result, sketching the values of each attribute
+		ResultCursor cursor = statement.execute();
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		for (Attribute a : cursor.getAttributes()) {
+			attributes.add(new Attribute(a.getName()));
+		}
+		HyperLogLog[] sketches = new HyperLogLog[attributes.size()];
+		for (int i = 0; i < sketches.length; i++) {
+			sketches[i] = new HyperLogLog();
+		}
+		HeapFile heap = null;
+		try {
+			heap = HeapFile.open(file, attributes, pool);
+			while (cursor.hasNext()) {
+				String[] tuple = cursor.next();
+				heap.insert(tuple);
+				for (int i = 0; i < tuple.length; i++) {
+					sketches[i].add(tuple[i]);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			try {
+				if (heap != null) {
+					heap.close();
+				}
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			file.delete();
+			throw new DatabaseException("View " + viewName + " could not be written", e);
+		} finally {
+			cursor.close();
+		}
+		
+		// The view shares its attributes with the relations it joins, so they
+		// are added to the view only, and not to the directory of attributes
+		long rows = heap.getRowCount();
+		MaterialisedView view = new MaterialisedView(viewName, (int) rows, query, definition.relations,
+				definition.predicates);
+		view.setStorage(heap);
+		for (int i = 0; i < sketches.length; i++) {
+			long values = Math.min(Math.max(sketches[i].estimate(), rows == 0 ? 0 : 1), rows);
+			view.addAttribute(new Attribute(attributes.get(i).getName(), (int) values));
+		}
+		view.setSketches(sketches);
+		relations.put(viewName, view);
+		views.put(viewName, view);
+		return view;
+	}
+	
+	/**
+	 * Insert tuples into a NamedRelation stored in a heap file, adding them
+	 * to its indexes and statistics, and then maintain the materialised
+	 * views which join the relation.
+	 * 
+	 * A view is maintained by adding only its delta: since the other
+	 * relations it joins are unchanged, the tuples which the insert adds to
+	 * the view are the result of its query with the relation replaced by
+	 * the inserted tuples alone. The delta query is optimised and executed
+	 * like any other, and so reads the indexes of the other relations.
+	 * 
+	 * The insert is a single write: a snapshot sees all of its tuples, in
+	 * the relation and its views, and the statistics they change, or none
+	 * of them.
+	 * 
+	 * If a write-ahead log is attached, the insert returns once its tuples
+	 * are durable in the log, and is only then visible to new snapshots. The
+	 * log is forced outside the lock on the catalogue, and after the next
+	 * write may start, so that the inserts of concurrent threads share a
+	 * force.
+	 * 
+	 * @param relName
+	 * @param tuples Tuples, with one value per attribute in the order of the relation
+	 */
+	public void insert(String relName, List<String[]> tuples) throws DatabaseException {
+		Write write = apply(relName, tuples);
+		if (write.lsn >= 0) {
+			// A write whose log cannot be forced is published all the same,
+			// like any other which fails part way, so that later writes are not
+			// held back
+			try {
+				log.commit(write.lsn);
+			} catch (IOException e) {
+				throw new DatabaseException("Tuples inserted into " + relName + " could not be logged", e);
+			} finally {
+				Snapshot.publish(write.version);
+			}
+		}
+	}
+	
+	/**
+	 * A finished insert: its version and, if it was logged, the LSN of its
+	 * last record
+	 */
+	private static class Write {
+		private long version;
+		private long lsn = -1;
+	}
+	
+	/**
+	 * Insert tuples, logging them if a write-ahead log is attached. A logged
+	 * write is finished but not published, and must be published once the
+	 * log is durable.
+	 * 
+	 * @param relName
+	 * @param tuples
+	 * @return version of the write, and LSN of the last record logged, or -1 if no log is attached
+	 */
+	private synchronized Write apply(String relName, List<String[]> tuples) throws DatabaseException {
+		NamedRelation reln = getRelation(relName);
+		if (reln instanceof MaterialisedView || !(reln.getStorage() instanceof HeapFile)) {
+			throw new DatabaseException("Named relation " + relName + " is not stored in a heap file");
+		}
+		HeapFile heap = (HeapFile) reln.getStorage();
+		for (String[] tuple : tuples) {
+			if (tuple.length != heap.getAttributes().size()) {
+				throw new DatabaseException("Tuple with " + tuple.length + " values inserted into " + relName
+						+ " of " + heap.getAttributes().size() + " attributes");
+			}
+		}
+		
+		Write write = new Write();
+		write.version = Snapshot.beginWrite();
+		try {
+			try {
+				for (String[] tuple : tuples) {
+					addToIndexes(reln, tuple, heap.insert(tuple, write.version, log, relName));
+				}
+				reln.addStatistics(tuples, write.version);
+			} catch (IOException e) {
+				throw new DatabaseException("Tuples could not be inserted into " + relName, e);
+			}
+			
+			maintainViews(reln, tuples, write.version);
+			if (log != null) {
+				write.lsn = log.currentLsn();
+			}
+		} finally {
+			if (write.lsn < 0) {
+				Snapshot.endWrite(write.version);
+			} else {
+				Snapshot.releaseWrite();
+			}
+		}
+		return write;
+	}
+	
+	private void addToIndexes(NamedRelation reln, String[] tuple, long rowId) throws IOException {
+		List<Attribute> stored = reln.getStorage().getAttributes();
+		for (int i = 0; i < tuple.length; i++) {
+			Attribute attr = stored.get(i);
+			if (reln.getIndex(attr) != null) {
+				reln.getIndex(attr).insert(tuple[i], rowId);
+			}
+			if (reln.getBitmapIndex(attr) != null) {
+				try {
+					reln.getBitmapIndex(attr).insert(tuple[i], rowId);
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Tuple could not be added to the bitmap index on " + attr, e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Recover the inserts held in a write-ahead log, and then log every
+	 * subsequent insert in it.
+	 * 
+	 * The records of the log are redone in order into the heap files of
+	 * their relations, skipping those whose tuples reached the heap files
+	 * before a crash, and the redone tuples are added to the indexes and
+	 * statistics of the relations. The heap files are then flushed and the
+	 * log emptied. The log should be attached before indexes are created
+	 * over the relations it recovers, or else those indexes miss the tuples
+	 * already in the heap files.
+	 * 
+	 * Views are not logged, and so hold only the tuples in the heap files
+	 * when they were created. The views which join a relation are maintained
+	 * with each run of tuples redone into it before the next run is redone,
+	 * so that each delta joins the other relations as the insert did.
+	 * 
+	 * @param log Write-ahead log
+	 * @return number of tuples redone
+	 */
+	public synchronized int attachLog(WriteAheadLog log) throws DatabaseException {
+		final Map<NamedRelation, List<String[]>> redone = new HashMap<NamedRelation, List<String[]>>();
+		class Recovery implements WriteAheadLog.Redo {
+			private NamedRelation last;
+			private List<String[]> run = new ArrayList<String[]>();
+			
+			public void redo(String relName, long rowId, byte[] record) throws IOException {
+				NamedRelation reln = find(relName);
+				if (reln == null || !(reln.getStorage() instanceof HeapFile)) {
+					throw new IOException("Named relation " + relName + " in the log is not stored in a heap file");
+				}
+				if (reln != last) {
+					finish();
+					last = reln;
+				}
+				HeapFile heap = (HeapFile) reln.getStorage();
+				String[] tuple = HeapPage.decode(record, heap.getAttributes().size());
+				if (heap.redo(rowId, tuple)) {
+					addToIndexes(reln, tuple, rowId);
+					redone.computeIfAbsent(reln, r -> new ArrayList<String[]>()).add(tuple);
+					run.add(tuple);
+				}
+			}
+			
+			void finish() throws IOException {
+				if (run.isEmpty()) {
+					return;
+				}
+				long version = Snapshot.beginWrite();
+				try {
+					maintainViews(last, run, version);
+				} catch (DatabaseException e) {
+					throw new IOException("Views joining " + last + " could not be maintained", e);
+				} finally {
+					Snapshot.endWrite(version);
+				}
+				run = new ArrayList<String[]>();
+			}
+		}
+		try {
+			Recovery recovery = new Recovery();
+			log.replay(recovery);
+			recovery.finish();
+			
+			int count = 0;
+			for (Map.Entry<NamedRelation, List<String[]>> e : redone.entrySet()) {
+				NamedRelation reln = e.getKey();
+				long rows = ((HeapFile) reln.getStorage()).recount();
+				reln.setTupleCount((int) rows - e.getValue().size());
+				reln.addStatistics(e.getValue(), 0);
+				count += e.getValue().size();
+			}
+			this.log = log;
+			checkpoint();
+			return count;
+		} catch (IOException e) {
+			throw new DatabaseException("Log could not be recovered", e);
+		}
+	}
+	
+	/**
+	 * Flush the heap files of every named relation and empty the write-ahead
+	 * log, whose records the heap files then hold.
+	 */
+	public synchronized void checkpoint() throws DatabaseException {
+		try {
+			for (NamedRelation reln : relations.values()) {
+				if (reln.getStorage() instanceof HeapFile) {
+					((HeapFile) reln.getStorage()).flush();
+				}
+			}
+			if (log != null) {
+				log.truncate();
+			}
+		} catch (IOException e) {
+			throw new DatabaseException("Checkpoint could not be taken", e);
+		}
+	}
+	
+	/**
+	 * Maintain the views which join a relation for tuples inserted into it.
+	 * 
+	 * @param reln
+	 * @param tuples
+	 * @param version Version of the write inserting the tuples
+	 */
+	private void maintainViews(NamedRelation reln, List<String[]> tuples, long version) throws DatabaseException {
+		for (MaterialisedView view : views.values()) {
+			if (view.getRelations().contains(reln)) {
+				maintain(view, reln, tuples, version);
+			}
+		}
+	}
+	
+	/**
+	 * Add the delta of a view for tuples inserted into one of its relations.
+	 * 
+	 * @param view
+	 * @param reln
+	 * @param tuples
+	 * @param version Version of the write inserting the tuples
+	 */
+	private void maintain(MaterialisedView view, NamedRelation reln, List<String[]> tuples, long version)
+			throws DatabaseException {
+		// Read the inserted tuples in place of the relation
+		NamedRelation delta = new NamedRelation(reln.toString(), tuples.size());
+		for (Attribute a : reln.getAttributes()) {
+			delta.addAttribute(new Attribute(a));
+		}
+		delta.setStorage(new TupleList(reln.getStorage().getAttributes(), tuples));
+		List<NamedRelation> joined = new ArrayList<NamedRelation>();
+		for (NamedRelation r : view.getRelations()) {
+			joined.add(r == reln ? delta : r);
+		}
+		
+		List<Operator> head = new ArrayList<Operator>();
+		List<Attribute> attributes = new ArrayList<Attribute>(view.getAttributes());
+		head.add(new Project(null, attributes));
+		Operator plan = new ViewRewriter.Query(head, joined, view.getPredicates()).build();
+		plan.accept(new Estimator());
+		Optimiser optimiser = new Optimiser(this);
+		optimiser.setVerbose(false);
+		Operator optimised = optimiser.optimiseForExecution(plan);
+		
+		HeapFile heap = (HeapFile) view.getStorage();
+		List<String[]> added = new ArrayList<String[]>();
+		try (ResultCursor cursor = PlanExecutor.execute(optimised)) {
+			while (cursor.hasNext()) {
+				String[] tuple = cursor.next();
+				heap.insert(tuple, version, null, null);
+				added.add(tuple);
+			}
+			view.addStatistics(added, version);
+		} catch (IOException | RuntimeException e) {
+			throw new DatabaseException("View " + view + " could not be maintained", e);
+		}
+	}
+	
+	/**
+	 * Return the materialised views in the directory.
+	 * 
+	 * @return
+	 */
+	public Collection<MaterialisedView> getViews() {
+		return views.values();
+	}
+	
 	/**
 	 * Return the NamedRelation with the specified name.
 	 * 
@@ -67,7 +621,7 @@ public class Catalogue {
 	 * @return
 	 */
 	public NamedRelation getRelation(String name) throws DatabaseException {
-		NamedRelation reln = relations.get(name);
+		NamedRelation reln = find(name);
 		
 		if (reln==null) {
 			throw new DatabaseException("Named relation " + name + " not found");
@@ -85,10 +639,59 @@ public class Catalogue {
 	public Attribute getAttribute(String name) throws DatabaseException {
 		Attribute attr = attributes.get(name);
 		
+		if (attr==null && image!=null) {
+			attr = findAttribute(name);
+		}
+		
 		if (attr==null) {
 			throw new DatabaseException("Attribute " + name + " not found");
 		}
 		
 		return attr;
 	}
+	
+	/**
+	 * Return the NamedRelation with the specified name, reading it from
+	 * the catalogue image if it is not yet in the directory.
+	 * 
+	 * @param name
+	 * @return relation, or null if there is none
+	 */
+	private NamedRelation find(String name) {
+		NamedRelation reln = relations.get(name);
+		if (reln == null && image != null) {
+			synchronized (this) {
+				reln = relations.get(name);
+				if (reln == null && !dropped.contains(name)) {
+					reln = image.getRelation(name);
+					if (reln != null) {
+						relations.put(name, reln);
+					}
+				}
+			}
+		}
+		return reln;
+	}
+	
+	/**
+	 * Return the Attribute with the specified name from the catalogue
+	 * image, which is that of the last relation in the text catalogue
+	 * holding it, as CatalogueParser would leave in the directory.
+	 * 
+	 * @param name
+	 * @return attribute, or null if no relation holds it
+	 */
+	private synchronized Attribute findAttribute(String name) {
+		List<String> holding = image.getRelationsHolding(name);
+		for (int i = holding.size() - 1; i >= 0; i--) {
+			NamedRelation reln = find(holding.get(i));
+			int position = reln == null ? -1 : reln.getAttributes().indexOf(new Attribute(name));
+			if (position >= 0) {
+				Attribute attr = reln.getAttributes().get(position);
+				attributes.put(name, attr);
+				return attr;
+			}
+		}
+		return null;
+	}
 }
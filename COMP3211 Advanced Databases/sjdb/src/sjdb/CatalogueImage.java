@@ -0,0 +1,354 @@
+package sjdb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * This class reads a system catalogue from a binary image, which is
+ * memory-mapped when opened so that a catalogue of any size is opened
+ * without reading it. Named relations are read from the image only when
+ * they are first looked up by name.
+ *
+ * The image is laid out as:
+ *
+ * <header> <relation records> <attribute records> <attribute index> <string table>
+ *
+ * The header holds the number of relations and of attributes. Each
+ * relation record holds the offset of its name in the string table, its
+ * tuple count, and the number of its first attribute record and of its
+ * attributes; the records are sorted by name, so that a relation is found
+ * by binary search. Each attribute record holds the offset of its name,
+ * its value count, whether an index is declared on it, and the number of
+ * its relation record. The attribute index holds the numbers of the
+ * attribute records sorted by name, and for equal names in the order of
+ * their relations in the text catalogue. The string table holds each
+ * distinct name once, as its length followed by its UTF-8 bytes.
+ *
+ * An image is written from a catalogue in the text format read by
+ * CatalogueParser with convert().
+ */
+public class CatalogueImage {
+	private static final long MAGIC = 0x534a44424341544cL; // SJDBCATL
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 20;
+	private static final int RECORD_BYTES = 16;
+	private static final int INDEX = 1;
+	private static final int BITMAP = 2;
+
+	private ByteBuffer buffer;
+	private int relationCount;
+	private int attributeCount;
+	private int attributeOffset;
+	private int indexOffset;
+	private int stringOffset;
+
+	private CatalogueImage(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.capacity() < HEADER_BYTES || buffer.getLong(0) != MAGIC) {
+			throw new IOException("Not a catalogue image");
+		}
+		if (buffer.getInt(8) != VERSION) {
+			throw new IOException("Unsupported catalogue image version " + buffer.getInt(8));
+		}
+		this.relationCount = buffer.getInt(12);
+		this.attributeCount = buffer.getInt(16);
+		this.attributeOffset = HEADER_BYTES + RECORD_BYTES * relationCount;
+		this.indexOffset = attributeOffset + RECORD_BYTES * attributeCount;
+		this.stringOffset = indexOffset + 4 * attributeCount;
+		if (relationCount < 0 || attributeCount < 0 || stringOffset > buffer.capacity()) {
+			throw new IOException("Catalogue image is truncated");
+		}
+	}
+
+	/**
+	 * Open a catalogue image, mapping it without reading its records
+	 * @param file Image
+	 * @return image
+	 */
+	public static CatalogueImage open(File file) throws IOException {
+		// The mapping outlives the channel
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Catalogue image " + file + " is too large to map");
+			}
+			return new CatalogueImage(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Return whether a file holds a catalogue image rather than a text catalogue
+	 * @param file Catalogue file
+	 * @return true if the file begins as an image does
+	 */
+	public static boolean isImage(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readLong() == MAGIC;
+		} catch (EOFException e) {
+			return false;
+		}
+	}
+
+	public int getRelationCount() {
+		return this.relationCount;
+	}
+
+	public int getAttributeCount() {
+		return this.attributeCount;
+	}
+
+	/**
+	 * Read a named relation from the image, with its attributes and the
+	 * indexes declared on them. The indexes are empty, as are those
+	 * declared by CatalogueParser on relations without storage.
+	 * @param name Name of the relation
+	 * @return relation, or null if the image holds no relation of that name
+	 */
+	public NamedRelation getRelation(String name) {
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = relationCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int c = compare(relationField(mid, 0), key);
+			if (c == 0) {
+				return relation(mid, name);
+			} else if (c < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return the names of the relations holding an attribute
+	 * @param name Name of the attribute
+	 * @return names of the relations, in the order of the text catalogue
+	 */
+	public List<String> getRelationsHolding(String name) {
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = attributeCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compare(attributeField(indexed(mid), 0), key) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		List<String> holding = new ArrayList<String>();
+		for (int i = low; i < attributeCount && compare(attributeField(indexed(i), 0), key) == 0; i++) {
+			holding.add(string(relationField(attributeField(indexed(i), 3), 0)));
+		}
+		return holding;
+	}
+
+	private NamedRelation relation(int record, String name) {
+		NamedRelation reln = new NamedRelation(name, relationField(record, 1));
+		int first = relationField(record, 2);
+		for (int i = first; i < first + relationField(record, 3); i++) {
+			Attribute attr = new Attribute(string(attributeField(i, 0)), attributeField(i, 1));
+			reln.addAttribute(attr);
+			if ((attributeField(i, 2) & INDEX) != 0) {
+				reln.addIndex(attr, new BPlusTree());
+			} else if ((attributeField(i, 2) & BITMAP) != 0) {
+				reln.addBitmapIndex(attr, new BitmapIndex());
+			}
+		}
+		return reln;
+	}
+
+	private int relationField(int record, int field) {
+		return buffer.getInt(HEADER_BYTES + RECORD_BYTES * record + 4 * field);
+	}
+
+	private int attributeField(int record, int field) {
+		return buffer.getInt(attributeOffset + RECORD_BYTES * record + 4 * field);
+	}
+
+	private int indexed(int i) {
+		return buffer.getInt(indexOffset + 4 * i);
+	}
+
+	private String string(int offset) {
+		int at = stringOffset + offset;
+		byte[] bytes = new byte[buffer.getShort(at) & 0xffff];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(at + 2 + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Compare a name in the string table with a key, as unsigned bytes
+	 */
+	private int compare(int offset, byte[] key) {
+		int at = stringOffset + offset;
+		int length = buffer.getShort(at) & 0xffff;
+		for (int i = 0; i < length && i < key.length; i++) {
+			int c = Integer.compare(buffer.get(at + 2 + i) & 0xff, key[i] & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return Integer.compare(length, key.length);
+	}
+
+	private static int compare(byte[] a, byte[] b) {
+		for (int i = 0; i < a.length && i < b.length; i++) {
+			int c = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return Integer.compare(a.length, b.length);
+	}
+
+	/**
+	 * A relation or attribute read from the text catalogue
+	 */
+	private static class Entry {
+		byte[] name;
+		int count;
+		int flags;
+		int order;
+		int relation;
+		List<Entry> attributes = new ArrayList<Entry>();
+
+		Entry(String name, String count) {
+			this.name = name.getBytes(StandardCharsets.UTF_8);
+			this.count = Integer.decode(count.trim()).intValue();
+			if (this.name.length > 0xffff) {
+				throw new IllegalArgumentException("Name " + name.substring(0, 16) + "... is too long");
+			}
+		}
+	}
+
+	/**
+	 * Write the image of a catalogue in the text format read by
+	 * CatalogueParser. A relation named on more than one line is written
+	 * as on the last of them, as CatalogueParser replaces it.
+	 * @param text Text catalogue
+	 * @param image Image to be written
+	 */
+	public static void convert(File text, File image) throws IOException {
+		LinkedHashMap<String, Entry> read = new LinkedHashMap<String, Entry>();
+		try (BufferedReader in = new BufferedReader(new FileReader(text))) {
+			String line;
+			int number = 0;
+			while ((line = in.readLine()) != null) {
+				number++;
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				try {
+					String[] parts = line.split(":", 0);
+					Entry reln = new Entry(parts[0], parts[1]);
+					for (int i = 2; i < parts.length; i++) {
+						String[] a = parts[i].split(",", 0);
+						Entry attr = new Entry(a[0], a[1]);
+						if (a.length > 2 && a[2].trim().equals("index")) {
+							attr.flags = INDEX;
+						} else if (a.length > 2 && a[2].trim().equals("bitmap")) {
+							attr.flags = BITMAP;
+						}
+						reln.attributes.add(attr);
+					}
+					read.remove(parts[0]);
+					read.put(parts[0], reln);
+				} catch (RuntimeException e) {
+					throw new IOException("Line " + number + " of " + text + " is not a relation", e);
+				}
+			}
+		}
+
+		// Number the relations by name, and their attributes in turn
+		Entry[] relations = read.values().toArray(new Entry[0]);
+		for (int i = 0; i < relations.length; i++) {
+			relations[i].order = i;
+		}
+		Arrays.sort(relations, (a, b) -> compare(a.name, b.name));
+		List<Entry> attributes = new ArrayList<Entry>();
+		for (int r = 0; r < relations.length; r++) {
+			for (Entry attr : relations[r].attributes) {
+				attr.relation = r;
+				attributes.add(attr);
+			}
+		}
+		Integer[] index = new Integer[attributes.size()];
+		for (int i = 0; i < index.length; i++) {
+			index[i] = i;
+		}
+		Arrays.sort(index, (a, b) -> {
+			int c = compare(attributes.get(a).name, attributes.get(b).name);
+			return c != 0 ? c : Integer.compare(relations[attributes.get(a).relation].order,
+					relations[attributes.get(b).relation].order);
+		});
+
+		// Lay out the string table, holding each name once
+		HashMap<String, Integer> offsets = new HashMap<String, Integer>();
+		ByteArrayOutputStream table = new ByteArrayOutputStream();
+		DataOutputStream strings = new DataOutputStream(table);
+		List<Entry> named = new ArrayList<Entry>(Arrays.asList(relations));
+		named.addAll(attributes);
+		int[] nameOffsets = new int[named.size()];
+		for (int i = 0; i < nameOffsets.length; i++) {
+			String name = new String(named.get(i).name, StandardCharsets.UTF_8);
+			Integer offset = offsets.get(name);
+			if (offset == null) {
+				offset = strings.size();
+				offsets.put(name, offset);
+				strings.writeShort(named.get(i).name.length);
+				strings.write(named.get(i).name);
+			}
+			nameOffsets[i] = offset;
+		}
+		strings.flush();
+		if ((long) HEADER_BYTES + (long) RECORD_BYTES * named.size() + 4L * index.length + table.size() > Integer.MAX_VALUE) {
+			throw new IOException("Catalogue " + text + " is too large for an image");
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(image)))) {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(relations.length);
+			out.writeInt(attributes.size());
+			int first = 0;
+			for (int r = 0; r < relations.length; r++) {
+				out.writeInt(nameOffsets[r]);
+				out.writeInt(relations[r].count);
+				out.writeInt(first);
+				out.writeInt(relations[r].attributes.size());
+				first += relations[r].attributes.size();
+			}
+			for (int i = 0; i < attributes.size(); i++) {
+				out.writeInt(nameOffsets[relations.length + i]);
+				out.writeInt(attributes.get(i).count);
+				out.writeInt(attributes.get(i).flags);
+				out.writeInt(attributes.get(i).relation);
+			}
+			for (Integer i : index) {
+				out.writeInt(i);
+			}
+			table.writeTo(out);
+		}
+	}
+
+	/**
+	 * Convert a text catalogue into an image
+	 * @param args Text catalogue, and image to be written
+	 */
+	public static void main(String[] args) throws Exception {
+		convert(new File(args[0]), new File(args[1]));
+	}
+}
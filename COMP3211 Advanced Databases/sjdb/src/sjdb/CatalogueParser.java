@@ -10,6 +10,12 @@ import java.io.*;
  * 
  * <relation name>:<tuple count>:<attr name>,<value count>:<attr name>,<value count>
  * 
+ * An attribute may be followed by ",index" to declare a B+tree index on it,
+ * or by ",bitmap" to declare a bitmap index on it:
+ * 
+ * <attr name>,<value count>,index
+ * <attr name>,<value count>,bitmap
+ * 
  * @author nmg
  */
 public class CatalogueParser {
@@ -58,5 +64,20 @@ public class CatalogueParser {
 		int values = Integer.decode(parts[1]).intValue();
 		
 		catalogue.createAttribute(reln, attr, values);
+		
+		if (parts.length > 2 && parts[2].trim().equals("index")) {
+			try {
+				catalogue.createIndex(reln, attr);
+			} catch (DatabaseException e) {
+				System.err.println(e.toString());
+			}
+		}
+		else if (parts.length > 2 && parts[2].trim().equals("bitmap")) {
+			try {
+				catalogue.createBitmapIndex(reln, attr);
+			} catch (DatabaseException e) {
+				System.err.println(e.toString());
+			}
+		}
 	}
 }
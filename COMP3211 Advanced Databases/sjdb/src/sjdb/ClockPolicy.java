@@ -0,0 +1,53 @@
+package sjdb;
+
+import java.util.function.IntPredicate;
+
+/**
+ * This class implements the CLOCK page replacement policy: each frame has
+ * a reference bit which is set on access, and a clock hand sweeps the
+ * frames, clearing reference bits until it finds an evictable frame whose
+ * bit is already clear.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+	private boolean[] referenced;
+	private int hand;
+
+	/* (non-Javadoc)
+	 * @see sjdb.ReplacementPolicy#init(int)
+	 */
+	public void init(int frames) {
+		this.referenced = new boolean[frames];
+		this.hand = 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.ReplacementPolicy#accessed(int)
+	 */
+	public void accessed(int frame) {
+		referenced[frame] = true;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.ReplacementPolicy#victim(java.util.function.IntPredicate)
+	 */
+	public int victim(IntPredicate evictable) {
+		// Two sweeps are enough to clear every reference bit
+		for (int i = 0; i < 2 * referenced.length; i++) {
+			int frame = hand;
+			hand = (hand + 1) % referenced.length;
+			if (!evictable.test(frame)) {
+				continue;
+			}
+			if (referenced[frame]) {
+				referenced[frame] = false;
+			} else {
+				return frame;
+			}
+		}
+		return -1;
+	}
+
+	public String toString() {
+		return "CLOCK";
+	}
+}
@@ -0,0 +1,540 @@
+package sjdb;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is the coordinator of a cluster of workers, each a process
+ * holding one partition of every partitioned relation, connected to it
+ * by sockets on the loopback interface.
+ *
+ * The coordinator's catalogue holds the statistics of each partitioned
+ * relation over all of its partitions, but not its tuples. A query is
+ * optimised from them as if it ran in a single process, and the optimiser
+ * then distributes the plan, placing exchanges below the joins whose
+ * inputs are not co-partitioned and a gather at the top.
+ *
+ * The plan is executed one fragment at a time, from the bottom up. A
+ * fragment is the part of the plan between exchanges, which is sent to
+ * every worker as the relations it joins, its predicates and the
+ * attributes it outputs (see Worker). It reads the worker's partitions
+ * and the relations into which the exchanges below have loaded their
+ * tuples, and each worker optimises it again for the tuples it holds. A fragment which only
+ * reads replicated tuples runs on one worker, since each would produce
+ * the same result, and a fragment which scans a relation pruned to some of
+ * its partitions runs only on the workers holding them, since the others
+ * hold none of the tuples it selects. The tuples gathered from the workers are read by the
+ * operators above the gather, such as an aggregate or sort, which run at
+ * the coordinator.
+ */
+public class Cluster implements Closeable {
+	// Time a worker is given to exit once the coordinator closes
+	private static final long EXIT_MILLIS = 5000;
+
+	private Catalogue catalogue;
+	private List<Process> processes = new ArrayList<Process>();
+	private List<Connection> workers = new ArrayList<Connection>();
+	private AtomicInteger exchanges = new AtomicInteger();
+	private AtomicLong transferred = new AtomicLong();
+
+	/**
+	 * A connection to a worker, on which commands are sent one at a time
+	 */
+	private static class Connection {
+		int index;
+		Socket socket;
+		BufferedReader in;
+		Writer out;
+
+		Connection(int index, InetSocketAddress address) throws IOException {
+			this.index = index;
+			this.socket = new Socket(address.getAddress(), address.getPort());
+			socket.setTcpNoDelay(true);
+			this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+		}
+
+		void send(String text) throws IOException {
+			out.write(text);
+			out.flush();
+		}
+
+		/**
+		 * Read the final line of a response
+		 * @return n of the line "OK n"
+		 * @throws DatabaseException if the worker answers with an error
+		 */
+		long response() throws IOException, DatabaseException {
+			return end(in.readLine());
+		}
+
+		long end(String line) throws IOException, DatabaseException {
+			if (line == null) {
+				throw new IOException("Worker " + index + " closed its connection");
+			}
+			if (line.startsWith("OK ")) {
+				return Long.parseLong(line.substring(3).trim());
+			}
+			throw new DatabaseException("Worker " + index + " failed: "
+					+ (line.startsWith("ERROR ") ? line.substring(6) : line));
+		}
+	}
+
+	/**
+	 * Connect to workers which are already running
+	 * @param catalogue Catalogue holding the statistics of the partitioned relations
+	 * @param addresses Address of each worker, in order
+	 * @throws IOException if a worker cannot be reached
+	 * @throws DatabaseException if a worker does not accept the addresses of the others
+	 */
+	public Cluster(Catalogue catalogue, List<InetSocketAddress> addresses) throws IOException, DatabaseException {
+		this.catalogue = catalogue;
+		StringBuilder peers = new StringBuilder();
+		for (InetSocketAddress address : addresses) {
+			workers.add(new Connection(workers.size(), address));
+			peers.append(peers.length() == 0 ? "" : ",").append(address.getHostString()).append(':').append(address.getPort());
+		}
+		for (Connection worker : workers) {
+			worker.send("PEERS " + worker.index + " " + peers + "\n");
+		}
+		responses(workers);
+	}
+
+	/**
+	 * Launch workers as processes on this machine, running the classes
+	 * from the directory or jar holding this class, and connect to them
+	 * @param catalogue Catalogue holding the statistics of the partitioned relations
+	 * @param count Number of workers
+	 * @return cluster, which stops the workers when it is closed
+	 * @throws IOException if a worker cannot be launched
+	 */
+	public static Cluster launch(Catalogue catalogue, int count) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classPath = classPath();
+		List<Process> processes = new ArrayList<Process>();
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		try {
+			for (int i = 0; i < count; i++) {
+				ProcessBuilder builder = new ProcessBuilder(java, "-cp", classPath, Worker.class.getName());
+				builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+				processes.add(builder.start());
+			}
+			for (Process process : processes) {
+				BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+				String line = out.readLine();
+				if (line == null || !line.startsWith("PORT ")) {
+					throw new IOException("Worker did not start: " + line);
+				}
+				addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(line.substring(5).trim())));
+			}
+			Cluster cluster = new Cluster(catalogue, addresses);
+			cluster.processes = processes;
+			return cluster;
+		} catch (IOException | DatabaseException | RuntimeException e) {
+			for (Process process : processes) {
+				process.destroy();
+			}
+			throw e instanceof IOException ? (IOException) e : new IOException("Workers could not be launched", e);
+		}
+	}
+
+	/**
+	 * Return the class path of the workers: the directory or jar from which
+	 * this class was loaded, which need not be on the class path of this
+	 * process, as when it is run from a jar or by a test runner
+	 */
+	private static String classPath() throws IOException {
+		java.security.CodeSource source = Worker.class.getProtectionDomain().getCodeSource();
+		if (source == null || source.getLocation() == null) {
+			return System.getProperty("java.class.path");
+		}
+		try {
+			return new File(source.getLocation().toURI()).getPath();
+		} catch (java.net.URISyntaxException | IllegalArgumentException e) {
+			throw new IOException("Location of the worker classes " + source.getLocation() + " is not a file", e);
+		}
+	}
+
+	/**
+	 * Return the number of workers
+	 * @return worker count
+	 */
+	public int getWorkerCount() {
+		return this.workers.size();
+	}
+
+	/**
+	 * Return the number of tuples sent over the network by the exchanges
+	 * executed so far, including those gathered by the coordinator
+	 * @return tuple count
+	 */
+	public long getTransferredTuples() {
+		return this.transferred.get();
+	}
+
+	/**
+	 * Spread the tuples of a named relation across the workers. The relation
+	 * is created on every worker, each tuple is loaded into the partition
+	 * which holds it, or into every partition if the tuples are replicated,
+	 * and the tuples are added to the statistics of the relation in the
+	 * coordinator's catalogue, which holds no storage for it.
+	 * @param relName Name of a relation in the catalogue, without storage
+	 * @param partitioning Partitioning across every worker
+	 * @param tuples Tuples, with one value per attribute in the order of the relation
+	 * @throws DatabaseException if the tuples cannot be loaded
+	 */
+	public void partition(String relName, Partitioning partitioning, List<String[]> tuples) throws DatabaseException {
+		NamedRelation reln = catalogue.getRelation(relName);
+		if (reln.getStorage() != null) {
+			throw new DatabaseException("Named relation " + relName + " is stored by the coordinator");
+		}
+		if (partitioning.getCount() != workers.size()) {
+			throw new DatabaseException("Partitioning of " + relName + " has " + partitioning.getCount()
+					+ " partitions but the cluster has " + workers.size() + " workers");
+		}
+		int column = partitioning.isReplicated() ? -1 : reln.getAttributes().indexOf(partitioning.getAttribute());
+		if (!partitioning.isReplicated() && column < 0) {
+			throw new DatabaseException("Named relation " + relName + " has no attribute " + partitioning.getAttribute());
+		}
+
+		try {
+			StringBuilder names = new StringBuilder();
+			for (Attribute a : reln.getAttributes()) {
+				names.append(names.length() == 0 ? "" : ",").append(a.getName());
+			}
+			for (Connection worker : workers) {
+				worker.send("CREATE " + relName + " " + names + "\n");
+			}
+			responses(workers);
+
+			for (Connection worker : workers) {
+				worker.out.write("LOAD " + relName + "\n");
+			}
+			for (String[] tuple : tuples) {
+				String line = Worker.format(tuple) + "\n";
+				if (column < 0) {
+					for (Connection worker : workers) {
+						worker.out.write(line);
+					}
+				} else {
+					workers.get(partitioning.partition(tuple[column])).out.write(line);
+				}
+			}
+			for (Connection worker : workers) {
+				worker.send("\n");
+			}
+			responses(workers);
+		} catch (IOException e) {
+			throw new DatabaseException("Tuples of " + relName + " could not be sent to the workers", e);
+		}
+
+		reln.setPartitioning(partitioning);
+		try {
+			reln.addStatistics(tuples, 0);
+		} catch (IOException e) {
+			throw new DatabaseException("Statistics of " + relName + " could not be added", e);
+		}
+	}
+
+	/**
+	 * Plan a query over the partitioned relations
+	 * @param query Query in the format read by QueryParser
+	 * @return the distributed plan
+	 * @throws Exception if the query cannot be parsed
+	 */
+	public Operator plan(String query) throws Exception {
+		return plan(new QueryParser(catalogue, new StringReader(query)).parse());
+	}
+
+	/**
+	 * Plan a query over the partitioned relations from its canonical plan,
+	 * such as one whose values are bound rather than parsed
+	 * @param parsed Canonical plan, as built by QueryParser
+	 * @return the distributed plan
+	 */
+	public Operator plan(Operator parsed) {
+		try (Snapshot snapshot = Snapshot.open()) {
+			parsed.accept(new Estimator(snapshot));
+			Optimiser optimiser = new Optimiser(catalogue);
+			optimiser.setVerbose(false);
+			optimiser.setSnapshot(snapshot);
+			return optimiser.distribute(optimiser.optimiseForExecution(parsed));
+		}
+	}
+
+	/**
+	 * Plan and execute a query over the partitioned relations
+	 * @param query Query in the format read by QueryParser
+	 * @return Cursor over the result tuples
+	 * @throws Exception if the query cannot be parsed or executed
+	 */
+	public ResultCursor execute(String query) throws Exception {
+		return execute(plan(query));
+	}
+
+	/**
+	 * Execute a distributed plan. The fragments below the gather are run by
+	 * the workers, whose relations holding exchanged tuples are dropped once
+	 * the result is gathered, and the operators above it by the coordinator.
+	 * @param plan Plan distributed by the optimiser
+	 * @return Cursor over the result tuples
+	 * @throws DatabaseException if a fragment fails on a worker
+	 */
+	public ResultCursor execute(Operator plan) throws DatabaseException {
+		plan.accept(new Estimator());
+		List<Operator> head = new ArrayList<Operator>();
+		Operator op = plan;
+		while (!(op instanceof Exchange)) {
+			if (!(op instanceof UnaryOperator)) {
+				throw new IllegalArgumentException("Plan has no gather: " + plan);
+			}
+			head.add(op);
+			op = ((UnaryOperator) op).getInput();
+		}
+
+		Exchange gather = (Exchange) op;
+		List<String> temporary = new ArrayList<String>();
+		List<String[]> tuples;
+		try {
+			tuples = gather(gather, temporary);
+		} finally {
+			drop(temporary);
+		}
+
+		// Read the gathered tuples in place of the gather
+		NamedRelation gathered = new NamedRelation("gathered", tuples.size());
+		for (Attribute a : gather.getOutput().getAttributes()) {
+			gathered.addAttribute(new Attribute(a));
+		}
+		gathered.setStorage(new TupleList(gathered.getAttributes(), tuples));
+		List<NamedRelation> relations = Collections.singletonList(gathered);
+		return PlanExecutor.execute(new ViewRewriter.Query(head, relations, new ArrayList<Predicate>()).build());
+	}
+
+	/**
+	 * Run the fragment below a gather and read its result tuples
+	 */
+	private List<String[]> gather(Exchange exchange, List<String> temporary) throws DatabaseException {
+		String lines = fragment(exchange.getInput(), temporary);
+		List<Connection> targets = runners(exchange.getInput());
+		List<String[]> tuples = new ArrayList<String[]>();
+		try {
+			for (Connection worker : targets) {
+				worker.send("GATHER\n" + lines + "\n");
+			}
+			DatabaseException failure = null;
+			for (Connection worker : targets) {
+				String line;
+				while ((line = worker.in.readLine()) != null && line.startsWith("\"")) {
+					tuples.add(BulkLoader.parse(line));
+				}
+				try {
+					transferred.addAndGet(worker.end(line));
+				} catch (DatabaseException e) {
+					failure = failure == null ? e : failure;
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} catch (IOException e) {
+			throw new DatabaseException("Result could not be gathered from the workers", e);
+		}
+		return tuples;
+	}
+
+	/**
+	 * Run the fragment below a shuffle or broadcast, loading its result into
+	 * a new relation on the workers
+	 * @return name of the relation
+	 */
+	private String exchange(Exchange exchange, List<String> temporary) throws DatabaseException {
+		String lines = fragment(exchange.getInput(), temporary);
+		String relName = "exchange" + exchanges.incrementAndGet();
+		StringBuilder names = new StringBuilder();
+		for (Attribute a : exchange.getOutput().getAttributes()) {
+			names.append(names.length() == 0 ? "" : ",").append(a.getName());
+		}
+
+		try {
+			for (Connection worker : workers) {
+				worker.send("CREATE " + relName + " " + names + "\n");
+			}
+			temporary.add(relName);
+			responses(workers);
+
+			String command = exchange.getKind() == Exchange.Kind.SHUFFLE
+					? "SHUFFLE " + relName + " " + exchange.getPartitioning() : "BROADCAST " + relName;
+			List<Connection> targets = runners(exchange.getInput());
+			for (Connection worker : targets) {
+				worker.send(command + "\n" + lines + "\n");
+			}
+			transferred.addAndGet(responses(targets));
+		} catch (IOException e) {
+			throw new DatabaseException("Tuples could not be exchanged between the workers", e);
+		}
+		return relName;
+	}
+
+	/**
+	 * Build the lines sent to the workers for a fragment, after running the
+	 * exchanges below it
+	 */
+	private String fragment(Operator fragment, List<String> temporary) throws DatabaseException {
+		List<String> relations = new ArrayList<String>();
+		List<Predicate> predicates = new ArrayList<Predicate>();
+		collect(fragment, relations, predicates, temporary);
+		try {
+			return Worker.format(fragment.getOutput().getAttributes(), relations, predicates);
+		} catch (IllegalArgumentException e) {
+			throw new DatabaseException("Fragment cannot be sent to the workers", e);
+		}
+	}
+
+	private void collect(Operator op, List<String> relations, List<Predicate> predicates, List<String> temporary)
+			throws DatabaseException {
+		if (op instanceof Exchange) {
+			relations.add(exchange((Exchange) op, temporary));
+			return;
+		}
+		if (op instanceof Scan) {
+			relations.add(((Scan) op).getRelation().toString());
+			return;
+		}
+		if (op instanceof Select) {
+			predicates.add(((Select) op).getPredicate());
+		} else if (op instanceof Join) {
+			predicates.add(((Join) op).getPredicate());
+		}
+		for (Operator input : op.getInputs()) {
+			collect(input, relations, predicates, temporary);
+		}
+	}
+
+	/**
+	 * Return the workers which run a fragment: one if it only reads
+	 * replicated tuples, or else those holding the partitions read by every
+	 * pruned scan of the fragment
+	 */
+	private List<Connection> runners(Operator fragment) {
+		if (replicated(fragment)) {
+			return workers.subList(0, 1);
+		}
+		BitSet partitions = new BitSet();
+		partitions.set(0, workers.size());
+		prune(fragment, partitions);
+		List<Connection> runners = new ArrayList<Connection>();
+		for (int i = partitions.nextSetBit(0); i >= 0 && i < workers.size(); i = partitions.nextSetBit(i + 1)) {
+			runners.add(workers.get(i));
+		}
+		return runners;
+	}
+
+	private static void prune(Operator op, BitSet partitions) {
+		if (op instanceof Scan) {
+			if (((Scan) op).getPartitions() != null) {
+				partitions.and(((Scan) op).getPartitions());
+			}
+		} else if (!(op instanceof Exchange)) {
+			for (Operator input : op.getInputs()) {
+				prune(input, partitions);
+			}
+		}
+	}
+
+	private static boolean replicated(Operator op) {
+		if (op instanceof Exchange) {
+			return ((Exchange) op).getKind() == Exchange.Kind.BROADCAST;
+		}
+		if (op instanceof Scan) {
+			Partitioning partitioning = ((NamedRelation) ((Scan) op).getRelation()).getPartitioning();
+			return partitioning != null && partitioning.isReplicated();
+		}
+		for (Operator input : op.getInputs()) {
+			if (!replicated(input)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read the response of each worker to a command, so that every
+	 * connection is left ready for the next even if one fails
+	 * @return sum of n over the lines "OK n"
+	 */
+	private long responses(List<Connection> targets) throws IOException, DatabaseException {
+		DatabaseException failure = null;
+		long total = 0;
+		for (Connection worker : targets) {
+			try {
+				total += worker.response();
+			} catch (DatabaseException e) {
+				failure = failure == null ? e : failure;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return total;
+	}
+
+	/**
+	 * Drop the relations holding exchanged tuples from every worker
+	 */
+	private void drop(List<String> temporary) throws DatabaseException {
+		try {
+			for (String relName : temporary) {
+				for (Connection worker : workers) {
+					worker.send("DROP " + relName + "\n");
+				}
+				responses(workers);
+			}
+		} catch (IOException e) {
+			throw new DatabaseException("Exchanged tuples could not be dropped", e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() throws IOException {
+		for (Connection worker : workers) {
+			try {
+				worker.send("QUIT\n");
+			} catch (IOException e) {
+				// The worker has gone already
+			}
+			worker.socket.close();
+		}
+		for (Process process : processes) {
+			process.getOutputStream().close();
+			try {
+				if (!process.waitFor(EXIT_MILLIS, TimeUnit.MILLISECONDS)) {
+					process.destroy();
+				}
+			} catch (InterruptedException e) {
+				process.destroy();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package sjdb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class reads and writes one block of a ColumnStore column. Each
+ * block is encoded in whichever of the following takes the least space:
+ *
+ * PLAIN:  one 4-byte value per row
+ * RLE:    runs of equal values, each held as its value and the row after
+ *         its end, so that a row's run is found by binary search
+ * PACKED: frame of reference and bit-packing: the smallest value of the
+ *         block, and each row's difference from it in as few bits as the
+ *         largest difference needs
+ *
+ * STRING columns store dictionary codes, so these encodings apply to the
+ * codes. Predicates attr=value are evaluated on the encoded block without
+ * decoding it: against each run of an RLE block, and against the packed
+ * difference of a PACKED block, which is skipped whole if the value lies
+ * outside its frame.
+ *
+ * A block starts with its row count and encoding, followed by its payload.
+ */
+public class ColumnBlock {
+	/**
+	 * The encodings of a block
+	 */
+	public enum Encoding {
+		PLAIN, RLE, PACKED
+	}
+
+	/**
+	 * Size of the row count and encoding at the start of a block
+	 */
+	static final int HEADER_BYTES = 5;
+
+	private ByteBuffer buf;
+	private int rows;
+	private Encoding encoding;
+	private int payload;
+	// RLE
+	private int runs;
+	private int run;
+	// PACKED
+	private int base;
+	private int width;
+
+	/**
+	 * Read a block
+	 * @param buf Buffer positioned at the start of the block
+	 * @param encoded false for blocks of files before version 3, which are PLAIN and have no encoding byte
+	 */
+	ColumnBlock(ByteBuffer buf, boolean encoded) {
+		this.buf = buf;
+		this.rows = buf.getInt(0);
+		this.encoding = encoded ? Encoding.values()[buf.get(4)] : Encoding.PLAIN;
+		this.payload = encoded ? HEADER_BYTES : 4;
+
+		if (encoding == Encoding.RLE) {
+			this.runs = buf.getInt(payload);
+		} else if (encoding == Encoding.PACKED) {
+			this.base = buf.getInt(payload);
+			this.width = buf.get(payload + 4);
+		}
+	}
+
+	/**
+	 * Return the number of rows in the block
+	 * @return row count
+	 */
+	public int getRowCount() {
+		return this.rows;
+	}
+
+	/**
+	 * Return the encoding of the block
+	 * @return encoding
+	 */
+	public Encoding getEncoding() {
+		return this.encoding;
+	}
+
+	/**
+	 * Return the value stored for a row of the block. Rows read in
+	 * increasing order find their RLE runs without searching.
+	 * @param row Row within the block
+	 * @return stored value
+	 */
+	public int get(int row) {
+		switch (encoding) {
+		case RLE:
+			return buf.getInt(runOffset(findRun(row)));
+		case PACKED:
+			return base + (int) unpack(row);
+		default:
+			return buf.getInt(payload + 4 * row);
+		}
+	}
+
+	/**
+	 * Test whether a row of the block holds a stored value, without
+	 * decoding the row
+	 * @param row Row within the block
+	 * @param value Stored value
+	 * @return true if the row holds the value
+	 */
+	public boolean matches(int row, int value) {
+		switch (encoding) {
+		case RLE:
+			return buf.getInt(runOffset(findRun(row))) == value;
+		case PACKED:
+			long difference = (long) value - base;
+			return difference >= 0 && difference < (1L << width) && unpack(row) == difference;
+		default:
+			return buf.getInt(payload + 4 * row) == value;
+		}
+	}
+
+	/**
+	 * Add the row ids of the rows of the block which hold a stored value to
+	 * a bitmap, comparing whole runs of RLE blocks and skipping PACKED blocks
+	 * whose frame cannot hold the value
+	 * @param value Stored value
+	 * @param firstRowId Row id of the first row of the block
+	 * @param out Bitmap of row ids
+	 */
+	public void select(int value, int firstRowId, RoaringBitmap out) {
+		if (encoding == Encoding.RLE) {
+			int start = 0;
+			for (int r = 0; r < runs; r++) {
+				int end = buf.getInt(runOffset(r) + 4);
+				if (buf.getInt(runOffset(r)) == value) {
+					for (int row = start; row < end; row++) {
+						out.add(firstRowId + row);
+					}
+				}
+				start = end;
+			}
+			return;
+		}
+
+		if (encoding == Encoding.PACKED) {
+			long difference = (long) value - base;
+			if (difference < 0 || difference >= (1L << width)) {
+				return;
+			}
+		}
+		for (int row = 0; row < rows; row++) {
+			if (matches(row, value)) {
+				out.add(firstRowId + row);
+			}
+		}
+	}
+
+	private int runOffset(int r) {
+		return payload + 4 + 8 * r;
+	}
+
+	/**
+	 * Return the run holding a row, moving on from the last run found
+	 */
+	private int findRun(int row) {
+		int start = run == 0 ? 0 : buf.getInt(runOffset(run - 1) + 4);
+		if (row >= start && row < buf.getInt(runOffset(run) + 4)) {
+			return run;
+		}
+		if (row >= start && run + 1 < runs && row < buf.getInt(runOffset(run + 1) + 4)) {
+			return ++run;
+		}
+
+		// Binary search for the first run ending after the row
+		int lo = 0, hi = runs - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (buf.getInt(runOffset(mid) + 4) <= row) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		run = lo;
+		return lo;
+	}
+
+	/**
+	 * Return the packed difference of a row from the base of the block
+	 */
+	private long unpack(int row) {
+		if (width == 0) {
+			return 0;
+		}
+		long bit = (long) row * width;
+		int word = (int) (bit >>> 6);
+		int shift = (int) (bit & 63);
+		int words = payload + HEADER_BYTES;
+		long v = buf.getLong(words + 8 * word) >>> shift;
+		if (shift + width > 64) {
+			v |= buf.getLong(words + 8 * (word + 1)) << (64 - shift);
+		}
+		return v & ((1L << width) - 1);
+	}
+
+	/**
+	 * Encode the values of a block in the encoding which takes the least
+	 * space, and write the block to a buffer
+	 * @param values Stored values
+	 * @param n Number of rows
+	 * @param out Buffer with space for HEADER_BYTES + 4 * n bytes
+	 * @return encoding used
+	 */
+	static Encoding encode(int[] values, int n, ByteBuffer out) {
+		// Measure the runs and the frame of the values
+		int runs = 0;
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		for (int i = 0; i < n; i++) {
+			if (i == 0 || values[i] != values[i - 1]) {
+				runs++;
+			}
+			min = Math.min(min, values[i]);
+			max = Math.max(max, values[i]);
+		}
+		long range = n == 0 ? 0 : (long) max - min;
+		int width = 64 - Long.numberOfLeadingZeros(range);
+
+		// Choose the smallest encoding
+		long plainBytes = 4L * n;
+		long rleBytes = 4 + 8L * runs;
+		long packedBytes = HEADER_BYTES + 8 * (((long) n * width + 63) / 64);
+		Encoding encoding = Encoding.PLAIN;
+		if (rleBytes < plainBytes && rleBytes <= packedBytes) {
+			encoding = Encoding.RLE;
+		} else if (width < 32 && packedBytes < plainBytes) {
+			encoding = Encoding.PACKED;
+		}
+
+		out.putInt(n);
+		out.put((byte) encoding.ordinal());
+		switch (encoding) {
+		case RLE:
+			out.putInt(runs);
+			for (int i = 0; i < n; i++) {
+				if (i + 1 == n || values[i + 1] != values[i]) {
+					out.putInt(values[i]);
+					out.putInt(i + 1);
+				}
+			}
+			break;
+		case PACKED:
+			out.putInt(min);
+			out.put((byte) width);
+			long word = 0;
+			int used = 0;
+			for (int i = 0; i < n; i++) {
+				long difference = (long) values[i] - min;
+				word |= difference << used;
+				used += width;
+				if (used >= 64) {
+					out.putLong(word);
+					used -= 64;
+					word = used == 0 ? 0 : difference >>> (width - used);
+				}
+			}
+			if (used > 0) {
+				out.putLong(word);
+			}
+			break;
+		default:
+			for (int i = 0; i < n; i++) {
+				out.putInt(values[i]);
+			}
+		}
+		return encoding;
+	}
+}
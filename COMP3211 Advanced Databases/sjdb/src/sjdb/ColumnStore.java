@@ -0,0 +1,766 @@
+package sjdb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class stores the tuples of a named relation in a columnar file,
+ * which is read through memory-mapped buffers so that opening a relation
+ * only reads its header and scanning it decodes no more than the values
+ * asked for.
+ *
+ * The file is laid out as:
+ *
+ * <header> <segment> <segment> ... <segment>
+ *
+ * with one segment per attribute, each of the form:
+ *
+ * <block> <block> ... <block> <block directory> <zone map> [<dictionary>]
+ *
+ * Every block holds one 4-byte value per row: the value itself for INT
+ * columns, or a code into the segment's dictionary for STRING columns. The
+ * values are encoded block by block (see ColumnBlock); blocks of files
+ * before version 3 are not encoded. The block directory holds the
+ * offset of each block, the zone map holds the smallest and largest value
+ * stored in each block (see ZoneMap), and the dictionary holds the
+ * distinct strings of the column in code order. Files of version 1 have
+ * no zone maps.
+ */
+public class ColumnStore implements Storage {
+	/**
+	 * Number of rows in every block except the last
+	 */
+	public static final int BLOCK_ROWS = 4096;
+	/**
+	 * Upper bound on the size of a block in bytes
+	 */
+	static final int MAX_BLOCK_BYTES = ColumnBlock.HEADER_BYTES + 4 * BLOCK_ROWS;
+	/**
+	 * Size of the windows through which segments are mapped
+	 */
+	static final long CHUNK_BYTES = 1L << 30;
+
+	private static final long MAGIC = 0x534a4442434f4c31L; // SJDBCOL1
+	private static final int VERSION = 3;
+
+	/**
+	 * The types of values which may be stored in a column
+	 */
+	public enum Type {
+		INT, STRING
+	}
+
+	private FileChannel channel;
+	private int version;
+	private long rows;
+	private List<Attribute> attributes;
+	private Column[] columns;
+
+	/**
+	 * The location and contents of one attribute's segment
+	 */
+	private class Column {
+		Type type;
+		long blockOffset;
+		long directoryOffset;
+		long dictionaryOffset;
+		int dictionarySize;
+		MappedByteBuffer directory;
+		MappedByteBuffer dictionary;
+		MappedByteBuffer[] chunks;
+		HashMap<String, Integer> codes;
+		ZoneMap zones;
+
+		/**
+		 * Return the absolute file offset of a block
+		 */
+		long offset(int block) throws IOException {
+			if (directory == null) {
+				directory = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, 8L * getBlockCount());
+			}
+			return blockOffset + directory.getLong(8 * block);
+		}
+
+		/**
+		 * Return a buffer positioned at the start of a block
+		 */
+		ByteBuffer block(int block) throws IOException {
+			long relative = offset(block) - blockOffset;
+			int chunk = (int) (relative / CHUNK_BYTES);
+			if (chunks[chunk] == null) {
+				long start = blockOffset + chunk * CHUNK_BYTES;
+				long length = Math.min(CHUNK_BYTES + MAX_BLOCK_BYTES, directoryOffset - start);
+				chunks[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+			}
+			ByteBuffer buf = chunks[chunk].duplicate();
+			buf.position((int) (relative % CHUNK_BYTES));
+			return buf.slice();
+		}
+
+		/**
+		 * Return a reader over a block
+		 */
+		ColumnBlock read(int block) throws IOException {
+			return new ColumnBlock(block(block), version >= 3);
+		}
+
+		/**
+		 * Return the zone map, which follows the block directory
+		 */
+		ZoneMap zones() throws IOException {
+			if (zones == null && version >= 2) {
+				int blocks = getBlockCount();
+				zones = ZoneMap.read(channel.map(FileChannel.MapMode.READ_ONLY,
+						directoryOffset + 8L * blocks, (long) ZoneMap.ZONE_BYTES * blocks), blocks);
+			}
+			return zones;
+		}
+
+		/**
+		 * Return the string with the given dictionary code
+		 */
+		String decode(int code) throws IOException {
+			mapDictionary();
+			int base = 4 + 4 * (dictionarySize + 1);
+			int start = dictionary.getInt(4 + 4 * code);
+			int end = dictionary.getInt(4 + 4 * (code + 1));
+			byte[] bytes = new byte[end - start];
+			ByteBuffer buf = dictionary.duplicate();
+			buf.position(base + start);
+			buf.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Return the dictionary code of a string, or -1 if it does not occur
+		 */
+		int encode(String value) throws IOException {
+			if (codes == null) {
+				HashMap<String, Integer> map = new HashMap<String, Integer>();
+				for (int i = 0; i < dictionarySize; i++) {
+					map.put(decode(i), i);
+				}
+				codes = map;
+			}
+			Integer code = codes.get(value);
+			return code == null ? -1 : code.intValue();
+		}
+
+		void mapDictionary() throws IOException {
+			if (dictionary == null) {
+				long end = dictionaryEnd();
+				dictionary = channel.map(FileChannel.MapMode.READ_ONLY, dictionaryOffset, end - dictionaryOffset);
+			}
+		}
+
+		long dictionaryEnd() throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(4);
+			channel.read(buf, dictionaryOffset + 4 + 4L * dictionarySize);
+			buf.flip();
+			return dictionaryOffset + 4 + 4L * (dictionarySize + 1) + buf.getInt();
+		}
+	}
+
+	/**
+	 * Open a columnar file. Only the header is read; segments are mapped
+	 * on first access.
+	 * @param file The file to be opened
+	 * @return The opened column store
+	 * @throws IOException
+	 */
+	public static ColumnStore open(File file) throws IOException {
+		return new ColumnStore(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+	}
+
+	/**
+	 * Create a writer for a new columnar file
+	 * @param file The file to be written
+	 * @param attributes The attributes stored, in column order
+	 * @param types The type of each attribute
+	 * @return The writer
+	 * @throws IOException
+	 */
+	public static Writer create(File file, List<Attribute> attributes, Type[] types) throws IOException {
+		return new Writer(file, attributes, types);
+	}
+
+	private ColumnStore(FileChannel channel) throws IOException {
+		this.channel = channel;
+
+		ByteBuffer prefix = ByteBuffer.allocate(16);
+		channel.read(prefix, 0);
+		prefix.flip();
+		if (prefix.getLong() != MAGIC) {
+			channel.close();
+			throw new IOException("Not a column store file");
+		}
+		this.version = prefix.getInt();
+		if (version < 1 || version > VERSION) {
+			channel.close();
+			throw new IOException("Unsupported column store version " + version);
+		}
+		int headerSize = prefix.getInt();
+
+		ByteBuffer header = ByteBuffer.allocate(headerSize);
+		channel.read(header, 16);
+		header.flip();
+
+		this.rows = header.getLong();
+		int count = header.getInt();
+		this.attributes = new ArrayList<Attribute>();
+		this.columns = new Column[count];
+
+		for (int i = 0; i < count; i++) {
+			byte[] name = new byte[header.getShort()];
+			header.get(name);
+			int values = header.getInt();
+			attributes.add(new Attribute(new String(name, StandardCharsets.UTF_8), values));
+
+			Column column = new Column();
+			column.type = Type.values()[header.get()];
+			column.blockOffset = header.getLong();
+			column.directoryOffset = header.getLong();
+			column.dictionaryOffset = header.getLong();
+			column.dictionarySize = header.getInt();
+			column.chunks = new MappedByteBuffer[(int) ((column.directoryOffset - column.blockOffset) / CHUNK_BYTES) + 1];
+			columns[i] = column;
+		}
+	}
+
+	/**
+	 * Return the number of rows stored
+	 * @return row count
+	 */
+	public long getRowCount() {
+		return this.rows;
+	}
+
+	/**
+	 * Return the number of blocks in each column
+	 * @return block count
+	 */
+	public int getBlockCount() {
+		return (int) ((rows + BLOCK_ROWS - 1) / BLOCK_ROWS);
+	}
+
+	/**
+	 * Return the attributes stored, in column order, with the number of
+	 * distinct values counted when the file was written
+	 * @return attributes
+	 */
+	public List<Attribute> getAttributes() {
+		return this.attributes;
+	}
+
+	/**
+	 * Return the column in which an attribute is stored
+	 * @param attribute Attribute to be found
+	 * @return column index, or -1 if the attribute is not stored
+	 */
+	public int getColumn(Attribute attribute) {
+		return this.attributes.indexOf(attribute);
+	}
+
+	/**
+	 * Return the type of a column
+	 * @param column Column index
+	 * @return type
+	 */
+	public Type getType(int column) {
+		return this.columns[column].type;
+	}
+
+	/**
+	 * Return the fixed-width value stored for a row: the value of an INT
+	 * column, or the dictionary code of a STRING column
+	 * @param column Column index
+	 * @param row Row id
+	 * @return stored value
+	 * @throws IOException
+	 */
+	public int getInt(int column, long row) throws IOException {
+		return columns[column].read((int) (row / BLOCK_ROWS)).get((int) (row % BLOCK_ROWS));
+	}
+
+	/**
+	 * Return the value stored for a row as a string
+	 * @param column Column index
+	 * @param row Row id
+	 * @return value
+	 * @throws IOException
+	 */
+	public String getString(int column, long row) throws IOException {
+		return decode(column, getInt(column, row));
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Storage#get(long)
+	 */
+	public String[] get(long rowId) throws IOException {
+		if (rowId < 0 || rowId >= rows) {
+			return null;
+		}
+		String[] tuple = new String[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			tuple[i] = getString(i, rowId);
+		}
+		return tuple;
+	}
+
+	/**
+	 * Convert a stored fixed-width value into a string
+	 * @param column Column index
+	 * @param value Stored value
+	 * @return value
+	 * @throws IOException
+	 */
+	public String decode(int column, int value) throws IOException {
+		if (columns[column].type == Type.INT) {
+			return Integer.toString(value);
+		}
+		return columns[column].decode(value);
+	}
+
+	/**
+	 * Convert a string into the fixed-width value that would be stored for
+	 * it, so that predicates can be evaluated without decoding rows
+	 * @param column Column index
+	 * @param value Value
+	 * @return stored value, or null if the value cannot occur in the column
+	 * @throws IOException
+	 */
+	public Integer encode(int column, String value) throws IOException {
+		if (columns[column].type == Type.INT) {
+			try {
+				return Integer.valueOf(value);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		int code = columns[column].encode(value);
+		return code < 0 ? null : Integer.valueOf(code);
+	}
+
+	/**
+	 * Return the encoding of one block of a column
+	 * @param column Column index
+	 * @param block Block index
+	 * @return encoding
+	 * @throws IOException
+	 */
+	public ColumnBlock.Encoding getEncoding(int column, int block) throws IOException {
+		return columns[column].read(block).getEncoding();
+	}
+
+	/**
+	 * Return the row ids of the rows holding a value in a column. Blocks
+	 * whose zones cannot hold the value are skipped, and the others are
+	 * searched without decoding them.
+	 * @param column Column index
+	 * @param value Value
+	 * @return Bitmap of row ids
+	 * @throws IOException
+	 */
+	public RoaringBitmap select(int column, String value) throws IOException {
+		RoaringBitmap out = new RoaringBitmap();
+		Integer stored = encode(column, value);
+		if (stored == null) {
+			return out;
+		}
+
+		ZoneMap zones = getZoneMap(column);
+		for (int block = 0; block < getBlockCount(); block++) {
+			if (zones == null || zones.mightContain(block, stored)) {
+				columns[column].read(block).select(stored, block * BLOCK_ROWS, out);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Return a buffer over one encoded block of a column, positioned at its
+	 * start; the buffer is a view of the mapped file and nothing is copied
+	 * @param column Column index
+	 * @param block Block index
+	 * @return block buffer
+	 * @throws IOException
+	 */
+	public ByteBuffer getBlock(int column, int block) throws IOException {
+		return columns[column].block(block);
+	}
+
+	/**
+	 * Return the zone map of a column
+	 * @param column Column index
+	 * @return zone map, or null if the file has no zone maps
+	 * @throws IOException
+	 */
+	public ZoneMap getZoneMap(int column) throws IOException {
+		return columns[column].zones();
+	}
+
+	/**
+	 * Return a cursor over all rows
+	 * @return cursor
+	 */
+	public Cursor cursor() {
+		return new Cursor(null, -1, 0);
+	}
+
+	/**
+	 * Return a cursor over the rows holding a value in a column. Blocks
+	 * whose zones cannot hold the value are skipped, and the rows of the
+	 * others are compared with the value without decoding them.
+	 * @param column Column index
+	 * @param value Value
+	 * @return cursor
+	 * @throws IOException
+	 */
+	public Cursor cursor(int column, String value) throws IOException {
+		Integer stored = encode(column, value);
+		if (stored == null) {
+			return new Cursor(new ZoneMap(0), column, 0);
+		}
+		return new Cursor(getZoneMap(column), column, stored.intValue());
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+	/**
+	 * A cursor which reads a column store block by block. Values are read
+	 * directly from the mapped blocks of the current position. If a value is
+	 * sought, blocks whose zones cannot hold it are skipped, and so are the
+	 * rows of the remaining blocks which do not hold it.
+	 */
+	public class Cursor implements TupleCursor {
+		private ColumnBlock[] blocks = new ColumnBlock[columns.length];
+		private int block = -1;
+		private int blockRows = 0;
+		private int position = 0;
+		private ZoneMap zones;
+		private int column;
+		private int value;
+		private int blocksRead;
+		private int[][] valueIds = new int[columns.length][];
+
+		private Cursor(ZoneMap zones, int column, int value) {
+			this.zones = zones;
+			this.column = column;
+			this.value = value;
+		}
+
+		/**
+		 * Advance to the next row
+		 * @return false if there are no more rows
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException {
+			do {
+				position++;
+				if (position >= blockRows && !nextBlock()) {
+					return false;
+				}
+			} while (column >= 0 && !block(column).matches(position, value));
+			return true;
+		}
+
+		private boolean nextBlock() throws IOException {
+			do {
+				if (block + 1 >= getBlockCount() || (zones != null && block + 1 >= zones.getBlockCount())) {
+					return false;
+				}
+				block++;
+			} while (zones != null && !zones.mightContain(block, value));
+			blocksRead++;
+			position = 0;
+			for (int i = 0; i < blocks.length; i++) {
+				blocks[i] = null;
+			}
+			blockRows = block(0).getRowCount();
+			return true;
+		}
+
+		private ColumnBlock block(int column) throws IOException {
+			if (blocks[column] == null) {
+				blocks[column] = columns[column].read(block);
+			}
+			return blocks[column];
+		}
+
+		/**
+		 * Return the number of blocks read so far
+		 * @return block count
+		 */
+		public int getBlocksRead() {
+			return this.blocksRead;
+		}
+
+		/**
+		 * Return the id of the current row
+		 * @return row id
+		 */
+		public long getRowId() {
+			return (long) block * BLOCK_ROWS + position;
+		}
+
+		/**
+		 * Return the fixed-width value of a column in the current row
+		 * @param column Column index
+		 * @return stored value
+		 * @throws IOException
+		 */
+		public int getInt(int column) throws IOException {
+			return block(column).get(position);
+		}
+
+		/**
+		 * Return the value of a column in the current row as a string
+		 * @param column Column index
+		 * @return value
+		 * @throws IOException
+		 */
+		public String getString(int column) throws IOException {
+			return decode(column, getInt(column));
+		}
+
+		/**
+		 * Return the StringDictionary id of the value of a column in the
+		 * current row. The ids of the dictionary codes of STRING columns are
+		 * looked up once per cursor, so that a row's value id is an array read.
+		 * @param column Column index
+		 * @return value id, or -1 if the value has no id
+		 * @throws IOException
+		 */
+		public int getValueId(int column) throws IOException {
+			int stored = getInt(column);
+			if (columns[column].type == Type.INT) {
+				return StringDictionary.getInstance().getId(Integer.toString(stored));
+			}
+
+			int[] ids = valueIds[column];
+			if (ids == null) {
+				ids = new int[columns[column].dictionarySize];
+				for (int i = 0; i < ids.length; i++) {
+					ids[i] = StringDictionary.getInstance().getId(columns[column].decode(i));
+				}
+				valueIds[column] = ids;
+			}
+			return ids[stored];
+		}
+	}
+
+	/**
+	 * This class writes a new columnar file. Each column is written to a
+	 * temporary file block by block; when the writer is closed, the header
+	 * is written and the segments are copied into place.
+	 */
+	public static class Writer implements Closeable {
+		private File file;
+		private List<Attribute> attributes;
+		private Type[] types;
+		private File[] segments;
+		private FileChannel[] channels;
+		private ByteBuffer block;
+		private int[][] values;
+		private ArrayList<HashMap<String, Integer>> dictionaries;
+		private ArrayList<ArrayList<String>> strings;
+		private ArrayList<ArrayList<Long>> offsets;
+		private ZoneMap[] zones;
+		private long rows;
+		private int blockRows;
+
+		private Writer(File file, List<Attribute> attributes, Type[] types) throws IOException {
+			this.file = file;
+			this.attributes = attributes;
+			this.types = types;
+			this.segments = new File[types.length];
+			this.channels = new FileChannel[types.length];
+			this.block = ByteBuffer.allocate(MAX_BLOCK_BYTES);
+			this.values = new int[types.length][BLOCK_ROWS];
+			this.dictionaries = new ArrayList<HashMap<String, Integer>>();
+			this.strings = new ArrayList<ArrayList<String>>();
+			this.offsets = new ArrayList<ArrayList<Long>>();
+			this.zones = new ZoneMap[types.length];
+
+			for (int i = 0; i < types.length; i++) {
+				segments[i] = File.createTempFile("sjdb", ".col", file.getAbsoluteFile().getParentFile());
+				channels[i] = FileChannel.open(segments[i].toPath(), StandardOpenOption.WRITE);
+				dictionaries.add(new HashMap<String, Integer>());
+				strings.add(new ArrayList<String>());
+				offsets.add(new ArrayList<Long>());
+				zones[i] = new ZoneMap(16);
+			}
+		}
+
+		/**
+		 * Append a row
+		 * @param row One value per attribute, in column order
+		 * @throws IOException
+		 */
+		public void append(String[] row) throws IOException {
+			int block = (int) (rows / BLOCK_ROWS);
+			for (int i = 0; i < types.length; i++) {
+				int value = encode(i, row[i]);
+				values[i][blockRows] = value;
+				zones[i].add(block, value);
+			}
+			rows++;
+			blockRows++;
+			if (blockRows == BLOCK_ROWS) {
+				flush();
+			}
+		}
+
+		private int encode(int column, String value) {
+			if (types[column] == Type.INT) {
+				return Integer.parseInt(value);
+			}
+			HashMap<String, Integer> dictionary = dictionaries.get(column);
+			Integer code = dictionary.get(value);
+			if (code == null) {
+				code = dictionary.size();
+				dictionary.put(value, code);
+				strings.get(column).add(value);
+			}
+			return code.intValue();
+		}
+
+		private void flush() throws IOException {
+			if (blockRows == 0) {
+				return;
+			}
+			for (int i = 0; i < types.length; i++) {
+				offsets.get(i).add(channels[i].position());
+				block.clear();
+				ColumnBlock.encode(values[i], blockRows, block);
+				block.flip();
+				while (block.hasRemaining()) {
+					channels[i].write(block);
+				}
+			}
+			blockRows = 0;
+		}
+
+		/**
+		 * Return the number of rows appended so far
+		 * @return row count
+		 */
+		public long getRowCount() {
+			return this.rows;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		public void close() throws IOException {
+			flush();
+			int blockCount = (int) ((rows + BLOCK_ROWS - 1) / BLOCK_ROWS);
+
+			// Encode the dictionaries
+			ArrayList<ByteBuffer> encoded = new ArrayList<ByteBuffer>();
+			for (int i = 0; i < types.length; i++) {
+				encoded.add(types[i] == Type.STRING ? encodeDictionary(strings.get(i)) : ByteBuffer.allocate(0));
+			}
+
+			// Lay out the header
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream header = new DataOutputStream(bytes);
+			int headerSize = 12;
+			for (Attribute a : attributes) {
+				headerSize += 2 + a.getName().getBytes(StandardCharsets.UTF_8).length + 4 + 1 + 8 + 8 + 8 + 4;
+			}
+
+			long offset = 16 + headerSize;
+			header.writeLong(MAGIC);
+			header.writeInt(VERSION);
+			header.writeInt(headerSize);
+			header.writeLong(rows);
+			header.writeInt(types.length);
+			for (int i = 0; i < types.length; i++) {
+				byte[] name = attributes.get(i).getName().getBytes(StandardCharsets.UTF_8);
+				long blocksSize = channels[i].size();
+				header.writeShort(name.length);
+				header.write(name);
+				header.writeInt(types[i] == Type.STRING ? strings.get(i).size() : attributes.get(i).getValueCount());
+				header.writeByte(types[i].ordinal());
+				header.writeLong(offset);
+				header.writeLong(offset + blocksSize);
+				header.writeLong(offset + blocksSize + (8L + ZoneMap.ZONE_BYTES) * blockCount);
+				header.writeInt(strings.get(i).size());
+				offset += blocksSize + (8L + ZoneMap.ZONE_BYTES) * blockCount + encoded.get(i).remaining();
+			}
+			header.flush();
+
+			// Write the header followed by each segment
+			try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				writeFully(out, ByteBuffer.wrap(bytes.toByteArray()));
+				for (int i = 0; i < types.length; i++) {
+					long size = channels[i].size();
+					channels[i].close();
+					try (FileChannel in = FileChannel.open(segments[i].toPath(), StandardOpenOption.READ)) {
+						long copied = 0;
+						while (copied < size) {
+							copied += in.transferTo(copied, size - copied, out);
+						}
+					}
+					segments[i].delete();
+
+					ByteBuffer directory = ByteBuffer.allocate(8 * blockCount);
+					for (Long o : offsets.get(i)) {
+						directory.putLong(o.longValue());
+					}
+					directory.flip();
+					writeFully(out, directory);
+
+					ByteBuffer zone = ByteBuffer.allocate(ZoneMap.ZONE_BYTES * blockCount);
+					zones[i].write(zone);
+					zone.flip();
+					writeFully(out, zone);
+					writeFully(out, encoded.get(i));
+				}
+			}
+		}
+
+		private static ByteBuffer encodeDictionary(List<String> values) {
+			ArrayList<byte[]> encoded = new ArrayList<byte[]>();
+			int size = 0;
+			for (String value : values) {
+				byte[] b = value.getBytes(StandardCharsets.UTF_8);
+				encoded.add(b);
+				size += b.length;
+			}
+			ByteBuffer buf = ByteBuffer.allocate(4 + 4 * (values.size() + 1) + size);
+			buf.putInt(values.size());
+			int offset = 0;
+			for (byte[] b : encoded) {
+				buf.putInt(offset);
+				offset += b.length;
+			}
+			buf.putInt(offset);
+			for (byte[] b : encoded) {
+				buf.put(b);
+			}
+			buf.flip();
+			return buf;
+		}
+
+		private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+			while (buf.hasRemaining()) {
+				out.write(buf);
+			}
+		}
+	}
+}
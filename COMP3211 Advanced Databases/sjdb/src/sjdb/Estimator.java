@@ -1,5 +1,6 @@
 package sjdb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -9,28 +10,156 @@ import java.util.*;
  */
 
 public class Estimator implements PlanVisitor {
+	/**
+	 * The snapshot whose statistics are read, or null for the latest
+	 */
+	private Snapshot snapshot;
+
+	/**
+	 * Create an estimator reading the latest statistics of each relation
+	 */
+	public Estimator() {
+		this(null);
+	}
+
+	/**
+	 * Create an estimator reading the statistics seen by a snapshot, so
+	 * that those of every relation in a plan are consistent
+	 * @param snapshot Snapshot
+	 */
+	public Estimator(Snapshot snapshot) {
+		this.snapshot = snapshot;
+	}
 
 	/**
 	 * Estimates the cost of a scan operator:
-	 * Creates an output relation using the tuple count of the input relation
+	 * Creates an output relation using the tuple count of the input relation, as seen by the snapshot
+	 * If the scan has been pruned to some partitions of the relation
+	 	* Uses the tuple count and value counts of only those partitions
+	 * If Bloom filters have been pushed down to the scan
+	 	* Reduces the tuple count by the selectivity of each filter
+	 	* Where the selectivity is min(1,V(B,k)/V(R,k)) plus false positives
+	 	* Reduces the value count of each filtered attribute by the same factor
 	 * Iterates through the attributes in the input relation
 	 * Adds attributes to the output relation
+	 * Adds the row id attribute if the scan emits row ids
 	 * @param op Scan operator to be visited
 	 */
 	// Scan = T(R)
 	public void visit(Scan op) {
-		Relation in = op.getRelation();
-		Relation out = new Relation(in.getTupleCount());
+		NamedRelation relation = (NamedRelation) op.getRelation();
+		Relation in = op.getPartitions() == null ? relation.getStatistics(snapshot)
+				: relation.getStatistics(snapshot, op.getPartitions());
+		double tuples = in.getTupleCount();
+		HashMap<Attribute, Double> selectivities = new HashMap<>();
+
+		// Apply the selectivity of each Bloom filter
+		for (BloomFilter filter : op.getFilters()) {
+			Attribute a = filter.getProbeAttribute();
+			if (in.getAttributes().contains(a)) {
+				double s = filter.getSelectivity(in.getAttribute(a).getValueCount());
+				tuples *= s;
+				selectivities.put(a, s * selectivities.getOrDefault(a, 1.0));
+			}
+		}
+
+		Relation out = new Relation((int) Math.ceil(tuples));
 		
 		Iterator<Attribute> iter = in.getAttributes().iterator();
 		while (iter.hasNext()) {
-			out.addAttribute(new Attribute(iter.next()));
+			Attribute a = iter.next();
+			if (selectivities.containsKey(a))
+				out.addAttribute(new Attribute(a.getName(), (int) Math.ceil(a.getValueCount() * selectivities.get(a))));
+			else
+				out.addAttribute(new Attribute(a));
+		}
+
+		// Add the row ids if the scan emits them
+		if (op.emitsRowIds()) {
+			out.addAttribute(((NamedRelation) op.getRelation()).getRowIdAttribute());
 		}
 
 		// System.out.println("SCAN " + out.render());
 		op.setOutput(out);
 	}
 
+	/**
+	 * Estimates the cost of an index scan operator:
+	 * Estimates the scan of the input relation
+	 * Creates an output relation using T(R)/V(R,A)
+	 	* Where A is the indexed attribute of the predicate attr=val
+	 * Adds attributes and value counts, with V(R,A) = 1
+	 * @param op IndexScan operator to be visited
+	 */
+	public void visit(IndexScan op) {
+		// Estimate the scan, including any filters
+		visit((Scan) op);
+		Relation in = op.getOutput();
+
+		// Find the indexed attribute in the input
+		Attribute left = in.getAttribute(op.getPredicate().getLeftAttribute());
+
+		// Set the output
+		// Number of tuples = T(R)/V(R,A)
+		double v = (double) in.getTupleCount() / (double) Math.max(left.getValueCount(), 1);
+		Relation out = new Relation((int) Math.ceil(v));
+
+		for (Attribute a : in.getAttributes()) {
+			if (a.equals(left))
+				out.addAttribute(new Attribute(a.getName(), 1));
+			else
+				out.addAttribute(new Attribute(a.getName(), a.getValueCount()));
+		}
+
+		// System.out.println("INDEX " + out.render());
+		op.setOutput(out);
+	}
+
+	/**
+	 * Estimates the cost of a bitmap scan operator:
+	 * Estimates the scan of the input relation
+	 * Creates an output relation using T(R)/V(R,A) for each predicate attr=val
+	 * Adds attributes and value counts, with V(R,A) = 1 for each predicate attribute
+	 * @param op BitmapScan operator to be visited
+	 */
+	public void visit(BitmapScan op) {
+		// Estimate the scan, including any filters
+		visit((Scan) op);
+		Relation in = op.getOutput();
+
+		// Find the predicate attributes in the input
+		// Number of tuples = T(R)/V(R,A)/V(R,B)...
+		double v = in.getTupleCount();
+		List<Attribute> selected = new ArrayList<Attribute>();
+		for (Predicate p : op.getPredicates()) {
+			Attribute left = in.getAttribute(p.getLeftAttribute());
+			v /= (double) Math.max(left.getValueCount(), 1);
+			selected.add(left);
+		}
+
+		// Set the output
+		Relation out = new Relation((int) Math.ceil(v));
+
+		for (Attribute a : in.getAttributes()) {
+			if (selected.contains(a))
+				out.addAttribute(new Attribute(a.getName(), 1));
+			else
+				out.addAttribute(new Attribute(a.getName(), Math.min(a.getValueCount(), out.getTupleCount())));
+		}
+
+		// System.out.println("BITMAP " + out.render());
+		op.setOutput(out);
+	}
+
+	/**
+	 * Estimates the cost of an index join operator:
+	 * Uses the same estimate as a join operator, since the output is the same
+	 * @param op IndexJoin operator to be visited
+	 */
+	public void visit(IndexJoin op) {
+		visit((Join) op);
+	}
+
 	/**
 	 * Estimates the cost of a project operator:
 	 * Creates an output relation using the tuple count of the input relation
@@ -57,6 +186,111 @@ public class Estimator implements PlanVisitor {
 		op.setOutput(out);
 	}
 
+	/**
+	 * Estimates the cost of a limit operator:
+	 * Creates an output relation using min(T(R),n)
+	 * Adds attributes and value counts using min(V(R,A),n)
+	 * @param op Limit operator to be visited
+	 */
+	public void visit(Limit op) {
+		op.setOutput(limit(op.getInput().getOutput(), op.getCount()));
+	}
+
+	/**
+	 * Estimates the cost of a sort operator:
+	 * Creates an output relation using the tuple count of the input relation, or min(T(R),n) for a top-N sort
+	 * Adds attributes and value counts, capped at the output tuple count
+	 * @param op Sort operator to be visited
+	 */
+	public void visit(Sort op) {
+		Relation in = op.getInput().getOutput();
+		op.setOutput(limit(in, op.getLimit() < 0 ? in.getTupleCount() : op.getLimit()));
+	}
+
+	/**
+	 * Estimates the cost of an aggregate operator:
+	 * Creates an output relation using min(T(R),V(R,A)*V(R,B)*...)
+	 	* Where A, B, ... are the grouping attributes
+	 	* Or a single tuple if there are no grouping attributes
+	 * Adds the grouping attributes with value counts capped at the output tuple count
+	 * Adds an attribute for each aggregation with as many values as output tuples
+	 * @param op Aggregate operator to be visited
+	 */
+	public void visit(Aggregate op) {
+		Relation in = op.getInput().getOutput();
+
+		// Number of tuples = min(T(R),V(R,A)*V(R,B)*...)
+		double groups = 1;
+		for (Attribute a : op.getGroups()) {
+			if (in.getAttributes().contains(a))
+				groups *= Math.max(in.getAttribute(a).getValueCount(), 1);
+		}
+		Relation out = new Relation(op.getGroups().isEmpty() ? 1 : (int) Math.min(in.getTupleCount(), groups));
+
+		for (Attribute a : op.getGroups()) {
+			if (in.getAttributes().contains(a))
+				out.addAttribute(new Attribute(a.getName(), Math.min(in.getAttribute(a).getValueCount(), out.getTupleCount())));
+		}
+		for (Aggregation aggregation : op.getAggregations()) {
+			out.addAttribute(new Attribute(aggregation.getOutputAttribute().getName(), out.getTupleCount()));
+		}
+
+		// System.out.println("AGGREGATE " + out.render());
+		op.setOutput(out);
+	}
+
+	private Relation limit(Relation in, int n) {
+		// Number of tuples = min(T(R),n)
+		Relation out = new Relation(Math.min(in.getTupleCount(), n));
+
+		// Number of values = min(V(R,A),n)
+		for (Attribute a : in.getAttributes()) {
+			out.addAttribute(new Attribute(a.getName(), Math.min(a.getValueCount(), out.getTupleCount())));
+		}
+
+		// System.out.println("LIMIT " + out.render());
+		return out;
+	}
+
+	/**
+	 * Estimates the cost of a fetch operator:
+	 * Creates an output relation using the tuple count of the input relation
+	 * Iterates through attributes in the operator
+	 * Adds attributes already in the input with their value counts
+	 * Adds fetched attributes using min(V(R,A),V(I,R.rowid))
+	 	* Where V(R,A) is the number of distinct values for the attribute A in relation R
+	 	* Where V(I,R.rowid) is the number of distinct rows of R in the input I
+	 * @param op Fetch operator to be visited
+	 */
+	public void visit(Fetch op) {
+		// Find the input
+		Relation in = op.getInput().getOutput();
+		// Set the output relation
+		// Number of tuples = T(I)
+		Relation out = new Relation(in.getTupleCount());
+
+		for (Attribute a : op.getAttributes()) {
+			// Attributes carried through the plan
+			if (in.getAttributes().contains(a)) {
+				out.addAttribute(new Attribute(in.getAttribute(a)));
+				continue;
+			}
+
+			// Attributes fetched by row id
+			for (NamedRelation r : op.getRelations()) {
+				if (r.getAttributes().contains(a)) {
+					int v = r.getAttribute(a).getValueCount();
+					if (in.getAttributes().contains(r.getRowIdAttribute()))
+						v = Math.min(v, in.getAttribute(r.getRowIdAttribute()).getValueCount());
+					out.addAttribute(new Attribute(a.getName(), v));
+				}
+			}
+		}
+
+		// System.out.println("FETCH " + out.render());
+		op.setOutput(out);
+	}
+
 	/**
 	 * Estimates the cost of a select operator:
 	 * Finds the left and right attributes in the predicate
@@ -94,7 +328,7 @@ public class Estimator implements PlanVisitor {
 
 			// Set the output
 			// Number of tuples = T(R)/V(R,A)
-			double v = (double) in.getTupleCount() / (double) left.getValueCount();
+			double v = (double) in.getTupleCount() / (double) Math.max(left.getValueCount(), 1);
 			out = new Relation((int) Math.ceil(v));
 
 			for (Attribute a : in.getAttributes()) {
@@ -118,7 +352,7 @@ public class Estimator implements PlanVisitor {
 
 			// Set the output relation
 			// Number of tuples = T(R)/max(V(R,A),V(R,B))
-			out = new Relation(in.getTupleCount()/Math.max(left.getValueCount(), right.getValueCount()));
+			out = new Relation(in.getTupleCount()/Math.max(Math.max(left.getValueCount(), right.getValueCount()), 1));
 
 			// Number of values = min(V(R,A),V(R,B))
 			int v = Math.min(left.getValueCount(), right.getValueCount());
@@ -195,7 +429,7 @@ public class Estimator implements PlanVisitor {
 
 		// Set the output relation
 		// Number of tuples = T(R)*T(S)/max(V(R,A),V(S,B))
-		Relation out = new Relation((left.getTupleCount() * right.getTupleCount())/Math.max(a.getValueCount(),b.getValueCount()));
+		Relation out = new Relation((left.getTupleCount() * right.getTupleCount())/Math.max(Math.max(a.getValueCount(),b.getValueCount()), 1));
 
 		// Number of values = min(V(R,A),V(S,B))
 		int v = Math.min(a.getValueCount(), b.getValueCount());
@@ -215,4 +449,131 @@ public class Estimator implements PlanVisitor {
 		op.setOutput(out);
 	}
 
+	/**
+	 * Estimates the cost of a semi-join operator
+	 * Finds the left and right relations
+	 * Finds the attributes in the predicate
+	 * Creates an output relation using T(R)*min(1,V(S,B)/V(R,A))
+	 	* Where R is the left relation, whose tuples are output
+	 	* Where V(R,A) is the number of distinct values for the attribute A in relation R
+	 	* Where V(S,B) is the number of distinct values for the attribute B in relation S
+	 * Adds the attributes of the left relation
+	 	* With V(R,A) = min(V(R,A),V(S,B)) for the join attribute
+	 	* With value counts capped at the output tuple count for the others
+	 * @param op SemiJoin operator to be visited
+	 */
+	public void visit(SemiJoin op) {
+		// Find the left and right outputs
+		Relation left = op.getLeft().getOutput();
+		Relation right = op.getRight().getOutput();
+
+		// Find the attributes, whichever way round the predicate is written
+		Attribute a = op.getPredicate().getLeftAttribute();
+		Attribute b = op.getPredicate().getRightAttribute();
+		if (!left.getAttributes().contains(a)) {
+			a = op.getPredicate().getRightAttribute();
+			b = op.getPredicate().getLeftAttribute();
+		}
+		int va = Math.max(left.getAttribute(a).getValueCount(), 1);
+		int vb = right.getAttribute(b).getValueCount();
+
+		// Set the output relation
+		// Number of tuples = T(R)*min(1,V(S,B)/V(R,A))
+		double s = Math.min(1.0, (double) vb / va);
+		Relation out = new Relation((int) Math.ceil(left.getTupleCount() * s));
+
+		for (Attribute c : left.getAttributes()) {
+			if (c.equals(a))
+				out.addAttribute(new Attribute(c.getName(), Math.min(Math.min(va, vb), out.getTupleCount())));
+			else
+				out.addAttribute(new Attribute(c.getName(), Math.min(c.getValueCount(), out.getTupleCount())));
+		}
+
+		// System.out.println("SEMIJOIN " + out.render());
+		op.setOutput(out);
+	}
+
+	/**
+	 * Estimates the cost of an exchange operator:
+	 * Creates an output relation using the tuple count of the input relation, across every worker
+	 * Adds attributes and value counts from the input relation
+	 * @param op Exchange operator to be visited
+	 */
+	public void visit(Exchange op) {
+		Relation in = op.getInput().getOutput();
+		Relation out = new Relation(in.getTupleCount());
+		for (Attribute a : in.getAttributes()) {
+			out.addAttribute(new Attribute(a.getName(), a.getValueCount()));
+		}
+
+		// System.out.println("EXCHANGE " + out.render());
+		op.setOutput(out);
+	}
+
+	/**
+	 * Estimates the number of tuples an exchange sends over the network:
+	 * A shuffle sends the T(R)*(N-1)/N tuples which belong to other workers
+	 * A broadcast sends every tuple to the N-1 other workers, T(R)*(N-1)
+	 * A gather sends every tuple to the coordinator, T(R)
+	 * Where T(R) is the tuple count of the input, spread evenly across the workers
+	 * Where N is the partition count of the output
+	 * @param op Exchange operator, whose input has been estimated
+	 * @return tuples sent
+	 */
+	public double estimateTransfer(Exchange op) {
+		double tuples = op.getInput().getOutput().getTupleCount();
+		int workers = op.getPartitioning() == null ? 1 : op.getPartitioning().getCount();
+		switch (op.getKind()) {
+		case SHUFFLE:
+			return tuples * (workers - 1) / workers;
+		case BROADCAST:
+			return tuples * (workers - 1);
+		default:
+			return tuples;
+		}
+	}
+
+	/**
+	 * Estimates the fraction of the blocks of a scan read to find the tuples satisfying a predicate attr=val:
+	 * If the relation is stored in a column store with zone maps
+	 	* Counts the blocks whose zones may hold the value
+	 * If the relation is stored in a column store without zone maps
+	 	* Assumes values are spread uniformly, so a block is skipped only if none of its tuples hold the value
+	 	* Uses 1 - (1 - 1/V(R,A))^B, where B is the number of tuples per block
+	 * Otherwise every block is read
+	 * @param op Scan operator under the select
+	 * @param predicate Predicate of the select
+	 * @return fraction of blocks read
+	 */
+	public double estimateBlockFraction(Scan op, Predicate predicate) {
+		Storage storage = ((NamedRelation) op.getRelation()).getStorage();
+		if (!(storage instanceof ColumnStore) || !predicate.equalsValue())
+			return 1.0;
+
+		// Find the stored column
+		ColumnStore store = (ColumnStore) storage;
+		int column = store.getColumn(predicate.getLeftAttribute());
+		if (column < 0 || store.getBlockCount() == 0)
+			return 1.0;
+
+		try {
+			// Count the blocks which may hold the value
+			ZoneMap zones = store.getZoneMap(column);
+			// The value of a parameter is not known until it is bound
+			if (zones != null && !predicate.isParameter()) {
+				Integer value = store.encode(column, predicate.getRightValue());
+				if (value == null)
+					return 0.0;
+				return (double) zones.countBlocks(value) / (double) store.getBlockCount();
+			}
+		} catch (IOException e) {
+			return 1.0;
+		}
+
+		// Fraction of blocks = 1 - (1 - 1/V(R,A))^B
+		int v = Math.max(store.getAttributes().get(column).getValueCount(), 1);
+		long rows = Math.min(ColumnStore.BLOCK_ROWS, store.getRowCount());
+		return 1.0 - Math.pow(1.0 - 1.0 / v, rows);
+	}
+
 }
@@ -0,0 +1,60 @@
+package sjdb;
+
+/**
+ * This class represents an exchange operator, which moves the tuples of
+ * its input between the workers of a cluster. A shuffle sends each tuple
+ * to the worker of its partition under a partitioning, a broadcast sends
+ * every tuple to every worker, and a gather sends every tuple to the
+ * coordinator. Executed in a single process, an exchange passes its
+ * input on unchanged.
+ */
+public class Exchange extends UnaryOperator {
+	/**
+	 * The ways in which an exchange moves tuples
+	 */
+	public enum Kind { SHUFFLE, BROADCAST, GATHER }
+
+	private Kind kind;
+	private Partitioning partitioning;
+
+	/**
+	 * Create a new exchange operator.
+	 * @param input Child operator
+	 * @param kind How the tuples are moved
+	 * @param partitioning Partitioning of the output across the workers: that into which a
+	 * shuffle sends the tuples, or a replicated partitioning for a broadcast, or null for a gather
+	 */
+	public Exchange(Operator input, Kind kind, Partitioning partitioning) {
+		super(input);
+		this.kind = kind;
+		this.partitioning = partitioning;
+	}
+
+	public Kind getKind() {
+		return this.kind;
+	}
+
+	/**
+	 * Return the partitioning of the output across the workers
+	 * @return partitioning, or null if the tuples are gathered by the coordinator
+	 */
+	public Partitioning getPartitioning() {
+		return this.partitioning;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.UnaryOperator#accept(sjdb.OperatorVisitor)
+	 */
+	public void accept(PlanVisitor visitor) {
+		super.accept(visitor);
+		visitor.visit(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return kind + (partitioning == null || partitioning.isReplicated() ? "" : " [" + partitioning.getAttribute() + "]")
+				+ " (" + getInput().toString() + ")";
+	}
+}
@@ -0,0 +1,68 @@
+package sjdb;
+
+import java.util.List;
+import java.util.Iterator;
+
+/**
+ * This class represents a Fetch operator, which is used for late
+ * materialisation: its input carries the row ids of named relations in
+ * place of most of their attributes, and the Fetch operator looks up the
+ * remaining attributes by row id in a single batch at the end of the plan.
+ */
+public class Fetch extends UnaryOperator {
+	private List<Attribute> attributes;
+	private List<NamedRelation> relations;
+
+	/**
+	 * Create a new fetch operator.
+	 * @param input Child operator, carrying row ids
+	 * @param attributes List of attributes to be output
+	 * @param relations Named relations from which attributes are fetched
+	 */
+	public Fetch(Operator input, List<Attribute> attributes, List<NamedRelation> relations) {
+		super(input);
+		this.attributes = attributes;
+		this.relations = relations;
+	}
+
+	/**
+	 * Return the list of attributes output by this operator
+	 * @return List of attributes to be output
+	 */
+	public List<Attribute> getAttributes() {
+		return this.attributes;
+	}
+
+	/**
+	 * Return the named relations from which attributes are fetched
+	 * @return List of named relations
+	 */
+	public List<NamedRelation> getRelations() {
+		return this.relations;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.UnaryOperator#accept(sjdb.OperatorVisitor)
+	 */
+	public void accept(PlanVisitor visitor) {
+		super.accept(visitor);
+		visitor.visit(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		String ret = "FETCH [";
+		Iterator<Attribute> iter = this.attributes.iterator();
+
+		ret += iter.next().getName();
+
+		while (iter.hasNext()) {
+			ret += "," + iter.next().getName();
+		}
+		ret += "] (" + getInput().toString() + ")";
+
+		return ret;
+	}
+}
@@ -0,0 +1,280 @@
+package sjdb;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the running state of the aggregations of each group
+ * seen by an Aggregate operator. Groups are numbered in the order in which
+ * they are first seen, and their state is held in flat arrays indexed by
+ * group number: the number of tuples, and for each aggregation the sum
+ * of its values and the least or greatest value. An open-addressing table
+ * of group numbers, probed linearly, finds the group of a key.
+ *
+ * The state of a group may be taken out as a partial tuple and merged
+ * into another table, so that tuples may be aggregated in parts, by
+ * several threads or a partition at a time, and then combined.
+ *
+ * Sums are held as doubles, and so are exact for integers of up to 53 bits.
+ */
+public class GroupTable {
+	private static final int EMPTY = -1;
+
+	private int[] groupColumns;
+	private int[] valueColumns;
+	private Aggregation.Function[] functions;
+	private int width;
+
+	private int[] slots;
+	private int mask;
+	private int size;
+	private String[][] keys;
+	private int[] hashes;
+	private long[] rows;
+	private double[] sums;
+	private String[] extremes;
+
+	/**
+	 * Create a new empty table
+	 * @param groupColumns Position in an input tuple of each grouping attribute
+	 * @param valueColumns Position in an input tuple of the attribute of each aggregation, or -1 for COUNT(*)
+	 * @param functions Function of each aggregation
+	 */
+	public GroupTable(int[] groupColumns, int[] valueColumns, Aggregation.Function[] functions) {
+		this.groupColumns = groupColumns;
+		this.valueColumns = valueColumns;
+		this.functions = functions;
+		this.width = functions.length;
+		clear();
+	}
+
+	/**
+	 * Remove every group
+	 */
+	public void clear() {
+		this.slots = new int[64];
+		Arrays.fill(this.slots, EMPTY);
+		this.mask = this.slots.length - 1;
+		this.size = 0;
+		this.keys = new String[32][];
+		this.hashes = new int[32];
+		this.rows = new long[32];
+		this.sums = new double[32 * width];
+		this.extremes = new String[32 * width];
+	}
+
+	/**
+	 * Return the number of groups
+	 * @return group count
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Estimate the heap used by a group
+	 * @param key Values of the grouping attributes
+	 * @return bytes
+	 */
+	public long sizeOf(String[] key) {
+		return MemoryManager.sizeOf(key) + 28 + 20L * width;
+	}
+
+	/**
+	 * Add an input tuple to its group
+	 * @param tuple Input tuple
+	 * @return bytes used by a new group, or 0 if the group was already held
+	 * @throws NumberFormatException if a summed value is not a number
+	 */
+	public long add(String[] tuple) {
+		String[] key = new String[groupColumns.length];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = tuple[groupColumns[i]];
+		}
+		int before = size;
+		int g = find(key);
+		rows[g]++;
+		for (int i = 0; i < width; i++) {
+			switch (functions[i]) {
+			case SUM:
+			case AVG:
+				sums[g * width + i] += Double.parseDouble(tuple[valueColumns[i]]);
+				break;
+			case MIN:
+			case MAX:
+				extreme(g * width + i, tuple[valueColumns[i]]);
+				break;
+			default:
+				break;
+			}
+		}
+		return size > before ? sizeOf(key) : 0;
+	}
+
+	/**
+	 * Merge the partial state of a group, taken from another table
+	 * @param partial Partial tuple, as returned by partial()
+	 * @return bytes used by a new group, or 0 if the group was already held
+	 */
+	public long merge(String[] partial) {
+		String[] key = Arrays.copyOf(partial, groupColumns.length);
+		int before = size;
+		int g = find(key);
+		int p = key.length;
+		rows[g] += Long.parseLong(partial[p++]);
+		for (int i = 0; i < width; i++, p += 2) {
+			switch (functions[i]) {
+			case SUM:
+			case AVG:
+				sums[g * width + i] += Double.parseDouble(partial[p]);
+				break;
+			case MIN:
+			case MAX:
+				extreme(g * width + i, partial[p + 1]);
+				break;
+			default:
+				break;
+			}
+		}
+		return size > before ? sizeOf(key) : 0;
+	}
+
+	/**
+	 * Merge every group of another table
+	 * @param other Table with the same aggregations
+	 */
+	public void merge(GroupTable other) {
+		for (int g = 0; g < other.size; g++) {
+			merge(other.partial(g));
+		}
+	}
+
+	/**
+	 * Return the partial state of a group: the values of the grouping
+	 * attributes, the number of tuples, and the sum and least or greatest
+	 * value of each aggregation
+	 * @param g Group number
+	 * @return partial tuple
+	 */
+	public String[] partial(int g) {
+		String[] partial = Arrays.copyOf(keys[g], keys[g].length + 1 + 2 * width);
+		int p = keys[g].length;
+		partial[p++] = Long.toString(rows[g]);
+		for (int i = 0; i < width; i++) {
+			partial[p++] = Double.toString(sums[g * width + i]);
+			String extreme = extremes[g * width + i];
+			partial[p++] = extreme == null ? "" : extreme;
+		}
+		return partial;
+	}
+
+	/**
+	 * Return the output tuple of a group: the values of the grouping
+	 * attributes, followed by the result of each aggregation
+	 * @param g Group number
+	 * @return output tuple
+	 */
+	public String[] result(int g) {
+		String[] result = Arrays.copyOf(keys[g], keys[g].length + width);
+		for (int i = 0; i < width; i++) {
+			result[keys[g].length + i] = result(rows[g], sums[g * width + i], extremes[g * width + i], functions[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the output tuple of aggregating no tuples without grouping
+	 * attributes: counts and sums of zero, and empty values otherwise
+	 * @return output tuple
+	 */
+	public String[] emptyResult() {
+		String[] result = new String[width];
+		for (int i = 0; i < width; i++) {
+			result[i] = result(0, 0, null, functions[i]);
+		}
+		return result;
+	}
+
+	private static String result(long rows, double sum, String extreme, Aggregation.Function function) {
+		switch (function) {
+		case COUNT:
+			return Long.toString(rows);
+		case SUM:
+			return format(sum);
+		case AVG:
+			return rows == 0 ? "" : format(sum / rows);
+		default:
+			return extreme == null ? "" : extreme;
+		}
+	}
+
+	/**
+	 * Format a number as an integer if it has no fraction
+	 */
+	private static String format(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < (1L << 53)) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+	private void extreme(int i, String value) {
+		String current = extremes[i];
+		if (current == null) {
+			extremes[i] = value;
+		} else {
+			int c = Sort.compareValues(value, current);
+			if (functions[i % width] == Aggregation.Function.MIN ? c < 0 : c > 0) {
+				extremes[i] = value;
+			}
+		}
+	}
+
+	/**
+	 * Find the number of the group of a key, adding the group if it is new
+	 */
+	private int find(String[] key) {
+		int h = Arrays.hashCode(key);
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		int s = h & mask;
+		while (slots[s] != EMPTY) {
+			int g = slots[s];
+			if (hashes[g] == h && Arrays.equals(keys[g], key)) {
+				return g;
+			}
+			s = (s + 1) & mask;
+		}
+
+		// Add a new group, keeping the table at most half full
+		if (size == keys.length) {
+			int capacity = keys.length * 2;
+			keys = Arrays.copyOf(keys, capacity);
+			hashes = Arrays.copyOf(hashes, capacity);
+			rows = Arrays.copyOf(rows, capacity);
+			sums = Arrays.copyOf(sums, capacity * width);
+			extremes = Arrays.copyOf(extremes, capacity * width);
+		}
+		int g = size++;
+		keys[g] = key;
+		hashes[g] = h;
+		slots[s] = g;
+		if (size * 2 > slots.length) {
+			rehash();
+		}
+		return g;
+	}
+
+	private void rehash() {
+		slots = new int[slots.length * 2];
+		Arrays.fill(slots, EMPTY);
+		mask = slots.length - 1;
+		for (int g = 0; g < size; g++) {
+			int s = hashes[g] & mask;
+			while (slots[s] != EMPTY) {
+				s = (s + 1) & mask;
+			}
+			slots[s] = g;
+		}
+	}
+}
@@ -0,0 +1,552 @@
+package sjdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * This class stores the tuples of a named relation in a heap file of
+ * fixed-size slotted pages, which are read and written through a
+ * BufferPool. It suits row-oriented relations which are updated in place.
+ *
+ * Page 0 of the file is a header holding the tuple count and the stored
+ * attributes; the remaining pages are HeapPages. The row id of a tuple is
+ * its page number and slot number, packed as (page << 16) | slot.
+ *
+ * Appends may be tagged with the version of the write which made them,
+ * which is noted while the page is latched, so that a snapshot reading
+ * the page can tell whether it sees the tuple. The tags are discarded
+ * once every open snapshot sees them.
+ *
+ * Appends may be logged in a WriteAheadLog. The LSN of the last record of
+ * each page is noted while the page is still pinned, and a page is only
+ * written once the log is durable up to it.
+ */
+public class HeapFile implements Storage, Snapshot.Versioned {
+	private static final int MAGIC = 0x534a4448; // SJDH
+	// Bounds on the number of pages a cursor reads ahead
+	private static final int MIN_READ_AHEAD = 2;
+	private static final int MAX_READ_AHEAD = 64;
+
+	private File file;
+	private FileChannel channel;
+	private BufferPool pool;
+	private List<Attribute> attributes;
+	private long rows;
+	private int pages;
+	private WriteAheadLog log;
+	private ConcurrentHashMap<Integer, Long> pageLsns = new ConcurrentHashMap<Integer, Long>();
+	private ConcurrentHashMap<Long, Long> versions = new ConcurrentHashMap<Long, Long>();
+	private ArrayDeque<Long> tagged = new ArrayDeque<Long>();
+
+	/**
+	 * Open a heap file, creating it with the given attributes if it does
+	 * not exist.
+	 * @param file The file to be opened
+	 * @param attributes The attributes stored, in column order
+	 * @param pool The buffer pool through which pages are read
+	 * @return The opened heap file
+	 * @throws IOException
+	 */
+	public static HeapFile open(File file, List<Attribute> attributes, BufferPool pool) throws IOException {
+		return new HeapFile(file, attributes, pool);
+	}
+
+	private HeapFile(File file, List<Attribute> attributes, BufferPool pool) throws IOException {
+		this.file = file;
+		this.pool = pool;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		if (channel.size() == 0) {
+			this.attributes = new ArrayList<Attribute>(attributes);
+			this.rows = 0;
+			this.pages = 1;
+			writeHeader();
+		} else {
+			readHeader();
+			this.pages = (int) Math.max(1, channel.size() / BufferPool.PAGE_SIZE);
+		}
+	}
+
+	private void readHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(BufferPool.PAGE_SIZE);
+		readPage(0, header);
+		header.flip();
+		if (header.getInt() != MAGIC) {
+			throw new IOException(file + " is not a heap file");
+		}
+		this.rows = header.getLong();
+		int count = header.getInt();
+		this.attributes = new ArrayList<Attribute>();
+		for (int i = 0; i < count; i++) {
+			byte[] name = new byte[header.getShort()];
+			header.get(name);
+			attributes.add(new Attribute(new String(name, StandardCharsets.UTF_8), header.getInt()));
+		}
+	}
+
+	private void writeHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(BufferPool.PAGE_SIZE);
+		header.putInt(MAGIC);
+		header.putLong(rows);
+		header.putInt(attributes.size());
+		for (Attribute a : attributes) {
+			byte[] name = a.getName().getBytes(StandardCharsets.UTF_8);
+			header.putShort((short) name.length);
+			header.put(name);
+			header.putInt(a.getValueCount());
+		}
+		header.clear();
+		writePage(0, header);
+	}
+
+	/**
+	 * Read a page from the file, bypassing the buffer pool; pages beyond
+	 * the end of the file read as zeroes.
+	 * @param number Page number
+	 * @param buf Buffer of BufferPool.PAGE_SIZE bytes
+	 * @throws IOException
+	 */
+	void readPage(int number, ByteBuffer buf) throws IOException {
+		long position = (long) number * BufferPool.PAGE_SIZE;
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position);
+			if (n < 0) {
+				while (buf.hasRemaining()) {
+					buf.put((byte) 0);
+				}
+				break;
+			}
+			position += n;
+		}
+	}
+
+	/**
+	 * Write a page to the file, bypassing the buffer pool.
+	 * @param number Page number
+	 * @param buf Buffer of BufferPool.PAGE_SIZE bytes
+	 * @throws IOException
+	 */
+	void writePage(int number, ByteBuffer buf) throws IOException {
+		Long lsn = pageLsns.get(number);
+		if (lsn != null) {
+			log.flush(lsn);
+		}
+		long position = (long) number * BufferPool.PAGE_SIZE;
+		while (buf.hasRemaining()) {
+			position += channel.write(buf, position);
+		}
+	}
+
+	/**
+	 * Return the buffer pool through which pages are read
+	 * @return buffer pool
+	 */
+	public BufferPool getBufferPool() {
+		return this.pool;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Storage#getAttributes()
+	 */
+	public List<Attribute> getAttributes() {
+		return this.attributes;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Storage#getRowCount()
+	 */
+	public synchronized long getRowCount() {
+		return this.rows;
+	}
+
+	/**
+	 * Return the number of pages in the file, including the header page
+	 * @return page count
+	 */
+	public synchronized int getPageCount() {
+		return this.pages;
+	}
+
+	/**
+	 * Append a tuple to the last page, or to a new page if it is full
+	 * @param values One value per attribute, in column order
+	 * @return Row id of the new tuple
+	 * @throws IOException
+	 */
+	public long insert(String[] values) throws IOException {
+		return insert(values, 0, null, null);
+	}
+
+	/**
+	 * Append a tuple made by a write, logging it in a write-ahead log
+	 * @param values One value per attribute, in column order
+	 * @param version Version of the write, or 0 if every snapshot is to see the tuple
+	 * @param log Write-ahead log, or null if the append is not logged
+	 * @param relName Name of the relation stored in this file
+	 * @return row id of the new tuple
+	 * @throws IOException
+	 */
+	public synchronized long insert(String[] values, long version, WriteAheadLog log, String relName)
+			throws IOException {
+		byte[] record = HeapPage.encode(values);
+		if (record.length > BufferPool.PAGE_SIZE / 2) {
+			throw new IOException("Tuple of " + record.length + " bytes is too large for a page");
+		}
+		if (log != null) {
+			this.log = log;
+		}
+
+		long inserted = pages > 1 ? insert(pool.pin(this, pages - 1), record, version, log, relName) : -1;
+		if (inserted < 0) {
+			int number = pages++;
+			inserted = insert(pool.pinNew(this, number), record, version, log, relName);
+		}
+		if (version > 0) {
+			Snapshot.retain(this);
+		}
+		return inserted;
+	}
+
+	/**
+	 * Insert a record into a pinned page, logging it before the page is unpinned
+	 * @return row id, or -1 if the page is full
+	 */
+	private long insert(BufferPool.Frame frame, byte[] record, long version, WriteAheadLog log, String relName) {
+		int number = frame.getPageNumber();
+		Lock latch = pool.latch(this, number).writeLock();
+		int slot;
+
+		latch.lock();
+		try {
+			slot = new HeapPage(frame.getData()).insert(record);
+			if (slot >= 0 && version > 0) {
+				versions.put(rowId(number, slot), version);
+				synchronized (tagged) {
+					tagged.addLast(rowId(number, slot));
+				}
+			}
+		} finally {
+			latch.unlock();
+		}
+
+		long inserted = slot < 0 ? -1 : rowId(number, slot);
+		if (slot >= 0 && log != null) {
+			pageLsns.put(number, log.append(relName, inserted, record));
+		}
+		pool.unpin(frame, slot >= 0);
+		if (slot >= 0) {
+			rows++;
+		}
+		return inserted;
+	}
+
+	/**
+	 * Insert a tuple at a row id while a write-ahead log is replayed, unless
+	 * the page already holds it. Records are replayed in the order in which
+	 * they were appended, so a page which does not hold a row id inserts the
+	 * tuple into the same slot as before.
+	 * @param rowId Row id of the tuple
+	 * @param values One value per attribute, in column order
+	 * @return true if the tuple was inserted
+	 * @throws IOException if the page does not match the log
+	 */
+	public synchronized boolean redo(long rowId, String[] values) throws IOException {
+		int number = page(rowId);
+		if (number < 1 || number > pages) {
+			throw new IOException("Row id " + rowId + " is not in a page of " + file);
+		}
+		BufferPool.Frame frame = number == pages ? pool.pinNew(this, pages++) : pool.pin(this, number);
+		Lock latch = pool.latch(this, number).writeLock();
+		int slot = -1;
+
+		latch.lock();
+		try {
+			HeapPage page = new HeapPage(frame.getData());
+			if (page.isUsed(slot(rowId))) {
+				return false;
+			}
+			slot = page.insert(HeapPage.encode(values));
+		} finally {
+			latch.unlock();
+			pool.unpin(frame, slot >= 0);
+		}
+
+		if (slot != slot(rowId)) {
+			throw new IOException("Page " + number + " of " + file + " does not match the log");
+		}
+		rows++;
+		return true;
+	}
+
+	/**
+	 * Count the tuples in the pages of the file, which may not match the
+	 * count in the header after a crash
+	 * @return tuple count
+	 * @throws IOException
+	 */
+	public synchronized long recount() throws IOException {
+		long count = 0;
+		for (int number = 1; number < pages; number++) {
+			BufferPool.Frame frame = pool.pin(this, number);
+			Lock latch = pool.latch(this, number).readLock();
+			latch.lock();
+			try {
+				HeapPage page = new HeapPage(frame.getData());
+				for (int slot = 0; slot < page.getSlotCount(); slot++) {
+					count += page.isUsed(slot) ? 1 : 0;
+				}
+			} finally {
+				latch.unlock();
+				pool.unpin(frame, false);
+			}
+		}
+		this.rows = count;
+		return count;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Storage#get(long)
+	 */
+	public String[] get(long rowId) throws IOException {
+		BufferPool.Frame frame = pool.pin(this, page(rowId));
+		Lock latch = pool.latch(this, page(rowId)).readLock();
+		byte[] record;
+
+		latch.lock();
+		try {
+			record = new HeapPage(frame.getData()).get(slot(rowId));
+		} finally {
+			latch.unlock();
+			pool.unpin(frame, false);
+		}
+
+		return record == null ? null : HeapPage.decode(record, attributes.size());
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Storage#getVersion(long)
+	 */
+	public long getVersion(long rowId) {
+		if (versions.isEmpty()) {
+			return 0;
+		}
+		Long version = versions.get(rowId);
+		return version == null ? 0 : version;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Snapshot.Versioned#collect(long)
+	 */
+	public boolean collect(long oldest) {
+		// Tags are added in the order of their versions, so the oldest come first
+		synchronized (tagged) {
+			while (!tagged.isEmpty() && versions.get(tagged.peekFirst()) <= oldest) {
+				versions.remove(tagged.pollFirst());
+			}
+			return !tagged.isEmpty();
+		}
+	}
+
+	/**
+	 * Replace the tuple with a given row id in place
+	 * @param rowId Row id
+	 * @param values New tuple values
+	 * @return false if the tuple does not exist or no longer fits its page
+	 * @throws IOException
+	 */
+	public boolean update(long rowId, String[] values) throws IOException {
+		BufferPool.Frame frame = pool.pin(this, page(rowId));
+		Lock latch = pool.latch(this, page(rowId)).writeLock();
+		boolean updated;
+
+		latch.lock();
+		try {
+			updated = new HeapPage(frame.getData()).update(slot(rowId), HeapPage.encode(values));
+		} finally {
+			latch.unlock();
+		}
+
+		pool.unpin(frame, updated);
+		return updated;
+	}
+
+	/**
+	 * Delete the tuple with a given row id
+	 * @param rowId Row id
+	 * @return false if the tuple did not exist
+	 * @throws IOException
+	 */
+	public boolean delete(long rowId) throws IOException {
+		BufferPool.Frame frame = pool.pin(this, page(rowId));
+		Lock latch = pool.latch(this, page(rowId)).writeLock();
+		boolean deleted;
+
+		latch.lock();
+		try {
+			deleted = new HeapPage(frame.getData()).delete(slot(rowId));
+		} finally {
+			latch.unlock();
+		}
+
+		pool.unpin(frame, deleted);
+		if (deleted) {
+			synchronized (this) {
+				rows--;
+			}
+		}
+		return deleted;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Storage#cursor()
+	 */
+	public TupleCursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Write back the dirty pages of this file and the header page
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		pool.flush(this);
+		writeHeader();
+		channel.force(false);
+		pageLsns.clear();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() throws IOException {
+		flush();
+		channel.close();
+	}
+
+	private static long rowId(int page, int slot) {
+		return ((long) page << 16) | slot;
+	}
+
+	private static int page(long rowId) {
+		return (int) (rowId >>> 16);
+	}
+
+	private static int slot(long rowId) {
+		return (int) (rowId & 0xffff);
+	}
+
+	/**
+	 * A cursor which reads the heap file one page at a time through the
+	 * buffer pool. Each page is pinned only while its tuples are copied out.
+	 *
+	 * The cursor prefetches the pages ahead of the one it is reading, so
+	 * that their reads overlap with the processing of the tuples. The
+	 * number of pages read ahead adapts to the consumer: it doubles when
+	 * the cursor reaches a page which is not loaded yet, and shrinks by one
+	 * when the page is already loaded, so that a slow consumer does not
+	 * tie up frames with pages it will not need for a while. It is at
+	 * most a quarter of the pool's frames.
+	 */
+	private class Cursor implements TupleCursor {
+		private int page = 0;
+		private ArrayList<String[]> tuples = new ArrayList<String[]>();
+		private ArrayList<Long> rowIds = new ArrayList<Long>();
+		private int position = 0;
+		private int depth = MIN_READ_AHEAD;
+		private int maxDepth = Math.min(MAX_READ_AHEAD, pool.getFrameCount() / 4);
+		private int prefetched = 0;
+
+		/* (non-Javadoc)
+		 * @see sjdb.TupleCursor#next()
+		 */
+		public boolean next() throws IOException {
+			position++;
+			while (position >= tuples.size()) {
+				if (page + 1 >= getPageCount()) {
+					return false;
+				}
+				read(++page);
+			}
+			return true;
+		}
+
+		private void read(int number) throws IOException {
+			tuples.clear();
+			rowIds.clear();
+			position = 0;
+			readAhead(number);
+
+			BufferPool.Frame frame = pool.pin(HeapFile.this, number);
+			Lock latch = pool.latch(HeapFile.this, number).readLock();
+			latch.lock();
+			try {
+				HeapPage p = new HeapPage(frame.getData());
+				for (int slot = 0; slot < p.getSlotCount(); slot++) {
+					byte[] record = p.get(slot);
+					if (record != null) {
+						tuples.add(HeapPage.decode(record, attributes.size()));
+						rowIds.add(rowId(number, slot));
+					}
+				}
+			} finally {
+				latch.unlock();
+				pool.unpin(frame, false);
+			}
+		}
+
+		/**
+		 * Adapt the read-ahead depth, and prefetch the pages after a page
+		 * up to that depth
+		 */
+		private void readAhead(int number) {
+			if (maxDepth < 1) {
+				return;
+			}
+			if (number <= prefetched && pool.isLoaded(HeapFile.this, number)) {
+				depth = Math.max(MIN_READ_AHEAD, depth - 1);
+			} else {
+				depth = Math.min(maxDepth, depth * 2);
+			}
+			depth = Math.min(depth, maxDepth);
+
+			int last = Math.min(number + depth, getPageCount() - 1);
+			for (int p = Math.max(prefetched + 1, number + 1); p <= last; p++) {
+				if (!pool.prefetch(HeapFile.this, p)) {
+					break;
+				}
+				prefetched = p;
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see sjdb.TupleCursor#getRowId()
+		 */
+		public long getRowId() {
+			return rowIds.get(position);
+		}
+
+		/* (non-Javadoc)
+		 * @see sjdb.TupleCursor#getString(int)
+		 */
+		public String getString(int column) {
+			return tuples.get(position)[column];
+		}
+
+		/* (non-Javadoc)
+		 * @see sjdb.TupleCursor#getValueId(int)
+		 */
+		public int getValueId(int column) {
+			return StringDictionary.getInstance().getId(getString(column));
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package sjdb;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class interprets a buffer as a slotted page of a heap file. The
+ * page starts with a header holding the number of slots and the start of
+ * the record area, followed by the slot array; records are stored from the
+ * end of the page towards the slot array. Each slot holds the offset and
+ * length of its record, and a slot whose offset is zero is free.
+ *
+ * Records are addressed by slot number, which does not change when other
+ * records are deleted or the page is compacted, so row ids stay stable.
+ *
+ * All access is through absolute positions, so a page may be read through
+ * a buffer shared with other readers.
+ */
+public class HeapPage {
+	private static final int HEADER_SIZE = 4;
+	private static final int SLOT_SIZE = 4;
+
+	private ByteBuffer data;
+
+	/**
+	 * Interpret a buffer as a slotted page
+	 * @param data Page buffer of BufferPool.PAGE_SIZE bytes
+	 */
+	public HeapPage(ByteBuffer data) {
+		this.data = data;
+	}
+
+	/**
+	 * Return the number of slots, including free slots
+	 * @return slot count
+	 */
+	public int getSlotCount() {
+		return data.getShort(0);
+	}
+
+	private int getRecordStart() {
+		int start = data.getShort(2) & 0xffff;
+		return start == 0 ? data.capacity() : start;
+	}
+
+	private int getOffset(int slot) {
+		return data.getShort(HEADER_SIZE + SLOT_SIZE * slot) & 0xffff;
+	}
+
+	private int getLength(int slot) {
+		return data.getShort(HEADER_SIZE + SLOT_SIZE * slot + 2) & 0xffff;
+	}
+
+	private void setSlot(int slot, int offset, int length) {
+		data.putShort(HEADER_SIZE + SLOT_SIZE * slot, (short) offset);
+		data.putShort(HEADER_SIZE + SLOT_SIZE * slot + 2, (short) length);
+	}
+
+	/**
+	 * Return the contiguous free space between the slot array and the records
+	 * @return free bytes
+	 */
+	public int getFreeSpace() {
+		return getRecordStart() - HEADER_SIZE - SLOT_SIZE * getSlotCount();
+	}
+
+	/**
+	 * Return true if a slot holds a record
+	 * @param slot Slot number
+	 * @return Whether the slot is in use
+	 */
+	public boolean isUsed(int slot) {
+		return slot < getSlotCount() && getOffset(slot) != 0;
+	}
+
+	/**
+	 * Insert a record into a free slot
+	 * @param record Encoded record
+	 * @return Slot number, or -1 if the page does not have room
+	 */
+	public int insert(byte[] record) {
+		int slots = getSlotCount();
+		int slot = slots;
+		for (int i = 0; i < slots; i++) {
+			if (getOffset(i) == 0) {
+				slot = i;
+				break;
+			}
+		}
+
+		int needed = record.length + (slot == slots ? SLOT_SIZE : 0);
+		if (getFreeSpace() < needed) {
+			compact();
+			if (getFreeSpace() < needed) {
+				return -1;
+			}
+		}
+
+		if (slot == slots) {
+			data.putShort(0, (short) (slots + 1));
+		}
+		write(slot, record);
+		return slot;
+	}
+
+	/**
+	 * Return the record in a slot
+	 * @param slot Slot number
+	 * @return Encoded record, or null if the slot is free
+	 */
+	public byte[] get(int slot) {
+		if (!isUsed(slot)) {
+			return null;
+		}
+		byte[] record = new byte[getLength(slot)];
+		int offset = getOffset(slot);
+		for (int i = 0; i < record.length; i++) {
+			record[i] = data.get(offset + i);
+		}
+		return record;
+	}
+
+	/**
+	 * Replace the record in a slot, keeping its slot number
+	 * @param slot Slot number
+	 * @param record Encoded record
+	 * @return false if the page does not have room for the new record
+	 */
+	public boolean update(int slot, byte[] record) {
+		if (!isUsed(slot)) {
+			return false;
+		}
+		if (record.length <= getLength(slot)) {
+			int offset = getOffset(slot);
+			for (int i = 0; i < record.length; i++) {
+				data.put(offset + i, record[i]);
+			}
+			setSlot(slot, offset, record.length);
+			return true;
+		}
+
+		// Move the record to the free space, compacting if necessary
+		if (getFreeSpace() < record.length) {
+			int live = 0;
+			for (int i = 0; i < getSlotCount(); i++) {
+				if (i != slot && isUsed(i)) {
+					live += getLength(i);
+				}
+			}
+			if (data.capacity() - HEADER_SIZE - SLOT_SIZE * getSlotCount() - live < record.length) {
+				return false;
+			}
+			setSlot(slot, 0, 0);
+			compact();
+		}
+		write(slot, record);
+		return true;
+	}
+
+	/**
+	 * Delete the record in a slot
+	 * @param slot Slot number
+	 * @return false if the slot was already free
+	 */
+	public boolean delete(int slot) {
+		if (!isUsed(slot)) {
+			return false;
+		}
+		setSlot(slot, 0, 0);
+		return true;
+	}
+
+	private void write(int slot, byte[] record) {
+		int start = getRecordStart() - record.length;
+		for (int i = 0; i < record.length; i++) {
+			data.put(start + i, record[i]);
+		}
+		data.putShort(2, (short) start);
+		setSlot(slot, start, record.length);
+	}
+
+	/**
+	 * Move all records to the end of the page, so that the space left by
+	 * deleted and moved records becomes contiguous
+	 */
+	public void compact() {
+		int slots = getSlotCount();
+		byte[][] records = new byte[slots][];
+		for (int i = 0; i < slots; i++) {
+			records[i] = get(i);
+		}
+		data.putShort(2, (short) 0);
+		for (int i = 0; i < slots; i++) {
+			if (records[i] != null) {
+				write(i, records[i]);
+			}
+		}
+	}
+
+	/**
+	 * Encode a tuple as a record: each value as a length followed by its
+	 * UTF-8 bytes
+	 * @param values Tuple values
+	 * @return Encoded record
+	 */
+	public static byte[] encode(String[] values) {
+		byte[][] bytes = new byte[values.length][];
+		int length = 0;
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = values[i].getBytes(StandardCharsets.UTF_8);
+			length += 2 + bytes[i].length;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		for (byte[] b : bytes) {
+			buf.putShort((short) b.length);
+			buf.put(b);
+		}
+		return buf.array();
+	}
+
+	/**
+	 * Decode a record into a tuple
+	 * @param record Encoded record
+	 * @param width Number of values
+	 * @return Tuple values
+	 */
+	public static String[] decode(byte[] record, int width) {
+		ByteBuffer buf = ByteBuffer.wrap(record);
+		String[] values = new String[width];
+		for (int i = 0; i < width; i++) {
+			int length = buf.getShort() & 0xffff;
+			values[i] = new String(record, buf.position(), length, StandardCharsets.UTF_8);
+			buf.position(buf.position() + length);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,106 @@
+package sjdb;
+
+/**
+ * This class implements a HyperLogLog sketch, which estimates the number
+ * of distinct values added to it in a fixed amount of memory. Sketches
+ * built over different parts of a relation can be merged, so that value
+ * counts can be estimated in parallel.
+ *
+ * With the default precision of 14 bits the sketch uses 16KB and its
+ * standard error is about 0.8%.
+ */
+public class HyperLogLog {
+	/**
+	 * Default number of bits of the hash used to choose a register
+	 */
+	public static final int DEFAULT_PRECISION = 14;
+
+	private int precision;
+	private byte[] registers;
+
+	/**
+	 * Create a new empty sketch with the default precision
+	 */
+	public HyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * Create a new empty sketch
+	 * @param precision Number of bits of the hash used to choose a register, from 4 to 18
+	 */
+	public HyperLogLog(int precision) {
+		this.precision = Math.max(4, Math.min(18, precision));
+		this.registers = new byte[1 << this.precision];
+	}
+
+	/**
+	 * Add a value to the sketch
+	 * @param value Value
+	 */
+	public void add(String value) {
+		long hash = hash(value);
+		int register = (int) (hash >>> (64 - precision));
+		// Rank of the first set bit in the remaining bits
+		int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+		if (rank > registers[register]) {
+			registers[register] = (byte) rank;
+		}
+	}
+
+	/**
+	 * Merge another sketch of the same precision into this one
+	 * @param other Sketch
+	 */
+	public void merge(HyperLogLog other) {
+		if (other.precision != precision) {
+			throw new IllegalArgumentException("Cannot merge sketches of precision " + precision + " and " + other.precision);
+		}
+		for (int i = 0; i < registers.length; i++) {
+			registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+		}
+	}
+
+	/**
+	 * Return the estimated number of distinct values added
+	 * @return estimate
+	 */
+	public long estimate() {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte r : registers) {
+			sum += 1.0 / (1L << r);
+			if (r == 0) {
+				zeros++;
+			}
+		}
+
+		double alpha = 0.7213 / (1 + 1.079 / m);
+		double estimate = alpha * m * m / sum;
+
+		// Use linear counting for small cardinalities
+		if (estimate <= 2.5 * m && zeros > 0) {
+			estimate = m * Math.log((double) m / zeros);
+		}
+		return Math.round(estimate);
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of a value, finished with a mixing step so that
+	 * all bits are usable
+	 */
+	private static long hash(String value) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			h ^= value.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
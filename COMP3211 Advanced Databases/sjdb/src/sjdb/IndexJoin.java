@@ -0,0 +1,45 @@
+package sjdb;
+
+/**
+ * This class represents an index nested-loop join operator: for each
+ * tuple of the left (outer) child, matching tuples of the right (inner)
+ * child are looked up in a B+tree index on the inner join attribute, so
+ * the inner relation is never scanned in full.
+ */
+public class IndexJoin extends Join {
+	/**
+	 * Create a new index nested-loop join operator.
+	 * @param outer Outer child operator
+	 * @param inner Scan of the inner named relation
+	 * @param predicate Join predicate of the form outer attr=inner attr
+	 */
+	public IndexJoin(Operator outer, Scan inner, Predicate predicate) {
+		super(outer, inner, predicate);
+	}
+
+	/**
+	 * Return the index probed for each outer tuple
+	 * @return B+tree index
+	 */
+	public BPlusTree getIndex() {
+		NamedRelation inner = (NamedRelation) ((Scan) getRight()).getRelation();
+		return inner.getIndex(getPredicate().getRightAttribute());
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Join#accept(sjdb.PlanVisitor)
+	 */
+	public void accept(PlanVisitor visitor) {
+		acceptInputs(visitor);
+		visitor.visit(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Join#toString()
+	 */
+	public String toString() {
+		return "(" + this.getLeft().toString() + ") INDEX JOIN [" +
+				this.getPredicate().toString() +
+				"] (" + this.getRight().toString() + ")";
+	}
+}
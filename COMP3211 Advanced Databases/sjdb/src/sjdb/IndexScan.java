@@ -0,0 +1,67 @@
+package sjdb;
+
+/**
+ * This class implements an IndexScan operator, which feeds the tuples of
+ * a NamedRelation that satisfy a predicate of the form attr=value into a
+ * query plan by looking the value up in a B+tree index on the attribute,
+ * rather than scanning the whole relation.
+ */
+public class IndexScan extends Scan {
+	/**
+	 * The predicate answered by the index
+	 */
+	private Predicate predicate;
+
+	/**
+	 * Create a new index scan of a given named relation
+	 * @param relation Named relation to be scanned
+	 * @param predicate Predicate of the form attr=value on an indexed attribute
+	 */
+	public IndexScan(NamedRelation relation, Predicate predicate) {
+		super(relation);
+		this.predicate = predicate;
+	}
+
+	/**
+	 * Return the predicate answered by the index
+	 * @return Predicate
+	 */
+	public Predicate getPredicate() {
+		return this.predicate;
+	}
+
+	/**
+	 * Return the index used by this scan
+	 * @return B+tree index
+	 */
+	public BPlusTree getIndex() {
+		return ((NamedRelation) getRelation()).getIndex(this.predicate.getLeftAttribute());
+	}
+
+	/**
+	 * Return the row ids of the tuples satisfying the predicate
+	 * @return Row ids
+	 */
+	public long[] lookup() {
+		return getIndex().search(this.predicate.getRightValue());
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Scan#toString()
+	 */
+	@Override
+	public String toString() {
+		String ret = "INDEX [" + this.predicate.toString() + "] (" + getRelation().toString() + ")";
+		for (BloomFilter filter : getFilters()) {
+			ret = "BLOOM [" + filter.toString() + "] (" + ret + ")";
+		}
+		return ret;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Scan#accept(sjdb.PlanVisitor)
+	 */
+	public void accept(PlanVisitor visitor) {
+		visitor.visit(this);
+	}
+}
@@ -11,6 +11,11 @@ public class Inspector implements PlanVisitor {
 		// TODO Auto-generated method stub
 		System.out.println(op.toString());
 		System.out.println("  in:  " + op.getRelation().render());
+		for (BloomFilter filter : op.getFilters()) {
+			System.out.println("  bloom: " + filter.toString() + " keys=" + filter.getKeyCount()
+					+ " bits=" + filter.getBitCount() + " hashes=" + filter.getHashCount()
+					+ " fpr=" + String.format("%.4f", filter.getFalsePositiveRate()));
+		}
 		System.out.println("  out: " + op.getOutput().render());
 	}
 
@@ -47,4 +52,70 @@ public class Inspector implements PlanVisitor {
 		System.out.println("  inr: " + op.getRight().getOutput().render());
 		System.out.println("  out: " + op.getOutput().render());
 	}
+
+	@Override
+	public void visit(Fetch op) {
+		System.out.println(op.toString());
+		System.out.println("  in:  " + op.getInput().getOutput().render());
+		System.out.println("  out: " + op.getOutput().render());
+	}
+
+	@Override
+	public void visit(IndexScan op) {
+		System.out.println(op.toString());
+		System.out.println("  in:  " + op.getRelation().render());
+		System.out.println("  index: height=" + ((NamedRelation) op.getRelation()).getIndexHeight(op.getPredicate().getLeftAttribute()));
+		System.out.println("  out: " + op.getOutput().render());
+	}
+
+	@Override
+	public void visit(IndexJoin op) {
+		System.out.println(op.toString());
+		System.out.println("  inl: " + op.getLeft().getOutput().render());
+		System.out.println("  inr: " + op.getRight().getOutput().render());
+		System.out.println("  out: " + op.getOutput().render());
+	}
+
+	@Override
+	public void visit(BitmapScan op) {
+		System.out.println(op.toString());
+		System.out.println("  in:  " + op.getRelation().render());
+		System.out.println("  out: " + op.getOutput().render());
+	}
+
+	@Override
+	public void visit(Limit op) {
+		System.out.println(op.toString());
+		System.out.println("  in:  " + op.getInput().getOutput().render());
+		System.out.println("  out: " + op.getOutput().render());
+	}
+
+	@Override
+	public void visit(Sort op) {
+		System.out.println(op.toString());
+		System.out.println("  in:  " + op.getInput().getOutput().render());
+		System.out.println("  out: " + op.getOutput().render());
+	}
+
+	@Override
+	public void visit(SemiJoin op) {
+		System.out.println(op.toString());
+		System.out.println("  inl: " + op.getLeft().getOutput().render());
+		System.out.println("  inr: " + op.getRight().getOutput().render());
+		System.out.println("  out: " + op.getOutput().render());
+	}
+
+	@Override
+	public void visit(Aggregate op) {
+		System.out.println(op.toString());
+		System.out.println("  in:  " + op.getInput().getOutput().render());
+		System.out.println("  out: " + op.getOutput().render());
+	}
+
+	@Override
+	public void visit(Exchange op) {
+		System.out.println(op.toString());
+		System.out.println("  in:  " + op.getInput().getOutput().render());
+		System.out.println("  out: " + op.getOutput().render());
+	}
 }
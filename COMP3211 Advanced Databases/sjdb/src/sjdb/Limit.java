@@ -0,0 +1,42 @@
+package sjdb;
+
+/**
+ * This class represents a Limit operator, which passes on the first n
+ * tuples of its input and then stops reading it.
+ */
+public class Limit extends UnaryOperator {
+	private int count;
+
+	/**
+	 * Create a new limit operator.
+	 * @param input Child operator
+	 * @param count Largest number of tuples to be output
+	 */
+	public Limit(Operator input, int count) {
+		super(input);
+		this.count = count;
+	}
+
+	/**
+	 * Return the largest number of tuples output by this operator
+	 * @return tuple count
+	 */
+	public int getCount() {
+		return this.count;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.UnaryOperator#accept(sjdb.OperatorVisitor)
+	 */
+	public void accept(PlanVisitor visitor) {
+		super.accept(visitor);
+		visitor.visit(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "LIMIT [" + this.count + "] (" + getInput().toString() + ")";
+	}
+}
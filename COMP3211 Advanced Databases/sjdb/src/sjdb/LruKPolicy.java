@@ -0,0 +1,83 @@
+package sjdb;
+
+import java.util.function.IntPredicate;
+
+/**
+ * This class implements the LRU-K page replacement policy: the victim is
+ * the evictable frame whose K-th most recent access is furthest in the
+ * past. Frames with fewer than K accesses are evicted first, in LRU order,
+ * so that pages touched once by a scan do not displace hot pages.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+	private int k;
+	private long[][] history;
+	private int[] accesses;
+	private long clock;
+
+	/**
+	 * Create a new LRU-K policy.
+	 * @param k Number of accesses remembered per frame
+	 */
+	public LruKPolicy(int k) {
+		this.k = k;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.ReplacementPolicy#init(int)
+	 */
+	public void init(int frames) {
+		this.history = new long[frames][k];
+		this.accesses = new int[frames];
+		this.clock = 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.ReplacementPolicy#accessed(int)
+	 */
+	public void accessed(int frame) {
+		history[frame][accesses[frame] % k] = ++clock;
+		accesses[frame]++;
+	}
+
+	/**
+	 * Forget the history of a frame whose page has been evicted.
+	 * @param frame Frame index
+	 */
+	public void evicted(int frame) {
+		accesses[frame] = 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.ReplacementPolicy#victim(java.util.function.IntPredicate)
+	 */
+	public int victim(IntPredicate evictable) {
+		int victim = -1;
+		boolean victimFull = true;
+		long victimTime = Long.MAX_VALUE;
+
+		for (int frame = 0; frame < accesses.length; frame++) {
+			if (!evictable.test(frame)) {
+				continue;
+			}
+			int n = accesses[frame];
+			boolean full = n >= k;
+			// K-th most recent access, or the most recent if there are fewer than K
+			long time = n == 0 ? 0 : full ? history[frame][n % k] : history[frame][(n - 1) % k];
+
+			if (victim < 0 || (victimFull && !full) || (victimFull == full && time < victimTime)) {
+				victim = frame;
+				victimFull = full;
+				victimTime = time;
+			}
+		}
+
+		if (victim >= 0) {
+			evicted(victim);
+		}
+		return victim;
+	}
+
+	public String toString() {
+		return "LRU-" + k;
+	}
+}
@@ -0,0 +1,66 @@
+package sjdb;
+
+import java.util.List;
+
+/**
+ * This class represents a materialised view: a named relation holding the
+ * stored result of a query which selects, projects and joins other named
+ * relations. Its tuple count and value counts are those of the stored
+ * result, so that it is estimated like any other named relation, and its
+ * definition is kept so that queries over the relations it joins may be
+ * rewritten to read it instead.
+ */
+public class MaterialisedView extends NamedRelation {
+	/**
+	 * The query defining the view, in the format read by QueryParser
+	 */
+	private String definition;
+	/**
+	 * The named relations joined by the view
+	 */
+	private List<NamedRelation> relations;
+	/**
+	 * The predicates of the select operators of the view
+	 */
+	private List<Predicate> predicates;
+
+	/**
+	 * Create a new materialised view
+	 * @param name The name of the view
+	 * @param size The tuple count of its result
+	 * @param definition The query defining the view
+	 * @param relations The named relations joined by the view
+	 * @param predicates The predicates of the view
+	 */
+	public MaterialisedView(String name, int size, String definition, List<NamedRelation> relations,
+			List<Predicate> predicates) {
+		super(name, size);
+		this.definition = definition;
+		this.relations = relations;
+		this.predicates = predicates;
+	}
+
+	/**
+	 * Return the query defining the view
+	 * @return Query in the format read by QueryParser
+	 */
+	public String getDefinition() {
+		return this.definition;
+	}
+
+	/**
+	 * Return the named relations joined by the view
+	 * @return List of relations
+	 */
+	public List<NamedRelation> getRelations() {
+		return this.relations;
+	}
+
+	/**
+	 * Return the predicates of the select operators of the view
+	 * @return List of predicates
+	 */
+	public List<Predicate> getPredicates() {
+		return this.predicates;
+	}
+}
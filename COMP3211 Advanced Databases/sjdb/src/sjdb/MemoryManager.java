@@ -0,0 +1,287 @@
+package sjdb;
+
+import java.io.Closeable;
+import java.util.HashSet;
+
+/**
+ * This class governs the memory used by executing queries. The memory
+ * which may be used by all queries together is fixed; each query asks for
+ * a grant out of it before it starts, sized from the estimated output of
+ * the operators which hold tuples in memory (hash join builds, sorts and
+ * aggregations), and waits in turn while too little memory is free.
+ *
+ * A grant is divided into one budget for each such operator, in
+ * proportion to its estimated need. Operators reserve memory from their
+ * budget for each tuple they hold and release it when they drop their
+ * tuples; when a reservation fails, the operator spills its tuples to
+ * disk rather than exceed the budget. Memory is measured by an estimate of
+ * the heap used by tuples of strings.
+ */
+public class MemoryManager {
+	/**
+	 * Estimated heap used by one value of a tuple, for planning grants
+	 */
+	public static final int VALUE_BYTES = 56;
+
+	private long capacity;
+	private long maxGrant;
+	private long available;
+	private long nextTicket;
+	private long serving;
+	private HashSet<Long> abandoned = new HashSet<Long>();
+	private long used;
+	private long peak;
+	private long waits;
+	private long spills;
+
+	/**
+	 * Create a new memory manager which grants each query at most a
+	 * quarter of its capacity
+	 * @param capacity Number of bytes which may be used by all queries
+	 */
+	public MemoryManager(long capacity) {
+		this(capacity, capacity / 4);
+	}
+
+	/**
+	 * Create a new memory manager
+	 * @param capacity Number of bytes which may be used by all queries
+	 * @param maxGrant Largest number of bytes granted to a query
+	 */
+	public MemoryManager(long capacity, long maxGrant) {
+		this.capacity = capacity;
+		this.maxGrant = Math.max(1, Math.min(maxGrant, capacity));
+		this.available = capacity;
+	}
+
+	/**
+	 * Estimate the heap used by a tuple held in memory: the array, and
+	 * each string with its characters
+	 * @param tuple Tuple
+	 * @return bytes
+	 */
+	public static long sizeOf(String[] tuple) {
+		long bytes = 16 + 4L * tuple.length;
+		for (String value : tuple) {
+			bytes += 40 + 2L * value.length();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Ask for a grant, waiting until enough memory is free. Queries are
+	 * granted memory in the order in which they ask for it. A query is
+	 * granted as much of its request as is free, but not less than a
+	 * quarter of the largest grant.
+	 * @param requested Number of bytes the query estimates it needs
+	 * @return Grant
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized Grant acquire(long requested) throws InterruptedException {
+		long wanted = Math.max(0, Math.min(requested, maxGrant));
+		long minimum = Math.min(wanted, maxGrant / 4);
+		long ticket = nextTicket++;
+
+		try {
+			if (ticket != serving || available < minimum) {
+				waits++;
+			}
+			while (ticket != serving || available < minimum) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			// Let the queries behind this one go first
+			if (ticket == serving) {
+				advance();
+			} else {
+				abandoned.add(ticket);
+			}
+			throw e;
+		}
+
+		advance();
+		long bytes = Math.min(wanted, available);
+		available -= bytes;
+		return new Grant(bytes);
+	}
+
+	/**
+	 * Serve the next waiting query; called with the manager's lock held
+	 */
+	private void advance() {
+		serving++;
+		while (abandoned.remove(serving)) {
+			serving++;
+		}
+		notifyAll();
+	}
+
+	private synchronized void release(long bytes) {
+		available += bytes;
+		notifyAll();
+	}
+
+	private synchronized void use(long bytes) {
+		used += bytes;
+		peak = Math.max(peak, used);
+	}
+
+	private synchronized void spilled() {
+		spills++;
+	}
+
+	/**
+	 * Return the number of bytes which may be used by all queries
+	 * @return capacity
+	 */
+	public long getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * Return the number of bytes not granted to any query
+	 * @return free bytes
+	 */
+	public synchronized long getAvailable() {
+		return this.available;
+	}
+
+	/**
+	 * Return the largest number of bytes reserved by operators at once
+	 * @return peak reserved bytes
+	 */
+	public synchronized long getPeakUsed() {
+		return this.peak;
+	}
+
+	/**
+	 * Return the number of queries which had to wait for a grant
+	 * @return wait count
+	 */
+	public synchronized long getWaits() {
+		return this.waits;
+	}
+
+	/**
+	 * Return the number of operators which spilled to disk
+	 * @return spill count
+	 */
+	public synchronized long getSpills() {
+		return this.spills;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public synchronized String toString() {
+		return "capacity=" + capacity + " available=" + available + " peak=" + peak + " waits=" + waits
+				+ " spills=" + spills;
+	}
+
+	/**
+	 * The memory granted to one query, which is returned when the grant
+	 * is closed
+	 */
+	public class Grant implements Closeable {
+		private long bytes;
+		private long unassigned;
+		private boolean closed;
+
+		private Grant(long bytes) {
+			this.bytes = bytes;
+			this.unassigned = bytes;
+		}
+
+		/**
+		 * Return the number of bytes granted
+		 * @return bytes
+		 */
+		public long getBytes() {
+			return this.bytes;
+		}
+
+		/**
+		 * Assign part of the grant to an operator
+		 * @param share Fraction of the grant, from 0 to 1
+		 * @return Budget
+		 */
+		public synchronized Budget budget(double share) {
+			long n = Math.min(unassigned, (long) (bytes * Math.max(0, Math.min(1, share))));
+			unassigned -= n;
+			return new Budget(n);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		public synchronized void close() {
+			if (!closed) {
+				closed = true;
+				release(bytes);
+			}
+		}
+	}
+
+	/**
+	 * The memory assigned to one operator
+	 */
+	public class Budget {
+		private long limit;
+		private long reserved;
+		private boolean spilled;
+
+		private Budget(long limit) {
+			this.limit = limit;
+		}
+
+		/**
+		 * Return the number of bytes assigned to the operator
+		 * @return bytes
+		 */
+		public long getLimit() {
+			return this.limit;
+		}
+
+		/**
+		 * Return the number of bytes reserved
+		 * @return bytes
+		 */
+		public synchronized long getReserved() {
+			return this.reserved;
+		}
+
+		/**
+		 * Reserve memory for a tuple about to be held
+		 * @param n Number of bytes
+		 * @return false if the budget would be exceeded, in which case nothing is reserved
+		 */
+		public synchronized boolean reserve(long n) {
+			if (reserved + n > limit) {
+				return false;
+			}
+			reserved += n;
+			use(n);
+			return true;
+		}
+
+		/**
+		 * Release memory for tuples no longer held
+		 * @param n Number of bytes
+		 */
+		public synchronized void release(long n) {
+			n = Math.min(n, reserved);
+			reserved -= n;
+			use(-n);
+		}
+
+		/**
+		 * Record that the operator spilled its tuples to disk
+		 */
+		public synchronized void spill() {
+			if (!spilled) {
+				spilled = true;
+				spilled();
+			}
+		}
+	}
+}
@@ -3,15 +3,75 @@
  */
 package sjdb;
 
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
 /**
  * This class represents a named relation which is fed into a query plan
  * @author nmg
  */
-public class NamedRelation extends Relation {
+public class NamedRelation extends Relation implements Snapshot.Versioned {
+	// Precision of the sketches of each partition, which are many and need less accuracy
+	private static final int PARTITION_PRECISION = 10;
+
 	/**
 	 * The name of the named relation
 	 */
 	private String name;
+	/**
+	 * The stored tuples of the named relation, if any
+	 */
+	private Storage storage;
+	/**
+	 * How the tuples of the named relation are spread across the workers
+	 * of a cluster, if they are
+	 */
+	private Partitioning partitioning;
+	/**
+	 * The B+tree indexes declared on attributes of the named relation
+	 */
+	private HashMap<Attribute, BPlusTree> indexes;
+	/**
+	 * The bitmap indexes declared on attributes of the named relation
+	 */
+	private HashMap<Attribute, BitmapIndex> bitmapIndexes;
+	/**
+	 * Sketches of the values of each attribute, from which value counts
+	 * are estimated again as tuples are added
+	 */
+	private HyperLogLog[] sketches;
+	/**
+	 * Sketches of the values of each attribute in each partition, and the
+	 * tuple count of each partition, kept once the relation is partitioned
+	 * on an attribute
+	 */
+	private HyperLogLog[][] partitionSketches;
+	private int[] partitionCounts;
+	/**
+	 * The statistics of the named relation as of each write which changed
+	 * them, newest first, back to the newest seen by every open snapshot
+	 */
+	private volatile Statistics statistics;
+	
+	/**
+	 * The tuple count and value counts of a named relation, and of each of
+	 * its partitions if they are kept, as of a version
+	 */
+	private static class Statistics {
+		long version;
+		Relation relation;
+		Relation[] partitions;
+		volatile Statistics previous;
+		
+		Statistics(long version, Relation relation, Relation[] partitions, Statistics previous) {
+			this.version = version;
+			this.relation = relation;
+			this.partitions = partitions;
+			this.previous = previous;
+		}
+	}
 	
 	/**
 	 * Create a new named relation with a given name and tuple count
@@ -21,6 +81,328 @@ public class NamedRelation extends Relation {
 	public NamedRelation(String name, int size) {
 		super(size);
 		this.name = name;
+		this.indexes = new HashMap<Attribute, BPlusTree>();
+		this.bitmapIndexes = new HashMap<Attribute, BitmapIndex>();
+	}
+
+	/**
+	 * Return the storage holding the tuples of this relation
+	 * @return Storage, or null if the relation has no storage
+	 */
+	public Storage getStorage() {
+		return this.storage;
+	}
+
+	/**
+	 * Set the storage holding the tuples of this relation
+	 * @param storage Column store or heap file
+	 */
+	public void setStorage(Storage storage) {
+		this.storage = storage;
+	}
+
+	/**
+	 * Return how the tuples of this relation are spread across the workers
+	 * of a cluster
+	 * @return Partitioning, or null if the relation is not partitioned
+	 */
+	public Partitioning getPartitioning() {
+		return this.partitioning;
+	}
+
+	/**
+	 * Set how the tuples of this relation are spread across the workers
+	 * of a cluster. Statistics of each partition are kept from the next
+	 * addition of tuples, which first sketches the tuples already stored.
+	 * @param partitioning Partitioning
+	 */
+	public synchronized void setPartitioning(Partitioning partitioning) {
+		this.partitioning = partitioning;
+		this.partitionSketches = null;
+		this.partitionCounts = null;
+	}
+
+	/**
+	 * Add a B+tree index on an attribute of this relation
+	 * @param attribute The indexed attribute
+	 * @param index The index
+	 */
+	public void addIndex(Attribute attribute, BPlusTree index) {
+		this.indexes.put(attribute, index);
+	}
+
+	/**
+	 * Return the B+tree index on an attribute of this relation
+	 * @param attribute The indexed attribute
+	 * @return The index, or null if the attribute is not indexed
+	 */
+	public BPlusTree getIndex(Attribute attribute) {
+		return this.indexes.get(attribute);
+	}
+
+	/**
+	 * Return the number of index nodes read by a lookup on an attribute:
+	 * the height of the index if it has been built, or else the height
+	 * estimated from the tuple count of this relation
+	 * @param attribute The indexed attribute
+	 * @return Index height
+	 */
+	public int getIndexHeight(Attribute attribute) {
+		BPlusTree index = this.indexes.get(attribute);
+		return index.size() > 0 ? index.getHeight() : index.estimateHeight(getTupleCount());
+	}
+
+	/**
+	 * Add a bitmap index on an attribute of this relation
+	 * @param attribute The indexed attribute
+	 * @param index The index
+	 */
+	public void addBitmapIndex(Attribute attribute, BitmapIndex index) {
+		this.bitmapIndexes.put(attribute, index);
+	}
+
+	/**
+	 * Return the bitmap index on an attribute of this relation
+	 * @param attribute The indexed attribute
+	 * @return The index, or null if the attribute has no bitmap index
+	 */
+	public BitmapIndex getBitmapIndex(Attribute attribute) {
+		return this.bitmapIndexes.get(attribute);
+	}
+
+	/**
+	 * Set the sketches of the values of each attribute of this relation
+	 * @param sketches One sketch per attribute, in the order of the attributes
+	 */
+	void setSketches(HyperLogLog[] sketches) {
+		this.sketches = sketches;
+	}
+
+	/**
+	 * Add tuples which have been stored to the statistics of this relation.
+	 * The tuple count grows by their number, and the value count of each
+	 * attribute is estimated again from a sketch of its values. Sketches
+	 * are kept once built, from the stored tuples when tuples are first
+	 * added, so each later addition only sketches the tuples it adds. If
+	 * the relation is partitioned on an attribute, the statistics of each
+	 * partition are kept in the same way.
+	 * 
+	 * The new statistics are tagged with the version of the write which
+	 * stored the tuples, and snapshots which do not see it go on reading
+	 * the statistics as they were.
+	 * @param tuples Tuples, with one value per attribute in the order of the storage
+	 * @param version Version of the write, or 0 if every snapshot is to see the tuples
+	 * @throws IOException if the stored tuples cannot be read
+	 */
+	public synchronized void addStatistics(List<String[]> tuples, long version) throws IOException {
+		List<Attribute> attributes = getAttributes();
+		int[] columns = new int[attributes.size()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = storage == null ? i : storage.getAttributes().indexOf(attributes.get(i));
+		}
+
+		// Sketches are not changed by values which they have already seen
+		if (sketches == null) {
+			sketches = new HyperLogLog[columns.length];
+			for (int i = 0; i < sketches.length; i++) {
+				sketches[i] = new HyperLogLog();
+			}
+			TupleCursor cursor = storage == null ? null : storage.cursor();
+			while (cursor != null && cursor.next()) {
+				for (int i = 0; i < sketches.length; i++) {
+					sketches[i].add(cursor.getString(columns[i]));
+				}
+			}
+		}
+		for (String[] tuple : tuples) {
+			for (int i = 0; i < sketches.length; i++) {
+				sketches[i].add(tuple[columns[i]]);
+			}
+		}
+
+		Relation[] partitions = addPartitionStatistics(tuples, columns);
+
+		// Publish the new statistics before changing those of this relation,
+		// which are the latest, keeping those they replace for older snapshots
+		if (statistics == null) {
+			statistics = new Statistics(0, copy(), null, null);
+		}
+		int size = getTupleCount() + tuples.size();
+		statistics = new Statistics(version, estimate(size, sketches), partitions, statistics);
+		Relation next = statistics.relation;
+		
+		setTupleCount(size);
+		for (Attribute a : next.getAttributes()) {
+			setAttribute(a);
+		}
+		if (version > 0) {
+			Snapshot.retain(this);
+		}
+	}
+	
+	/**
+	 * Add tuples to the sketches and tuple count of each partition, if the
+	 * relation is partitioned on an attribute. When the partitions are
+	 * first sketched, the stored tuples, which include those being added,
+	 * are sketched and counted instead.
+	 * @return the statistics of each partition, or null if none are kept
+	 */
+	private Relation[] addPartitionStatistics(List<String[]> tuples, int[] columns) throws IOException {
+		int column = partitioning == null ? -1 : getAttributes().indexOf(partitioning.getAttribute());
+		if (column < 0) {
+			return null;
+		}
+		
+		String[] values = new String[columns.length];
+		boolean counted = false;
+		if (partitionSketches == null) {
+			partitionSketches = new HyperLogLog[partitioning.getCount()][columns.length];
+			partitionCounts = new int[partitioning.getCount()];
+			for (HyperLogLog[] partition : partitionSketches) {
+				for (int i = 0; i < partition.length; i++) {
+					partition[i] = new HyperLogLog(PARTITION_PRECISION);
+				}
+			}
+			TupleCursor cursor = storage == null ? null : storage.cursor();
+			while (cursor != null && cursor.next()) {
+				for (int i = 0; i < columns.length; i++) {
+					values[i] = cursor.getString(columns[i]);
+				}
+				addToPartition(values, column, true);
+			}
+			counted = storage != null;
+		}
+		for (String[] tuple : tuples) {
+			for (int i = 0; i < columns.length; i++) {
+				values[i] = tuple[columns[i]];
+			}
+			addToPartition(values, column, !counted);
+		}
+		
+		Relation[] partitions = new Relation[partitionSketches.length];
+		for (int p = 0; p < partitions.length; p++) {
+			partitions[p] = estimate(partitionCounts[p], partitionSketches[p]);
+		}
+		return partitions;
+	}
+	
+	private void addToPartition(String[] values, int column, boolean count) {
+		int p = partitioning.partition(values[column]);
+		for (int i = 0; i < values.length; i++) {
+			partitionSketches[p][i].add(values[i]);
+		}
+		if (count) {
+			partitionCounts[p]++;
+		}
+	}
+	
+	/**
+	 * Estimate the value counts of tuples from sketches of their values
+	 */
+	private Relation estimate(int size, HyperLogLog[] sketches) {
+		List<Attribute> attributes = getAttributes();
+		Relation estimated = new Relation(size);
+		for (int i = 0; i < sketches.length; i++) {
+			long values = Math.min(Math.max(sketches[i].estimate(), size == 0 ? 0 : 1), size);
+			estimated.addAttribute(new Attribute(attributes.get(i).getName(), (int) values));
+		}
+		return estimated;
+	}
+	
+	private Relation copy() {
+		Relation copy = new Relation(getTupleCount());
+		for (Attribute a : getAttributes()) {
+			copy.addAttribute(new Attribute(a));
+		}
+		return copy;
+	}
+	
+	/**
+	 * Return the tuple count and value counts of this relation as seen by
+	 * a snapshot, which are consistent with each other and with those of
+	 * the other relations it reads
+	 * @param snapshot Snapshot, or null for the latest statistics
+	 * @return Relation holding the statistics
+	 */
+	public Relation getStatistics(Snapshot snapshot) {
+		Statistics s = find(snapshot);
+		return s == null ? this : s.relation;
+	}
+	
+	/**
+	 * Return the tuple count and value counts of some partitions of this
+	 * relation as seen by a snapshot. The tuple counts of the partitions
+	 * are added, and so are their value counts, up to those of the whole
+	 * relation. If statistics have not been kept for each partition, those
+	 * of the whole relation are scaled by the fraction of partitions read,
+	 * which are assumed to hold equal numbers of tuples.
+	 * @param snapshot Snapshot, or null for the latest statistics
+	 * @param partitions Partitions read
+	 * @return Relation holding the statistics
+	 */
+	public Relation getStatistics(Snapshot snapshot, BitSet partitions) {
+		Statistics s = find(snapshot);
+		Relation whole = s == null ? this : s.relation;
+		List<Attribute> attributes = whole.getAttributes();
+		Relation[] kept = s == null ? null : s.partitions;
+		
+		long tuples = 0;
+		long[] values = new long[attributes.size()];
+		if (kept != null) {
+			for (int p = partitions.nextSetBit(0); p >= 0 && p < kept.length; p = partitions.nextSetBit(p + 1)) {
+				tuples += kept[p].getTupleCount();
+				for (int i = 0; i < values.length; i++) {
+					values[i] += kept[p].getAttributes().get(i).getValueCount();
+				}
+			}
+		} else {
+			int count = partitioning == null ? 1 : partitioning.getCount();
+			double fraction = Math.min(1.0, (double) partitions.cardinality() / count);
+			tuples = (long) Math.ceil(whole.getTupleCount() * fraction);
+			for (int i = 0; i < values.length; i++) {
+				Attribute a = attributes.get(i);
+				values[i] = partitioning != null && partitioning.isOn(a)
+						? (long) Math.ceil(a.getValueCount() * fraction) : a.getValueCount();
+			}
+		}
+		
+		Relation out = new Relation((int) tuples);
+		for (int i = 0; i < values.length; i++) {
+			Attribute a = attributes.get(i);
+			out.addAttribute(new Attribute(a.getName(), (int) Math.min(Math.min(values[i], a.getValueCount()), tuples)));
+		}
+		return out;
+	}
+	
+	private Statistics find(Snapshot snapshot) {
+		Statistics s = statistics;
+		while (s != null && snapshot != null && !snapshot.sees(s.version) && s.previous != null) {
+			s = s.previous;
+		}
+		return s;
+	}
+	
+	/* (non-Javadoc)
+	 * @see sjdb.Snapshot.Versioned#collect(long)
+	 */
+	public boolean collect(long oldest) {
+		Statistics s = statistics;
+		while (s != null && s.version > oldest) {
+			s = s.previous;
+		}
+		if (s != null) {
+			s.previous = null;
+		}
+		return statistics != null && statistics.previous != null;
+	}
+
+	/**
+	 * Return the attribute holding the row ids of this relation, which are
+	 * carried through a plan in place of columns that are fetched late
+	 * @return Row id attribute
+	 */
+	public Attribute getRowIdAttribute() {
+		return new Attribute(name + ".rowid", getTupleCount());
 	}
 
 	/* (non-Javadoc)
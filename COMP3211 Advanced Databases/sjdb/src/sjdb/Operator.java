@@ -5,7 +5,10 @@ package sjdb;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.Set;
 
 /**
  * This abstract class represents an operator in a query, and
@@ -68,9 +71,44 @@ public abstract class Operator {
 	 * @param visitor Visitor to be accepted
 	 */
 	public void accept(PlanVisitor visitor) {
+		acceptInputs(visitor);
+	}
+	
+	/**
+	 * Accept a visitor to each input of this operator which the visitor
+	 * enters.
+	 * @param visitor Visitor to be accepted
+	 */
+	protected void acceptInputs(PlanVisitor visitor) {
 		Iterator<Operator> iter = this.inputs.iterator();
 		while (iter.hasNext()){
-			iter.next().accept(visitor);
+			Operator input = iter.next();
+			if (visitor.enter(input)) {
+				input.accept(visitor);
+				visitor.leave(input);
+			}
+		}
+	}
+	
+	/**
+	 * Return the operators of a plan which are inputs of more than one
+	 * operator.
+	 * @param plan Plan
+	 * @return Shared operators, compared by identity
+	 */
+	public static Set<Operator> findShared(Operator plan) {
+		Set<Operator> seen = Collections.newSetFromMap(new IdentityHashMap<Operator, Boolean>());
+		Set<Operator> shared = Collections.newSetFromMap(new IdentityHashMap<Operator, Boolean>());
+		findShared(plan, seen, shared);
+		return shared;
+	}
+	
+	private static void findShared(Operator op, Set<Operator> seen, Set<Operator> shared) {
+		for (Operator input : op.inputs) {
+			if (!seen.add(input))
+				shared.add(input);
+			else
+				findShared(input, seen, shared);
 		}
 	}
 }
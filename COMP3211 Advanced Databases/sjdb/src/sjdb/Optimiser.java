@@ -11,10 +11,31 @@ import java.util.stream.Collectors;
 public class Optimiser {
     private Catalogue catalogue;
     private Estimator estimator;
+    // Snapshot whose statistics are read, or null for the latest
+    private Snapshot snapshot;
     private int totalCost;
     private ArrayList<Scan> allScans = new ArrayList<>();
     private ArrayList<Attribute> allAttributes = new ArrayList<>();
     private ArrayList<Predicate> allPredicates = new ArrayList<>();
+    private boolean lateMaterialisation;
+    private boolean verbose = true;
+    private Set<Operator> costed = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Set<Operator> shared = Collections.emptySet();
+    private Set<Operator> read = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Number of rows needed from the plan being optimised, or -1 if all rows are needed
+    private int rowsNeeded = -1;
+    // Number of workers across which the plan being distributed runs, or 0 until a partitioned relation is found
+    private int workers;
+    // Relative cost of fetching an attribute value by row id rather than carrying it
+    private static final int FETCH_COST = 2;
+    // Relative cost of reading a tuple by row id rather than sequentially
+    private static final int RANDOM_READ_COST = 4;
+    // Attributes with fewer distinct values than this are answered by bitmap indexes
+    private static final int BITMAP_THRESHOLD = 64;
+    // Number of row ids covered by one word of a bitmap
+    private static final int BITMAP_WORD = 64;
+    // Relative cost of sending a tuple between processes rather than reading it
+    private static final int NETWORK_COST = 4;
 
     public Optimiser(Catalogue cat) {
         catalogue = cat;
@@ -24,25 +45,224 @@ public class Optimiser {
 
     /**
      * Optimises an operator plan to minimise its total cost:
+     * Removes any limit, sort, and aggregate from the top of the plan
+     * Projects the attributes they need from the rest of the plan
+     * Optimises the rest of the plan, preferring plans which stop early if only the first rows are needed
+     * Puts the aggregate back on top, then the sort, as a top-N sort if the plan has a limit, or otherwise the limit
+     * Restores the original projection above the sort or aggregate
+     * @param plan the original plan
+     * @return the optimised plan
+     */
+    public Operator optimise(Operator plan) {
+        Operator body = plan;
+        int limit = -1;
+        Sort sort = null;
+        Aggregate aggregate = null;
+        List<Attribute> projected = null;
+
+        // Remove the limit, sort, and aggregate
+        if (body instanceof Limit) {
+            limit = ((Limit) body).getCount();
+            body = ((Limit) body).getInput();
+        }
+        if (body instanceof Project && (((Project) body).getInput() instanceof Sort
+                || ((Project) body).getInput() instanceof Aggregate)) {
+            projected = ((Project) body).getAttributes();
+            body = ((Project) body).getInput();
+        }
+        if (body instanceof Sort) {
+            sort = (Sort) body;
+            body = sort.getInput();
+        }
+        if (body instanceof Aggregate) {
+            aggregate = (Aggregate) body;
+            body = aggregate.getInput();
+        }
+
+        // Carry the attributes needed by the aggregate, or the sort and projection, up to them
+        ArrayList<Attribute> needed = new ArrayList<>();
+        if (aggregate != null)
+            needed.addAll(aggregate.getInputAttributes());
+        else if (projected != null) {
+            needed.addAll(projected);
+            for (Attribute attribute : sort.getAttributes()) {
+                if (!needed.contains(attribute))
+                    needed.add(attribute);
+            }
+        }
+        if (!needed.isEmpty()) {
+            body = new Project(body, needed);
+            body.accept(estimator);
+        }
+
+        // A sort or aggregate reads all of its input, so only a limit without them stops early
+        rowsNeeded = sort == null && aggregate == null ? limit : -1;
+        Operator optimised = chooseMaterialisation(body);
+        rowsNeeded = -1;
+
+        // Put the aggregate, sort, projection and limit back
+        if (aggregate != null)
+            optimised = new Aggregate(optimised, aggregate.getGroups(), aggregate.getAggregations());
+        if (sort != null)
+            optimised = new Sort(optimised, sort.getAttributes(), sort.getDescending(), limit);
+        optimised.accept(estimator);
+        if (projected != null && !optimised.getOutput().getAttributes().equals(projected))
+            optimised = new Project(optimised, projected);
+        if (sort == null && limit >= 0)
+            optimised = new Limit(optimised, limit);
+        optimised.accept(estimator);
+
+        if (verbose) {
+            totalCost = 0; costed.clear(); System.out.println("\nOLD PLAN " + plan.toString() + "\nOLD COST " + getCost(plan));
+            totalCost = 0; costed.clear(); System.out.println("\nNEW PLAN " + optimised.toString() + "\nNEW COST " + getCost(optimised));
+        }
+        return optimised;
+    }
+
+    /**
+     * Optimises a plan which is to be executed rather than costed:
+     * Optimises the plan as optimise() does, which leaves out a final projection over a single relation
+     * Restores the projection of the original plan below any limit if the attributes are dropped or reordered
+     * @param plan the original plan
+     * @return the optimised plan, which outputs the attributes selected by the original plan in order
+     */
+    public Operator optimiseForExecution(Operator plan) {
+        Operator optimised = optimise(plan);
+        Operator top = plan instanceof Limit ? ((Limit) plan).getInput() : plan;
+        if (!(top instanceof Project) || optimised.getOutput().getAttributes().equals(((Project) top).getAttributes()))
+            return optimised;
+
+        List<Attribute> attributes = ((Project) top).getAttributes();
+        if (optimised instanceof Limit)
+            optimised = new Limit(new Project(((Limit) optimised).getInput(), attributes), ((Limit) optimised).getCount());
+        else
+            optimised = new Project(optimised, attributes);
+        optimised.accept(estimator);
+        return optimised;
+    }
+
+    /**
+     * Chooses between early and late materialisation:
+     * Builds an optimised plan which materialises attributes early
+     * Builds an optimised plan which carries row ids and fetches attributes late
+     * Returns the plan which moves the fewest attribute values
+     * @param plan the original plan, without a limit or sort
+     * @return the optimised plan
+     */
+    public Operator chooseMaterialisation(Operator plan) {
+        Operator optimised = optimise(plan, false);
+
+        // Late materialisation only applies when the plan projects attributes
+        if (plan instanceof Project) {
+            Operator late = optimise(plan, true);
+            if (getWidthCost(late) < getWidthCost(optimised))
+                optimised = late;
+        }
+
+        return optimised;
+    }
+
+    /**
+     * Sets whether optimise() prints the original and optimised plans with their costs
+     * @param verbose whether plans are printed
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Sets the snapshot whose statistics are read, so that those of every relation in the plan are consistent
+     * @param snapshot the snapshot, or null for the latest statistics
+     */
+    public void setSnapshot(Snapshot snapshot) {
+        this.snapshot = snapshot;
+        this.estimator = new Estimator(snapshot);
+    }
+
+    /**
+     * Returns the statistics of the relation of a scan as seen by the snapshot, over the partitions it reads
+     * @param scan the scan
+     * @return the relation holding the tuple count and value counts
+     */
+    private Relation statistics(Scan scan) {
+        NamedRelation relation = (NamedRelation) scan.getRelation();
+        return scan.getPartitions() == null ? relation.getStatistics(snapshot) : relation.getStatistics(snapshot, scan.getPartitions());
+    }
+
+    /**
+     * Optimises an operator plan using early or late materialisation:
      * Finds all attributes, predicates, and scans
+     * Prunes the partitions read by scans of partitioned relations
      * Pushes down select and project operators
      * Orders product and join operators
+     * Orders them again over inputs reduced by semi-joins if the query is acyclic
+     * Keeps the reduced plan if it is cheaper, costing the reducers with the joins and their Bloom filters
+     * Replaces joins with index joins where the inner relation is indexed
+     * Pushes Bloom filters from joins down to probe-side scans
+     * Adds a fetch operator if attributes are materialised late
      * Returns the optimised plan with the lowest cost
      * @param plan the original plan
+     * @param late whether attributes are materialised late
      * @return the optimised plan
      */
-    public Operator optimise(Operator plan) {
+    public Operator optimise(Operator plan, boolean late) {
+        lateMaterialisation = late;
+        allScans.clear();
+        allAttributes.clear();
+        allPredicates.clear();
+
         // Find all attributes, predicates, and scans
         // Push down select and project operators
         // Order product and join operators
         findAll(plan);
+        prunePartitions();
         ArrayList<Operator> selectsProjects = pushSelectsProjects(plan);
         Operator productsJoins = orderProductsJoins(selectsProjects, plan);
-        totalCost = 0; System.out.println("\nOLD PLAN " + plan.toString() + "\nOLD COST " + getCost(plan));
-        totalCost = 0; System.out.println("\nNEW PLAN " + productsJoins.toString() + "\nNEW COST " + getCost(productsJoins));
+
+        // Remove dangling tuples before joining, if the reducers cost less than they save
+        ArrayList<Operator> reduced = buildSemiJoins(selectsProjects);
+        if (reduced != null) {
+            Operator semiJoined = orderProductsJoins(reduced, plan);
+            if (getFilteredCost(semiJoined) < getFilteredCost(productsJoins))
+                productsJoins = semiJoined;
+        }
+
+        productsJoins = buildIndexJoins(productsJoins);
+        productsJoins = pushBloomFilters(productsJoins);
+        if (late)
+            productsJoins = buildFetch(productsJoins, plan);
         return productsJoins;
     }
 
+    /**
+     * Prunes the partitions read by each scan of a partitioned relation:
+     * Iterates through all attr=value predicates on the partitioning attribute of the scanned relation
+     * Keeps only the partition which holds the value of each, so that contradictory predicates keep none
+     * Leaves scans of relations which are not partitioned on an attribute reading every partition
+     */
+    public void prunePartitions() {
+        for (Scan scan : allScans) {
+            Partitioning partitioning = ((NamedRelation) scan.getRelation()).getPartitioning();
+            if (partitioning == null || partitioning.isReplicated())
+                continue;
+            BitSet partitions = null;
+            for (Predicate predicate : allPredicates) {
+                if (predicate.equalsValue() && !predicate.isParameter() && partitioning.isOn(predicate.getLeftAttribute())) {
+                    if (partitions == null) {
+                        partitions = new BitSet(partitioning.getCount());
+                        partitions.set(0, partitioning.getCount());
+                    }
+                    int partition = partitioning.partition(predicate.getRightValue());
+                    boolean kept = partitions.get(partition);
+                    partitions.clear();
+                    partitions.set(partition, kept);
+                }
+            }
+            scan.setPartitions(partitions);
+            scan.accept(estimator);
+        }
+    }
+
     /**
      * Pushes down select and project operators:
      * Iterates through all scan operators
@@ -57,6 +277,9 @@ public class Optimiser {
 
         // Build select and project operators
         for (Scan scan : allScans) {
+            // Emit row ids so that attributes can be fetched late
+            if (lateMaterialisation)
+                scan.setRowIds(true);
             Operator selects = buildSelects(scan);
             Operator projects = buildProjects(selects, findAttributes(allPredicates, plan));
             if (!selectsProjects.contains(projects))
@@ -68,9 +291,11 @@ public class Optimiser {
 
     /**
      * Builds new select operators:
+     * Replaces the scan with a bitmap scan if low-cardinality predicates are cheaper to combine as bitmaps
+     * Otherwise replaces the scan with an index scan if an indexed predicate is cheaper to look up
      * Iterates through all predicates
      * Finds predicates containing matching attributes
-     * Builds select operators from each predicate
+     * Builds select operators from each remaining predicate
      * Removes used predicates
      * Returns the new plan with select operators
      * @param plan the current plan
@@ -80,9 +305,33 @@ public class Optimiser {
         ArrayList<Attribute> attributes = (ArrayList) plan.getOutput().getAttributes();
         ArrayList<Predicate> predicates = new ArrayList<>();
 
+        // AND the bitmaps of low-cardinality predicates instead of scanning
+        ArrayList<Predicate> bitmaps = plan instanceof Scan ? chooseBitmaps((Scan) plan) : new ArrayList<>();
+        if (!bitmaps.isEmpty()) {
+            BitmapScan scan = new BitmapScan((NamedRelation) ((Scan) plan).getRelation(), bitmaps);
+            scan.setRowIds(((Scan) plan).emitsRowIds());
+            scan.setPartitions(((Scan) plan).getPartitions());
+            scan.accept(estimator);
+            plan = scan;
+            predicates.addAll(bitmaps);
+        }
+
+        // Look up the most selective indexed predicate instead of scanning
+        Predicate indexed = plan instanceof Scan && bitmaps.isEmpty() ? chooseIndex((Scan) plan) : null;
+        if (indexed != null) {
+            IndexScan scan = new IndexScan((NamedRelation) ((Scan) plan).getRelation(), indexed);
+            scan.setRowIds(((Scan) plan).emitsRowIds());
+            scan.setPartitions(((Scan) plan).getPartitions());
+            scan.accept(estimator);
+            plan = scan;
+            predicates.add(indexed);
+        }
+
         // Find all predicates where attr=attr or attr=value
         // Create a new select operator
         for (Predicate predicate : allPredicates) {
+            if (predicate == indexed || bitmaps.contains(predicate))
+                continue;
             if ((predicate.equalsValue() && (attributes.contains(predicate.getLeftAttribute())))
                     | (!predicate.equalsValue() && attributes.contains(predicate.getLeftAttribute())
                     && attributes.contains(predicate.getRightAttribute()))) {
@@ -98,10 +347,84 @@ public class Optimiser {
         return plan;
     }
 
+    /**
+     * Chooses bitmap indexes to answer predicates on a scan:
+     * Iterates through all attr=value predicates on attributes of the scanned relation
+     * with bitmap indexes and fewer than BITMAP_THRESHOLD distinct values
+     * Compares the cost of ANDing their bitmaps and reading T(R)/V(R,A)/V(R,B)... tuples at random
+     * against the cost of scanning T(R) tuples
+     * Returns the predicates if the bitmaps are cheaper
+     * @param scan the scan of the relation
+     * @return the predicates to answer with bitmaps, or an empty list if scanning is cheaper
+     */
+    public ArrayList<Predicate> chooseBitmaps(Scan scan) {
+        NamedRelation relation = (NamedRelation) scan.getRelation();
+        Relation statistics = statistics(scan);
+        ArrayList<Predicate> bitmaps = new ArrayList<>();
+        int tuples = statistics.getTupleCount();
+        double matches = tuples;
+
+        // Find attr=value predicates on low-cardinality attributes with bitmap indexes
+        for (Predicate predicate : allPredicates) {
+            Attribute attribute = predicate.getLeftAttribute();
+            if (!predicate.equalsValue() || !relation.getAttributes().contains(attribute)
+                    || relation.getBitmapIndex(attribute) == null)
+                continue;
+            int values = statistics.getAttribute(attribute).getValueCount();
+            if (values < BITMAP_THRESHOLD && !bitmaps.contains(predicate)) {
+                bitmaps.add(predicate);
+                matches /= Math.max(values, 1);
+            }
+        }
+
+        // Compare the cost of combining bitmaps with a scan
+        int words = bitmaps.size() * (int) Math.ceil((double) tuples / BITMAP_WORD);
+        if (bitmaps.isEmpty() || words + RANDOM_READ_COST * Math.ceil(matches) >= tuples)
+            bitmaps.clear();
+
+        return bitmaps;
+    }
+
+    /**
+     * Chooses an index to answer a predicate on a scan:
+     * Iterates through all attr=value predicates on indexed attributes of the scanned relation
+     * Compares the cost of descending the index and reading T(R)/V(R,A) tuples at random
+     * against the cost of scanning T(R) tuples and selecting T(R)/V(R,A) tuples
+     * Returns the cheaper predicate with the most distinct values
+     * @param scan the scan of the relation
+     * @return the predicate to look up in an index, or null if scanning is cheaper
+     */
+    public Predicate chooseIndex(Scan scan) {
+        NamedRelation relation = (NamedRelation) scan.getRelation();
+        Relation statistics = statistics(scan);
+        Predicate best = null;
+        int bestValues = 0;
+
+        // Find attr=value predicates on indexed attributes
+        for (Predicate predicate : allPredicates) {
+            Attribute attribute = predicate.getLeftAttribute();
+            if (!predicate.equalsValue() || !relation.getAttributes().contains(attribute)
+                    || relation.getIndex(attribute) == null)
+                continue;
+
+            // Compare the cost of an index lookup with a scan
+            int tuples = statistics.getTupleCount();
+            int values = Math.max(statistics.getAttribute(attribute).getValueCount(), 1);
+            int matches = (int) Math.ceil((double) tuples / (double) values);
+            int indexCost = relation.getIndexHeight(attribute) + RANDOM_READ_COST * matches;
+            if (indexCost < tuples + matches && values > bestValues) {
+                best = predicate;
+                bestValues = values;
+            }
+        }
+
+        return best;
+    }
+
     /**
      * Builds new project operators:
      * Finds attributes in the plan
-     * Creates a new project operator with these attributes
+     * Creates a new project operator with these attributes under late materialisation
      * Returns the new plan with project operators
      * @param plan the current plan
      * @param attributes attributes found in the plan
@@ -112,6 +435,13 @@ public class Optimiser {
 
         // Find all attributes in the plan operator
         attributes.retainAll(plan.getOutput().getAttributes());
+
+        // Under late materialisation, only emit attributes needed by predicates and row ids
+        if (lateMaterialisation && !attributes.isEmpty() && attributes.size() < plan.getOutput().getAttributes().size()) {
+            Project project = new Project(plan, attributes);
+            project.accept(estimator);
+            return project;
+        }
         return plan;
 
         // Create a project operator
@@ -128,7 +458,7 @@ public class Optimiser {
      * Orders product and join operators:
      * Generates permutations of predicates
      * Iterates through all permutations
-     * Creates a new plan and calculates the cost for each permutation
+     * Creates a new plan and calculates the cost for each permutation, with the Bloom filters its joins would push down
      * Returns the plan with the lowest cost
      * @param selectsProjects the new select and project operators
      * @param plan the current plan
@@ -150,10 +480,12 @@ public class Optimiser {
 
         // Find the permutation with the lowest cost
         for (ArrayList<Predicate> permutation : permutations) {
+            // The empty permutation leaves out the predicates, which is only cheaper under a limit
+            if (permutation.size() < allPredicates.size())
+                continue;
             ArrayList<Operator> operators = new ArrayList<>(selectsProjects);
             Operator operator = buildProductJoin(operators, permutation, plan);
-            totalCost = 0;
-            int cost = getCost(operator);
+            int cost = getFilteredCost(operator);
             if (cost < bestCost) {
                 productsJoins = operator;
                 bestCost = cost;
@@ -163,6 +495,240 @@ public class Optimiser {
         return productsJoins;
     }
 
+    /**
+     * Calculates the cost of a candidate plan:
+     * Uses the cost of producing only the rows needed if the plan has a limit
+     * Otherwise uses the total cost
+     * @param plan the candidate plan
+     * @return the cost of the plan
+     */
+    public int getPlanCost(Operator plan) {
+        totalCost = 0;
+        costed.clear();
+        return rowsNeeded < 0 ? getCost(plan) : getLimitedCost(plan, rowsNeeded);
+    }
+
+    /**
+     * Calculates the cost of a candidate plan with the Bloom filters its joins would push down:
+     * Adds the filters to the scans below each join
+     * Calculates the cost of the plan over the reduced probe cardinalities
+     * Removes the filters again, since the scans are shared with the other candidates
+     * @param plan the candidate plan
+     * @return the cost of the plan
+     */
+    public int getFilteredCost(Operator plan) {
+        // Note the filters already on each scan
+        ArrayList<Scan> scans = new ArrayList<>();
+        findScans(plan, scans);
+        int[] filters = new int[scans.size()];
+        for (int i = 0; i < scans.size(); i++)
+            filters[i] = scans.get(i).getFilters().size();
+
+        plan.accept(estimator);
+        addBloomFilters(plan);
+        plan.accept(estimator);
+        int cost = getPlanCost(plan);
+
+        // Remove the filters added to each scan
+        for (int i = 0; i < scans.size(); i++) {
+            List<BloomFilter> added = scans.get(i).getFilters();
+            added.subList(filters[i], added.size()).clear();
+        }
+        plan.accept(estimator);
+        return cost;
+    }
+
+    /**
+     * Finds the scan operators of a plan:
+     * Travels down the plan through every input
+     * Adds each scan to the list once, though it may be read by several operators
+     * @param plan the current plan
+     * @param scans the scans found so far
+     */
+    private void findScans(Operator plan, ArrayList<Scan> scans) {
+        if (plan instanceof Scan) {
+            for (Scan scan : scans) {
+                if (scan == plan)
+                    return;
+            }
+            scans.add((Scan) plan);
+        }
+        else if (plan instanceof UnaryOperator)
+            findScans(((UnaryOperator) plan).getInput(), scans);
+        else if (plan instanceof BinaryOperator) {
+            findScans(((BinaryOperator) plan).getLeft(), scans);
+            findScans(((BinaryOperator) plan).getRight(), scans);
+        }
+    }
+
+    /**
+     * Builds semi-join reducers for an acyclic query:
+     * Groups the attributes of join predicates into classes of equal attributes
+     * Treats each input as a hyperedge over the classes of its attributes
+     * Finds a join tree by GYO reduction, which repeatedly removes classes found in only one input
+     * and inputs whose classes are all found in another input, the parent of the removed input
+     * Returns null if the query is cyclic, since the reduction then leaves more than one input
+     * Reduces each input by its reduced children in the join tree, in one pass from the leaves up
+     * Reduces each input by its fully reduced parent, in one pass from the root down
+     * Builds each reduction once, and shares it between the operators which read it, so each relation is scanned once
+     * Returns the reduced inputs, which hold only tuples which contribute to the result
+     * @param selectsProjects the select and project operators over each relation
+     * @return the inputs reduced by semi-joins, or null if the query is cyclic or has no joins
+     */
+    public ArrayList<Operator> buildSemiJoins(ArrayList<Operator> selectsProjects) {
+        // Group the join attributes into classes
+        HashMap<Attribute, Attribute> classes = new HashMap<>();
+        for (Predicate predicate : allPredicates) {
+            if (!predicate.equalsValue())
+                classes.put(findClass(classes, predicate.getLeftAttribute()), findClass(classes, predicate.getRightAttribute()));
+        }
+        if (classes.isEmpty() || selectsProjects.size() < 2)
+            return null;
+
+        // Find the classes of each input
+        int n = selectsProjects.size();
+        ArrayList<HashSet<Attribute>> edges = new ArrayList<>();
+        for (Operator operator : selectsProjects) {
+            HashSet<Attribute> edge = new HashSet<>();
+            for (Attribute attribute : operator.getOutput().getAttributes()) {
+                if (classes.containsKey(attribute))
+                    edge.add(findClass(classes, attribute));
+            }
+            edges.add(edge);
+        }
+
+        // Remove classes in one input and inputs contained in another
+        int[] parents = new int[n];
+        Arrays.fill(parents, -1);
+        ArrayList<Integer> removed = new ArrayList<>();
+        ArrayList<Integer> remaining = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            remaining.add(i);
+        boolean changed = true;
+        while (changed && remaining.size() > 1) {
+            changed = false;
+            for (int i : remaining) {
+                Iterator<Attribute> iterator = edges.get(i).iterator();
+                while (iterator.hasNext()) {
+                    Attribute c = iterator.next();
+                    int count = 0;
+                    for (int j : remaining)
+                        count += edges.get(j).contains(c) ? 1 : 0;
+                    if (count == 1) {
+                        iterator.remove();
+                        changed = true;
+                    }
+                }
+            }
+            for (int i : remaining) {
+                for (int j : remaining) {
+                    if (i != j && edges.get(j).containsAll(edges.get(i))) {
+                        parents[i] = j;
+                        break;
+                    }
+                }
+                if (parents[i] >= 0) {
+                    removed.add(i);
+                    remaining.remove((Integer) i);
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        if (remaining.size() > 1)
+            return null;
+
+        // Reduce each parent by its children, which are removed before it
+        ArrayList<Operator> up = new ArrayList<>();
+        for (Operator operator : selectsProjects)
+            up.add(copy(operator));
+        for (int i : removed)
+            up.set(parents[i], semiJoin(up.get(parents[i]), up.get(i), classes));
+
+        // Reduce each child by its parent, which is reduced before it
+        ArrayList<Operator> reduced = new ArrayList<>(up);
+        for (int k = removed.size() - 1; k >= 0; k--) {
+            int i = removed.get(k);
+            reduced.set(i, semiJoin(up.get(i), reduced.get(parents[i]), classes));
+        }
+        return reduced;
+    }
+
+    /**
+     * Finds the class of an attribute, adding it to a class of its own if it has none
+     * @param classes the parent of each attribute in its class
+     * @param attribute the attribute
+     * @return the attribute representing the class
+     */
+    private Attribute findClass(HashMap<Attribute, Attribute> classes, Attribute attribute) {
+        Attribute parent = classes.get(attribute);
+        if (parent == null) {
+            classes.put(attribute, attribute);
+            return attribute;
+        }
+        if (parent.equals(attribute))
+            return attribute;
+        Attribute root = findClass(classes, parent);
+        classes.put(attribute, root);
+        return root;
+    }
+
+    /**
+     * Builds a semi-join reducing an input by another:
+     * Finds a predicate equating attributes of the two inputs in the same class
+     * Returns the input unchanged if they share no class
+     * @return the reduced input
+     */
+    private Operator semiJoin(Operator input, Operator by, HashMap<Attribute, Attribute> classes) {
+        Predicate predicate = findSemiJoinPredicate(input, by, classes);
+        if (predicate == null)
+            return input;
+        Operator operator = new SemiJoin(input, by, predicate);
+        operator.accept(estimator);
+        return operator;
+    }
+
+    /**
+     * Finds a predicate equating an attribute of one input with an attribute of another in the same class
+     * @return the predicate, or null if the inputs share no class
+     */
+    private Predicate findSemiJoinPredicate(Operator left, Operator right, HashMap<Attribute, Attribute> classes) {
+        for (Attribute a : left.getOutput().getAttributes()) {
+            for (Attribute b : right.getOutput().getAttributes()) {
+                if (classes.containsKey(a) && classes.containsKey(b) && findClass(classes, a).equals(findClass(classes, b)))
+                    return new Predicate(a, b);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies the select and project operators over a relation, so that the reduced inputs do not share them with other plans
+     * @param plan the operators to copy
+     * @return the copy
+     */
+    private Operator copy(Operator plan) {
+        Operator copy;
+        if (plan instanceof BitmapScan)
+            copy = new BitmapScan((NamedRelation) ((Scan) plan).getRelation(), ((BitmapScan) plan).getPredicates());
+        else if (plan instanceof IndexScan)
+            copy = new IndexScan((NamedRelation) ((Scan) plan).getRelation(), ((IndexScan) plan).getPredicate());
+        else if (plan instanceof Scan)
+            copy = new Scan((NamedRelation) ((Scan) plan).getRelation());
+        else if (plan instanceof Select)
+            copy = new Select(copy(((Select) plan).getInput()), ((Select) plan).getPredicate());
+        else if (plan instanceof Project)
+            copy = new Project(copy(((Project) plan).getInput()), ((Project) plan).getAttributes());
+        else
+            return plan;
+        if (plan instanceof Scan) {
+            ((Scan) copy).setRowIds(((Scan) plan).emitsRowIds());
+            ((Scan) copy).setPartitions(((Scan) plan).getPartitions());
+        }
+        copy.accept(estimator);
+        return copy;
+    }
+
     /**
      * Generates permutations from a list of predicates:
      * Iterates through the predicates recursively
@@ -287,10 +853,180 @@ public class Optimiser {
         return selectsProjects.get(0);
     }
 
+    /**
+     * Builds new index join operators:
+     * Travels through the plan recursively
+     * Finds joins where one input is a scan of a relation indexed on its join attribute
+     * Compares the cost of probing the index once per outer tuple against scanning the inner relation
+     * If only the first rows are needed, only probes for the outer tuples producing them are costed
+     * Replaces the join with an index join if probing is cheaper
+     * Returns the new plan with index join operators
+     * @param plan the current plan
+     * @return the new plan with index join operators
+     */
+    public Operator buildIndexJoins(Operator plan) {
+        // Replace inner operators first
+        for (int i = 0; i < plan.inputs.size(); i++)
+            plan.inputs.set(i, buildIndexJoins(plan.inputs.get(i)));
+
+        if (!(plan instanceof Join) || plan instanceof IndexJoin)
+            return plan;
+
+        Join join = (Join) plan;
+        join.accept(estimator);
+        Operator best = join;
+        int bestCost = Integer.MAX_VALUE;
+
+        // Try each input as the inner relation
+        for (int i = 0; i < 2; i++) {
+            Operator outer = i == 0 ? join.getLeft() : join.getRight();
+            Operator inner = i == 0 ? join.getRight() : join.getLeft();
+            // The index join reads the inner relation itself, so the predicates
+            // of an index or bitmap scan would be lost
+            if (inner.getClass() != Scan.class)
+                continue;
+
+            // Find the join attribute of the inner relation
+            NamedRelation relation = (NamedRelation) ((Scan) inner).getRelation();
+            Attribute innerAttribute = join.getPredicate().getRightAttribute();
+            Attribute outerAttribute = join.getPredicate().getLeftAttribute();
+            if (!relation.getAttributes().contains(innerAttribute)) {
+                innerAttribute = join.getPredicate().getLeftAttribute();
+                outerAttribute = join.getPredicate().getRightAttribute();
+            }
+            if (relation.getIndex(innerAttribute) == null)
+                continue;
+
+            // Probe the index once per outer tuple and read each matching tuple at random
+            int probes = outer.getOutput().getTupleCount();
+            int indexCost = probes * relation.getIndexHeight(innerAttribute)
+                    + RANDOM_READ_COST * join.getOutput().getTupleCount();
+            // An index join stops probing once enough rows are joined, but a hash join reads its inner relation
+            if (rowsNeeded >= 0)
+                indexCost = (int) Math.ceil(indexCost * fraction(join, rowsNeeded));
+            if (indexCost < statistics((Scan) inner).getTupleCount() && indexCost < bestCost) {
+                best = new IndexJoin(outer, (Scan) inner, new Predicate(outerAttribute, innerAttribute));
+                bestCost = indexCost;
+            }
+        }
+
+        best.accept(estimator);
+        return best;
+    }
+
+    /**
+     * Pushes Bloom filters down from join operators to scan operators:
+     * Estimates the plan
+     * Adds Bloom filters to scans below each join
+     * Re-estimates the plan so that the reduced probe cardinalities are costed
+     * Returns the plan with Bloom filters
+     * @param plan the current plan
+     * @return the plan with Bloom filters pushed down
+     */
+    public Operator pushBloomFilters(Operator plan) {
+        plan.accept(estimator);
+        addBloomFilters(plan);
+        plan.accept(estimator);
+        return plan;
+    }
+
+    /**
+     * Adds Bloom filters below join operators:
+     * Travels through the plan recursively, adding filters to inner joins first
+     * Treats the smaller input of each join as the build side and the larger as the probe side
+     * Finds the scan on the probe side which supplies the probe attribute
+     * Sizes a Bloom filter using the number of distinct build keys
+     * Adds the filter to the scan if it discards rows
+     * @param plan the current plan
+     */
+    public void addBloomFilters(Operator plan) {
+        // Add filters to inner operators first
+        if (plan instanceof UnaryOperator)
+            addBloomFilters(((UnaryOperator) plan).getInput());
+        else if (plan instanceof BinaryOperator) {
+            addBloomFilters(((BinaryOperator) plan).getLeft());
+            addBloomFilters(((BinaryOperator) plan).getRight());
+        }
+
+        if (!(plan instanceof Join) || plan instanceof IndexJoin)
+            return;
+
+        // Re-estimate the inputs using any filters added below
+        Join join = (Join) plan;
+        join.accept(estimator);
+
+        // Find the join attributes on each side
+        Operator left = join.getLeft();
+        Operator right = join.getRight();
+        Attribute leftAttribute = join.getPredicate().getLeftAttribute();
+        Attribute rightAttribute = join.getPredicate().getRightAttribute();
+        if (!left.getOutput().getAttributes().contains(leftAttribute)) {
+            Attribute a = leftAttribute;
+            leftAttribute = rightAttribute;
+            rightAttribute = a;
+        }
+
+        // Build on the smaller input and probe with the larger input
+        Operator probe = right;
+        Attribute buildAttribute = leftAttribute, probeAttribute = rightAttribute;
+        Operator build = left;
+        if (left.getOutput().getTupleCount() > right.getOutput().getTupleCount()) {
+            build = right;
+            probe = left;
+            buildAttribute = rightAttribute;
+            probeAttribute = leftAttribute;
+        }
+
+        // Add a filter to the probe-side scan if it discards rows
+        Scan scan = findScan(probe, probeAttribute);
+        if (scan != null) {
+            int keys = build.getOutput().getAttribute(buildAttribute).getValueCount();
+            int values = statistics(scan).getAttribute(probeAttribute).getValueCount();
+            BloomFilter filter = new BloomFilter(probeAttribute, buildAttribute, keys);
+            if (filter.getSelectivity(values) < 1)
+                scan.addFilter(filter);
+        }
+    }
+
+    /**
+     * Finds the scan operator which supplies an attribute:
+     * Travels down the plan through the inputs containing the attribute
+     * Stops at a semi-join, since a filter would discard nothing from an input it has reduced
+     * Returns the scan whose relation contains the attribute
+     * @param plan the current plan
+     * @param attribute the attribute to find
+     * @return the scan supplying the attribute, or null if none is found
+     */
+    public Scan findScan(Operator plan, Attribute attribute) {
+        // Scan
+        if (plan instanceof Scan) {
+            if (((Scan) plan).getRelation().getAttributes().contains(attribute))
+                return (Scan) plan;
+        }
+
+        // Project or Select
+        else if (plan instanceof UnaryOperator)
+            return findScan(((UnaryOperator) plan).getInput(), attribute);
+
+        // Semi-join, whose output holds no dangling tuples and whose scans are shared with other reducers
+        else if (plan instanceof SemiJoin)
+            return null;
+
+        // Product or Join
+        else if (plan instanceof BinaryOperator) {
+            Operator left = ((BinaryOperator) plan).getLeft();
+            if (left.getOutput().getAttributes().contains(attribute))
+                return findScan(left, attribute);
+            return findScan(((BinaryOperator) plan).getRight(), attribute);
+        }
+
+        return null;
+    }
+
     /**
      * Finds attributes in a given plan:
      * Iterates through attributes in predicates
-     * Iterates through attributes in project operators
+     * Iterates through attributes in project operators, or their row ids under late materialisation
      * Returns all found attributes
      * @param predicates the predicates to search
      * @param plan the current plan
@@ -312,7 +1048,10 @@ public class Optimiser {
         // Find attributes in project operators
         if (plan instanceof Project) {
             for (Attribute attribute : ((Project) plan).getAttributes()) {
-                if (!attributes.contains(attribute))
+                // Under late materialisation, carry the row id instead of the attribute
+                if (lateMaterialisation)
+                    attribute = findRowId(attribute);
+                if (attribute != null && !attributes.contains(attribute))
                     attributes.add(attribute);
             }
         }
@@ -320,6 +1059,48 @@ public class Optimiser {
         return attributes;
     }
 
+    /**
+     * Finds the row id attribute for a given attribute:
+     * Iterates through all scans
+     * Returns the row id of the relation containing the attribute
+     * @param attribute the attribute to find
+     * @return the row id attribute, or null if no relation contains the attribute
+     */
+    public Attribute findRowId(Attribute attribute) {
+        for (Scan scan : allScans) {
+            if (scan.getRelation().getAttributes().contains(attribute))
+                return ((NamedRelation) scan.getRelation()).getRowIdAttribute();
+        }
+        return null;
+    }
+
+    /**
+     * Builds a new fetch operator:
+     * Finds the relations containing the attributes projected by the original plan
+     * Creates a fetch operator which looks up these attributes by row id
+     * Returns the new plan with the fetch operator
+     * @param plan the optimised plan carrying row ids
+     * @param original the original plan
+     * @return the new plan with the fetch operator
+     */
+    public Operator buildFetch(Operator plan, Operator original) {
+        List<Attribute> attributes = ((Project) original).getAttributes();
+        List<NamedRelation> relations = new ArrayList<>();
+
+        // Find the relations containing the projected attributes
+        for (Attribute attribute : attributes) {
+            for (Scan scan : allScans) {
+                NamedRelation relation = (NamedRelation) scan.getRelation();
+                if (relation.getAttributes().contains(attribute) && !relations.contains(relation))
+                    relations.add(relation);
+            }
+        }
+
+        Fetch fetch = new Fetch(plan, attributes, relations);
+        fetch.accept(estimator);
+        return fetch;
+    }
+
     /**
      * Finds attributes, predicates, and scans in a given plan:
      * Travels through the plan recursively
@@ -387,6 +1168,11 @@ public class Optimiser {
      * @return the total cost of the plan
      */
     public int getCost(Operator plan) {
+        // A shared operator is executed once, and its held output is read again by the others
+        if (!costed.add(plan)) {
+            totalCost += plan.getOutput().getTupleCount();
+            return totalCost;
+        }
 
         // Project
         if (plan instanceof Project) {
@@ -397,13 +1183,30 @@ public class Optimiser {
             getCost(((Project) plan).getInput());
         }
 
+        // Fetch
+        else if (plan instanceof Fetch) {
+            // Add the cost of this operator
+            estimator.visit((Fetch) plan);
+            totalCost += plan.getOutput().getTupleCount();
+            // Go to the inner operator
+            getCost(((Fetch) plan).getInput());
+        }
+
         // Select
         else if (plan instanceof Select) {
             // Add the cost of this operator
             estimator.visit((Select) plan);
             totalCost += plan.getOutput().getTupleCount();
+            // Add the cost of the blocks of a scan which may satisfy the predicate
+            Operator input = ((Select) plan).getInput();
+            if (input.getClass() == Scan.class) {
+                estimator.visit((Scan) input);
+                double blocks = estimator.estimateBlockFraction((Scan) input, ((Select) plan).getPredicate());
+                totalCost += (int) Math.ceil(input.getOutput().getTupleCount() * blocks);
+            }
             // Go to the inner operator
-            getCost(((Select) plan).getInput());
+            else
+                getCost(input);
         }
 
         // Product
@@ -416,6 +1219,19 @@ public class Optimiser {
             getCost(((Product) plan).getRight());
         }
 
+        // Index join
+        else if (plan instanceof IndexJoin) {
+            // Add the cost of this operator and of probing the index for each outer tuple
+            IndexJoin join = (IndexJoin) plan;
+            estimator.visit((Scan) join.getRight());
+            estimator.visit(join);
+            NamedRelation relation = (NamedRelation) ((Scan) join.getRight()).getRelation();
+            totalCost += join.getOutput().getTupleCount()
+                    + join.getLeft().getOutput().getTupleCount() * relation.getIndexHeight(join.getPredicate().getRightAttribute());
+            // Go to the outer operator; the inner relation is not scanned
+            getCost(join.getLeft());
+        }
+
         // Join
         else if (plan instanceof Join) {
             // Add the cost of this operator
@@ -426,6 +1242,24 @@ public class Optimiser {
             getCost(((Join) plan).getRight());
         }
 
+        // Bitmap scan
+        else if (plan instanceof BitmapScan) {
+            // Add the cost of this operator and of combining a bitmap for each predicate
+            BitmapScan scan = (BitmapScan) plan;
+            estimator.visit(scan);
+            int words = (int) Math.ceil((double) statistics(scan).getTupleCount() / BITMAP_WORD);
+            totalCost += plan.getOutput().getTupleCount() + scan.getPredicates().size() * words;
+        }
+
+        // Index scan
+        else if (plan instanceof IndexScan) {
+            // Add the cost of this operator and of descending the index
+            IndexScan scan = (IndexScan) plan;
+            estimator.visit(scan);
+            NamedRelation relation = (NamedRelation) scan.getRelation();
+            totalCost += plan.getOutput().getTupleCount() + relation.getIndexHeight(scan.getPredicate().getLeftAttribute());
+        }
+
         // Scan
         else if (plan instanceof Scan) {
             // Add the cost of this operator
@@ -433,7 +1267,458 @@ public class Optimiser {
             totalCost += plan.getOutput().getTupleCount();
         }
 
+        // Limit
+        else if (plan instanceof Limit) {
+            // Add the cost of this operator and of producing only the rows it passes on
+            Limit limit = (Limit) plan;
+            estimator.visit(limit);
+            totalCost += plan.getOutput().getTupleCount() + getLimitedCost(limit.getInput(), limit.getCount());
+        }
+
+        // Sort
+        else if (plan instanceof Sort) {
+            // Add the cost of this operator
+            estimator.visit((Sort) plan);
+            totalCost += plan.getOutput().getTupleCount();
+            // Go to the inner operator, which is read in full
+            getCost(((Sort) plan).getInput());
+        }
+
+        // Semi-join
+        else if (plan instanceof SemiJoin) {
+            // Add the cost of this operator
+            estimator.visit((SemiJoin) plan);
+            totalCost += plan.getOutput().getTupleCount();
+            // Go to the inner operators
+            getCost(((SemiJoin) plan).getLeft());
+            getCost(((SemiJoin) plan).getRight());
+        }
+
+        // Aggregate
+        else if (plan instanceof Aggregate) {
+            // Add the cost of this operator
+            estimator.visit((Aggregate) plan);
+            totalCost += plan.getOutput().getTupleCount();
+            // Go to the inner operator, which is read in full
+            getCost(((Aggregate) plan).getInput());
+        }
+
+        // Exchange
+        else if (plan instanceof Exchange) {
+            // Add the cost of this operator and of sending its tuples over the network
+            Exchange exchange = (Exchange) plan;
+            estimator.visit(exchange);
+            totalCost += plan.getOutput().getTupleCount() + (int) Math.ceil(NETWORK_COST * estimator.estimateTransfer(exchange));
+            // Go to the inner operator
+            getCost(exchange.getInput());
+        }
+
         return totalCost;
     }
 
+    /**
+     * Calculates the cost of producing the first rows of a given plan:
+     * Travels through the plan recursively
+     * Scales the cost of each pipelined operator by the fraction of its output which is needed
+     * Charges in full for inputs which are read before the first row is produced:
+     * the build side of a hash join, the right input of a product, and the input of a sort or aggregate
+     * Returns the total cost
+     * @param plan the current plan
+     * @param needed the number of rows needed
+     * @return the cost of producing the rows
+     */
+    public int getLimitedCost(Operator plan, int needed) {
+        plan.accept(estimator);
+        shared = Operator.findShared(plan);
+        read.clear();
+        return (int) Math.ceil(limitedCost(plan, needed));
+    }
+
+    private double limitedCost(Operator plan, double needed) {
+        // A shared operator is read in full when first opened, and its held output is read again by the others
+        if (shared.contains(plan)) {
+            if (!read.add(plan))
+                return plan.getOutput().getTupleCount() * fraction(plan, needed);
+            needed = Double.MAX_VALUE;
+        }
+        double f = fraction(plan, needed);
+        double cost = plan.getOutput().getTupleCount() * f;
+
+        // Select over a scan, which reads the blocks which may satisfy the predicate
+        if (plan instanceof Select && ((Select) plan).getInput().getClass() == Scan.class) {
+            Scan scan = (Scan) ((Select) plan).getInput();
+            double blocks = estimator.estimateBlockFraction(scan, ((Select) plan).getPredicate());
+            return cost + Math.ceil(scan.getOutput().getTupleCount() * blocks) * f;
+        }
+
+        // Limit
+        if (plan instanceof Limit)
+            return cost + limitedCost(((Limit) plan).getInput(), Math.min(needed, ((Limit) plan).getCount()));
+
+        // Sort or aggregate, which reads all of its input
+        if (plan instanceof Sort || plan instanceof Aggregate)
+            return cost + limitedCost(((UnaryOperator) plan).getInput(), Double.MAX_VALUE);
+
+        // Project, Select, or Fetch
+        if (plan instanceof UnaryOperator) {
+            Operator input = ((UnaryOperator) plan).getInput();
+            return cost + limitedCost(input, input.getOutput().getTupleCount() * f);
+        }
+
+        // Index join, which probes the index once per outer tuple
+        if (plan instanceof IndexJoin) {
+            IndexJoin join = (IndexJoin) plan;
+            NamedRelation relation = (NamedRelation) ((Scan) join.getRight()).getRelation();
+            double outer = join.getLeft().getOutput().getTupleCount() * f;
+            return cost + outer * relation.getIndexHeight(join.getPredicate().getRightAttribute())
+                    + limitedCost(join.getLeft(), outer);
+        }
+
+        // Join, which reads its smaller input before probing with the other
+        if (plan instanceof Join) {
+            Operator left = ((Join) plan).getLeft();
+            Operator right = ((Join) plan).getRight();
+            Operator build = left.getOutput().getTupleCount() <= right.getOutput().getTupleCount() ? left : right;
+            Operator probe = build == left ? right : left;
+            return cost + limitedCost(build, Double.MAX_VALUE) + limitedCost(probe, probe.getOutput().getTupleCount() * f);
+        }
+
+        // Semi-join, which reads its right input before the left
+        if (plan instanceof SemiJoin) {
+            Operator left = ((SemiJoin) plan).getLeft();
+            return cost + limitedCost(((SemiJoin) plan).getRight(), Double.MAX_VALUE)
+                    + limitedCost(left, left.getOutput().getTupleCount() * f);
+        }
+
+        // Product, which reads its right input before the left
+        if (plan instanceof Product) {
+            Operator left = ((Product) plan).getLeft();
+            return cost + limitedCost(((Product) plan).getRight(), Double.MAX_VALUE)
+                    + limitedCost(left, left.getOutput().getTupleCount() * f);
+        }
+
+        // Bitmap scan
+        if (plan instanceof BitmapScan) {
+            int words = (int) Math.ceil((double) ((BitmapScan) plan).getRelation().getTupleCount() / BITMAP_WORD);
+            return cost + ((BitmapScan) plan).getPredicates().size() * words;
+        }
+
+        // Index scan
+        if (plan instanceof IndexScan) {
+            IndexScan scan = (IndexScan) plan;
+            return cost + ((NamedRelation) scan.getRelation()).getIndexHeight(scan.getPredicate().getLeftAttribute());
+        }
+
+        // Scan
+        return cost;
+    }
+
+    /**
+     * Finds the fraction of the output of an operator needed to produce a number of rows
+     * @param plan the operator
+     * @param needed the number of rows needed
+     * @return min(1, needed/T(R))
+     */
+    private double fraction(Operator plan, double needed) {
+        int tuples = plan.getOutput().getTupleCount();
+        return tuples <= needed ? 1.0 : needed / tuples;
+    }
+
+    /**
+     * Calculates the number of attribute values moved by a given plan:
+     * Travels through the plan recursively
+     * Adds the tuple count of each scan
+     * Adds the tuple count times the attribute count of each other operator
+     * Adds the cost of fetching each attribute looked up by row id
+     * Returns the total width cost
+     * @param plan the current plan
+     * @return the total width cost of the plan
+     */
+    public int getWidthCost(Operator plan) {
+        plan.accept(estimator);
+        costed.clear();
+        return widthCost(plan);
+    }
+
+    private int widthCost(Operator plan) {
+        Relation out = plan.getOutput();
+        int cost;
+
+        // A shared operator moves its values once, and its held output is read again by the others
+        if (!costed.add(plan))
+            return out.getTupleCount() * out.getAttributes().size();
+
+        // Scan
+        if (plan instanceof Scan)
+            return out.getTupleCount();
+
+        // Fetch
+        if (plan instanceof Fetch) {
+            List<Attribute> in = ((Fetch) plan).getInput().getOutput().getAttributes();
+            int fetched = 0;
+            for (Attribute attribute : ((Fetch) plan).getAttributes()) {
+                if (!in.contains(attribute))
+                    fetched++;
+            }
+            cost = out.getTupleCount() * fetched * FETCH_COST;
+        }
+        else
+            cost = out.getTupleCount() * out.getAttributes().size();
+
+        // Go to the inner operators
+        if (plan instanceof UnaryOperator)
+            cost += widthCost(((UnaryOperator) plan).getInput());
+        else if (plan instanceof BinaryOperator)
+            cost += widthCost(((BinaryOperator) plan).getLeft()) + widthCost(((BinaryOperator) plan).getRight());
+
+        return cost;
+    }
+
+    /**
+     * Distributes an optimised plan across the workers holding the partitions of its relations:
+     * Removes any limit, sort, aggregate and projection from the top of the plan, which run at the coordinator
+     * Reduces the rest of the plan to its scans, selects, joins and products, since each worker optimises its part again
+     * Keeps each join whose inputs are co-partitioned on the join attributes, or of which one input is replicated, where it is
+     * Otherwise places exchanges below the join, shuffling one or both inputs into matching partitions,
+     * or broadcasting one input to every worker, whichever sends the fewest tuples
+     * Broadcasts the smaller input of each product
+     * Projects each exchanged input to the attributes needed above it
+     * Gathers the result at the coordinator, and puts the removed operators back on top
+     * @param plan the optimised plan, whose named relations are all partitioned across the same workers
+     * @return the distributed plan
+     */
+    public Operator distribute(Operator plan) {
+        // Remove the operators which run at the coordinator, and find the attributes they need
+        ArrayList<Operator> head = new ArrayList<>();
+        while (plan instanceof Limit || plan instanceof Project || plan instanceof Sort || plan instanceof Aggregate) {
+            head.add(plan);
+            plan = ((UnaryOperator) plan).getInput();
+        }
+        LinkedHashSet<Attribute> needed = new LinkedHashSet<>();
+        boolean all = true;
+        for (Operator op : head) {
+            if (op instanceof Project) {
+                needed.addAll(((Project) op).getAttributes());
+                all = false;
+            }
+            else if (op instanceof Aggregate) {
+                needed.addAll(((Aggregate) op).getInputAttributes());
+                all = false;
+            }
+            else if (op instanceof Sort)
+                needed.addAll(((Sort) op).getAttributes());
+        }
+
+        Operator reduced = reduce(plan);
+        reduced.accept(estimator);
+        workers = 0;
+        if (all)
+            needed.addAll(reduced.getOutput().getAttributes());
+        IdentityHashMap<Operator, Partitioning> layouts = new IdentityHashMap<>();
+        Operator distributed = new Exchange(project(place(reduced, layouts, needed), needed), Exchange.Kind.GATHER, null);
+
+        // Put the removed operators back
+        for (int i = head.size() - 1; i >= 0; i--) {
+            Operator op = head.get(i);
+            if (op instanceof Project)
+                distributed = new Project(distributed, ((Project) op).getAttributes());
+            else if (op instanceof Sort) {
+                Sort sort = (Sort) op;
+                distributed = new Sort(distributed, sort.getAttributes(), sort.getDescending(), sort.getLimit());
+            }
+            else if (op instanceof Aggregate)
+                distributed = new Aggregate(distributed, ((Aggregate) op).getGroups(), ((Aggregate) op).getAggregations());
+            else
+                distributed = new Limit(distributed, ((Limit) op).getCount());
+        }
+        distributed.accept(estimator);
+        return distributed;
+    }
+
+    /**
+     * Reduces an optimised plan to scans, selects, joins and products:
+     * Turns index and bitmap scans back into selects over scans, and index joins into joins
+     * Drops projects, fetches, semi-joins and Bloom filters, which only make the plan cheaper
+     * @param plan the optimised plan, without a limit, sort or aggregate
+     * @return the reduced plan
+     */
+    private Operator reduce(Operator plan) {
+        if (plan instanceof BitmapScan) {
+            Operator reduced = scan((Scan) plan);
+            for (Predicate predicate : ((BitmapScan) plan).getPredicates())
+                reduced = new Select(reduced, predicate);
+            return reduced;
+        }
+        if (plan instanceof IndexScan)
+            return new Select(scan((Scan) plan), ((IndexScan) plan).getPredicate());
+        if (plan instanceof Scan)
+            return scan((Scan) plan);
+        if (plan instanceof Select)
+            return new Select(reduce(((Select) plan).getInput()), ((Select) plan).getPredicate());
+        if (plan instanceof UnaryOperator)
+            return reduce(((UnaryOperator) plan).getInput());
+        if (plan instanceof SemiJoin)
+            return reduce(((SemiJoin) plan).getLeft());
+        if (plan instanceof IndexJoin) {
+            IndexJoin join = (IndexJoin) plan;
+            return new Join(reduce(join.getLeft()), scan((Scan) join.getRight()), join.getPredicate());
+        }
+        if (plan instanceof Join)
+            return new Join(reduce(((Join) plan).getLeft()), reduce(((Join) plan).getRight()), ((Join) plan).getPredicate());
+        return new Product(reduce(((Product) plan).getLeft()), reduce(((Product) plan).getRight()));
+    }
+
+    /**
+     * Copies a scan of any kind as a plain scan of the same partitions
+     */
+    private Scan scan(Scan plan) {
+        Scan scan = new Scan((NamedRelation) plan.getRelation());
+        scan.setPartitions(plan.getPartitions());
+        return scan;
+    }
+
+    /**
+     * Places exchanges in a reduced plan, and finds how the output of each operator is partitioned:
+     * A scan is partitioned as its relation
+     * A select is partitioned as its input
+     * A join or product is partitioned as the input which is not exchanged, or on the attribute it is shuffled on
+     * @param plan the reduced plan, which has been estimated
+     * @param layouts the partitioning of each operator placed, or null if its tuples are spread arbitrarily
+     * @param needed the attributes needed above the operator
+     * @return the plan with exchanges placed
+     */
+    private Operator place(Operator plan, IdentityHashMap<Operator, Partitioning> layouts, Set<Attribute> needed) {
+        if (plan instanceof Scan) {
+            NamedRelation relation = (NamedRelation) ((Scan) plan).getRelation();
+            if (relation.getPartitioning() == null)
+                throw new IllegalArgumentException("Named relation " + relation + " is not partitioned");
+            if (workers > 0 && relation.getPartitioning().getCount() != workers)
+                throw new IllegalArgumentException("Named relation " + relation + " is not partitioned across " + workers + " workers");
+            workers = relation.getPartitioning().getCount();
+            layouts.put(plan, relation.getPartitioning());
+            return plan;
+        }
+
+        if (plan instanceof Select) {
+            Predicate predicate = ((Select) plan).getPredicate();
+            LinkedHashSet<Attribute> below = new LinkedHashSet<>(needed);
+            below.add(predicate.getLeftAttribute());
+            if (!predicate.equalsValue())
+                below.add(predicate.getRightAttribute());
+            Operator input = place(((Select) plan).getInput(), layouts, below);
+            Operator placed = new Select(input, predicate);
+            placed.accept(estimator);
+            layouts.put(placed, layouts.get(input));
+            return placed;
+        }
+
+        // Join or product, whose inputs need the attributes of the join predicate
+        BinaryOperator binary = (BinaryOperator) plan;
+        Predicate predicate = plan instanceof Join ? ((Join) plan).getPredicate() : null;
+        Attribute a = null;
+        Attribute b = null;
+        LinkedHashSet<Attribute> below = new LinkedHashSet<>(needed);
+        if (predicate != null) {
+            a = predicate.getLeftAttribute();
+            b = predicate.getRightAttribute();
+            if (!binary.getLeft().getOutput().getAttributes().contains(a)) {
+                a = predicate.getRightAttribute();
+                b = predicate.getLeftAttribute();
+            }
+            below.add(a);
+            below.add(b);
+        }
+        Operator left = place(binary.getLeft(), layouts, below);
+        Operator right = place(binary.getRight(), layouts, below);
+        Partitioning pl = layouts.get(left);
+        Partitioning pr = layouts.get(right);
+        Partitioning layout;
+
+        if (pr != null && pr.isReplicated())
+            layout = pl;
+        else if (pl != null && pl.isReplicated())
+            layout = pr;
+        else if (predicate != null && pl != null && pl.isOn(a) && pr != null && pr.isOn(b) && pl.matches(pr))
+            layout = pl;
+        else {
+            // Find the cheapest way of bringing partners together, by the tuples sent
+            Operator bestLeft = left;
+            Operator bestRight = right;
+            Partitioning bestLayout = null;
+            double best = Double.MAX_VALUE;
+
+            if (predicate != null) {
+                Operator l = left;
+                Operator r = right;
+                Partitioning target;
+                if (pl != null && pl.isOn(a))
+                    r = exchange(right, Exchange.Kind.SHUFFLE, (target = pl).on(b), below);
+                else if (pr != null && pr.isOn(b))
+                    l = exchange(left, Exchange.Kind.SHUFFLE, (target = pr).on(a), below);
+                else {
+                    target = Partitioning.hash(a, workers);
+                    l = exchange(left, Exchange.Kind.SHUFFLE, target, below);
+                    r = exchange(right, Exchange.Kind.SHUFFLE, target.on(b), below);
+                }
+                best = transfer(l) + transfer(r);
+                bestLeft = l;
+                bestRight = r;
+                bestLayout = target.on(a);
+            }
+            Operator broadcastRight = exchange(right, Exchange.Kind.BROADCAST, Partitioning.replicated(workers), below);
+            if (transfer(broadcastRight) < best) {
+                best = transfer(broadcastRight);
+                bestLeft = left;
+                bestRight = broadcastRight;
+                bestLayout = pl;
+            }
+            Operator broadcastLeft = exchange(left, Exchange.Kind.BROADCAST, Partitioning.replicated(workers), below);
+            if (transfer(broadcastLeft) < best) {
+                bestLeft = broadcastLeft;
+                bestRight = right;
+                bestLayout = pr;
+            }
+            left = bestLeft;
+            right = bestRight;
+            layout = bestLayout;
+        }
+
+        Operator placed = predicate != null ? new Join(left, right, predicate) : new Product(left, right);
+        placed.accept(estimator);
+        layouts.put(placed, layout);
+        return placed;
+    }
+
+    /**
+     * Places an exchange over an operator, projecting the attributes needed above it
+     */
+    private Exchange exchange(Operator plan, Exchange.Kind kind, Partitioning partitioning, Set<Attribute> needed) {
+        Exchange exchange = new Exchange(project(plan, needed), kind, partitioning);
+        exchange.accept(estimator);
+        return exchange;
+    }
+
+    /**
+     * Projects the needed attributes of an operator, if it outputs any others
+     */
+    private Operator project(Operator plan, Set<Attribute> needed) {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        for (Attribute attribute : plan.getOutput().getAttributes()) {
+            if (needed.contains(attribute))
+                attributes.add(attribute);
+        }
+        if (attributes.size() == plan.getOutput().getAttributes().size())
+            return plan;
+        Operator projected = new Project(plan, attributes);
+        projected.accept(estimator);
+        return projected;
+    }
+
+    /**
+     * Finds the number of tuples sent by the exchange over an input, or 0 if it is not exchanged
+     */
+    private double transfer(Operator plan) {
+        return plan instanceof Exchange ? estimator.estimateTransfer((Exchange) plan) : 0;
+    }
+
 }
@@ -419,6 +419,15 @@ public class Optimiser2 implements PlanVisitor {
     public void visit(Project op) { allAttributes.addAll(op.getAttributes()); }
     public void visit(Product op) {}
     public void visit(Join op) {}
+    public void visit(Fetch op) {}
+    public void visit(IndexScan op) { allScans.add(new Scan((NamedRelation)op.getRelation())); }
+    public void visit(IndexJoin op) {}
+    public void visit(BitmapScan op) { allScans.add(new Scan((NamedRelation)op.getRelation())); }
+    public void visit(Limit op) {}
+    public void visit(Sort op) {}
+    public void visit(Aggregate op) {}
+    public void visit(SemiJoin op) {}
+    public void visit(Exchange op) {}
     public void visit(Select op) {
         allPredicates.add(op.getPredicate());
         allAttributes.add(op.getPredicate().getLeftAttribute());
@@ -0,0 +1,186 @@
+package sjdb;
+
+import java.util.Arrays;
+
+/**
+ * This class describes how the tuples of a relation are spread across the
+ * workers of a cluster: hashed or split into ranges on the values of an
+ * attribute, or replicated in full on every worker.
+ *
+ * Two inputs of a join are co-partitioned on the join attributes if each
+ * is partitioned on its own join attribute in the same way, so that
+ * matching tuples are held by the same worker and the join needs no
+ * exchange of tuples between workers.
+ *
+ * A partitioning is written as "HASH attr n", "RANGE attr b1,b2" or
+ * "REPLICATED n", which is how it is sent to the workers.
+ */
+public class Partitioning {
+	/**
+	 * The ways in which tuples are spread across workers
+	 */
+	public enum Kind { HASH, RANGE, REPLICATED }
+
+	private Kind kind;
+	private Attribute attribute;
+	private int count;
+	private String[] bounds;
+
+	private Partitioning(Kind kind, Attribute attribute, int count, String[] bounds) {
+		this.kind = kind;
+		this.attribute = attribute;
+		this.count = count;
+		this.bounds = bounds;
+	}
+
+	/**
+	 * Partition tuples by the hash of the value of an attribute
+	 * @param attribute Partitioning attribute
+	 * @param count Number of partitions
+	 * @return partitioning
+	 */
+	public static Partitioning hash(Attribute attribute, int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("A partitioning must have at least one partition");
+		}
+		return new Partitioning(Kind.HASH, attribute, count, null);
+	}
+
+	/**
+	 * Partition tuples into ranges of the value of an attribute, in the
+	 * order of Sort.compareValues. Partition i holds the values below
+	 * bounds[i] and not below bounds[i-1], and the last partition those
+	 * not below the last bound.
+	 * @param attribute Partitioning attribute
+	 * @param bounds Upper bounds of every partition but the last, in ascending order
+	 * @return partitioning
+	 */
+	public static Partitioning range(Attribute attribute, String... bounds) {
+		for (int i = 1; i < bounds.length; i++) {
+			if (Sort.compareValues(bounds[i - 1], bounds[i]) >= 0) {
+				throw new IllegalArgumentException("Range bounds " + Arrays.toString(bounds) + " are not ascending");
+			}
+		}
+		return new Partitioning(Kind.RANGE, attribute, bounds.length + 1, bounds.clone());
+	}
+
+	/**
+	 * Hold every tuple on every worker
+	 * @param count Number of workers
+	 * @return partitioning
+	 */
+	public static Partitioning replicated(int count) {
+		return new Partitioning(Kind.REPLICATED, null, count, null);
+	}
+
+	public Kind getKind() {
+		return this.kind;
+	}
+
+	/**
+	 * Return the partitioning attribute
+	 * @return attribute, or null if the tuples are replicated
+	 */
+	public Attribute getAttribute() {
+		return this.attribute;
+	}
+
+	/**
+	 * Return the number of partitions, which is the number of workers
+	 * @return partition count
+	 */
+	public int getCount() {
+		return this.count;
+	}
+
+	public boolean isReplicated() {
+		return this.kind == Kind.REPLICATED;
+	}
+
+	/**
+	 * Return the same partitioning on another attribute, by which the
+	 * other input of a join is partitioned to match this one
+	 * @param attribute Partitioning attribute
+	 * @return partitioning
+	 */
+	public Partitioning on(Attribute attribute) {
+		return new Partitioning(kind, attribute, count, bounds);
+	}
+
+	/**
+	 * Return the partition holding a value of the partitioning attribute.
+	 * Hash partitions are chosen from String.hashCode, so every process
+	 * places a value in the same partition.
+	 * @param value Value
+	 * @return partition number, from 0
+	 */
+	public int partition(String value) {
+		if (kind == Kind.RANGE) {
+			int low = 0;
+			int high = bounds.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (Sort.compareValues(value, bounds[mid]) < 0) {
+					high = mid;
+				} else {
+					low = mid + 1;
+				}
+			}
+			return low;
+		}
+		// Spread the high bits of the hash, which differ most between similar strings
+		int h = value.hashCode() * 0x9E3779B9;
+		return Math.floorMod(h ^ (h >>> 16), count);
+	}
+
+	/**
+	 * Return whether this partitioning places the values of its attribute
+	 * in the same partitions as another places the values of its own
+	 * @param other Partitioning
+	 * @return true if equal values are held by the same worker
+	 */
+	public boolean matches(Partitioning other) {
+		return other != null && kind != Kind.REPLICATED && kind == other.kind && count == other.count
+				&& Arrays.equals(bounds, other.bounds);
+	}
+
+	/**
+	 * Return whether this partitioning is on an attribute
+	 * @param attribute Attribute
+	 * @return true if tuples with equal values of the attribute are held by the same worker
+	 */
+	public boolean isOn(Attribute attribute) {
+		return this.attribute != null && this.attribute.equals(attribute);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		switch (kind) {
+		case HASH:
+			return "HASH " + attribute + " " + count;
+		case RANGE:
+			return "RANGE " + attribute + " " + String.join(",", bounds);
+		default:
+			return "REPLICATED " + count;
+		}
+	}
+
+	/**
+	 * Read a partitioning written by toString()
+	 * @param text Partitioning
+	 * @return partitioning
+	 */
+	public static Partitioning parse(String text) {
+		String[] words = text.trim().split(" ", 3);
+		switch (Kind.valueOf(words[0])) {
+		case HASH:
+			return hash(new Attribute(words[1]), Integer.parseInt(words[2]));
+		case RANGE:
+			return range(new Attribute(words[1]), words.length < 3 || words[2].isEmpty() ? new String[0] : words[2].split(","));
+		default:
+			return replicated(Integer.parseInt(words[1]));
+		}
+	}
+}
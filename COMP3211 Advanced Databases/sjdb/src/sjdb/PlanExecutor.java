@@ -0,0 +1,1713 @@
+package sjdb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class executes a query plan over the stored tuples of its named
+ * relations. Visiting the plan builds a tree of iterators, one for each
+ * operator, which produce tuples one at a time when pulled from the root;
+ * a tuple is an array of values in the order of the operator's output
+ * attributes. Nothing is read until the first tuple is pulled, and only
+ * the build sides of joins and the right inputs of products are held in
+ * memory.
+ *
+ * Joins are hash joins which build on their smaller input. Once built,
+ * the keys are added to any Bloom filters pushed down from the join, so
+ * that the probe-side scans discard tuples without partners.
+ *
+ * A limit closes its input once it has passed on enough tuples, which
+ * stops the scans below it, so a plan without a blocking operator reads
+ * only as much as it needs for the first rows.
+ *
+ * Aggregates over large inputs are computed in parallel: the input is
+ * read in batches, which are aggregated by worker threads into tables of
+ * their own and merged at the end.
+ *
+ * An operator which is the input of several others, such as an input
+ * reduced by semi-joins which reduces other inputs in turn, is executed
+ * once: its output is held when first read, and each of the others reads
+ * the held tuples.
+ *
+ * Each execution reads a snapshot opened when the plan starts: stored
+ * tuples added by writes committed later are skipped, and the estimates
+ * which size its memory grant are made from the statistics the snapshot
+ * sees. The snapshot is closed with the cursor.
+ */
+public class PlanExecutor implements PlanVisitor {
+	// Number of partitions into which a spilling hash join splits its inputs
+	private static final int SPILL_PARTITIONS = 16;
+	// Number of times a partition may be split again before it is joined in memory
+	private static final int MAX_SPILL_LEVEL = 3;
+	// Number of input tuples for which an aggregate is computed in parallel
+	private static final int PARALLEL_THRESHOLD = 1 << 16;
+	// Largest number of threads aggregating the input of an aggregate
+	private static final int MAX_WORKERS = 8;
+	// Number of tuples in a batch handed to an aggregating thread
+	private static final int BATCH_SIZE = 1024;
+
+	private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "sjdb-aggregate");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private ArrayDeque<Node> stack = new ArrayDeque<Node>();
+	private Set<BloomFilter> populated = Collections.newSetFromMap(new IdentityHashMap<BloomFilter, Boolean>());
+	private ArrayList<MemoryNode> consumers = new ArrayList<MemoryNode>();
+	private Set<Operator> shared = Collections.emptySet();
+	private IdentityHashMap<Operator, SpoolNode> spools = new IdentityHashMap<Operator, SpoolNode>();
+	private Snapshot snapshot;
+
+	private PlanExecutor(Snapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Execute a query plan, without limiting its memory
+	 * @param plan Plan to be executed
+	 * @return Cursor over the result tuples
+	 */
+	public static ResultCursor execute(Operator plan) {
+		return execute(plan, null);
+	}
+
+	/**
+	 * Execute a query plan within a grant of memory, waiting until the
+	 * memory manager can grant it. The grant is divided between the
+	 * operators which hold tuples in proportion to their estimated
+	 * outputs, and returned when the cursor is closed.
+	 * @param plan Plan to be executed
+	 * @param memory Memory manager, or null to leave memory unlimited
+	 * @return Cursor over the result tuples
+	 */
+	public static ResultCursor execute(Operator plan, MemoryManager memory) {
+		Snapshot snapshot = Snapshot.open();
+		PlanExecutor executor = new PlanExecutor(snapshot);
+		try {
+			plan.accept(new Estimator(snapshot));
+			executor.shared = Operator.findShared(plan);
+			plan.accept(executor);
+		} catch (RuntimeException e) {
+			snapshot.close();
+			throw e;
+		}
+
+		long demand = 0;
+		for (MemoryNode node : executor.consumers) {
+			demand += node.demand;
+		}
+		MemoryManager.Grant grant = null;
+		if (memory != null && demand > 0) {
+			try {
+				grant = memory.acquire(demand);
+			} catch (InterruptedException e) {
+				snapshot.close();
+				Thread.currentThread().interrupt();
+				throw new UncheckedIOException(new InterruptedIOException("Interrupted while waiting for memory"));
+			}
+			for (MemoryNode node : executor.consumers) {
+				node.budget = grant.budget((double) node.demand / demand);
+			}
+		}
+		return new ResultCursor(executor.stack.pop(), plan.getOutput().getAttributes(), grant, snapshot);
+	}
+
+	/**
+	 * Return the estimated memory needed to hold the output of an operator
+	 */
+	private static long demand(Operator op) {
+		Relation output = op.getOutput();
+		return (long) output.getTupleCount() * output.getAttributes().size() * MemoryManager.VALUE_BYTES;
+	}
+
+	/**
+	 * An iterator over the tuples produced by an operator. The iterator is
+	 * opened when its first tuple is pulled, and close() releases any
+	 * tuples it holds.
+	 */
+	static abstract class Node {
+		private boolean opened;
+		private boolean closed;
+
+		/**
+		 * Return the next tuple
+		 * @return tuple, or null if there are no more tuples
+		 */
+		String[] next() throws IOException {
+			if (closed) {
+				return null;
+			}
+			if (!opened) {
+				opened = true;
+				open();
+			}
+			return advance();
+		}
+
+		abstract void open() throws IOException;
+
+		abstract String[] advance() throws IOException;
+
+		void close() {
+			closed = true;
+		}
+	}
+
+	/**
+	 * An iterator which holds tuples in memory, within a budget if the plan
+	 * is executed with a memory manager
+	 */
+	static abstract class MemoryNode extends Node {
+		long demand;
+		MemoryManager.Budget budget;
+		long reserved;
+
+		/**
+		 * Reserve memory for a tuple
+		 * @return false if the tuple does not fit the budget
+		 */
+		boolean reserve(String[] tuple) {
+			if (budget == null) {
+				return true;
+			}
+			long size = MemoryManager.sizeOf(tuple);
+			if (!budget.reserve(size)) {
+				return false;
+			}
+			reserved += size;
+			return true;
+		}
+
+		/**
+		 * Release the memory of every tuple held
+		 */
+		void release() {
+			if (budget != null) {
+				budget.release(reserved);
+			}
+			reserved = 0;
+		}
+	}
+
+	/**
+	 * An iterator over the tuples of a spill file, which deletes the file
+	 * when closed
+	 */
+	private static class SpillNode extends Node {
+		SpillFile file;
+		SpillFile.Reader reader;
+
+		SpillNode(SpillFile file) {
+			this.file = file;
+		}
+
+		void open() throws IOException {
+			reader = file.read();
+		}
+
+		String[] advance() throws IOException {
+			return reader.next();
+		}
+
+		void close() {
+			super.close();
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+				file.close();
+			} catch (IOException e) {
+				// The file is deleted on exit
+			}
+		}
+	}
+
+	/**
+	 * Return the position of each attribute of an output in an input
+	 */
+	private static int[] map(List<Attribute> output, List<Attribute> input) {
+		int[] columns = new int[output.size()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = input.indexOf(output.get(i));
+		}
+		return columns;
+	}
+
+	/**
+	 * An iterator over the stored tuples of a scan seen by the snapshot,
+	 * which checks them against the scan's populated Bloom filters
+	 */
+	private abstract class StoredNode extends Node {
+		Scan scan;
+		Storage storage;
+		int[] columns;
+		int rowIdColumn;
+		ArrayList<BloomFilter> filters = new ArrayList<BloomFilter>();
+		ArrayList<Integer> filterColumns = new ArrayList<Integer>();
+
+		StoredNode(Scan scan) {
+			this.scan = scan;
+			NamedRelation relation = (NamedRelation) scan.getRelation();
+			this.storage = relation.getStorage();
+			List<Attribute> output = scan.getOutput().getAttributes();
+			this.columns = storage == null ? new int[0] : map(output, storage.getAttributes());
+			this.rowIdColumn = output.indexOf(relation.getRowIdAttribute());
+		}
+
+		void open() throws IOException {
+			if (storage == null) {
+				throw new IOException("Named relation " + scan.getRelation() + " has no storage");
+			}
+			// Only filters whose build side has been read can discard tuples
+			for (BloomFilter filter : scan.getFilters()) {
+				if (populated.contains(filter)) {
+					filters.add(filter);
+					filterColumns.add(storage.getAttributes().indexOf(filter.getProbeAttribute()));
+				}
+			}
+		}
+
+		/**
+		 * Convert a stored tuple into an output tuple
+		 * @return tuple, or null if the snapshot does not see it or a Bloom filter discards it
+		 */
+		String[] output(long rowId, String[] stored) {
+			if (!snapshot.sees(storage.getVersion(rowId))) {
+				return null;
+			}
+			for (int i = 0; i < filters.size(); i++) {
+				if (!filters.get(i).mightContain(stored[filterColumns.get(i)])) {
+					return null;
+				}
+			}
+			String[] tuple = new String[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				tuple[i] = i == rowIdColumn ? Long.toString(rowId) : stored[columns[i]];
+			}
+			return tuple;
+		}
+	}
+
+	/**
+	 * An iterator over a full scan, which may be restricted to the tuples
+	 * which may satisfy a predicate of a select directly above it
+	 */
+	private class ScanNode extends StoredNode {
+		Predicate predicate;
+		TupleCursor cursor;
+		String[] stored;
+
+		ScanNode(Scan scan) {
+			super(scan);
+		}
+
+		void open() throws IOException {
+			super.open();
+			try {
+				cursor = predicate == null ? scan.open() : scan.open(predicate);
+			} catch (DatabaseException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+			stored = new String[storage.getAttributes().size()];
+		}
+
+		String[] advance() throws IOException {
+			while (cursor.next()) {
+				for (int i = 0; i < stored.length; i++) {
+					stored[i] = cursor.getString(i);
+				}
+				String[] tuple = output(cursor.getRowId(), stored);
+				if (tuple != null) {
+					return tuple;
+				}
+			}
+			return null;
+		}
+
+		void close() {
+			super.close();
+			cursor = null;
+		}
+	}
+
+	/**
+	 * An iterator over the tuples with a list of row ids, looked up in an
+	 * index
+	 */
+	private class LookupNode extends StoredNode {
+		long[] rowIds;
+		int position;
+
+		LookupNode(Scan scan) {
+			super(scan);
+		}
+
+		void open() throws IOException {
+			super.open();
+			if (scan instanceof IndexScan) {
+				rowIds = ((IndexScan) scan).lookup();
+			} else {
+				int[] bits = ((BitmapScan) scan).lookup().toArray();
+				rowIds = new long[bits.length];
+				for (int i = 0; i < bits.length; i++) {
+					rowIds[i] = bits[i];
+				}
+			}
+		}
+
+		String[] advance() throws IOException {
+			while (position < rowIds.length) {
+				long rowId = rowIds[position++];
+				String[] stored = storage.get(rowId);
+				String[] tuple = stored == null ? null : output(rowId, stored);
+				if (tuple != null) {
+					return tuple;
+				}
+			}
+			return null;
+		}
+
+		void close() {
+			super.close();
+			rowIds = new long[0];
+		}
+	}
+
+	/**
+	 * An iterator over the input tuples which satisfy a predicate
+	 */
+	private static class SelectNode extends Node {
+		Node input;
+		Predicate predicate;
+		int left;
+		int right;
+
+		SelectNode(Node input, Select op) {
+			this.input = input;
+			this.predicate = op.getPredicate();
+			List<Attribute> in = op.getInput().getOutput().getAttributes();
+			this.left = in.indexOf(predicate.getLeftAttribute());
+			this.right = predicate.equalsValue() ? -1 : in.indexOf(predicate.getRightAttribute());
+		}
+
+		void open() {
+		}
+
+		String[] advance() throws IOException {
+			StringDictionary dictionary = StringDictionary.getInstance();
+			String[] tuple;
+			while ((tuple = input.next()) != null) {
+				if (right < 0 ? matches(dictionary, tuple[left]) : same(dictionary, tuple[left], tuple[right])) {
+					return tuple;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Compare a value with the predicate's value by their dictionary ids.
+		 * A value without an id can never have the id of the predicate's
+		 * value; a predicate value without an id is compared as a string,
+		 * since the value may have been added to the dictionary since.
+		 */
+		private boolean matches(StringDictionary dictionary, String value) {
+			if (predicate.getRightValueId() >= 0) {
+				return predicate.matches(dictionary.getId(value));
+			}
+			return predicate.matches(value);
+		}
+
+		/**
+		 * Compare two values by their dictionary ids, or as strings if either
+		 * has no id
+		 */
+		private static boolean same(StringDictionary dictionary, String a, String b) {
+			int left = dictionary.getId(a);
+			int right = left < 0 ? -1 : dictionary.getId(b);
+			return right < 0 ? a.equals(b) : left == right;
+		}
+
+		void close() {
+			super.close();
+			input.close();
+		}
+	}
+
+	/**
+	 * An iterator over the input tuples restricted to some attributes
+	 */
+	private static class ProjectNode extends Node {
+		Node input;
+		int[] columns;
+
+		ProjectNode(Node input, List<Attribute> output, List<Attribute> in) {
+			this.input = input;
+			this.columns = map(output, in);
+		}
+
+		void open() {
+		}
+
+		String[] advance() throws IOException {
+			String[] tuple = input.next();
+			if (tuple == null) {
+				return null;
+			}
+			String[] out = new String[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				out[i] = tuple[columns[i]];
+			}
+			return out;
+		}
+
+		void close() {
+			super.close();
+			input.close();
+		}
+	}
+
+	/**
+	 * An iterator over the concatenation of every left tuple with every
+	 * right tuple. The right tuples are held in memory; if they do not fit
+	 * the budget, they are spilled, and the left tuples are read in blocks
+	 * which fit the budget, the spilled tuples being read once per block.
+	 */
+	private static class ProductNode extends MemoryNode {
+		Node left;
+		Node right;
+		ArrayList<String[]> rights;
+		String[] current;
+		int position;
+		SpillFile spill;
+		SpillFile.Reader reader;
+		ArrayList<String[]> block = new ArrayList<String[]>();
+
+		ProductNode(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		void open() throws IOException {
+			rights = new ArrayList<String[]>();
+			String[] tuple;
+			while ((tuple = right.next()) != null) {
+				if (spill == null && reserve(tuple)) {
+					rights.add(tuple);
+					continue;
+				}
+				if (spill == null) {
+					budget.spill();
+					spill = new SpillFile();
+					for (String[] r : rights) {
+						spill.append(r);
+					}
+					rights.clear();
+					release();
+				}
+				spill.append(tuple);
+			}
+			right.close();
+		}
+
+		String[] advance() throws IOException {
+			if (spill != null) {
+				return advanceBlocks();
+			}
+			if (rights.isEmpty()) {
+				return null;
+			}
+			if (current == null || position == rights.size()) {
+				current = left.next();
+				position = 0;
+				if (current == null) {
+					return null;
+				}
+			}
+			return concat(current, rights.get(position++));
+		}
+
+		private String[] advanceBlocks() throws IOException {
+			while (true) {
+				if (reader != null) {
+					if (current == null || position == block.size()) {
+						current = reader.next();
+						position = 0;
+					}
+					if (current != null) {
+						return concat(block.get(position++), current);
+					}
+					reader.close();
+					reader = null;
+				}
+
+				// Read the next block of left tuples, at least one
+				release();
+				block.clear();
+				String[] tuple;
+				while ((tuple = left.next()) != null) {
+					block.add(tuple);
+					if (!reserve(tuple)) {
+						break;
+					}
+				}
+				if (block.isEmpty() || spill.getTupleCount() == 0) {
+					return null;
+				}
+				reader = spill.read();
+			}
+		}
+
+		void close() {
+			super.close();
+			rights = null;
+			block.clear();
+			release();
+			left.close();
+			right.close();
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+				if (spill != null) {
+					spill.close();
+				}
+			} catch (IOException e) {
+				// The file is deleted on exit
+			}
+		}
+	}
+
+	private static String[] concat(String[] left, String[] right) {
+		String[] out = new String[left.length + right.length];
+		System.arraycopy(left, 0, out, 0, left.length);
+		System.arraycopy(right, 0, out, left.length, right.length);
+		return out;
+	}
+
+	/**
+	 * An iterator over the joined tuples of a hash join, which builds a
+	 * hash table on its smaller input and probes it with the other.
+	 *
+	 * If the build tuples do not fit the budget, the join spills: both
+	 * inputs are split by hash of the join key into partitions on disk, and
+	 * each pair of partitions is joined in turn by another hash join, which
+	 * may split its partitions again with a different hash.
+	 */
+	private class HashJoinNode extends MemoryNode {
+		Node build;
+		Node probe;
+		boolean buildLeft;
+		int buildColumn;
+		int probeColumn;
+		List<BloomFilter> filters;
+		int level;
+		HashMap<String, List<String[]>> table;
+		String[] current;
+		List<String[]> matches;
+		int position;
+		SpillFile[] buildParts;
+		SpillFile[] probeParts;
+		int partition;
+		HashJoinNode child;
+
+		HashJoinNode(Node left, Node right, Join join) {
+			Attribute a = join.getPredicate().getLeftAttribute();
+			Attribute b = join.getPredicate().getRightAttribute();
+			List<Attribute> leftAttributes = join.getLeft().getOutput().getAttributes();
+			if (!leftAttributes.contains(a)) {
+				Attribute c = a;
+				a = b;
+				b = c;
+			}
+
+			// Build on the smaller input
+			buildLeft = join.getLeft().getOutput().getTupleCount() <= join.getRight().getOutput().getTupleCount();
+			Operator buildOp = buildLeft ? join.getLeft() : join.getRight();
+			Operator probeOp = buildLeft ? join.getRight() : join.getLeft();
+			build = buildLeft ? left : right;
+			probe = buildLeft ? right : left;
+			Attribute buildAttribute = buildLeft ? a : b;
+			buildColumn = buildOp.getOutput().getAttributes().indexOf(buildAttribute);
+			probeColumn = probeOp.getOutput().getAttributes().indexOf(buildLeft ? b : a);
+			demand = demand(buildOp);
+
+			// Find the Bloom filters pushed down from this join
+			filters = new ArrayList<BloomFilter>();
+			for (BloomFilter filter : findFilters(probeOp, new ArrayList<BloomFilter>())) {
+				if (filter.getBuildAttribute().equals(buildAttribute)) {
+					filters.add(filter);
+				}
+			}
+		}
+
+		/**
+		 * Create a join of two spilled partitions
+		 */
+		HashJoinNode(HashJoinNode parent, int partition) {
+			this.build = new SpillNode(parent.buildParts[partition]);
+			this.probe = new SpillNode(parent.probeParts[partition]);
+			this.buildLeft = parent.buildLeft;
+			this.buildColumn = parent.buildColumn;
+			this.probeColumn = parent.probeColumn;
+			this.filters = Collections.emptyList();
+			this.budget = parent.budget;
+			this.level = parent.level + 1;
+		}
+
+		void open() throws IOException {
+			// Add the build keys to the Bloom filters which are still empty
+			List<BloomFilter> fill = new ArrayList<BloomFilter>();
+			for (BloomFilter filter : filters) {
+				if (!populated.contains(filter)) {
+					fill.add(filter);
+				}
+			}
+
+			table = new HashMap<String, List<String[]>>();
+			String[] tuple;
+			while ((tuple = build.next()) != null) {
+				String key = tuple[buildColumn];
+				for (BloomFilter filter : fill) {
+					filter.add(key);
+				}
+				if (buildParts != null) {
+					buildParts[partition(key)].append(tuple);
+				} else if (reserve(tuple) || level >= MAX_SPILL_LEVEL) {
+					// Partitioning further cannot split tuples with equal keys
+					List<String[]> list = table.get(key);
+					if (list == null) {
+						list = new ArrayList<String[]>(1);
+						table.put(key, list);
+					}
+					list.add(tuple);
+				} else {
+					spill();
+					buildParts[partition(key)].append(tuple);
+				}
+			}
+			build.close();
+			populated.addAll(fill);
+
+			if (buildParts != null) {
+				while ((tuple = probe.next()) != null) {
+					probeParts[partition(tuple[probeColumn])].append(tuple);
+				}
+				probe.close();
+				partition = -1;
+			}
+		}
+
+		/**
+		 * Move the build tuples held in memory to new partitions on disk
+		 */
+		private void spill() throws IOException {
+			budget.spill();
+			buildParts = new SpillFile[SPILL_PARTITIONS];
+			probeParts = new SpillFile[SPILL_PARTITIONS];
+			for (int i = 0; i < SPILL_PARTITIONS; i++) {
+				buildParts[i] = new SpillFile();
+				probeParts[i] = new SpillFile();
+			}
+			for (List<String[]> list : table.values()) {
+				for (String[] tuple : list) {
+					buildParts[partition(tuple[buildColumn])].append(tuple);
+				}
+			}
+			table = new HashMap<String, List<String[]>>();
+			release();
+		}
+
+		private int partition(String key) {
+			int h = key.hashCode() ^ (level * 0x9e3779b9);
+			h *= 0x85ebca6b;
+			h ^= h >>> 15;
+			return (h & 0x7fffffff) % SPILL_PARTITIONS;
+		}
+
+		String[] advance() throws IOException {
+			if (buildParts != null) {
+				return advancePartitions();
+			}
+			while (matches == null || position == matches.size()) {
+				current = probe.next();
+				if (current == null) {
+					return null;
+				}
+				matches = table.get(current[probeColumn]);
+				position = 0;
+			}
+			String[] match = matches.get(position++);
+			return buildLeft ? concat(match, current) : concat(current, match);
+		}
+
+		private String[] advancePartitions() throws IOException {
+			while (true) {
+				if (child != null) {
+					String[] tuple = child.next();
+					if (tuple != null) {
+						return tuple;
+					}
+					child.close();
+					child = null;
+				}
+				if (++partition == SPILL_PARTITIONS) {
+					return null;
+				}
+				child = new HashJoinNode(this, partition);
+			}
+		}
+
+		void close() {
+			super.close();
+			table = null;
+			release();
+			build.close();
+			probe.close();
+			if (child != null) {
+				child.close();
+			}
+			if (buildParts != null) {
+				try {
+					for (int i = 0; i < SPILL_PARTITIONS; i++) {
+						buildParts[i].close();
+						probeParts[i].close();
+					}
+				} catch (IOException e) {
+					// The files are deleted on exit
+				}
+			}
+		}
+	}
+
+	/**
+	 * An iterator over the left tuples of a semi-join which have a partner
+	 * among the right tuples. Only the distinct keys of the right tuples
+	 * are held; they are kept even if they exceed the budget, as the
+	 * distinct values of one attribute are few next to the tuples.
+	 */
+	private static class SemiJoinNode extends MemoryNode {
+		Node left;
+		Node right;
+		int leftColumn;
+		int rightColumn;
+		HashSet<String> keys;
+
+		SemiJoinNode(Node left, Node right, SemiJoin op) {
+			this.left = left;
+			this.right = right;
+			Attribute a = op.getPredicate().getLeftAttribute();
+			Attribute b = op.getPredicate().getRightAttribute();
+			List<Attribute> leftAttributes = op.getLeft().getOutput().getAttributes();
+			if (!leftAttributes.contains(a)) {
+				Attribute c = a;
+				a = b;
+				b = c;
+			}
+			this.leftColumn = leftAttributes.indexOf(a);
+			Relation in = op.getRight().getOutput();
+			this.rightColumn = in.getAttributes().indexOf(b);
+			this.demand = (long) in.getAttribute(b).getValueCount() * MemoryManager.VALUE_BYTES;
+		}
+
+		void open() throws IOException {
+			keys = new HashSet<String>();
+			String[] tuple;
+			while ((tuple = right.next()) != null) {
+				String key = tuple[rightColumn];
+				if (keys.add(key)) {
+					reserve(new String[] { key });
+				}
+			}
+			right.close();
+		}
+
+		String[] advance() throws IOException {
+			String[] tuple;
+			while ((tuple = left.next()) != null) {
+				if (keys.contains(tuple[leftColumn])) {
+					return tuple;
+				}
+			}
+			return null;
+		}
+
+		void close() {
+			super.close();
+			keys = null;
+			release();
+			left.close();
+			right.close();
+		}
+	}
+
+	/**
+	 * The held output of an operator which is the input of several others.
+	 * The input is read in full when the first reader is opened, and its
+	 * tuples held in memory, or in a spill file once they exceed the
+	 * budget, until every reader is closed.
+	 */
+	private static class SpoolNode extends MemoryNode {
+		Node input;
+		List<String[]> tuples;
+		SpillFile file;
+		int readers;
+
+		SpoolNode(Node input) {
+			this.input = input;
+		}
+
+		void open() throws IOException {
+			tuples = new ArrayList<String[]>();
+			String[] tuple;
+			while ((tuple = input.next()) != null) {
+				if (file == null && !reserve(tuple)) {
+					budget.spill();
+					file = new SpillFile();
+					for (String[] held : tuples) {
+						file.append(held);
+					}
+					tuples = null;
+					release();
+				}
+				if (file != null) {
+					file.append(tuple);
+				} else {
+					tuples.add(tuple);
+				}
+			}
+			input.close();
+		}
+
+		String[] advance() {
+			// The held tuples are read through the readers
+			return null;
+		}
+
+		/**
+		 * Return a new reader of the held tuples
+		 */
+		Node reader() {
+			readers++;
+			return new Node() {
+				int position;
+				SpillFile.Reader reader;
+				boolean done;
+
+				void open() throws IOException {
+					// Opening the spool reads its input, once
+					SpoolNode.this.next();
+					if (file != null) {
+						reader = file.read();
+					}
+				}
+
+				String[] advance() throws IOException {
+					if (reader != null) {
+						return reader.next();
+					}
+					return position < tuples.size() ? tuples.get(position++) : null;
+				}
+
+				void close() {
+					super.close();
+					if (done) {
+						return;
+					}
+					done = true;
+					try {
+						if (reader != null) {
+							reader.close();
+						}
+					} catch (IOException e) {
+						// The file is deleted on exit
+					}
+					if (--readers == 0) {
+						SpoolNode.this.close();
+					}
+				}
+			};
+		}
+
+		void close() {
+			super.close();
+			tuples = null;
+			release();
+			input.close();
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					// The file is deleted on exit
+				}
+			}
+		}
+	}
+
+	private static List<BloomFilter> findFilters(Operator op, List<BloomFilter> filters) {
+		if (op instanceof Scan) {
+			filters.addAll(((Scan) op).getFilters());
+			return filters;
+		}
+		for (Operator input : op.getInputs()) {
+			findFilters(input, filters);
+		}
+		return filters;
+	}
+
+	/**
+	 * An iterator over the joined tuples of an index join, which looks up
+	 * the partners of each outer tuple in the index of the inner relation
+	 */
+	private static class IndexJoinNode extends Node {
+		Snapshot snapshot;
+		Node outer;
+		BPlusTree index;
+		Storage storage;
+		int outerColumn;
+		int[] columns;
+		String[] current;
+		long[] rowIds;
+		int position;
+
+		IndexJoinNode(Node outer, IndexJoin join, Snapshot snapshot) {
+			this.snapshot = snapshot;
+			this.outer = outer;
+			this.index = join.getIndex();
+			this.storage = ((NamedRelation) ((Scan) join.getRight()).getRelation()).getStorage();
+			this.outerColumn = join.getLeft().getOutput().getAttributes().indexOf(join.getPredicate().getLeftAttribute());
+			this.columns = storage == null ? new int[0] : map(join.getRight().getOutput().getAttributes(), storage.getAttributes());
+		}
+
+		void open() throws IOException {
+			if (storage == null) {
+				throw new IOException("Inner relation of index join has no storage");
+			}
+		}
+
+		String[] advance() throws IOException {
+			while (true) {
+				while (rowIds == null || position == rowIds.length) {
+					current = outer.next();
+					if (current == null) {
+						return null;
+					}
+					rowIds = index.search(current[outerColumn]);
+					position = 0;
+				}
+				long rowId = rowIds[position++];
+				String[] stored = snapshot.sees(storage.getVersion(rowId)) ? storage.get(rowId) : null;
+				if (stored != null) {
+					String[] inner = new String[columns.length];
+					for (int i = 0; i < columns.length; i++) {
+						inner[i] = columns[i] < 0 ? Long.toString(rowId) : stored[columns[i]];
+					}
+					return concat(current, inner);
+				}
+			}
+		}
+
+		void close() {
+			super.close();
+			outer.close();
+		}
+	}
+
+	/**
+	 * An iterator which looks up attributes of its input tuples by row id,
+	 * skipping those whose rows have been deleted
+	 */
+	private static class FetchNode extends Node {
+		Node input;
+		int[] inputColumns;
+		int[] rowIdColumns;
+		Storage[] storages;
+		int[] storedColumns;
+
+		FetchNode(Node input, Fetch op) {
+			this.input = input;
+			List<Attribute> in = op.getInput().getOutput().getAttributes();
+			List<Attribute> out = op.getOutput().getAttributes();
+			this.inputColumns = map(out, in);
+			this.rowIdColumns = new int[out.size()];
+			this.storages = new Storage[out.size()];
+			this.storedColumns = new int[out.size()];
+
+			for (int i = 0; i < out.size(); i++) {
+				for (NamedRelation relation : op.getRelations()) {
+					if (inputColumns[i] < 0 && relation.getAttributes().contains(out.get(i))) {
+						rowIdColumns[i] = in.indexOf(relation.getRowIdAttribute());
+						storages[i] = relation.getStorage();
+						storedColumns[i] = storages[i] == null ? -1 : storages[i].getAttributes().indexOf(out.get(i));
+					}
+				}
+			}
+		}
+
+		void open() throws IOException {
+			for (int i = 0; i < storages.length; i++) {
+				if (inputColumns[i] < 0 && (storages[i] == null || rowIdColumns[i] < 0)) {
+					throw new IOException("Attribute " + i + " of fetch cannot be looked up");
+				}
+			}
+		}
+
+		String[] advance() throws IOException {
+			String[] tuple;
+			while ((tuple = input.next()) != null) {
+				String[] out = fetch(tuple);
+				if (out != null) {
+					return out;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Look up the stored attributes of an input tuple, reading each
+		 * stored tuple once
+		 * @return output tuple, or null if a row it refers to has been deleted
+		 */
+		private String[] fetch(String[] tuple) throws IOException {
+			IdentityHashMap<Storage, String[]> read = new IdentityHashMap<Storage, String[]>();
+			String[] out = new String[inputColumns.length];
+			for (int i = 0; i < out.length; i++) {
+				if (inputColumns[i] >= 0) {
+					out[i] = tuple[inputColumns[i]];
+					continue;
+				}
+				String[] stored = read.get(storages[i]);
+				if (stored == null) {
+					stored = storages[i].get(Long.parseLong(tuple[rowIdColumns[i]]));
+					if (stored == null) {
+						return null;
+					}
+					read.put(storages[i], stored);
+				}
+				out[i] = stored[storedColumns[i]];
+			}
+			return out;
+		}
+
+		void close() {
+			super.close();
+			input.close();
+		}
+	}
+
+	/**
+	 * An iterator over the first tuples of its input, which closes the
+	 * input once it has passed them on
+	 */
+	private static class LimitNode extends Node {
+		Node input;
+		int remaining;
+
+		LimitNode(Node input, int count) {
+			this.input = input;
+			this.remaining = count;
+		}
+
+		void open() {
+		}
+
+		String[] advance() throws IOException {
+			if (remaining <= 0) {
+				input.close();
+				return null;
+			}
+			String[] tuple = input.next();
+			if (tuple != null && --remaining == 0) {
+				input.close();
+			}
+			return tuple;
+		}
+
+		void close() {
+			super.close();
+			input.close();
+		}
+	}
+
+	/**
+	 * An iterator over the input tuples in sorted order.
+	 *
+	 * A top-N sort keeps the best n tuples seen so far in a heap whose head
+	 * is the worst of them, so that it holds no more than n tuples. Other
+	 * sorts hold tuples within the budget; when it is full, they sort the
+	 * tuples held and spill them as a run, and finally merge the runs.
+	 */
+	private static class SortNode extends MemoryNode {
+		Node input;
+		int limit;
+		Comparator<String[]> order;
+		List<String[]> sorted;
+		int position;
+		List<SpillFile> runs = new ArrayList<SpillFile>();
+		List<SpillFile.Reader> readers = new ArrayList<SpillFile.Reader>();
+		PriorityQueue<Object[]> merge;
+
+		SortNode(Node input, Sort op) {
+			this.input = input;
+			this.limit = op.getLimit();
+			List<Attribute> in = op.getInput().getOutput().getAttributes();
+			final int[] columns = map(op.getAttributes(), in);
+			final boolean[] descending = op.getDescending();
+			this.order = new Comparator<String[]>() {
+				public int compare(String[] a, String[] b) {
+					for (int i = 0; i < columns.length; i++) {
+						int c = Sort.compareValues(a[columns[i]], b[columns[i]]);
+						if (c != 0) {
+							return descending[i] ? -c : c;
+						}
+					}
+					return 0;
+				}
+			};
+		}
+
+		void open() throws IOException {
+			if (limit >= 0) {
+				openTop();
+				return;
+			}
+
+			List<String[]> held = new ArrayList<String[]>();
+			String[] tuple;
+			while ((tuple = input.next()) != null) {
+				if (!reserve(tuple) && !held.isEmpty()) {
+					budget.spill();
+					runs.add(spill(held));
+					held.clear();
+					release();
+					reserve(tuple);
+				}
+				held.add(tuple);
+			}
+			input.close();
+
+			if (runs.isEmpty()) {
+				Collections.sort(held, order);
+				sorted = held;
+				return;
+			}
+
+			// Merge the runs, taking the least head tuple each time
+			runs.add(spill(held));
+			held.clear();
+			release();
+			merge = new PriorityQueue<Object[]>(runs.size(), new Comparator<Object[]>() {
+				public int compare(Object[] a, Object[] b) {
+					return order.compare((String[]) a[0], (String[]) b[0]);
+				}
+			});
+			for (SpillFile run : runs) {
+				SpillFile.Reader reader = run.read();
+				readers.add(reader);
+				String[] head = reader.next();
+				if (head != null) {
+					merge.add(new Object[] { head, reader });
+				}
+			}
+		}
+
+		private void openTop() throws IOException {
+			PriorityQueue<String[]> top = new PriorityQueue<String[]>(Math.max(1, Math.min(limit, 1 << 16)),
+					Collections.reverseOrder(order));
+			String[] tuple;
+			while ((tuple = input.next()) != null) {
+				if (top.size() < limit) {
+					top.add(tuple);
+				} else if (limit > 0 && order.compare(tuple, top.peek()) < 0) {
+					top.poll();
+					top.add(tuple);
+				}
+			}
+			input.close();
+			sorted = new ArrayList<String[]>(top);
+			Collections.sort(sorted, order);
+		}
+
+		private SpillFile spill(List<String[]> held) throws IOException {
+			Collections.sort(held, order);
+			SpillFile run = new SpillFile();
+			for (String[] tuple : held) {
+				run.append(tuple);
+			}
+			return run;
+		}
+
+		String[] advance() throws IOException {
+			if (merge == null) {
+				return position < sorted.size() ? sorted.get(position++) : null;
+			}
+			Object[] head = merge.poll();
+			if (head == null) {
+				return null;
+			}
+			String[] next = ((SpillFile.Reader) head[1]).next();
+			if (next != null) {
+				merge.add(new Object[] { next, head[1] });
+			}
+			return (String[]) head[0];
+		}
+
+		void close() {
+			super.close();
+			sorted = null;
+			merge = null;
+			release();
+			input.close();
+			try {
+				for (SpillFile.Reader reader : readers) {
+					reader.close();
+				}
+				for (SpillFile run : runs) {
+					run.close();
+				}
+			} catch (IOException e) {
+				// The files are deleted on exit
+			}
+		}
+	}
+
+	/**
+	 * An iterator over the groups of an aggregate.
+	 *
+	 * The input is read on the thread pulling tuples, and handed in batches
+	 * to worker threads, each of which pre-aggregates into a table of its
+	 * own; the tables are merged when the input is exhausted. A small input
+	 * is aggregated by the pulling thread alone.
+	 *
+	 * Each new group reserves memory from the budget. A worker whose group
+	 * does not fit spills the partial state of its groups to partitions on
+	 * disk, split by hash of the group, and starts again with an empty
+	 * table; each partition is then merged and output in turn.
+	 */
+	private static class AggregateNode extends MemoryNode {
+		Node input;
+		int[] groupColumns;
+		int[] valueColumns;
+		Aggregation.Function[] functions;
+		int workers;
+		GroupTable table;
+		int position;
+		boolean output;
+		SpillFile[] parts;
+		int partition;
+
+		AggregateNode(Node input, Aggregate op) {
+			this.input = input;
+			List<Attribute> in = op.getInput().getOutput().getAttributes();
+			this.groupColumns = map(op.getGroups(), in);
+			this.valueColumns = new int[op.getAggregations().size()];
+			this.functions = new Aggregation.Function[valueColumns.length];
+			for (int i = 0; i < valueColumns.length; i++) {
+				Aggregation aggregation = op.getAggregations().get(i);
+				Attribute a = aggregation.getAttribute();
+				this.valueColumns[i] = a == null ? -1 : in.indexOf(a);
+				this.functions[i] = aggregation.getFunction();
+			}
+			int tuples = op.getInput().getOutput().getTupleCount();
+			this.workers = tuples < PARALLEL_THRESHOLD ? 1
+					: Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors());
+		}
+
+		/**
+		 * A table of groups, pre-aggregated by one thread
+		 */
+		private class Worker {
+			GroupTable table = new GroupTable(groupColumns, valueColumns, functions);
+			long reserved;
+
+			void add(String[] tuple) throws IOException {
+				long bytes;
+				try {
+					bytes = table.add(tuple);
+				} catch (NumberFormatException e) {
+					throw new IOException("Aggregated value is not a number: " + e.getMessage());
+				}
+				if (bytes > 0 && budget != null) {
+					if (budget.reserve(bytes)) {
+						reserved += bytes;
+					} else {
+						flush();
+					}
+				}
+			}
+
+			/**
+			 * Spill the partial state of every group
+			 */
+			void flush() throws IOException {
+				synchronized (AggregateNode.this) {
+					if (parts == null) {
+						budget.spill();
+						parts = new SpillFile[SPILL_PARTITIONS];
+						for (int i = 0; i < SPILL_PARTITIONS; i++) {
+							parts[i] = new SpillFile();
+						}
+					}
+					for (int g = 0; g < table.size(); g++) {
+						String[] partial = table.partial(g);
+						parts[partition(partial)].append(partial);
+					}
+				}
+				table.clear();
+				release();
+			}
+
+			void release() {
+				if (budget != null) {
+					budget.release(reserved);
+				}
+				reserved = 0;
+			}
+		}
+
+		private int partition(String[] partial) {
+			int h = 0;
+			for (int i = 0; i < groupColumns.length; i++) {
+				h = 31 * h + partial[i].hashCode();
+			}
+			h *= 0x9e3779b9;
+			h ^= h >>> 16;
+			return (h & 0x7fffffff) % SPILL_PARTITIONS;
+		}
+
+		void open() throws IOException {
+			List<Worker> tables = workers == 1 ? aggregate() : aggregateInParallel();
+			input.close();
+
+			if (parts == null) {
+				// Merge the tables, whose memory is already reserved
+				table = tables.get(0).table;
+				for (int i = 1; i < tables.size(); i++) {
+					table.merge(tables.get(i).table);
+					tables.get(i).table = null;
+				}
+			} else {
+				// Spill every table, to merge a partition at a time
+				for (Worker worker : tables) {
+					worker.flush();
+				}
+				table = new GroupTable(groupColumns, valueColumns, functions);
+				partition = -1;
+			}
+			for (Worker worker : tables) {
+				reserved += worker.reserved;
+			}
+		}
+
+		/**
+		 * Aggregate the input on the pulling thread
+		 */
+		private List<Worker> aggregate() throws IOException {
+			Worker worker = new Worker();
+			String[] tuple;
+			while ((tuple = input.next()) != null) {
+				worker.add(tuple);
+			}
+			return Collections.singletonList(worker);
+		}
+
+		/**
+		 * Hand the input in batches to worker threads
+		 */
+		private List<Worker> aggregateInParallel() throws IOException {
+			final List<Worker> tables = new ArrayList<Worker>();
+			final BlockingQueue<List<String[]>> batches = new ArrayBlockingQueue<List<String[]>>(2 * workers);
+			final CountDownLatch done = new CountDownLatch(workers);
+			final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+			for (int i = 0; i < workers; i++) {
+				final Worker worker = new Worker();
+				tables.add(worker);
+				WORKERS.execute(() -> {
+					try {
+						List<String[]> batch;
+						// An empty batch ends the input
+						while (!(batch = batches.take()).isEmpty()) {
+							if (failure.get() != null) {
+								continue;
+							}
+							try {
+								for (String[] tuple : batch) {
+									worker.add(tuple);
+								}
+							} catch (IOException e) {
+								failure.compareAndSet(null, e);
+							} catch (RuntimeException e) {
+								failure.compareAndSet(null, new IOException(e.toString(), e));
+							}
+						}
+					} catch (InterruptedException e) {
+						failure.compareAndSet(null, new InterruptedIOException("Interrupted while aggregating"));
+					} finally {
+						done.countDown();
+					}
+				});
+			}
+
+			try {
+				List<String[]> batch = new ArrayList<String[]>(BATCH_SIZE);
+				String[] tuple;
+				while (failure.get() == null && (tuple = input.next()) != null) {
+					batch.add(tuple);
+					if (batch.size() == BATCH_SIZE) {
+						batches.put(batch);
+						batch = new ArrayList<String[]>(BATCH_SIZE);
+					}
+				}
+				if (!batch.isEmpty()) {
+					batches.put(batch);
+				}
+			} catch (IOException e) {
+				failure.compareAndSet(null, e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure.compareAndSet(null, new InterruptedIOException("Interrupted while aggregating"));
+				batches.clear();
+			}
+
+			// Stop the workers, which skip any batches left once the aggregate has failed
+			for (int i = 0; i < workers; i++) {
+				while (!batches.offer(Collections.<String[]>emptyList())) {
+					Thread.yield();
+				}
+			}
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure.compareAndSet(null, new InterruptedIOException("Interrupted while aggregating"));
+			}
+			if (failure.get() != null) {
+				for (Worker worker : tables) {
+					worker.release();
+				}
+				throw failure.get();
+			}
+			return tables;
+		}
+
+		String[] advance() throws IOException {
+			while (true) {
+				if (position < table.size()) {
+					output = true;
+					return table.result(position++);
+				}
+				if (parts == null || partition == SPILL_PARTITIONS - 1) {
+					break;
+				}
+
+				// Merge the next partition, holding it even if it exceeds the budget
+				table.clear();
+				release();
+				position = 0;
+				SpillFile.Reader reader = parts[++partition].read();
+				try {
+					String[] partial;
+					while ((partial = reader.next()) != null) {
+						long bytes = table.merge(partial);
+						if (bytes > 0 && budget != null && budget.reserve(bytes)) {
+							reserved += bytes;
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			}
+
+			// Aggregating no tuples without grouping attributes gives one tuple
+			if (!output && groupColumns.length == 0) {
+				output = true;
+				return table.emptyResult();
+			}
+			return null;
+		}
+
+		void close() {
+			super.close();
+			table = null;
+			release();
+			input.close();
+			if (parts != null) {
+				try {
+					for (SpillFile part : parts) {
+						part.close();
+					}
+				} catch (IOException e) {
+					// The files are deleted on exit
+				}
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#enter(sjdb.Operator)
+	 */
+	public boolean enter(Operator op) {
+		// A shared input is built once, and read again from its spool
+		SpoolNode spool = spools.get(op);
+		if (spool == null) {
+			return true;
+		}
+		stack.push(spool.reader());
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#leave(sjdb.Operator)
+	 */
+	public void leave(Operator op) {
+		if (shared.contains(op)) {
+			SpoolNode spool = new SpoolNode(stack.pop());
+			spool.demand = demand(op);
+			consumers.add(spool);
+			spools.put(op, spool);
+			stack.push(spool.reader());
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#visit(sjdb.Scan)
+	 */
+	public void visit(Scan op) {
+		stack.push(new ScanNode(op));
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#visit(sjdb.IndexScan)
+	 */
+	public void visit(IndexScan op) {
+		stack.push(new LookupNode(op));
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#visit(sjdb.BitmapScan)
+	 */
+	public void visit(BitmapScan op) {
+		stack.push(new LookupNode(op));
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#visit(sjdb.Project)
+	 */
+	public void visit(Project op) {
+		stack.push(new ProjectNode(stack.pop(), op.getOutput().getAttributes(), op.getInput().getOutput().getAttributes()));
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#visit(sjdb.Select)
+	 */
+	public void visit(Select op) {
+		Node input = stack.pop();
+		// Let a scan directly below skip the tuples which cannot satisfy the predicate
+		if (input instanceof ScanNode && op.getPredicate().equalsValue() && ((ScanNode) input).predicate == null)
+			((ScanNode) input).predicate = op.getPredicate();
+		stack.push(new SelectNode(input, op));
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#visit(sjdb.Product)
+	 */
+	public void visit(Product op) {
+		Node right = stack.pop();
+		Node left = stack.pop();
+		ProductNode node = new ProductNode(left, right);
+		node.demand = demand(op.getRight());
+		consumers.add(node);
+		stack.push(node);
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#visit(sjdb.Join)
+	 */
+	public void visit(Join op) {
+		Node right = stack.pop();
+		Node left = stack.pop();
+		HashJoinNode node = new HashJoinNode(left, right, op);
+		consumers.add(node);
+		stack.push(node);
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#visit(sjdb.SemiJoin)
+	 */
+	public void visit(SemiJoin op) {
+		Node right = stack.pop();
+		Node left = stack.pop();
+		SemiJoinNode node = new SemiJoinNode(left, right, op);
+		consumers.add(node);
+		stack.push(node);
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#visit(sjdb.IndexJoin)
+	 */
+	public void visit(IndexJoin op) {
+		// The inner relation is read through its index, not scanned
+		stack.pop();
+		Node outer = stack.pop();
+		stack.push(new IndexJoinNode(outer, op, snapshot));
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#visit(sjdb.Fetch)
+	 */
+	public void visit(Fetch op) {
+		stack.push(new FetchNode(stack.pop(), op));
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#visit(sjdb.Limit)
+	 */
+	public void visit(Limit op) {
+		stack.push(new LimitNode(stack.pop(), op.getCount()));
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#visit(sjdb.Sort)
+	 */
+	public void visit(Sort op) {
+		SortNode node = new SortNode(stack.pop(), op);
+		node.demand = demand(op);
+		consumers.add(node);
+		stack.push(node);
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#visit(sjdb.Aggregate)
+	 */
+	public void visit(Aggregate op) {
+		AggregateNode node = new AggregateNode(stack.pop(), op);
+		node.demand = demand(op);
+		consumers.add(node);
+		stack.push(node);
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.PlanVisitor#visit(sjdb.Exchange)
+	 */
+	public void visit(Exchange op) {
+		// In a single process every tuple is already where it is needed
+	}
+}
@@ -31,4 +31,67 @@ public interface PlanVisitor {
 	 * @param op
 	 */
 	public void visit(Join op);
+	/**
+	 * Visit a Fetch operator.
+	 * @param op Fetch operator to be visited
+	 */
+	public void visit(Fetch op);
+	/**
+	 * Visit an IndexScan operator.
+	 * @param op IndexScan operator to be visited
+	 */
+	public void visit(IndexScan op);
+	/**
+	 * Visit an IndexJoin operator.
+	 * @param op IndexJoin operator to be visited
+	 */
+	public void visit(IndexJoin op);
+	/**
+	 * Visit a BitmapScan operator.
+	 * @param op BitmapScan operator to be visited
+	 */
+	public void visit(BitmapScan op);
+	/**
+	 * Visit a Limit operator.
+	 * @param op Limit operator to be visited
+	 */
+	public void visit(Limit op);
+	/**
+	 * Visit a Sort operator.
+	 * @param op Sort operator to be visited
+	 */
+	public void visit(Sort op);
+	/**
+	 * Visit an Aggregate operator.
+	 * @param op Aggregate operator to be visited
+	 */
+	public void visit(Aggregate op);
+	/**
+	 * Visit a SemiJoin operator.
+	 * @param op SemiJoin operator to be visited
+	 */
+	public void visit(SemiJoin op);
+	/**
+	 * Visit an Exchange operator.
+	 * @param op Exchange operator to be visited
+	 */
+	public void visit(Exchange op);
+	/**
+	 * Decide whether to visit an input of an operator, with the operators
+	 * below it. An input may be shared by several operators, such as an
+	 * input reduced by semi-joins which reduces others in turn, and a
+	 * visitor may then handle it once.
+	 * @param op Input operator
+	 * @return true to visit the input, or false if the visitor has handled it
+	 */
+	public default boolean enter(Operator op) {
+		return true;
+	}
+	/**
+	 * Finish visiting an input of an operator, once it has been visited
+	 * with the operators below it.
+	 * @param op Input operator
+	 */
+	public default void leave(Operator op) {
+	}
 }
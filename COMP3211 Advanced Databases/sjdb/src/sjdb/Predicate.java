@@ -2,10 +2,14 @@ package sjdb;
 
 /**
  * This class is used to represent the predicates associated with 
- * joins and select operators. Note that, while a string value is
- * required for predicates of the form attr=value, this values is 
- * only used by the toString() method; a future version of
- * Attribute which uses more expressive synopses may change this.
+ * joins and select operators. The value of a predicate of the form
+ * attr=value is resolved to its id in the StringDictionary when the
+ * predicate is created, so that it is evaluated against value ids as an
+ * int comparison. The value is looked up without being added, so that
+ * the values of queries and of bound parameters do not fill the
+ * dictionary; a value which has no id is compared as a string.
+ * A predicate of the form attr=? has a parameter in place of its value,
+ * and is bound to a value before it is evaluated.
  * 
  * @author nmg
  */
@@ -13,6 +17,8 @@ public class Predicate {
 	private Attribute leftAttribute;
 	private Attribute rightAttribute;
 	private String rightValue;
+	private int rightValueId = -1;
+	private int parameter = -1;
 
 	/**
 	 * Create a predicate of the form attr=attr
@@ -32,14 +38,53 @@ public class Predicate {
 	public Predicate(Attribute left, String value) {
 		this.leftAttribute = left;
 		this.rightValue = value;
+		this.rightValueId = StringDictionary.getInstance().getId(value);
 	}
 
 	/**
-	 * Return true if this predicate is of the form attr=value
+	 * Create a predicate of the form attr=? whose value is bound later
+	 * @param left
+	 * @param parameter Index of the parameter among those of its query
+	 */
+	public Predicate(Attribute left, int parameter) {
+		this.leftAttribute = left;
+		this.parameter = parameter;
+	}
+
+	/**
+	 * Return true if this predicate is of the form attr=value or attr=?
 	 * @return
 	 */
 	public boolean equalsValue() {
-		return this.rightValue != null;
+		return this.rightValue != null || this.parameter >= 0;
+	}
+
+	/**
+	 * Return true if this predicate is of the form attr=?
+	 * @return
+	 */
+	public boolean isParameter() {
+		return this.parameter >= 0;
+	}
+
+	/**
+	 * Return the index of the parameter for predicates of the form attr=?
+	 * @return parameter index, or -1 for other predicates
+	 */
+	public int getParameter() {
+		return this.parameter;
+	}
+
+	/**
+	 * Bind the parameter of a predicate of the form attr=? to a value
+	 * @param values Values of the parameters of the query
+	 * @return predicate of the form attr=value, or this predicate if it has no parameter
+	 */
+	public Predicate bind(String[] values) {
+		if (this.parameter < 0) {
+			return this;
+		}
+		return new Predicate(this.leftAttribute, values[this.parameter]);
 	}
 	
 	/**
@@ -60,17 +105,48 @@ public class Predicate {
 	
 	/**
 	 * Return VALUE for predicates of the form attr=VALUE
-	 * @return right value
+	 * @return right value, or null for predicates of the form attr=?
 	 */
 	public String getRightValue() {
 		return this.rightValue;
 	}
 	
+	/**
+	 * Return the dictionary id of VALUE for predicates of the form attr=VALUE
+	 * @return right value id, or -1 for predicates of the form attr=attr and
+	 * for values which are not in the dictionary
+	 */
+	public int getRightValueId() {
+		return this.rightValueId;
+	}
+	
+	/**
+	 * Return true if a value satisfies a predicate of the form attr=value
+	 * whose value has an id. A predicate whose value has no id is matched
+	 * with matches(String).
+	 * @param valueId Dictionary id of the value
+	 * @return true if the value equals VALUE
+	 */
+	public boolean matches(int valueId) {
+		return valueId == this.rightValueId && valueId >= 0;
+	}
+	
+	/**
+	 * Return true if a value satisfies a predicate of the form attr=value
+	 * @param value Value
+	 * @return true if the value equals VALUE
+	 */
+	public boolean matches(String value) {
+		return this.rightValue.equals(value);
+	}
+	
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
 	public String toString() {
-		if (this.rightValue == null) {
+		if (this.parameter >= 0) {
+			return this.leftAttribute.toString() + "=?";
+		} else if (this.rightValue == null) {
 			return this.leftAttribute.toString() + "=" + this.rightAttribute.toString(); 
 		} else {
 			return this.leftAttribute.toString() + "=\"" + this.rightValue + "\"";
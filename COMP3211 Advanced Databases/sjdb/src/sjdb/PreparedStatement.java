@@ -0,0 +1,198 @@
+package sjdb;
+
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * This class holds a query which is parsed and optimised once, and then
+ * executed many times with different values for its parameters, which
+ * are predicates of the form attr=? in the WHERE line.
+ *
+ * Each execution binds the parameters in a copy of the optimised plan, so
+ * the choice of scans, indexes and join order is made without knowing the
+ * values, from the value counts in the catalogue. The plan reads any
+ * materialised views which make it cheaper. The statistics of every
+ * relation are read from one snapshot, and each execution reads the
+ * tuples seen by a snapshot of its own. Copying the plan keeps
+ * executions independent: a statement may be executed by several threads
+ * at once, and the Bloom filters of one execution are not filled by
+ * another.
+ */
+public class PreparedStatement {
+	private Operator plan;
+	private int parameters;
+
+	/**
+	 * Prepare a query
+	 * @param catalogue Catalogue
+	 * @param query Query in the format read by QueryParser
+	 * @throws Exception if the query cannot be parsed
+	 */
+	public PreparedStatement(Catalogue catalogue, String query) throws Exception {
+		QueryParser parser = new QueryParser(catalogue, new StringReader(query));
+		Operator parsed = parser.parse();
+		this.parameters = parser.getParameterCount();
+
+		// Plan from the statistics of a single snapshot
+		try (Snapshot snapshot = Snapshot.open()) {
+			Operator canonical = new ViewRewriter(catalogue, snapshot).rewrite(parsed);
+			canonical.accept(new Estimator(snapshot));
+			Optimiser optimiser = new Optimiser(catalogue);
+			optimiser.setVerbose(false);
+			optimiser.setSnapshot(snapshot);
+			this.plan = optimiser.optimiseForExecution(canonical);
+		}
+	}
+
+	/**
+	 * Return the optimised plan, with its parameters unbound
+	 * @return plan
+	 */
+	public Operator getPlan() {
+		return this.plan;
+	}
+
+	/**
+	 * Return the number of parameters
+	 * @return parameter count
+	 */
+	public int getParameterCount() {
+		return this.parameters;
+	}
+
+	/**
+	 * Bind the parameters in a copy of the optimised plan
+	 * @param values Value of each parameter, in order
+	 * @return plan
+	 */
+	public Operator bind(String... values) {
+		if (values.length != parameters) {
+			throw new IllegalArgumentException("Statement has " + parameters + " parameters but " + values.length + " values were given");
+		}
+		Binder binder = new Binder(values);
+		this.plan.accept(binder);
+		return binder.stack.pop();
+	}
+
+	/**
+	 * Execute the statement
+	 * @param values Value of each parameter, in order
+	 * @return Cursor over the result tuples
+	 */
+	public ResultCursor execute(String... values) {
+		return PlanExecutor.execute(bind(values));
+	}
+
+	/**
+	 * Execute the statement within a grant of memory
+	 * @param memory Memory manager
+	 * @param values Value of each parameter, in order
+	 * @return Cursor over the result tuples
+	 */
+	public ResultCursor execute(MemoryManager memory, String... values) {
+		return PlanExecutor.execute(bind(values), memory);
+	}
+
+	/**
+	 * A visitor which copies a plan, binding the parameters of its predicates.
+	 * An operator shared by several others is copied once, and the copy shared.
+	 */
+	private static class Binder implements PlanVisitor {
+		private String[] values;
+		private ArrayDeque<Operator> stack = new ArrayDeque<Operator>();
+		private IdentityHashMap<Operator, Operator> copies = new IdentityHashMap<Operator, Operator>();
+
+		Binder(String[] values) {
+			this.values = values;
+		}
+
+		public boolean enter(Operator op) {
+			Operator copy = copies.get(op);
+			if (copy == null) {
+				return true;
+			}
+			stack.push(copy);
+			return false;
+		}
+
+		public void leave(Operator op) {
+			copies.put(op, stack.peek());
+		}
+
+		private void copy(Scan op, Scan scan) {
+			scan.setRowIds(op.emitsRowIds());
+			scan.setPartitions(op.getPartitions());
+			for (BloomFilter filter : op.getFilters()) {
+				scan.addFilter(filter.copy());
+			}
+			stack.push(scan);
+		}
+
+		public void visit(Scan op) {
+			copy(op, new Scan((NamedRelation) op.getRelation()));
+		}
+
+		public void visit(IndexScan op) {
+			copy(op, new IndexScan((NamedRelation) op.getRelation(), op.getPredicate().bind(values)));
+		}
+
+		public void visit(BitmapScan op) {
+			List<Predicate> predicates = new ArrayList<Predicate>();
+			for (Predicate p : op.getPredicates()) {
+				predicates.add(p.bind(values));
+			}
+			copy(op, new BitmapScan((NamedRelation) op.getRelation(), predicates));
+		}
+
+		public void visit(Project op) {
+			stack.push(new Project(stack.pop(), op.getAttributes()));
+		}
+
+		public void visit(Select op) {
+			stack.push(new Select(stack.pop(), op.getPredicate().bind(values)));
+		}
+
+		public void visit(Product op) {
+			Operator right = stack.pop();
+			stack.push(new Product(stack.pop(), right));
+		}
+
+		public void visit(Join op) {
+			Operator right = stack.pop();
+			stack.push(new Join(stack.pop(), right, op.getPredicate()));
+		}
+
+		public void visit(SemiJoin op) {
+			Operator right = stack.pop();
+			stack.push(new SemiJoin(stack.pop(), right, op.getPredicate()));
+		}
+
+		public void visit(IndexJoin op) {
+			Scan inner = (Scan) stack.pop();
+			stack.push(new IndexJoin(stack.pop(), inner, op.getPredicate()));
+		}
+
+		public void visit(Fetch op) {
+			stack.push(new Fetch(stack.pop(), op.getAttributes(), op.getRelations()));
+		}
+
+		public void visit(Limit op) {
+			stack.push(new Limit(stack.pop(), op.getCount()));
+		}
+
+		public void visit(Sort op) {
+			stack.push(new Sort(stack.pop(), op.getAttributes(), op.getDescending(), op.getLimit()));
+		}
+
+		public void visit(Aggregate op) {
+			stack.push(new Aggregate(stack.pop(), op.getGroups(), op.getAggregations()));
+		}
+
+		public void visit(Exchange op) {
+			stack.push(new Exchange(stack.pop(), op.getKind(), op.getPartitioning()));
+		}
+	}
+}
@@ -18,18 +18,35 @@ import java.util.regex.Matcher;
  * FROM <relation name>,<relation name>,...,<relation name>
  * WHERE <predicate>,<predicate>,...,<predicate>
  * 
- * where <predicate> is of one of the following two forms:
+ * where <predicate> is of one of the following three forms:
  * 
  * <attribute name>="<value>"
+ * <attribute name>=?
  * <attribute name>=<attribute name>
  * 
+ * The second form is a parameter of a prepared statement, whose value is
+ * bound when the statement is executed. Parameters are numbered from 0 in
+ * the order in which they appear.
+ * 
  * The WHERE line (corresponding to the select operators) is optional and 
- * may be omitted; the other lines are required.
+ * may be omitted; the other lines are required. It may be followed by 
+ * any of the optional lines
+ * 
+ * GROUP BY <attribute name>,...,<attribute name>
+ * ORDER BY <attribute name> [DESC],...,<attribute name> [DESC]
+ * LIMIT <number>
+ * 
+ * An attribute name in the SELECT and ORDER BY lines may instead be an 
+ * aggregation of the form COUNT(*) or <function>(<attribute name>), where 
+ * <function> is one of COUNT, SUM, AVG, MIN and MAX. A query with a GROUP BY 
+ * line or an aggregation outputs one tuple for each group, and may only 
+ * select grouping attributes and aggregations.
  * 
  * To form the canonical query, a left-deep tree of cartesian
  * products over scans over the named relations is built, following by a series
- * of select with the given predicates, and then a single project 
- * with the given attributes.
+ * of select with the given predicates, then an aggregate over the groups,
+ * then a sort by the given attributes, then a single project with the given
+ * attributes, and then a limit.
  * 
  * Note that the author of this class was extremely lazy, and so the parsing 
  * is unforgiving and may be sensitive to extraneous whitespace. In particular, 
@@ -41,6 +58,10 @@ import java.util.regex.Matcher;
 public class QueryParser {
 	private BufferedReader reader;
 	private Catalogue catalogue;
+	private int parameters;
+	private static final Pattern PARAMETER = Pattern.compile("(\\w+)=\\?");
+	private static final Pattern AGGREGATION = Pattern.compile("(COUNT|SUM|AVG|MIN|MAX)\\(\\s*(\\*|\\w+)\\s*\\)",
+			Pattern.CASE_INSENSITIVE);
 
 	/**
 	 * Create a new QueryParser. This class is intended to be used once only;
@@ -63,22 +84,43 @@ public class QueryParser {
 	 * @throws Exception
 	 */
 	public Operator parse() throws Exception {
-		Operator product, select, project;
+		Operator product, select, aggregate, sort, project;
 		String projectLine = this.reader.readLine();
 		String productLine = this.reader.readLine();
-		String selectLine = this.reader.readLine();
+		String selectLine = null, groupLine = null, sortLine = null, limitLine = null;
+		String line;
 		
-		product = parseProduct(productLine);
-		if (selectLine != null && selectLine.startsWith("WHERE")) {
-			select = parseSelect(selectLine, product); 
-			project = parseProject(projectLine, select);
-		} else {
-			project = parseProject(projectLine, product);
+		while ((line = this.reader.readLine()) != null && !line.trim().isEmpty()) {
+			if (line.startsWith("WHERE"))
+				selectLine = line;
+			else if (line.startsWith("GROUP BY"))
+				groupLine = line;
+			else if (line.startsWith("ORDER BY"))
+				sortLine = line;
+			else if (line.startsWith("LIMIT"))
+				limitLine = line;
 		}
 		
+		product = parseProduct(productLine);
+		select = selectLine == null ? product : parseSelect(selectLine, product);
+		aggregate = groupLine == null && !AGGREGATION.matcher(projectLine).find() ? select
+				: parseAggregate(projectLine, groupLine, sortLine, select);
+		sort = sortLine == null ? aggregate : parseSort(sortLine, aggregate);
+		project = parseProject(projectLine, sort);
+		
+		if (limitLine != null)
+			return new Limit(project, Integer.parseInt(limitLine.split("LIMIT\\s+")[1].trim()));
 		return project;
 	}
 	
+	/**
+	 * Return the number of parameters in the parsed query
+	 * @return
+	 */
+	public int getParameterCount() {
+		return this.parameters;
+	}
+	
 	/**
 	 * Parse a "FROM ..." line 
 	 * @param line
@@ -157,10 +199,13 @@ public class QueryParser {
 	private Operator buildSelect(String pred, Operator op) {
 		Pattern p = Pattern.compile("(\\w+)=\"(\\w+)\"");
 		Matcher m = p.matcher(pred);
+		Matcher param = PARAMETER.matcher(pred);
 		Predicate ret;
 		
 		if (m.matches()) {
 			ret = new Predicate(new Attribute(m.group(1)), m.group(2));
+		} else if (param.matches()) {
+			ret = new Predicate(new Attribute(param.group(1)), this.parameters++);
 		} else {
 			String[] atts = pred.split("=");
 			ret = new Predicate(new Attribute(atts[0]), new Attribute(atts[1]));
@@ -169,6 +214,103 @@ public class QueryParser {
 		return new Select(op, ret);
 	}
 	
+	/**
+	 * Build an aggregate operator grouping by the attributes of a
+	 * "GROUP BY ..." line, and computing the aggregations in the "SELECT ..."
+	 * and "ORDER BY ..." lines.
+	 * @param projectLine
+	 * @param groupLine
+	 * @param sortLine
+	 * @param op
+	 * @return
+	 * @throws Exception if a selected attribute is neither grouped nor aggregated
+	 */
+	private Operator parseAggregate(String projectLine, String groupLine, String sortLine, Operator op) throws Exception {
+		ArrayList<Attribute> groups = new ArrayList<Attribute>();
+		ArrayList<Aggregation> aggregations = new ArrayList<Aggregation>();
+		
+		if (groupLine != null) {
+			for (String name : groupLine.split("GROUP BY\\s+")[1].split("\\s*,\\s*")) {
+				groups.add(new Attribute(name.trim()));
+			}
+		}
+		
+		// Find the aggregations, in the order in which they first appear
+		for (String line : new String[] { projectLine, sortLine }) {
+			Matcher m = AGGREGATION.matcher(line == null ? "" : line);
+			while (m.find()) {
+				Aggregation aggregation = buildAggregation(m);
+				boolean found = false;
+				for (Aggregation a : aggregations) {
+					found |= a.toString().equals(aggregation.toString());
+				}
+				if (!found)
+					aggregations.add(aggregation);
+			}
+		}
+		
+		// Every other selected attribute must be grouped
+		String[] atts = projectLine.split("SELECT\\s+")[1].split("\\s*,\\s*");
+		for (String att : atts) {
+			att = att.trim();
+			if (!att.equals("*") && !AGGREGATION.matcher(att).matches() && !groups.contains(new Attribute(att)))
+				throw new Exception("Attribute " + att + " is neither grouped nor aggregated");
+		}
+		
+		return new Aggregate(op, groups, aggregations);
+	}
+	
+	/**
+	 * Build an aggregation from a match of its pattern.
+	 * @param m
+	 * @return
+	 * @throws Exception if an aggregation other than COUNT is applied to *
+	 */
+	private Aggregation buildAggregation(Matcher m) throws Exception {
+		Aggregation.Function function = Aggregation.Function.valueOf(m.group(1).toUpperCase());
+		if (m.group(2).equals("*") && function != Aggregation.Function.COUNT)
+			throw new Exception(function + " cannot be applied to *");
+		return new Aggregation(function, m.group(2).equals("*") ? null : new Attribute(m.group(2)));
+	}
+	
+	/**
+	 * Build the attribute named in a SELECT or ORDER BY line, which is the
+	 * output attribute of an aggregation if one is named.
+	 * @param name
+	 * @return
+	 */
+	private Attribute parseAttribute(String name) {
+		Matcher m = AGGREGATION.matcher(name);
+		if (m.matches()) {
+			try {
+				return buildAggregation(m).getOutputAttribute();
+			} catch (Exception e) {
+				// Reported when the aggregate is built
+			}
+		}
+		return new Attribute(name);
+	}
+	
+	/**
+	 * Parse an "ORDER BY ..." line and build the corresponding sort operator.
+	 * @param line
+	 * @param op
+	 * @return
+	 */
+	private Operator parseSort(String line, Operator op) {
+		String[] keys = line.split("ORDER BY\\s+")[1].split("\\s*,\\s*");
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		boolean[] descending = new boolean[keys.length];
+		
+		for (int i=0; i<keys.length; i++) {
+			String[] words = keys[i].trim().split("\\s+");
+			attributes.add(parseAttribute(words[0]));
+			descending[i] = words.length > 1 && words[1].equalsIgnoreCase("DESC");
+		}
+		
+		return new Sort(op, attributes, descending, -1);
+	}
+	
 	/**
 	 * Parse a "SELECT ..." line and build the corresponding project operator.
 	 * @param line
@@ -184,7 +326,7 @@ public class QueryParser {
 			ArrayList<Attribute> attributes = new ArrayList<Attribute>();
 
 			for (int i=0; i<attr.length; i++) {
-				attributes.add(new Attribute(attr[i].trim()));
+				attributes.add(parseAttribute(attr[i].trim()));
 			}
 
 			return new Project(op, attributes);
@@ -0,0 +1,428 @@
+package sjdb;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * This class serves queries over a catalogue which is loaded once, to many
+ * concurrent sessions connected to a socket on the loopback interface.
+ * Each session runs on its own thread, and each query is parsed, estimated,
+ * optimised and executed on the session's thread with its own operators,
+ * so that sessions share nothing but the catalogue, which is only read
+ * except to add and drop materialised views.
+ *
+ * A session sends a query as lines in the format read by QueryParser,
+ * followed by an empty line. The response is a line of attribute names,
+ * a line of comma-separated values for each tuple, and a final line
+ * "OK n" giving the number of tuples. A query prefixed by EXPLAIN is only
+ * optimised, and its response is "PLAN p" followed by "OK 0". A query which
+ * fails gets the single line "ERROR message". The line QUIT ends the session.
+ *
+ * A query with parameters is prepared by sending "PREPARE name" on its
+ * first line, which is answered by "PREPARED name n" giving the number of
+ * parameters, and "OK 0". It is executed by the line "EXECUTE name v1,v2"
+ * with a value for each parameter, which skips parsing and optimisation.
+ * Prepared statements belong to the session.
+ *
+ * A materialised view is created by sending "CREATE MATERIALIZED VIEW name"
+ * on the first line of the query which defines it, which is answered by
+ * "CREATED name n" giving the number of tuples in the view, and "OK 0".
+ * The view is stored in a temporary heap file, and is read by later queries
+ * of every session in place of the relations it joins when that is cheaper.
+ * View names are made of letters, digits and underscores, as relation
+ * names in queries are. A view is dropped by sending the line "DROP
+ * MATERIALIZED VIEW name", answered by "DROPPED name" and "OK 0", which
+ * deletes its file, as closing the server does for every view it created.
+ */
+public class QueryServer implements Closeable {
+	/**
+	 * Default port on which the server listens
+	 */
+	public static final int DEFAULT_PORT = 5433;
+
+	private static final String CREATE_VIEW = "CREATE MATERIALIZED VIEW ";
+	private static final String DROP_VIEW = "DROP MATERIALIZED VIEW ";
+	private static final Pattern VIEW_NAME = Pattern.compile("\\w+");
+	// Number of frames of the buffer pool through which views are read
+	private static final int VIEW_FRAMES = 1024;
+
+	private Catalogue catalogue;
+	private MemoryManager memory;
+	private BufferPool viewPool = new BufferPool(VIEW_FRAMES);
+	private Map<String, File> viewFiles = new ConcurrentHashMap<String, File>();
+	private ServerSocket server;
+	private ExecutorService sessions;
+	private Thread acceptor;
+	private Set<Socket> open = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	private AtomicLong queries = new AtomicLong();
+
+	/**
+	 * Create a new server listening on the loopback interface. No sessions
+	 * are accepted until the server is started.
+	 * @param catalogue Catalogue, to which only views may be added while the server runs
+	 * @param port Port, or 0 for any free port
+	 * @throws IOException
+	 */
+	public QueryServer(Catalogue catalogue, int port) throws IOException {
+		this(catalogue, port, null);
+	}
+
+	/**
+	 * Create a new server listening on the loopback interface, whose
+	 * queries are executed within grants from a memory manager
+	 * @param catalogue Catalogue, to which only views may be added while the server runs
+	 * @param port Port, or 0 for any free port
+	 * @param memory Memory manager, or null to leave memory unlimited
+	 * @throws IOException
+	 */
+	public QueryServer(Catalogue catalogue, int port, MemoryManager memory) throws IOException {
+		this.catalogue = catalogue;
+		this.memory = memory;
+		this.server = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+		this.sessions = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger n = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "sjdb-session-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Return the port on which the server listens
+	 * @return port
+	 */
+	public int getPort() {
+		return this.server.getLocalPort();
+	}
+
+	/**
+	 * Return the number of queries answered so far
+	 * @return query count
+	 */
+	public long getQueryCount() {
+		return this.queries.get();
+	}
+
+	/**
+	 * Start accepting sessions on a background thread
+	 */
+	public synchronized void start() {
+		if (acceptor != null) {
+			return;
+		}
+		acceptor = new Thread(new Runnable() {
+			public void run() {
+				while (!server.isClosed()) {
+					try {
+						Socket socket = server.accept();
+						socket.setTcpNoDelay(true);
+						open.add(socket);
+						sessions.execute(new Session(socket));
+					} catch (IOException e) {
+						// The server socket has been closed
+					}
+				}
+			}
+		}, "sjdb-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Wait until the server is closed
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException {
+		acceptor.join();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() throws IOException {
+		server.close();
+		for (Socket socket : open) {
+			socket.close();
+		}
+		sessions.shutdownNow();
+		for (String name : viewFiles.keySet()) {
+			try {
+				dropView(name);
+			} catch (DatabaseException e) {
+				System.err.println(e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Drop a view created by this server and delete its file
+	 * @param name Name of the view
+	 * @throws DatabaseException if the server created no view of that name
+	 */
+	private void dropView(String name) throws DatabaseException {
+		File file = viewFiles.remove(name);
+		if (file == null) {
+			throw new DatabaseException("No view named " + name + " was created by this server");
+		}
+		try {
+			catalogue.dropRelation(name);
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Answer a query
+	 * @param query Query in the format read by QueryParser
+	 * @param explain Whether the query is only optimised
+	 * @param out Writer to which the response is written
+	 * @throws IOException if the response cannot be written
+	 */
+	void answer(String query, boolean explain, Writer out) throws IOException {
+		PreparedStatement statement;
+		try {
+			statement = new PreparedStatement(catalogue, query);
+		} catch (Exception e) {
+			out.write("ERROR Query could not be planned: " + e + "\n");
+			return;
+		}
+
+		if (explain) {
+			queries.incrementAndGet();
+			out.write("PLAN " + statement.getPlan() + "\nOK 0\n");
+		} else if (statement.getParameterCount() > 0) {
+			out.write("ERROR Query has parameters, and must be prepared\n");
+		} else {
+			answer(statement, new String[0], out);
+		}
+	}
+
+	/**
+	 * Execute a prepared statement and write its result
+	 * @param statement Prepared statement
+	 * @param values Values of its parameters
+	 * @param out Writer to which the response is written
+	 * @throws IOException if the response cannot be written
+	 */
+	void answer(PreparedStatement statement, String[] values, Writer out) throws IOException {
+		ResultCursor cursor;
+		try {
+			cursor = statement.execute(memory, values);
+		} catch (IllegalArgumentException e) {
+			out.write("ERROR " + e.getMessage() + "\n");
+			return;
+		}
+		queries.incrementAndGet();
+
+		try {
+			// Check that the plan can be read before writing the header
+			cursor.hasNext();
+			StringBuilder line = new StringBuilder();
+			for (Attribute a : cursor.getAttributes()) {
+				line.append(line.length() == 0 ? "" : ",").append(a.getName());
+			}
+			out.write(line.append('\n').toString());
+			while (cursor.hasNext()) {
+				line.setLength(0);
+				for (String value : cursor.next()) {
+					line.append(line.length() == 0 ? "" : ",").append(quote(value));
+				}
+				out.write(line.append('\n').toString());
+			}
+			out.write("OK " + cursor.getCount() + "\n");
+		} catch (RuntimeException e) {
+			out.write("ERROR Query could not be executed: " + (e.getCause() == null ? e : e.getCause().getMessage()) + "\n");
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Quote a value if it holds a comma, quote or line break, in the format
+	 * read by BulkLoader
+	 */
+	static String quote(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+				return '"' + value.replace("\"", "\"\"") + '"';
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * A session reading queries from a socket and writing their responses
+	 */
+	private class Session implements Runnable {
+		private Socket socket;
+		private HashMap<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+		Session(Socket socket) {
+			this.socket = socket;
+		}
+
+		public void run() {
+			try (Socket s = socket;
+					BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+					Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+				StringBuilder query = new StringBuilder();
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (query.length() == 0 && line.trim().equals("QUIT")) {
+						break;
+					}
+					if (!line.trim().isEmpty()) {
+						query.append(line).append('\n');
+						continue;
+					}
+					if (query.length() == 0) {
+						continue;
+					}
+
+					// An empty line ends the query
+					String text = query.toString();
+					query.setLength(0);
+					try {
+						request(text, out);
+					} catch (RuntimeException e) {
+						// A bad request fails on its own, and the session goes on
+						out.write("ERROR Request could not be handled: " + e + "\n");
+					}
+					out.flush();
+				}
+			} catch (SocketException e) {
+				// The client or the server closed the session
+			} catch (IOException e) {
+				System.err.println(e.toString());
+			} finally {
+				open.remove(socket);
+			}
+		}
+
+		/**
+		 * Handle one request, writing its response
+		 */
+		private void request(String text, Writer out) throws IOException {
+			if (text.startsWith("PREPARE ")) {
+				prepare(text, out);
+			} else if (text.startsWith(CREATE_VIEW)) {
+				createView(text, out);
+			} else if (text.startsWith(DROP_VIEW)) {
+				String name = text.substring(DROP_VIEW.length()).trim();
+				try {
+					dropView(name);
+					out.write("DROPPED " + name + "\nOK 0\n");
+				} catch (DatabaseException e) {
+					out.write("ERROR View could not be dropped: " + e + "\n");
+				}
+			} else if (text.startsWith("EXECUTE ")) {
+				execute(text.trim(), out);
+			} else {
+				boolean explain = text.startsWith("EXPLAIN ");
+				answer(explain ? text.substring(8) : text, explain, out);
+			}
+		}
+
+		/**
+		 * Prepare a statement named on the first line of a query
+		 */
+		private void prepare(String text, Writer out) throws IOException {
+			int end = text.indexOf('\n');
+			String name = text.substring(8, end).trim();
+			try {
+				PreparedStatement statement = new PreparedStatement(catalogue, text.substring(end + 1));
+				statements.put(name, statement);
+				out.write("PREPARED " + name + " " + statement.getParameterCount() + "\nOK 0\n");
+			} catch (Exception e) {
+				out.write("ERROR Query could not be planned: " + e + "\n");
+			}
+		}
+
+		/**
+		 * Create a materialised view named on the first line of a query
+		 */
+		private void createView(String text, Writer out) throws IOException {
+			int end = text.indexOf('\n');
+			String name = text.substring(CREATE_VIEW.length(), end).trim();
+			if (!VIEW_NAME.matcher(name).matches()) {
+				out.write("ERROR View name " + name.replace('\n', ' ') + " is not a word\n");
+				return;
+			}
+			File file = null;
+			try {
+				file = File.createTempFile("sjdb-view", ".heap");
+				file.deleteOnExit();
+				MaterialisedView view = catalogue.createView(name, text.substring(end + 1), file, viewPool);
+				viewFiles.put(name, file);
+				out.write("CREATED " + name + " " + view.getTupleCount() + "\nOK 0\n");
+			} catch (DatabaseException | IOException e) {
+				if (file != null) {
+					file.delete();
+				}
+				out.write("ERROR View could not be created: " + e + "\n");
+			}
+		}
+
+		/**
+		 * Execute a prepared statement with a line of comma-separated values
+		 */
+		private void execute(String text, Writer out) throws IOException {
+			String[] words = text.split("\\s+", 3);
+			if (words.length < 2) {
+				out.write("ERROR EXECUTE needs the name of a prepared statement\n");
+				return;
+			}
+			PreparedStatement statement = statements.get(words[1]);
+			if (statement == null) {
+				out.write("ERROR No statement named " + words[1] + "\n");
+				return;
+			}
+			answer(statement, words.length < 3 ? new String[0] : BulkLoader.parse(words[2]), out);
+		}
+	}
+
+	/**
+	 * Serve queries over a catalogue
+	 * @param args Catalogue file, in text or as a binary image, and optionally the port
+	 */
+	public static void main(String[] args) throws Exception {
+		Catalogue cat = new Catalogue();
+		if (CatalogueImage.isImage(new File(args[0]))) {
+			cat.attachImage(new File(args[0]));
+		} else {
+			new CatalogueParser(args[0], cat).parse();
+		}
+
+		QueryServer server = new QueryServer(cat, args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT);
+		server.start();
+		System.out.println("Listening on port " + server.getPort());
+		server.join();
+	}
+}
@@ -62,6 +62,16 @@ public class Relation {
 		}
 	}
 	
+	/**
+	 * Replace the attribute of this relation with the same name, so that
+	 * its value count may be changed as tuples are added
+	 * 
+	 * @param attribute the attribute with its new value count
+	 */
+	protected void setAttribute(Attribute attribute) {
+		this.attributes.set(this.attributes.indexOf(attribute), attribute);
+	}
+	
 	/**
 	 * Return the tuple count for this relation
 	 * 
@@ -71,6 +81,15 @@ public class Relation {
 		return size;
 	}
 	
+	/**
+	 * Set the tuple count for this relation, as tuples are added to it
+	 * 
+	 * @param size the tuples
+	 */
+	protected void setTupleCount(int size) {
+		this.size = size;
+	}
+	
 	
 	/**
 	 * Render this relation and its statistics in a form suitable for debugging 
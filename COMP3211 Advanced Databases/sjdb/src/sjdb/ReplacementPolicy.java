@@ -0,0 +1,27 @@
+package sjdb;
+
+import java.util.function.IntPredicate;
+
+/**
+ * This is an interface for the page replacement policy of a BufferPool.
+ * The pool calls the policy while holding a lock of its own, so implementations
+ * need not be thread-safe.
+ */
+public interface ReplacementPolicy {
+	/**
+	 * Prepare the policy for a pool with the given number of frames.
+	 * @param frames Number of frames
+	 */
+	public void init(int frames);
+	/**
+	 * Record an access to the page held in a frame.
+	 * @param frame Frame index
+	 */
+	public void accessed(int frame);
+	/**
+	 * Choose a frame whose page is to be evicted.
+	 * @param evictable Test for frames whose page is not pinned
+	 * @return Frame index, or -1 if no frame can be evicted
+	 */
+	public int victim(IntPredicate evictable);
+}
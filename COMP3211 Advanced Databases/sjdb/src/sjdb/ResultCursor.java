@@ -0,0 +1,119 @@
+package sjdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * This class streams the result tuples of an executed plan. Tuples are
+ * produced only when pulled, one at a time or in batches, so that a
+ * consumer reading slowly holds back the whole plan. Closing the cursor
+ * before the end releases the tuples held by the plan's joins and stops
+ * its scans, and returns the plan's memory grant, if any, and closes the
+ * snapshot it reads.
+ *
+ * Errors reading stored tuples are thrown as UncheckedIOException.
+ */
+public class ResultCursor implements java.util.Iterator<String[]>, Closeable {
+	private PlanExecutor.Node root;
+	private List<Attribute> attributes;
+	private String[] next;
+	private boolean done;
+	private long count;
+	private MemoryManager.Grant grant;
+	private Snapshot snapshot;
+
+	ResultCursor(PlanExecutor.Node root, List<Attribute> attributes, MemoryManager.Grant grant, Snapshot snapshot) {
+		this.root = root;
+		this.attributes = attributes;
+		this.grant = grant;
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Return the attributes of the result, in the order of the values of
+	 * each tuple
+	 * @return List of attributes
+	 */
+	public List<Attribute> getAttributes() {
+		return this.attributes;
+	}
+
+	/**
+	 * Return the number of tuples returned so far
+	 * @return tuple count
+	 */
+	public long getCount() {
+		return this.count;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Iterator#hasNext()
+	 */
+	public boolean hasNext() {
+		if (next == null && !done) {
+			try {
+				next = root.next();
+			} catch (IOException e) {
+				close();
+				throw new UncheckedIOException(e);
+			}
+			if (next == null) {
+				close();
+			}
+		}
+		return next != null;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Iterator#next()
+	 */
+	public String[] next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		String[] tuple = next;
+		next = null;
+		count++;
+		return tuple;
+	}
+
+	/**
+	 * Return up to a number of tuples
+	 * @param max Largest number of tuples returned
+	 * @return tuples, none only at the end of the result
+	 */
+	public List<String[]> nextBatch(int max) {
+		List<String[]> batch = new ArrayList<String[]>(Math.min(max, 1024));
+		while (batch.size() < max && hasNext()) {
+			batch.add(next());
+		}
+		return batch;
+	}
+
+	/**
+	 * Test whether the cursor has been closed, either explicitly or by
+	 * reaching the end of the result
+	 * @return true if closed
+	 */
+	public boolean isClosed() {
+		return this.done;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() {
+		if (!done) {
+			done = true;
+			root.close();
+			if (grant != null) {
+				grant.close();
+			}
+			snapshot.close();
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package sjdb;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class publishes the tuples of a ResultCursor to a subscriber,
+ * following the reactive streams contract: the subscriber requests a
+ * number of tuples, and is sent no more than it has requested, so that
+ * a slow subscriber holds back the plan instead of buffering its result.
+ * Tuples are pulled from the cursor in batches on an executor, and
+ * cancelling the subscription closes the cursor.
+ *
+ * The result can be subscribed to only once.
+ */
+public class ResultPublisher {
+	/**
+	 * A receiver of the tuples of a result
+	 */
+	public interface Subscriber {
+		/**
+		 * Called once before any other method, with the subscription
+		 * through which tuples are requested
+		 * @param subscription Subscription
+		 */
+		public void onSubscribe(Subscription subscription);
+
+		/**
+		 * Called for each tuple, no more often than requested
+		 * @param tuple Tuple
+		 */
+		public void onNext(String[] tuple);
+
+		/**
+		 * Called if the result cannot be read; no more methods are called
+		 * @param error Error
+		 */
+		public void onError(Throwable error);
+
+		/**
+		 * Called at the end of the result; no more methods are called
+		 */
+		public void onComplete();
+	}
+
+	/**
+	 * The link between a result and its subscriber
+	 */
+	public interface Subscription {
+		/**
+		 * Add to the number of tuples which may be sent
+		 * @param n Number of tuples, greater than zero
+		 */
+		public void request(long n);
+
+		/**
+		 * Stop sending tuples and release the result
+		 */
+		public void cancel();
+	}
+
+	private ResultCursor cursor;
+	private int batchSize;
+	private Executor executor;
+	private AtomicBoolean subscribed = new AtomicBoolean();
+
+	/**
+	 * Create a new publisher
+	 * @param cursor Cursor over the result
+	 * @param batchSize Largest number of tuples sent in one task on the executor
+	 * @param executor Executor on which tuples are pulled and sent
+	 */
+	public ResultPublisher(ResultCursor cursor, int batchSize, Executor executor) {
+		this.cursor = cursor;
+		this.batchSize = Math.max(1, batchSize);
+		this.executor = executor;
+	}
+
+	/**
+	 * Subscribe to the result
+	 * @param subscriber Subscriber
+	 */
+	public void subscribe(Subscriber subscriber) {
+		if (!subscribed.compareAndSet(false, true)) {
+			subscriber.onSubscribe(new Subscription() {
+				public void request(long n) {
+				}
+
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("Result has already been subscribed to"));
+			return;
+		}
+		ResultSubscription subscription = new ResultSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+	}
+
+	/**
+	 * A subscription which sends tuples on the executor while there is
+	 * demand for them. Only one task runs at a time: a request made while a
+	 * task is running is picked up by that task. Every signal to the
+	 * subscriber, including the error for a request of no tuples, is sent
+	 * by the task.
+	 */
+	private class ResultSubscription implements Subscription, Runnable {
+		private Subscriber subscriber;
+		private AtomicLong demand = new AtomicLong();
+		private AtomicInteger pending = new AtomicInteger();
+		private volatile boolean cancelled;
+		private volatile Throwable error;
+
+		ResultSubscription(Subscriber subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		public void request(long n) {
+			if (n <= 0) {
+				// The task sends the error, so that it never overlaps the sending of tuples
+				error = new IllegalArgumentException("Requested " + n + " tuples");
+				schedule();
+				return;
+			}
+			// Add to the demand, which saturates at Long.MAX_VALUE
+			long current;
+			do {
+				current = demand.get();
+			} while (current != Long.MAX_VALUE
+					&& !demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+			schedule();
+		}
+
+		public void cancel() {
+			cancelled = true;
+			schedule();
+		}
+
+		private void schedule() {
+			if (pending.getAndIncrement() == 0) {
+				executor.execute(this);
+			}
+		}
+
+		public void run() {
+			do {
+				if (cancelled || error != null) {
+					synchronized (cursor) {
+						cursor.close();
+					}
+					if (!cancelled) {
+						cancelled = true;
+						subscriber.onError(error);
+					}
+					return;
+				}
+				if (demand.get() > 0) {
+					if (!drain()) {
+						return;
+					}
+					// Continue on another task, so that one subscription cannot hold the executor
+					if (demand.get() > 0) {
+						executor.execute(this);
+						return;
+					}
+				}
+			} while (pending.decrementAndGet() != 0);
+		}
+
+		/**
+		 * Send up to a batch of tuples
+		 * @return false once the subscription has ended
+		 */
+		private boolean drain() {
+			long n = Math.min(demand.get(), batchSize);
+			List<String[]> batch;
+			boolean end;
+			try {
+				synchronized (cursor) {
+					batch = cursor.nextBatch((int) n);
+					end = !cursor.hasNext();
+				}
+			} catch (RuntimeException e) {
+				cancelled = true;
+				subscriber.onError(e);
+				return false;
+			}
+
+			for (String[] tuple : batch) {
+				if (cancelled || error != null) {
+					break;
+				}
+				subscriber.onNext(tuple);
+			}
+			if (demand.get() != Long.MAX_VALUE) {
+				demand.addAndGet(-batch.size());
+			}
+
+			if (end && !cancelled) {
+				cancelled = true;
+				subscriber.onComplete();
+				return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,390 @@
+package sjdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * This class implements a compressed bitmap of row ids in the style of a
+ * Roaring bitmap. Row ids are split into a high 16-bit key and a low 16-bit
+ * value; the values sharing a key are held in a container, which is a
+ * sorted array while it holds at most 4096 values and a 65536-bit bitmap
+ * when it holds more. Sparse and dense ranges of row ids therefore both take
+ * little space, and AND and OR are computed container by container.
+ *
+ * Row ids must not be negative.
+ */
+public class RoaringBitmap {
+	/**
+	 * Largest number of values held by an array container
+	 */
+	private static final int ARRAY_MAX = 4096;
+
+	private ArrayList<Integer> keys = new ArrayList<Integer>();
+	private ArrayList<Container> containers = new ArrayList<Container>();
+
+	/**
+	 * Add a row id to the bitmap
+	 * @param rowId Row id
+	 */
+	public void add(int rowId) {
+		int key = rowId >>> 16;
+		int i = Collections.binarySearch(keys, key);
+		if (i < 0) {
+			i = -i - 1;
+			keys.add(i, key);
+			containers.add(i, new ArrayContainer());
+		}
+		containers.set(i, containers.get(i).add((char) rowId));
+	}
+
+	/**
+	 * Test whether the bitmap holds a row id
+	 * @param rowId Row id
+	 * @return true if the row id has been added
+	 */
+	public boolean contains(int rowId) {
+		int i = Collections.binarySearch(keys, rowId >>> 16);
+		return i >= 0 && containers.get(i).contains((char) rowId);
+	}
+
+	/**
+	 * Return the number of row ids in the bitmap
+	 * @return cardinality
+	 */
+	public int getCardinality() {
+		int n = 0;
+		for (Container c : containers) {
+			n += c.cardinality();
+		}
+		return n;
+	}
+
+	/**
+	 * Return the number of containers in the bitmap
+	 * @return container count
+	 */
+	public int getContainerCount() {
+		return containers.size();
+	}
+
+	/**
+	 * Return the approximate number of bytes used by the bitmap
+	 * @return size in bytes
+	 */
+	public int getSizeInBytes() {
+		int n = 0;
+		for (Container c : containers) {
+			n += 4 + c.sizeInBytes();
+		}
+		return n;
+	}
+
+	/**
+	 * Return the row ids held by both this bitmap and another
+	 * @param other Bitmap
+	 * @return intersection of the bitmaps
+	 */
+	public RoaringBitmap and(RoaringBitmap other) {
+		RoaringBitmap out = new RoaringBitmap();
+		int i = 0, j = 0;
+		while (i < keys.size() && j < other.keys.size()) {
+			int a = keys.get(i), b = other.keys.get(j);
+			if (a < b) {
+				i++;
+			} else if (a > b) {
+				j++;
+			} else {
+				Container c = containers.get(i).and(other.containers.get(j));
+				if (c.cardinality() > 0) {
+					out.keys.add(a);
+					out.containers.add(c);
+				}
+				i++;
+				j++;
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Return the row ids held by either this bitmap or another
+	 * @param other Bitmap
+	 * @return union of the bitmaps
+	 */
+	public RoaringBitmap or(RoaringBitmap other) {
+		RoaringBitmap out = new RoaringBitmap();
+		int i = 0, j = 0;
+		while (i < keys.size() || j < other.keys.size()) {
+			int a = i < keys.size() ? keys.get(i) : Integer.MAX_VALUE;
+			int b = j < other.keys.size() ? other.keys.get(j) : Integer.MAX_VALUE;
+			if (a < b) {
+				out.keys.add(a);
+				out.containers.add(containers.get(i++).copy());
+			} else if (a > b) {
+				out.keys.add(b);
+				out.containers.add(other.containers.get(j++).copy());
+			} else {
+				out.keys.add(a);
+				out.containers.add(containers.get(i++).or(other.containers.get(j++)));
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Return a copy of the bitmap, which is not changed by adding to this one
+	 * @return copy
+	 */
+	public RoaringBitmap copy() {
+		RoaringBitmap out = new RoaringBitmap();
+		for (int i = 0; i < keys.size(); i++) {
+			out.keys.add(keys.get(i));
+			out.containers.add(containers.get(i).copy());
+		}
+		return out;
+	}
+
+	/**
+	 * Return the row ids in the bitmap in increasing order
+	 * @return row ids
+	 */
+	public int[] toArray() {
+		int[] out = new int[getCardinality()];
+		int n = 0;
+		for (int i = 0; i < keys.size(); i++) {
+			n = containers.get(i).fill(out, n, keys.get(i) << 16);
+		}
+		return out;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "bitmap cardinality=" + getCardinality() + " containers=" + getContainerCount()
+				+ " bytes=" + getSizeInBytes();
+	}
+
+	/**
+	 * A set of 16-bit values sharing a key
+	 */
+	private static abstract class Container {
+		abstract Container add(char value);
+		abstract boolean contains(char value);
+		abstract int cardinality();
+		abstract int sizeInBytes();
+		abstract Container and(Container other);
+		abstract Container or(Container other);
+		abstract Container copy();
+		abstract int fill(int[] out, int n, int high);
+	}
+
+	/**
+	 * A container holding a sorted array of values
+	 */
+	private static class ArrayContainer extends Container {
+		private char[] values = new char[4];
+		private int size;
+
+		Container add(char value) {
+			int i = Arrays.binarySearch(values, 0, size, value);
+			if (i >= 0) {
+				return this;
+			}
+			if (size == ARRAY_MAX) {
+				return toBitmap().add(value);
+			}
+			i = -i - 1;
+			if (size == values.length) {
+				values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, size * 2)));
+			}
+			System.arraycopy(values, i, values, i + 1, size - i);
+			values[i] = value;
+			size++;
+			return this;
+		}
+
+		boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, size, value) >= 0;
+		}
+
+		int cardinality() {
+			return size;
+		}
+
+		int sizeInBytes() {
+			return 2 * size;
+		}
+
+		Container and(Container other) {
+			ArrayContainer out = new ArrayContainer();
+			out.values = new char[Math.max(size, 1)];
+			if (other instanceof BitmapContainer) {
+				for (int i = 0; i < size; i++) {
+					if (other.contains(values[i])) {
+						out.values[out.size++] = values[i];
+					}
+				}
+				return out;
+			}
+
+			// Merge two sorted arrays
+			ArrayContainer rhs = (ArrayContainer) other;
+			int i = 0, j = 0;
+			while (i < size && j < rhs.size) {
+				if (values[i] < rhs.values[j]) {
+					i++;
+				} else if (values[i] > rhs.values[j]) {
+					j++;
+				} else {
+					out.values[out.size++] = values[i];
+					i++;
+					j++;
+				}
+			}
+			return out;
+		}
+
+		Container or(Container other) {
+			if (other instanceof BitmapContainer) {
+				return other.or(this);
+			}
+
+			// Merge two sorted arrays, converting to a bitmap if too large
+			ArrayContainer rhs = (ArrayContainer) other;
+			char[] merged = new char[size + rhs.size];
+			int i = 0, j = 0, n = 0;
+			while (i < size || j < rhs.size) {
+				if (j == rhs.size || (i < size && values[i] < rhs.values[j])) {
+					merged[n++] = values[i++];
+				} else if (i == size || values[i] > rhs.values[j]) {
+					merged[n++] = rhs.values[j++];
+				} else {
+					merged[n++] = values[i++];
+					j++;
+				}
+			}
+			ArrayContainer out = new ArrayContainer();
+			out.values = merged;
+			out.size = n;
+			return n > ARRAY_MAX ? out.toBitmap() : out;
+		}
+
+		Container copy() {
+			ArrayContainer out = new ArrayContainer();
+			out.values = Arrays.copyOf(values, Math.max(size, 1));
+			out.size = size;
+			return out;
+		}
+
+		int fill(int[] out, int n, int high) {
+			for (int i = 0; i < size; i++) {
+				out[n++] = high | values[i];
+			}
+			return n;
+		}
+
+		BitmapContainer toBitmap() {
+			BitmapContainer out = new BitmapContainer();
+			for (int i = 0; i < size; i++) {
+				out.add(values[i]);
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * A container holding a bit for every possible value
+	 */
+	private static class BitmapContainer extends Container {
+		private long[] words = new long[1024];
+		private int cardinality;
+
+		Container add(char value) {
+			long bit = 1L << value;
+			if ((words[value >>> 6] & bit) == 0) {
+				words[value >>> 6] |= bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+		boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		int cardinality() {
+			return cardinality;
+		}
+
+		int sizeInBytes() {
+			return 8 * words.length;
+		}
+
+		Container and(Container other) {
+			if (other instanceof ArrayContainer) {
+				return other.and(this);
+			}
+
+			// AND the words, converting to an array if few values remain
+			BitmapContainer out = new BitmapContainer();
+			long[] rhs = ((BitmapContainer) other).words;
+			for (int i = 0; i < words.length; i++) {
+				out.words[i] = words[i] & rhs[i];
+				out.cardinality += Long.bitCount(out.words[i]);
+			}
+			return out.cardinality <= ARRAY_MAX ? out.toArray() : out;
+		}
+
+		Container or(Container other) {
+			BitmapContainer out = (BitmapContainer) copy();
+			if (other instanceof ArrayContainer) {
+				ArrayContainer rhs = (ArrayContainer) other;
+				for (int i = 0; i < rhs.size; i++) {
+					out.add(rhs.values[i]);
+				}
+				return out;
+			}
+
+			long[] rhs = ((BitmapContainer) other).words;
+			out.cardinality = 0;
+			for (int i = 0; i < words.length; i++) {
+				out.words[i] |= rhs[i];
+				out.cardinality += Long.bitCount(out.words[i]);
+			}
+			return out;
+		}
+
+		Container copy() {
+			BitmapContainer out = new BitmapContainer();
+			out.words = words.clone();
+			out.cardinality = cardinality;
+			return out;
+		}
+
+		int fill(int[] out, int n, int high) {
+			for (int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while (word != 0) {
+					out[n++] = high | (i << 6) | Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+			return n;
+		}
+
+		ArrayContainer toArray() {
+			ArrayContainer out = new ArrayContainer();
+			out.values = new char[Math.max(cardinality, 1)];
+			for (int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while (word != 0) {
+					out.values[out.size++] = (char) ((i << 6) | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return out;
+		}
+	}
+}
@@ -14,15 +14,22 @@ public class SJDB {
 	 * @param args
 	 */
 	public static void main(String[] args) throws Exception {
-		// read serialised catalogue from file and parse
+		// read serialised catalogue from file and parse, or map it if it is a binary image
 		String catFile = args[0];
 		Catalogue cat = new Catalogue();
-		CatalogueParser catParser = new CatalogueParser(catFile, cat);
-		catParser.parse();
+		if (CatalogueImage.isImage(new File(catFile))) {
+			cat.attachImage(new File(catFile));
+		} else {
+			CatalogueParser catParser = new CatalogueParser(catFile, cat);
+			catParser.parse();
+		}
 		
 		// read stdin, parse, and build canonical query plan
 		QueryParser queryParser = new QueryParser(cat, new InputStreamReader(System.in));
 		Operator plan = queryParser.parse();
+		
+		// read materialised views in place of the relations they join
+		plan = new ViewRewriter(cat).rewrite(plan);
 				
 		// create estimator visitor and apply it to canonical plan
 		Estimator est = new Estimator();
@@ -2,6 +2,7 @@ package sjdb;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.File;
 import java.util.ArrayList;
 import org.junit.jupiter.api.Test;
 
@@ -169,4 +170,2102 @@ class SJDBTest {
 		assert(select.getOutput().getAttribute(new Attribute("a1")).getValueCount() == 13);
 	}
 
+	@Test void bloomFilterFalsePositiveRate() {
+		System.out.println("--- bloomFilterFalsePositiveRate ---");
+		
+		BloomFilter filter = new BloomFilter(new Attribute("b1"), new Attribute("a1"), 1000);
+		for (int i = 0; i < 1000; i++) {
+			filter.add("key" + i);
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(filter.mightContain("key" + i));
+		}
+		
+		int falsePositives = 0;
+		for (int i = 1000; i < 101000; i++) {
+			if (filter.mightContain("key" + i))
+				falsePositives++;
+		}
+		
+		assertEquals(filter.getFalsePositiveRate(), falsePositives / 100000.0, 0.005);
+	}
+	
+	@Test void bloomFilterReducesProbeScan() throws DatabaseException {
+		System.out.println("--- bloomFilterReducesProbeScan ---");
+		
+		Scan a = new Scan(createCatalogue().getRelation("A"));
+		Scan b = new Scan(createCatalogue().getRelation("B"));
+		
+		Select select = new Select(a, new Predicate(new Attribute("a2"), "value"));
+		Join join = new Join(select, b, new Predicate(new Attribute("a1"), new Attribute("b1")));
+		
+		Optimiser optimiser = new Optimiser(createCatalogue());
+		
+		// Candidate plans are costed with the filters they would push down, which are then removed
+		join.accept(new Estimator());
+		int cost = optimiser.getPlanCost(join);
+		assertTrue(optimiser.getFilteredCost(join) < cost);
+		assertTrue(b.getFilters().isEmpty());
+		assertEquals(optimiser.getPlanCost(join), cost);
+		
+		optimiser.pushBloomFilters(join);
+		join.accept(new Inspector());
+		
+		assertEquals(b.getFilters().size(), 1);
+		assertTrue(b.getOutput().getTupleCount() < 150);
+		assertTrue(b.getOutput().getTupleCount() >= select.getOutput().getTupleCount());
+	}
+
+	@Test void lateMaterialisationFetchesProjectedAttributes() throws DatabaseException {
+		System.out.println("--- lateMaterialisationFetchesProjectedAttributes ---");
+		
+		Catalogue cat = createCatalogue();
+		Product product = new Product(new Scan(cat.getRelation("A")), new Scan(cat.getRelation("B")));
+		Select select = new Select(product, new Predicate(new Attribute("a1"), new Attribute("b1")));
+		
+		ArrayList<Attribute> atts = new ArrayList<Attribute>();
+		atts.add(new Attribute("a2"));
+		atts.add(new Attribute("b3"));
+		Project plan = new Project(select, atts);
+		
+		Optimiser optimiser = new Optimiser(cat);
+		Operator late = optimiser.optimise(plan, true);
+		late.accept(new Estimator());
+		late.accept(new Inspector());
+		
+		assertTrue(late instanceof Fetch);
+		assertEquals(((Fetch) late).getRelations().size(), 2);
+		assertEquals(late.getOutput().getAttributes().size(), 2);
+		assertTrue(((Fetch) late).getInput().getOutput().getAttributes().contains(new Attribute("A.rowid")));
+		assertEquals(late.getOutput().getTupleCount(), optimiser.optimise(plan, false).getOutput().getTupleCount());
+	}
+
+	@Test void lateMaterialisationSkipsDeletedRows() throws Exception {
+		System.out.println("--- lateMaterialisationSkipsDeletedRows ---");
+		
+		Catalogue cat = new Catalogue();
+		NamedRelation notes = heap(cat, "Note", heapFile(), new BufferPool(16), "tid", "ttext");
+		HeapFile heap = (HeapFile) notes.getStorage();
+		long kept = heap.insert(new String[] { "1", "kept" });
+		long deleted = heap.insert(new String[] { "2", "deleted" });
+		assertTrue(heap.delete(deleted));
+		
+		// Row ids read before the row was deleted are fetched as no tuple
+		NamedRelation refs = new NamedRelation("Ref", 2);
+		refs.addAttribute(notes.getRowIdAttribute());
+		java.util.List<String[]> rowIds = new ArrayList<String[]>();
+		rowIds.add(new String[] { Long.toString(deleted) });
+		rowIds.add(new String[] { Long.toString(kept) });
+		refs.setStorage(new TupleList(refs.getAttributes(), rowIds));
+		ArrayList<Attribute> atts = new ArrayList<Attribute>();
+		atts.add(new Attribute("tid"));
+		atts.add(new Attribute("ttext"));
+		Fetch fetch = new Fetch(new Scan(refs), atts, java.util.Collections.singletonList(notes));
+		fetch.accept(new Estimator());
+		try (ResultCursor cursor = PlanExecutor.execute(fetch)) {
+			assertArrayEquals(cursor.next(), new String[] { "1", "kept" });
+			assertFalse(cursor.hasNext());
+		}
+	}
+
+	@Test void columnStoreRoundTrip() throws Exception {
+		System.out.println("--- columnStoreRoundTrip ---");
+		
+		Catalogue cat = createCatalogue();
+		NamedRelation c = cat.getRelation("C");
+		File file = File.createTempFile("sjdb", ".col");
+		file.deleteOnExit();
+		
+		ColumnStore.Type[] types = { ColumnStore.Type.INT, ColumnStore.Type.STRING, ColumnStore.Type.INT };
+		try (ColumnStore.Writer writer = ColumnStore.create(file, c.getAttributes(), types)) {
+			for (int i = 0; i < 10000; i++) {
+				writer.append(new String[] { Integer.toString(i % 7), "name" + (i % 13), Integer.toString(i) });
+			}
+		}
+		
+		cat.attachStorage("C", file);
+		ColumnStore store = (ColumnStore) c.getStorage();
+		assertEquals(store.getRowCount(), 10000);
+		assertEquals(store.getBlockCount(), 3);
+		assertEquals(store.getAttributes().get(1).getValueCount(), 13);
+		assertEquals(store.getString(1, 9999), "name" + (9999 % 13));
+		assertEquals(store.getInt(2, 5000), 5000);
+		assertEquals(store.encode(1, "name4"), Integer.valueOf(4));
+		assertNull(store.encode(1, "missing"));
+		
+		ColumnStore.Cursor cursor = (ColumnStore.Cursor) new Scan(c).open();
+		int rows = 0;
+		while (cursor.next()) {
+			assertEquals(cursor.getInt(2), cursor.getRowId());
+			rows++;
+		}
+		assertEquals(rows, 10000);
+		store.close();
+	}
+
+	@Test void heapFilesEvictThroughBufferPool() throws Exception {
+		System.out.println("--- heapFilesEvictThroughBufferPool ---");
+		
+		Catalogue cat = createCatalogue();
+		BufferPool pool = new BufferPool(4, new LruKPolicy(2));
+		HeapFile heap = (HeapFile) cat.attachHeapFile("B", heapFile(), pool).getStorage();
+		fill(heap, 5000);
+		assertTrue(heap.getPageCount() > pool.getFrameCount());
+		assertTrue(pool.getEvictions() > 0);
+		assertTrue(pool.getDirtyWrites() > 0);
+		
+		TupleCursor cursor = new Scan(cat.getRelation("B")).open();
+		int rows = 0;
+		while (cursor.next()) {
+			rows++;
+		}
+		assertEquals(rows, 5000);
+		heap.close();
+		System.out.println(pool.toString());
+	}
+
+	@Test void heapFilesUpdateAndDeleteTuples() throws Exception {
+		System.out.println("--- heapFilesUpdateAndDeleteTuples ---");
+		
+		Catalogue cat = createCatalogue();
+		HeapFile heap = (HeapFile) cat.attachHeapFile("B", heapFile(), new BufferPool(4, new LruKPolicy(2))).getStorage();
+		java.util.List<Long> rowIds = fill(heap, 5000);
+		
+		assertTrue(heap.update(rowIds.get(4990), new String[] { "4990", "a much longer value than before", "0" }));
+		assertTrue(heap.delete(rowIds.get(20)));
+		assertEquals(heap.get(rowIds.get(4990))[1], "a much longer value than before");
+		assertNull(heap.get(rowIds.get(20)));
+		assertFalse(heap.delete(rowIds.get(20)));
+		
+		TupleCursor cursor = new Scan(cat.getRelation("B")).open();
+		int rows = 0;
+		while (cursor.next()) {
+			rows++;
+		}
+		assertEquals(rows, 4999);
+		heap.close();
+	}
+
+	@Test void heapFilesReopenWithTheirTuples() throws Exception {
+		System.out.println("--- heapFilesReopenWithTheirTuples ---");
+		
+		Catalogue cat = createCatalogue();
+		File file = heapFile();
+		HeapFile heap = (HeapFile) cat.attachHeapFile("B", file, new BufferPool(4, new LruKPolicy(2))).getStorage();
+		java.util.List<Long> rowIds = fill(heap, 5000);
+		assertTrue(heap.delete(rowIds.get(20)));
+		heap.close();
+		
+		HeapFile reopened = HeapFile.open(file, new ArrayList<Attribute>(), new BufferPool(8));
+		assertEquals(reopened.getRowCount(), 4999);
+		assertEquals(reopened.get(rowIds.get(4999))[0], "4999");
+		assertNull(reopened.get(rowIds.get(20)));
+		reopened.close();
+	}
+
+	@Test void bufferPoolsReturnFramesOfFailedReads() throws Exception {
+		System.out.println("--- bufferPoolsReturnFramesOfFailedReads ---");
+		
+		// A pool of one frame, and a heap file whose reads fail once it is closed
+		BufferPool pool = new BufferPool(1);
+		HeapFile closed = HeapFile.open(heapFile(), new ArrayList<Attribute>(), pool);
+		closed.close();
+		HeapFile heap = HeapFile.open(heapFile(), new ArrayList<Attribute>(), pool);
+		
+		// The failed pin leaves the page uncached, and its frame free for another page
+		assertThrows(java.io.IOException.class, () -> pool.pin(closed, 1));
+		assertFalse(pool.isLoaded(closed, 1));
+		pool.unpin(pool.pin(heap, 0), false);
+		assertTrue(pool.isLoaded(heap, 0));
+		
+		// So does a failed prefetch, once its read has failed
+		assertTrue(pool.prefetch(closed, 2));
+		assertTrue(eventually(() -> {
+			try {
+				pool.unpin(pool.pin(heap, 0), false);
+				return true;
+			} catch (java.io.IOException e) {
+				return false;
+			}
+		}));
+		assertFalse(pool.isLoaded(closed, 2));
+		heap.close();
+	}
+
+	@Test void bPlusTreeIndexSelection() throws DatabaseException {
+		System.out.println("--- bPlusTreeIndexSelection ---");
+		
+		BPlusTree tree = new BPlusTree(4);
+		for (int i = 0; i < 1000; i++) {
+			tree.insert(Integer.toString(i % 250), i);
+		}
+		assertEquals(tree.size(), 1000);
+		assertEquals(tree.keys().size(), 250);
+		assertTrue(tree.getHeight() > 1);
+		assertArrayEquals(tree.search("42"), new long[] { 42, 292, 542, 792 });
+		assertEquals(tree.search("missing").length, 0);
+		assertEquals(tree.getNodeReads(), 2 * tree.getHeight());
+		
+		Catalogue cat = createCatalogue();
+		cat.createIndex("A", "a1");
+		cat.createIndex("B", "b1");
+		
+		Optimiser optimiser = new Optimiser(cat);
+		Operator plan = optimiser.optimise(new Select(new Scan(cat.getRelation("A")), new Predicate(new Attribute("a1"), "5")), false);
+		plan.accept(new Inspector());
+		assertTrue(plan instanceof IndexScan);
+		assertEquals(plan.getOutput().getTupleCount(), 1);
+		
+		Select select = new Select(new Scan(cat.getRelation("A")), new Predicate(new Attribute("a2"), "value"));
+		Select join = new Select(new Product(select, new Scan(cat.getRelation("B"))), new Predicate(new Attribute("a1"), new Attribute("b1")));
+		plan = optimiser.optimise(join, false);
+		plan.accept(new Inspector());
+		assertTrue(plan instanceof IndexJoin);
+		assertEquals(((IndexJoin) plan).getPredicate().getRightAttribute(), new Attribute("b1"));
+	}
+
+	@Test void bitmapScanCombinesLowCardinalityPredicates() throws DatabaseException {
+		System.out.println("--- bitmapScanCombinesLowCardinalityPredicates ---");
+		
+		RoaringBitmap evens = new RoaringBitmap();
+		RoaringBitmap threes = new RoaringBitmap();
+		for (int i = 0; i < 200000; i += 2) {
+			evens.add(i);
+		}
+		for (int i = 0; i < 200000; i += 3) {
+			threes.add(i);
+		}
+		assertEquals(evens.getCardinality(), 100000);
+		assertEquals(evens.getContainerCount(), 4);
+		assertEquals(evens.getSizeInBytes(), 3 * (8192 + 4) + (2 * 1696 + 4));
+		RoaringBitmap sparse = new RoaringBitmap();
+		for (int i = 0; i < 200000; i += 100) {
+			sparse.add(i);
+		}
+		assertEquals(sparse.getSizeInBytes(), 2 * 2000 + 4 * 4);
+		assertEquals(evens.and(sparse).getSizeInBytes(), sparse.getSizeInBytes());
+		assertEquals(evens.and(threes).getCardinality(), 33334);
+		assertEquals(evens.or(threes).getCardinality(), 133333);
+		assertTrue(evens.and(threes).contains(6) && !evens.and(threes).contains(4));
+		assertArrayEquals(threes.and(evens).toArray(), evens.and(threes).toArray());
+		
+		Catalogue cat = createCatalogue();
+		cat.createBitmapIndex("C", "c1");
+		cat.createBitmapIndex("C", "c3");
+		
+		Select select = new Select(new Scan(cat.getRelation("C")), new Predicate(new Attribute("c1"), "1"));
+		select = new Select(select, new Predicate(new Attribute("c3"), "2"));
+		Operator plan = new Optimiser(cat).optimise(select, false);
+		plan.accept(new Inspector());
+		assertTrue(plan instanceof BitmapScan);
+		assertEquals(((BitmapScan) plan).getPredicates().size(), 2);
+		assertEquals(plan.getOutput().getTupleCount(), 6);
+	}
+
+	@Test void zoneMapsSkipBlocks() throws Exception {
+		System.out.println("--- zoneMapsSkipBlocks ---");
+		
+		Catalogue cat = createCatalogue();
+		File file = File.createTempFile("sjdb", ".col");
+		file.deleteOnExit();
+		
+		ArrayList<Attribute> atts = new ArrayList<Attribute>(cat.getRelation("C").getAttributes());
+		ColumnStore.Type[] types = { ColumnStore.Type.INT, ColumnStore.Type.STRING, ColumnStore.Type.INT };
+		try (ColumnStore.Writer writer = ColumnStore.create(file, atts, types)) {
+			for (int i = 0; i < 20000; i++) {
+				writer.append(new String[] { Integer.toString(i / 1000), "day" + (i / 5000), Integer.toString(i % 5) });
+			}
+		}
+		cat.attachStorage("C", file);
+		ColumnStore store = (ColumnStore) cat.getRelation("C").getStorage();
+		assertEquals(store.getBlockCount(), 5);
+		assertEquals(store.getZoneMap(0).getMin(1), 4);
+		assertEquals(store.getZoneMap(0).getMax(1), 8);
+		
+		Scan scan = new Scan(cat.getRelation("C"));
+		Predicate predicate = new Predicate(new Attribute("c2"), "day2");
+		ColumnStore.Cursor cursor = (ColumnStore.Cursor) scan.open(predicate);
+		int rows = 0;
+		while (cursor.next()) {
+			if (cursor.getString(1).equals("day2"))
+				rows++;
+		}
+		assertEquals(rows, 5000);
+		assertEquals(cursor.getBlocksRead(), 2);
+		
+		Estimator estimator = new Estimator();
+		assertEquals(estimator.estimateBlockFraction(scan, predicate), 2.0 / 5.0, 0.0001);
+		assertEquals(estimator.estimateBlockFraction(scan, new Predicate(new Attribute("c2"), "day9")), 0.0, 0.0001);
+		assertEquals(estimator.estimateBlockFraction(scan, new Predicate(new Attribute("c3"), "1")), 1.0, 0.0001);
+		store.close();
+	}
+
+	@Test void bulkLoaderComputesStatistics() throws Exception {
+		System.out.println("--- bulkLoaderComputesStatistics ---");
+		
+		File csv = File.createTempFile("sjdb", ".csv");
+		File file = File.createTempFile("sjdb", ".col");
+		csv.deleteOnExit();
+		file.deleteOnExit();
+		try (java.io.PrintWriter out = new java.io.PrintWriter(csv, "UTF-8")) {
+			out.println("id,name,dept");
+			for (int i = 0; i < 20000; i++) {
+				out.println(i + ",\"name, " + (i % 700) + "\"," + (i % 5));
+			}
+		}
+		
+		Catalogue cat = new Catalogue();
+		NamedRelation reln = new BulkLoader(cat, 4, 4096).load("Staff", csv, file);
+		System.out.println(reln.render());
+		
+		assertEquals(cat.getRelation("Staff").getTupleCount(), 20000);
+		assertEquals(reln.getAttribute(new Attribute("name")).getValueCount(), 700);
+		assertEquals(reln.getAttribute(new Attribute("id")).getValueCount(), 20000, 20000 * 0.03);
+		assertEquals(reln.getAttribute(new Attribute("dept")).getValueCount(), 5);
+		
+		ColumnStore store = (ColumnStore) reln.getStorage();
+		assertEquals(store.getType(0), ColumnStore.Type.INT);
+		assertEquals(store.getType(1), ColumnStore.Type.STRING);
+		for (int i = 0; i < 20000; i += 997) {
+			assertEquals(store.getInt(0, i), i);
+			assertEquals(store.getString(1, i), "name, " + (i % 700));
+		}
+		store.close();
+	}
+
+	@Test void predicatesCompareDictionaryIds() throws Exception {
+		System.out.println("--- predicatesCompareDictionaryIds ---");
+		
+		StringDictionary dictionary = StringDictionary.getInstance();
+		Attribute persname = new Attribute("persname", 350);
+		assertEquals(persname.getId(), new Attribute("persname").getId());
+		assertEquals(dictionary.getString(persname.getId()), "persname");
+		assertTrue(persname.getId() != new Attribute("persid").getId());
+		assertEquals(dictionary.getId("never interned"), -1);
+		
+		// Values are resolved to the ids already held, and are not added
+		dictionary.intern("Smith");
+		dictionary.intern("35");
+		Predicate smith = new Predicate(persname, "Smith");
+		assertEquals(dictionary.getString(smith.getRightValueId()), "Smith");
+		assertTrue(smith.matches(dictionary.intern("Smith")));
+		assertFalse(smith.matches(dictionary.intern("Jones")));
+		assertEquals(new Predicate(persname, new Attribute("persid")).getRightValueId(), -1);
+		int size = dictionary.size();
+		Predicate unknown = new Predicate(persname, "never interned");
+		assertEquals(unknown.getRightValueId(), -1);
+		assertTrue(unknown.matches("never interned"));
+		assertFalse(unknown.matches(-1));
+		new Predicate(persname, 0).bind(new String[] { "bound but never interned" });
+		assertEquals(dictionary.size(), size);
+		
+		File file = File.createTempFile("sjdb", ".col");
+		file.deleteOnExit();
+		ArrayList<Attribute> atts = new ArrayList<Attribute>();
+		atts.add(persname);
+		atts.add(new Attribute("age", 47));
+		ColumnStore.Type[] types = { ColumnStore.Type.STRING, ColumnStore.Type.INT };
+		try (ColumnStore.Writer writer = ColumnStore.create(file, atts, types)) {
+			for (int i = 0; i < 10000; i++) {
+				writer.append(new String[] { i % 50 == 0 ? "Smith" : "name" + i, Integer.toString(18 + i % 47) });
+			}
+		}
+		
+		ColumnStore store = ColumnStore.open(file);
+		Predicate age = new Predicate(new Attribute("age"), "35");
+		TupleCursor cursor = store.cursor();
+		int smiths = 0, aged = 0;
+		while (cursor.next()) {
+			if (smith.matches(cursor.getValueId(0)))
+				smiths++;
+			if (age.matches(cursor.getValueId(1)))
+				aged++;
+		}
+		assertEquals(smiths, 200);
+		assertEquals(aged, 213);
+		store.close();
+		
+		// Selects compare the ids of values which have them, and otherwise compare strings
+		Catalogue cat = new Catalogue();
+		load(cat, "Person", "pname,pnick", 100, i -> (i % 10 == 0 ? "Smith,Smith" : "uninterned " + i + ",nick" + (i % 20)));
+		Operator named = new Select(new Scan(cat.getRelation("Person")), new Predicate(new Attribute("pname"), "Smith"));
+		Operator unnamed = new Select(new Scan(cat.getRelation("Person")), new Predicate(new Attribute("pname"), "uninterned 7"));
+		Operator nicknamed = new Select(new Scan(cat.getRelation("Person")), new Predicate(new Attribute("pname"), new Attribute("pnick")));
+		for (Operator select : new Operator[] { named, unnamed, nicknamed })
+			select.accept(new Estimator());
+		assertEquals(count(named), 10L);
+		assertEquals(count(unnamed), 1L);
+		assertEquals(count(nicknamed), 10L);
+	}
+
+	@Test void columnBlocksAreCompressed() throws Exception {
+		System.out.println("--- columnBlocksAreCompressed ---");
+		
+		File file = File.createTempFile("sjdb", ".col");
+		file.deleteOnExit();
+		ArrayList<Attribute> atts = new ArrayList<Attribute>();
+		atts.add(new Attribute("dept", 5));
+		atts.add(new Attribute("age", 47));
+		atts.add(new Attribute("salary", 100000));
+		ColumnStore.Type[] types = { ColumnStore.Type.STRING, ColumnStore.Type.INT, ColumnStore.Type.INT };
+		int rows = 100000;
+		try (ColumnStore.Writer writer = ColumnStore.create(file, atts, types)) {
+			for (int i = 0; i < rows; i++) {
+				writer.append(new String[] { "dept" + (i / 3000 % 5), Integer.toString(18 + (i * 7) % 47),
+						Integer.toString((int) (i * 2654435761L)) });
+			}
+		}
+		
+		ColumnStore store = ColumnStore.open(file);
+		assertEquals(store.getEncoding(0, 3), ColumnBlock.Encoding.RLE);
+		assertEquals(store.getEncoding(1, 3), ColumnBlock.Encoding.PACKED);
+		assertEquals(store.getEncoding(2, 3), ColumnBlock.Encoding.PLAIN);
+		// Plain storage would take 3 columns of 4 bytes per row
+		assertTrue(file.length() < 3 * 4 * rows / 2);
+		
+		for (int i = 0; i < rows; i += 1231) {
+			assertEquals(store.getString(0, i), "dept" + (i / 3000 % 5));
+			assertEquals(store.getInt(1, i), 18 + (i * 7) % 47);
+		}
+		
+		int[] ages = store.select(1, "35").toArray();
+		int expected = 0;
+		for (int i = 0; i < rows; i++) {
+			if (18 + (i * 7) % 47 == 35)
+				expected++;
+		}
+		assertEquals(ages.length, expected);
+		for (int row : ages) {
+			assertEquals(store.getInt(1, row), 35);
+		}
+		assertEquals(store.select(0, "dept2").getCardinality(), 21000);
+		assertEquals(store.select(1, "99").getCardinality(), 0);
+		
+		ColumnStore.Cursor cursor = store.cursor(0, "dept4");
+		int matched = 0;
+		while (cursor.next()) {
+			assertEquals(cursor.getString(0), "dept4");
+			matched++;
+		}
+		assertEquals(matched, 18000);
+		store.close();
+	}
+
+	@Test void resultCursorStreamsWithBackpressure() throws Exception {
+		System.out.println("--- resultCursorStreamsWithBackpressure ---");
+		
+		File staff = File.createTempFile("sjdb", ".csv");
+		File depts = File.createTempFile("sjdb", ".csv");
+		File staffCol = File.createTempFile("sjdb", ".col");
+		File deptCol = File.createTempFile("sjdb", ".col");
+		for (File f : new File[] { staff, depts, staffCol, deptCol })
+			f.deleteOnExit();
+		try (java.io.PrintWriter out = new java.io.PrintWriter(staff, "UTF-8")) {
+			out.println("sid,sdept");
+			for (int i = 0; i < 5000; i++)
+				out.println(i + ",d" + (i % 10));
+		}
+		try (java.io.PrintWriter out = new java.io.PrintWriter(depts, "UTF-8")) {
+			out.println("did,dname");
+			for (int i = 0; i < 10; i++)
+				out.println("d" + i + ",dept" + (i % 5));
+		}
+		Catalogue cat = new Catalogue();
+		new BulkLoader(cat).load("Staff", staff, staffCol);
+		new BulkLoader(cat).load("Dept", depts, deptCol);
+		
+		java.io.StringReader query = new java.io.StringReader("SELECT sid,dname\nFROM Staff,Dept\nWHERE sdept=did,dname=\"dept3\"");
+		Operator plan = new QueryParser(cat, query).parse();
+		plan.accept(new Estimator());
+		plan = new Optimiser(cat).optimise(plan);
+		System.out.println(plan);
+		
+		try (ResultCursor cursor = PlanExecutor.execute(plan)) {
+			int sid = cursor.getAttributes().indexOf(new Attribute("sid"));
+			int rows = 0;
+			while (cursor.hasNext()) {
+				String[] tuple = cursor.next();
+				assertEquals(Integer.parseInt(tuple[sid]) % 5, 3);
+				rows++;
+			}
+			assertEquals(rows, 1000);
+			assertTrue(cursor.isClosed());
+		}
+		
+		// Closing early stops the plan
+		ResultCursor cursor = PlanExecutor.execute(plan);
+		assertEquals(cursor.nextBatch(10).size(), 10);
+		cursor.close();
+		assertFalse(cursor.hasNext());
+		assertEquals(cursor.getCount(), 10);
+		
+		// The publisher sends no more tuples than requested
+		java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(2);
+		final java.util.concurrent.atomic.AtomicInteger received = new java.util.concurrent.atomic.AtomicInteger();
+		final java.util.concurrent.atomic.AtomicLong requested = new java.util.concurrent.atomic.AtomicLong(100);
+		final java.util.concurrent.atomic.AtomicInteger excess = new java.util.concurrent.atomic.AtomicInteger();
+		final java.util.concurrent.CountDownLatch first = new java.util.concurrent.CountDownLatch(100);
+		final java.util.concurrent.CountDownLatch done = new java.util.concurrent.CountDownLatch(1);
+		final ResultPublisher.Subscription[] subscription = new ResultPublisher.Subscription[1];
+		new ResultPublisher(PlanExecutor.execute(plan), 64, pool).subscribe(new ResultPublisher.Subscriber() {
+			public void onSubscribe(ResultPublisher.Subscription s) {
+				subscription[0] = s;
+			}
+			public void onNext(String[] tuple) {
+				if (received.incrementAndGet() > requested.get())
+					excess.incrementAndGet();
+				first.countDown();
+			}
+			public void onError(Throwable error) {
+				done.countDown();
+			}
+			public void onComplete() {
+				done.countDown();
+			}
+		});
+		subscription[0].request(100);
+		assertTrue(first.await(10, java.util.concurrent.TimeUnit.SECONDS));
+		requested.set(Long.MAX_VALUE);
+		subscription[0].request(Long.MAX_VALUE);
+		assertTrue(done.await(10, java.util.concurrent.TimeUnit.SECONDS));
+		assertEquals(excess.get(), 0);
+		assertEquals(received.get(), 1000);
+		
+		// A request of no tuples fails the subscription on the executor, and closes the result
+		final ResultCursor refused = PlanExecutor.execute(plan);
+		final Thread caller = Thread.currentThread();
+		final java.util.concurrent.CompletableFuture<Thread> failed = new java.util.concurrent.CompletableFuture<Thread>();
+		new ResultPublisher(refused, 64, pool).subscribe(new ResultPublisher.Subscriber() {
+			public void onSubscribe(ResultPublisher.Subscription s) {
+				s.request(0);
+			}
+			public void onNext(String[] tuple) {
+			}
+			public void onError(Throwable error) {
+				failed.complete(error instanceof IllegalArgumentException ? Thread.currentThread() : null);
+			}
+			public void onComplete() {
+				failed.complete(null);
+			}
+		});
+		Thread sender = failed.get(10, java.util.concurrent.TimeUnit.SECONDS);
+		assertTrue(sender != null && sender != caller);
+		assertTrue(refused.isClosed());
+		pool.shutdown();
+	}
+
+	@Test void queryServerAnswersConcurrentSessions() throws Exception {
+		System.out.println("--- queryServerAnswersConcurrentSessions ---");
+		
+		Catalogue cat = createCatalogue();
+		load(cat, "Emp", "eid,ename,edept", 2000, i -> i + ",\"e, " + i + "\",d" + (i % 20));
+		
+		try (final QueryServer server = new QueryServer(cat, 0)) {
+			server.start();
+			final java.util.concurrent.atomic.AtomicInteger failures = new java.util.concurrent.atomic.AtomicInteger();
+			Thread[] clients = new Thread[16];
+			for (int c = 0; c < clients.length; c++) {
+				final int dept = c;
+				clients[c] = new Thread(new Runnable() {
+					public void run() {
+						try (Session session = new Session(server)) {
+							for (int q = 0; q < 10; q++) {
+								session.send("SELECT eid,ename\nFROM Emp\nWHERE edept=\"d" + dept + "\"\n\n");
+								if (!session.readLine().equals("eid,ename"))
+									failures.incrementAndGet();
+								String line;
+								while ((line = session.readLine()).startsWith("OK") == false) {
+									if (Integer.parseInt(line.substring(0, line.indexOf(','))) % 20 != dept || !line.contains("\"e, "))
+										failures.incrementAndGet();
+								}
+								if (!line.equals("OK 100"))
+									failures.incrementAndGet();
+							}
+						} catch (Exception e) {
+							e.printStackTrace();
+							failures.incrementAndGet();
+						}
+					}
+				});
+				clients[c].start();
+			}
+			for (Thread t : clients)
+				t.join();
+			assertEquals(failures.get(), 0);
+			assertEquals(server.getQueryCount(), 160);
+		}
+	}
+
+	@Test void queryServerExplainsRelationsWithoutStorage() throws Exception {
+		System.out.println("--- queryServerExplainsRelationsWithoutStorage ---");
+		
+		try (QueryServer server = new QueryServer(createCatalogue(), 0)) {
+			server.start();
+			try (Session session = new Session(server)) {
+				// Relations without storage can be explained but not executed
+				session.send("EXPLAIN SELECT a2\nFROM A\nWHERE a1=\"1\"\n\nSELECT a2\nFROM A\n\nQUIT\n");
+				assertTrue(session.readLine().startsWith("PLAN "));
+				assertEquals(session.readLine(), "OK 0");
+				assertTrue(session.readLine().startsWith("ERROR "));
+				assertEquals(session.readLine(), null);
+			}
+		}
+	}
+
+	@Test void preparedStatementsBindParameters() throws Exception {
+		System.out.println("--- preparedStatementsBindParameters ---");
+		
+		File csv = File.createTempFile("sjdb", ".csv");
+		File file = File.createTempFile("sjdb", ".col");
+		csv.deleteOnExit();
+		file.deleteOnExit();
+		try (java.io.PrintWriter out = new java.io.PrintWriter(csv, "UTF-8")) {
+			out.println("pid,pname,pdept");
+			for (int i = 0; i < 3000; i++)
+				out.println(i + ",p" + i + ",d" + (i % 30));
+		}
+		Catalogue cat = new Catalogue();
+		new BulkLoader(cat).load("Part", csv, file);
+		cat.createIndex("Part", "pname");
+		
+		// Point lookups through the index
+		PreparedStatement lookup = new PreparedStatement(cat, "SELECT pid\nFROM Part\nWHERE pname=?");
+		System.out.println(lookup.getPlan());
+		assertEquals(lookup.getParameterCount(), 1);
+		assertTrue(lookup.getPlan().toString().contains("pname=?"));
+		for (int i = 0; i < 3000; i += 7) {
+			try (ResultCursor cursor = lookup.execute("p" + i)) {
+				assertEquals(cursor.next()[0], Integer.toString(i));
+				assertFalse(cursor.hasNext());
+			}
+		}
+		assertFalse(lookup.execute("missing").hasNext());
+		
+		PreparedStatement both = new PreparedStatement(cat, "SELECT pname\nFROM Part\nWHERE pdept=?,pid=?");
+		assertEquals(both.getParameterCount(), 2);
+		assertEquals(both.execute("d4", "34").nextBatch(10).size(), 1);
+		assertEquals(both.execute("d5", "34").nextBatch(10).size(), 0);
+		assertThrows(IllegalArgumentException.class, () -> both.bind("d4"));
+		
+		// Sessions prepare once and execute by name
+		try (QueryServer server = new QueryServer(cat, 0);
+				java.net.Socket socket = new java.net.Socket(java.net.InetAddress.getLoopbackAddress(), server.getPort())) {
+			server.start();
+			java.io.BufferedReader in = new java.io.BufferedReader(new java.io.InputStreamReader(socket.getInputStream(), "UTF-8"));
+			java.io.Writer out = new java.io.OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+			out.write("PREPARE dept\nSELECT pid\nFROM Part\nWHERE pdept=?\n\nEXECUTE dept d7\n\nEXECUTE dept\n\n");
+			out.flush();
+			assertEquals(in.readLine(), "PREPARED dept 1");
+			assertEquals(in.readLine(), "OK 0");
+			assertEquals(in.readLine(), "pid");
+			String line;
+			int rows = 0;
+			while (!(line = in.readLine()).startsWith("OK"))
+				rows++;
+			assertEquals(rows, 100);
+			assertTrue(in.readLine().startsWith("ERROR"));
+		}
+	}
+
+	@Test void heapScansReadAhead() throws Exception {
+		System.out.println("--- heapScansReadAhead ---");
+		
+		File file = File.createTempFile("sjdb", ".heap");
+		file.delete();
+		file.deleteOnExit();
+		ArrayList<Attribute> atts = new ArrayList<Attribute>();
+		atts.add(new Attribute("hid", 20000));
+		atts.add(new Attribute("hval", 20000));
+		HeapFile heap = HeapFile.open(file, atts, new BufferPool(16));
+		for (int i = 0; i < 20000; i++) {
+			heap.insert(new String[] { Integer.toString(i), "a value padded to take up some room " + i });
+		}
+		heap.close();
+		
+		// Scan the file cold through a pool much smaller than it
+		BufferPool pool = new BufferPool(32);
+		heap = HeapFile.open(file, new ArrayList<Attribute>(), pool);
+		assertTrue(heap.getPageCount() > 2 * pool.getFrameCount());
+		TupleCursor cursor = heap.cursor();
+		long sum = 0;
+		int rows = 0;
+		while (cursor.next()) {
+			sum += Integer.parseInt(cursor.getString(0));
+			rows++;
+		}
+		System.out.println(pool.toString());
+		assertEquals(rows, 20000);
+		assertEquals(sum, 19999L * 20000 / 2);
+		// Nearly every page was read ahead of the cursor
+		assertTrue(pool.getPrefetches() >= heap.getPageCount() - 4);
+		assertTrue(pool.getMisses() <= 2);
+		heap.close();
+	}
+
+	@Test void memoryGrantsForceSpilling() throws Exception {
+		System.out.println("--- memoryGrantsForceSpilling ---");
+		
+		File r = File.createTempFile("sjdb", ".csv");
+		File s = File.createTempFile("sjdb", ".csv");
+		File rCol = File.createTempFile("sjdb", ".col");
+		File sCol = File.createTempFile("sjdb", ".col");
+		for (File f : new File[] { r, s, rCol, sCol })
+			f.deleteOnExit();
+		try (java.io.PrintWriter out = new java.io.PrintWriter(r, "UTF-8")) {
+			out.println("rk,rv");
+			for (int i = 0; i < 6000; i++)
+				out.println((i % 3000) + ",r" + i);
+		}
+		try (java.io.PrintWriter out = new java.io.PrintWriter(s, "UTF-8")) {
+			out.println("sk,sv");
+			for (int i = 0; i < 5000; i++)
+				out.println((i * 7 % 4000) + ",s" + i);
+		}
+		Catalogue cat = new Catalogue();
+		new BulkLoader(cat).load("R", r, rCol);
+		new BulkLoader(cat).load("S", s, sCol);
+		PreparedStatement join = new PreparedStatement(cat, "SELECT rv,sv\nFROM R,S\nWHERE rk=sk");
+		
+		java.util.HashSet<String> expected = new java.util.HashSet<String>();
+		try (ResultCursor cursor = join.execute()) {
+			while (cursor.hasNext())
+				expected.add(String.join(",", cursor.next()));
+		}
+		int matches = 0;
+		for (int i = 0; i < 5000; i++)
+			matches += i * 7 % 4000 < 3000 ? 2 : 0;
+		assertEquals(expected.size(), matches);
+		
+		// A grant far smaller than the build side
+		MemoryManager memory = new MemoryManager(64 << 10);
+		java.util.HashSet<String> spilled = new java.util.HashSet<String>();
+		try (ResultCursor cursor = join.execute(memory)) {
+			assertTrue(memory.getAvailable() < memory.getCapacity());
+			while (cursor.hasNext())
+				spilled.add(String.join(",", cursor.next()));
+		}
+		assertEquals(spilled, expected);
+		assertEquals(memory.getSpills(), 1);
+		assertTrue(memory.getPeakUsed() <= memory.getCapacity() / 4);
+		assertEquals(memory.getAvailable(), memory.getCapacity());
+		
+		// Products spill their right input and read the left in blocks
+		Operator product = new QueryParser(cat, new java.io.StringReader("SELECT rk,sk\nFROM R,S")).parse();
+		long rows = 0;
+		try (ResultCursor cursor = PlanExecutor.execute(product, memory)) {
+			while (cursor.hasNext()) {
+				cursor.next();
+				rows++;
+			}
+		}
+		assertEquals(rows, 6000L * 5000);
+		assertEquals(memory.getSpills(), 2);
+		
+		// A query waits while another holds the memory it needs
+		final MemoryManager exclusive = new MemoryManager(64 << 10, 64 << 10);
+		ResultCursor first = join.execute(exclusive);
+		final java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch(1);
+		final long[] second = new long[1];
+		final int total = matches;
+		Thread t = new Thread(() -> {
+			started.countDown();
+			try (ResultCursor cursor = join.execute(exclusive)) {
+				second[0] = cursor.nextBatch(total + 1).size();
+			}
+		});
+		t.start();
+		started.await();
+		assertTrue(eventually(() -> exclusive.getWaits() == 1));
+		assertEquals(second[0], 0);
+		first.close();
+		t.join();
+		assertEquals(second[0], (long) matches);
+	}
+
+	@Test void limitsStopEarly() throws Exception {
+		System.out.println("--- limitsStopEarly ---");
+		
+		File o = File.createTempFile("sjdb", ".csv");
+		File c = File.createTempFile("sjdb", ".csv");
+		File oCol = File.createTempFile("sjdb", ".col");
+		File cCol = File.createTempFile("sjdb", ".col");
+		for (File f : new File[] { o, c, oCol, cCol })
+			f.deleteOnExit();
+		try (java.io.PrintWriter out = new java.io.PrintWriter(o, "UTF-8")) {
+			out.println("oid,cust,total");
+			for (int i = 0; i < 20000; i++)
+				out.println(i + "," + (i % 2000) + "," + (i * 37 % 10007));
+		}
+		try (java.io.PrintWriter out = new java.io.PrintWriter(c, "UTF-8")) {
+			out.println("cid,cname");
+			for (int i = 0; i < 2000; i++)
+				out.println(i + ",c" + i);
+		}
+		Catalogue cat = new Catalogue();
+		new BulkLoader(cat).load("Orders", o, oCol);
+		new BulkLoader(cat).load("Customer", c, cCol);
+		cat.createIndex("Customer", "cid");
+		
+		// The estimator caps the output at the limit
+		Operator canonical = new QueryParser(cat, new java.io.StringReader(
+				"SELECT oid,cname\nFROM Orders,Customer\nWHERE cust=cid\nLIMIT 20")).parse();
+		canonical.accept(new Estimator());
+		assertEquals(canonical.getOutput().getTupleCount(), 20);
+		
+		// A limit without a sort prefers a join which stops early
+		PreparedStatement first = new PreparedStatement(cat, "SELECT oid,cname\nFROM Orders,Customer\nWHERE cust=cid\nLIMIT 20");
+		System.out.println(first.getPlan());
+		assertTrue(first.getPlan().toString().startsWith("LIMIT [20]"));
+		assertTrue(first.getPlan().toString().contains("INDEX JOIN"));
+		try (ResultCursor cursor = first.execute()) {
+			java.util.List<String[]> rows = cursor.nextBatch(100);
+			assertEquals(rows.size(), 20);
+			for (String[] row : rows)
+				assertEquals(row[1], "c" + (Integer.parseInt(row[0]) % 2000));
+		}
+		
+		// Top-N by an attribute which is not projected
+		PreparedStatement top = new PreparedStatement(cat,
+				"SELECT oid,cname\nFROM Orders,Customer\nWHERE cust=cid\nORDER BY total DESC,oid\nLIMIT 20");
+		System.out.println(top.getPlan());
+		assertTrue(top.getPlan().toString().contains("SORT [total DESC,oid] LIMIT [20]"));
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < 20000; i++)
+			expected.add(i);
+		expected.sort((a, b) -> a * 37 % 10007 != b * 37 % 10007 ? (b * 37 % 10007) - (a * 37 % 10007) : a - b);
+		try (ResultCursor cursor = top.execute()) {
+			assertEquals(cursor.getAttributes().size(), 2);
+			for (int i = 0; i < 20; i++) {
+				String[] row = cursor.next();
+				assertEquals(row[0], Integer.toString(expected.get(i)));
+				assertEquals(row[1], "c" + (expected.get(i) % 2000));
+			}
+			assertFalse(cursor.hasNext());
+		}
+		
+		// A limit over a product of 40M rows closes its input after 10
+		Operator product = new QueryParser(cat, new java.io.StringReader("SELECT oid,cid\nFROM Orders,Customer\nLIMIT 10")).parse();
+		try (ResultCursor cursor = PlanExecutor.execute(product)) {
+			assertEquals(cursor.nextBatch(100).size(), 10);
+			assertTrue(cursor.isClosed());
+		}
+		
+		// A full sort spills runs and merges them
+		MemoryManager memory = new MemoryManager(256 << 10);
+		PreparedStatement sorted = new PreparedStatement(cat, "SELECT oid\nFROM Orders\nORDER BY total,oid");
+		expected.sort((a, b) -> a * 37 % 10007 != b * 37 % 10007 ? (a * 37 % 10007) - (b * 37 % 10007) : a - b);
+		try (ResultCursor cursor = sorted.execute(memory)) {
+			for (int i = 0; i < 20000; i++)
+				assertEquals(cursor.next()[0], Integer.toString(expected.get(i)));
+			assertFalse(cursor.hasNext());
+		}
+		assertEquals(memory.getSpills(), 1);
+		assertEquals(memory.getAvailable(), memory.getCapacity());
+	}
+
+	@Test void hashAggregationGroupsInParallel() throws Exception {
+		System.out.println("--- hashAggregationGroupsInParallel ---");
+		
+		File csv = File.createTempFile("sjdb", ".csv");
+		File file = File.createTempFile("sjdb", ".col");
+		csv.deleteOnExit();
+		file.deleteOnExit();
+		int[] counts = new int[500];
+		long[] totals = new long[500];
+		try (java.io.PrintWriter out = new java.io.PrintWriter(csv, "UTF-8")) {
+			out.println("hotel,author,overall");
+			for (int i = 0; i < 200000; i++) {
+				int hotel = i * 31 % 500, overall = i * 7 % 5 + 1;
+				out.println("h" + hotel + ",a" + i + "," + overall);
+				counts[hotel]++;
+				totals[hotel] += overall;
+			}
+		}
+		Catalogue cat = new Catalogue();
+		new BulkLoader(cat).load("Review", csv, file);
+		
+		// The estimator gives one tuple for each value of the group
+		String query = "SELECT hotel,COUNT(*),AVG(overall)\nFROM Review\nGROUP BY hotel\nORDER BY AVG(overall) DESC,hotel";
+		Operator canonical = new QueryParser(cat, new java.io.StringReader(query)).parse();
+		canonical.accept(new Estimator());
+		assertEquals(canonical.getOutput().getTupleCount(), 500);
+		
+		PreparedStatement averages = new PreparedStatement(cat, query);
+		System.out.println(averages.getPlan());
+		for (MemoryManager memory : new MemoryManager[] { null, new MemoryManager(64 << 10) }) {
+			try (ResultCursor cursor = averages.execute(memory)) {
+				assertEquals(cursor.getAttributes().get(1).getName(), "COUNT(*)");
+				double last = Double.MAX_VALUE;
+				int groups = 0;
+				while (cursor.hasNext()) {
+					String[] row = cursor.next();
+					int hotel = Integer.parseInt(row[0].substring(1));
+					assertEquals(row[1], Integer.toString(counts[hotel]));
+					double average = Double.parseDouble(row[2]);
+					assertTrue(Math.abs(average - (double) totals[hotel] / counts[hotel]) < 1e-9);
+					assertTrue(average <= last);
+					last = average;
+					groups++;
+				}
+				assertEquals(groups, 500);
+			}
+			// Both the aggregate and the sort of its groups spill
+			if (memory != null) {
+				assertEquals(memory.getSpills(), 2);
+				assertEquals(memory.getAvailable(), memory.getCapacity());
+			}
+		}
+		
+		// Without grouping attributes the whole input is one group
+		PreparedStatement all = new PreparedStatement(cat, "SELECT COUNT(*),SUM(overall),MIN(overall),MAX(overall)\nFROM Review");
+		assertArrayEquals(all.execute().next(), new String[] { "200000", "600000", "1", "5" });
+		PreparedStatement none = new PreparedStatement(cat, "SELECT COUNT(author),SUM(overall),MAX(author)\nFROM Review\nWHERE hotel=?");
+		assertArrayEquals(none.execute("h0").next(), new String[] { "400", Long.toString(totals[0]), "a99500" });
+		assertArrayEquals(none.execute("missing").next(), new String[] { "0", "0", "" });
+		
+		// Selected attributes must be grouped or aggregated
+		assertThrows(Exception.class, () -> new QueryParser(cat, new java.io.StringReader(
+				"SELECT hotel,author,COUNT(*)\nFROM Review\nGROUP BY hotel")).parse());
+	}
+
+	@Test void semiJoinsReduceAcyclicQueries() throws Exception {
+		System.out.println("--- semiJoinsReduceAcyclicQueries ---");
+		
+		// A chain of many-to-many joins, where half of C joins nothing
+		File a = File.createTempFile("sjdb", ".csv");
+		File b = File.createTempFile("sjdb", ".csv");
+		File c = File.createTempFile("sjdb", ".csv");
+		for (File f : new File[] { a, b, c })
+			f.deleteOnExit();
+		try (java.io.PrintWriter out = new java.io.PrintWriter(a, "UTF-8")) {
+			out.println("aid,ax,atag");
+			for (int i = 0; i < 600; i++)
+				out.println(i + "," + (i % 40) + ",t" + (i % 10));
+		}
+		try (java.io.PrintWriter out = new java.io.PrintWriter(b, "UTF-8")) {
+			out.println("bx,by");
+			for (int i = 0; i < 600; i++)
+				out.println((i % 40) + "," + (i * 7 % 60));
+		}
+		try (java.io.PrintWriter out = new java.io.PrintWriter(c, "UTF-8")) {
+			out.println("cy,ctag");
+			for (int i = 0; i < 600; i++)
+				out.println((i % 60 + 30) + ",t" + (i % 10));
+		}
+		Catalogue cat = new Catalogue();
+		new BulkLoader(cat).load("A", a, File.createTempFile("sjdb", ".col"));
+		new BulkLoader(cat).load("B", b, File.createTempFile("sjdb", ".col"));
+		new BulkLoader(cat).load("C", c, File.createTempFile("sjdb", ".col"));
+		
+		// Count the results by brute force
+		long expected = 0;
+		for (int i = 0; i < 600; i++) {
+			if (i % 10 != 1)
+				continue;
+			for (int j = 0; j < 600; j++) {
+				if (j % 40 != i % 40)
+					continue;
+				for (int k = 0; k < 600; k++)
+					expected += k % 60 + 30 == j * 7 % 60 ? 1 : 0;
+			}
+		}
+		
+		String query = "SELECT aid,ctag\nFROM A,B,C\nWHERE ax=bx,by=cy,atag=\"t1\"";
+		PreparedStatement chain = new PreparedStatement(cat, query);
+		System.out.println(chain.getPlan());
+		long rows = 0;
+		try (ResultCursor cursor = chain.execute()) {
+			while (cursor.hasNext()) {
+				cursor.next();
+				rows++;
+			}
+		}
+		assertEquals(rows, expected);
+		
+		// The reduced plan gives the same result, and is kept only if it is estimated to be cheaper
+		Operator parsed = new QueryParser(cat, new java.io.StringReader(query)).parse();
+		parsed.accept(new Estimator());
+		Optimiser optimiser = new Optimiser(cat);
+		optimiser.setVerbose(false);
+		optimiser.findAll(parsed);
+		ArrayList<Operator> inputs = optimiser.pushSelectsProjects(parsed);
+		Operator joined = optimiser.orderProductsJoins(inputs, parsed);
+		ArrayList<Operator> reduced = optimiser.buildSemiJoins(inputs);
+		assertTrue(reduced != null);
+		Operator semiJoined = optimiser.orderProductsJoins(reduced, parsed);
+		assertEquals(count(semiJoined), expected);
+		int semiJoinedCost = optimiser.getFilteredCost(semiJoined);
+		int joinedCost = optimiser.getFilteredCost(joined);
+		assertEquals(chain.getPlan().toString().contains("SEMIJOIN"), semiJoinedCost < joinedCost);
+		
+		// The estimator keeps the fraction of values with a partner
+		Operator left = new Scan(cat.getRelation("B"));
+		Operator right = new Select(new Scan(cat.getRelation("A")), new Predicate(new Attribute("aid"), "7"));
+		SemiJoin semiJoin = new SemiJoin(left, right, new Predicate(new Attribute("bx"), new Attribute("ax")));
+		semiJoin.accept(new Estimator());
+		Relation relB = cat.getRelation("B");
+		int expectedCount = (int) Math.ceil(relB.getTupleCount() / (double) relB.getAttribute(new Attribute("bx")).getValueCount());
+		assertEquals(semiJoin.getOutput().getTupleCount(), expectedCount);
+		assertEquals(semiJoin.getOutput().getAttribute(new Attribute("bx")).getValueCount(), 1);
+		
+		// A cycle of joins cannot be fully reduced
+		PreparedStatement cycle = new PreparedStatement(cat, "SELECT aid,ctag\nFROM A,B,C\nWHERE ax=bx,by=cy,ctag=atag");
+		System.out.println(cycle.getPlan());
+		assertFalse(cycle.getPlan().toString().contains("SEMIJOIN"));
+	}
+
+	@Test void semiJoinReductionsAreBuiltOnce() throws Exception {
+		System.out.println("--- semiJoinReductionsAreBuiltOnce ---");
+		
+		// A chain of five relations, each with tuples which join nothing
+		Catalogue cat = new Catalogue();
+		load(cat, "P", "pid,pq", 200, i -> i + "," + (i % 50));
+		load(cat, "Q", "qp,qr", 200, i -> (i % 60) + "," + (i % 30));
+		load(cat, "R", "rq,rs", 200, i -> (i % 40 + 5) + "," + (i % 70));
+		load(cat, "S", "sr,st", 200, i -> (i % 80) + "," + (i % 20));
+		load(cat, "T", "ts,tid", 200, i -> (i % 25) + "," + i);
+		Operator parsed = new QueryParser(cat, new java.io.StringReader(
+				"SELECT pid,tid\nFROM P,Q,R,S,T\nWHERE pq=qp,qr=rq,rs=sr,st=ts")).parse();
+		parsed.accept(new Estimator());
+		Optimiser optimiser = new Optimiser(cat);
+		optimiser.setVerbose(false);
+		optimiser.findAll(parsed);
+		ArrayList<Operator> inputs = optimiser.pushSelectsProjects(parsed);
+		Operator full = optimiser.orderProductsJoins(inputs, parsed);
+		ArrayList<Operator> reduced = optimiser.buildSemiJoins(inputs);
+		
+		// Each relation is scanned once, and each edge of the join tree is
+		// reduced once in each direction
+		java.util.Set<Operator> operators = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<Operator, Boolean>());
+		for (Operator input : reduced)
+			collect(input, operators);
+		int scans = 0;
+		int semiJoins = 0;
+		for (Operator op : operators) {
+			scans += op instanceof Scan ? 1 : 0;
+			semiJoins += op instanceof SemiJoin ? 1 : 0;
+		}
+		assertEquals(scans, 5);
+		assertEquals(semiJoins, 8);
+		
+		// The shared reductions are executed once, with the result of the full plan
+		Operator joined = optimiser.orderProductsJoins(reduced, parsed);
+		assertFalse(Operator.findShared(joined).isEmpty());
+		assertEquals(count(joined), count(full));
+		assertTrue(count(full) > 0);
+		
+		// Reductions held beyond a small grant are spilled and read back
+		MemoryManager memory = new MemoryManager(4 << 10);
+		long rows = 0;
+		try (ResultCursor cursor = PlanExecutor.execute(joined, memory)) {
+			while (cursor.hasNext()) {
+				cursor.next();
+				rows++;
+			}
+		}
+		assertEquals(rows, count(full));
+		assertTrue(memory.getSpills() > 0);
+		assertEquals(memory.getAvailable(), memory.getCapacity());
+	}
+
+	@Test void materialisedViewsRewriteQueries() throws Exception {
+		System.out.println("--- materialisedViewsRewriteQueries ---");
+		
+		File proj = File.createTempFile("sjdb", ".csv");
+		File dept = File.createTempFile("sjdb", ".csv");
+		File view = File.createTempFile("sjdb", ".col");
+		for (File f : new File[] { proj, dept, view })
+			f.deleteOnExit();
+		try (java.io.PrintWriter out = new java.io.PrintWriter(proj, "UTF-8")) {
+			out.println("pid,pdept,pname");
+			for (int i = 0; i < 2000; i++)
+				out.println(i + "," + (i % 50) + ",p" + i);
+		}
+		try (java.io.PrintWriter out = new java.io.PrintWriter(dept, "UTF-8")) {
+			out.println("did,dname");
+			for (int i = 0; i < 50; i++)
+				out.println(i + ",d" + i);
+		}
+		Catalogue cat = new Catalogue();
+		new BulkLoader(cat).load("Proj", proj, File.createTempFile("sjdb", ".col"));
+		new BulkLoader(cat).load("Dept", dept, File.createTempFile("sjdb", ".col"));
+		
+		MaterialisedView projDept = cat.createView("ProjDept", "SELECT pid,pname,dname\nFROM Proj,Dept\nWHERE pdept=did", view, new BufferPool(64));
+		assertEquals(projDept.getTupleCount(), 2000);
+		assertEquals(projDept.getAttribute(new Attribute("dname")).getValueCount(), 50);
+		assertEquals(cat.getRelation("ProjDept"), projDept);
+		
+		// The join is read from the view, which is cheaper than joining every tuple again
+		PreparedStatement all = new PreparedStatement(cat, "SELECT pname,dname\nFROM Dept,Proj\nWHERE did=pdept\nORDER BY pname");
+		System.out.println(all.getPlan());
+		assertTrue(all.getPlan().toString().contains("ProjDept"));
+		assertFalse(all.getPlan().toString().contains("Proj)"));
+		int rows = 0;
+		try (ResultCursor cursor = all.execute()) {
+			while (cursor.hasNext()) {
+				String[] tuple = cursor.next();
+				assertEquals(tuple[1], "d" + Integer.parseInt(tuple[0].substring(1)) % 50);
+				rows++;
+			}
+		}
+		assertEquals(rows, 2000);
+		
+		// A selective query is cheaper from the base relations, and either plan keeps the predicate
+		PreparedStatement statement = new PreparedStatement(cat, "SELECT pname,dname\nFROM Dept,Proj\nWHERE did=pdept,dname=\"d7\"\nORDER BY pname");
+		System.out.println(statement.getPlan());
+		java.util.List<String> names = new ArrayList<String>();
+		try (ResultCursor cursor = statement.execute()) {
+			while (cursor.hasNext()) {
+				String[] tuple = cursor.next();
+				assertEquals(tuple[1], "d7");
+				names.add(tuple[0]);
+			}
+		}
+		assertEquals(names.size(), 40);
+		assertEquals(names.get(0), "p1007");
+		
+		// A view without an attribute needed by the query is not read
+		PreparedStatement missing = new PreparedStatement(cat, "SELECT pname,pdept\nFROM Proj,Dept\nWHERE pdept=did");
+		assertFalse(missing.getPlan().toString().contains("ProjDept"));
+		
+		// Nor is a view joining a relation the query does not read
+		PreparedStatement single = new PreparedStatement(cat, "SELECT pname\nFROM Proj\nWHERE pdept=\"3\"");
+		assertFalse(single.getPlan().toString().contains("ProjDept"));
+		
+		// Equalities between attributes are implied through the attributes they chain
+		java.util.List<Predicate> chain = new ArrayList<Predicate>();
+		chain.add(new Predicate(new Attribute("pdept"), new Attribute("did")));
+		chain.add(new Predicate(new Attribute("did"), "7"));
+		assertTrue(ViewRewriter.implies(chain, new Predicate(new Attribute("pdept"), "7")));
+		assertFalse(ViewRewriter.implies(chain, new Predicate(new Attribute("pdept"), "8")));
+		
+		// A view may only select, project and join
+		assertThrows(DatabaseException.class, () -> cat.createView("Counts",
+				"SELECT pdept,COUNT(*)\nFROM Proj\nGROUP BY pdept", File.createTempFile("sjdb", ".col"), new BufferPool(64)));
+		assertThrows(DatabaseException.class, () -> cat.createView("ProjDept", "SELECT pid\nFROM Proj", view, new BufferPool(64)));
+	}
+
+	@Test void viewsAreMaintainedOnInsert() throws Exception {
+		System.out.println("--- viewsAreMaintainedOnInsert ---");
+		
+		Catalogue cat = new Catalogue();
+		BufferPool pool = new BufferPool(256);
+		cat.createRelation("Cust", 0);
+		cat.createAttribute("Cust", "cid", 0);
+		cat.createAttribute("Cust", "cname", 0);
+		cat.createRelation("Ord", 0);
+		cat.createAttribute("Ord", "oid", 0);
+		cat.createAttribute("Ord", "ocust", 0);
+		cat.createAttribute("Ord", "ostatus", 0);
+		for (String name : new String[] { "Cust", "Ord" }) {
+			File file = File.createTempFile("sjdb", ".heap");
+			file.delete();
+			file.deleteOnExit();
+			cat.attachHeapFile(name, file, pool);
+		}
+		cat.createIndex("Cust", "cid");
+		
+		java.util.List<String[]> customers = new ArrayList<String[]>();
+		for (int i = 0; i < 100; i++)
+			customers.add(new String[] { Integer.toString(i), "c" + i });
+		cat.insert("Cust", customers);
+		assertEquals(cat.getRelation("Cust").getTupleCount(), 100);
+		
+		File file = File.createTempFile("sjdb", ".heap");
+		file.deleteOnExit();
+		MaterialisedView view = cat.createView("Open", "SELECT oid,cname\nFROM Ord,Cust\nWHERE ocust=cid,ostatus=\"open\"", file, pool);
+		assertEquals(view.getTupleCount(), 0);
+		
+		// Orders are added to the view as they are inserted, including those of customers added later
+		java.util.Map<String, String> expected = new java.util.HashMap<String, String>();
+		for (int batch = 0; batch < 10; batch++) {
+			java.util.List<String[]> orders = new ArrayList<String[]>();
+			for (int i = batch * 100; i < batch * 100 + 100; i++) {
+				String status = i % 3 == 0 ? "closed" : "open";
+				orders.add(new String[] { Integer.toString(i), Integer.toString(i % 120), status });
+				if (status.equals("open") && i % 120 < 100)
+					expected.put(Integer.toString(i), "c" + (i % 120));
+			}
+			cat.insert("Ord", orders);
+		}
+		assertEquals(view.getTupleCount(), expected.size());
+		customers.clear();
+		for (int i = 100; i < 120; i++)
+			customers.add(new String[] { Integer.toString(i), "c" + i });
+		cat.insert("Cust", customers);
+		for (int i = 0; i < 1000; i++) {
+			if (i % 3 != 0 && i % 120 >= 100)
+				expected.put(Integer.toString(i), "c" + (i % 120));
+		}
+		
+		java.util.Map<String, String> stored = new java.util.HashMap<String, String>();
+		TupleCursor cursor = view.getStorage().cursor();
+		while (cursor.next())
+			assertEquals(stored.put(cursor.getString(0), cursor.getString(1)), null);
+		assertEquals(stored, expected);
+		
+		// The statistics of the view and the relations follow the inserts
+		assertEquals(view.getTupleCount(), expected.size());
+		assertEquals(view.getAttribute(new Attribute("cname")).getValueCount(), 80, 3);
+		assertEquals(cat.getRelation("Ord").getTupleCount(), 1000);
+		assertEquals(cat.getRelation("Cust").getAttribute(new Attribute("cid")).getValueCount(), 120, 3);
+		
+		// The index of the relation holds the inserted tuples
+		PreparedStatement lookup = new PreparedStatement(cat, "SELECT cname\nFROM Cust\nWHERE cid=\"110\"");
+		try (ResultCursor result = lookup.execute()) {
+			assertEquals(result.next()[0], "c110");
+			assertFalse(result.hasNext());
+		}
+		
+		// Views are maintained, not inserted into
+		assertThrows(DatabaseException.class, () -> cat.insert("Open", new ArrayList<String[]>()));
+	}
+
+	@Test void writeAheadLogSharesForcesBetweenCommits() throws Exception {
+		System.out.println("--- writeAheadLogSharesForcesBetweenCommits ---");
+		
+		File wal = File.createTempFile("sjdb", ".wal");
+		wal.deleteOnExit();
+		Catalogue cat = eventCatalogue(heapFile());
+		WriteAheadLog log = new WriteAheadLog(wal, 1000);
+		assertEquals(cat.attachLog(log), 0);
+		
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 50; i++) {
+					String id = Integer.toString(thread * 50 + i);
+					try {
+						cat.insert("Event", java.util.Collections.singletonList(new String[] { id, "k" + (i % 5) }));
+					} catch (DatabaseException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertEquals(log.getCommitCount(), 400L);
+		System.out.println(log.getForceCount() + " forces for " + log.getCommitCount() + " commits");
+		assertTrue(log.getForceCount() < log.getCommitCount());
+		assertEquals(cat.getRelation("Event").getTupleCount(), 400);
+		log.close();
+	}
+
+	@Test void writeAheadLogCommitsBeforeInsertsAreSeen() throws Exception {
+		System.out.println("--- writeAheadLogCommitsBeforeInsertsAreSeen ---");
+		
+		File wal = File.createTempFile("sjdb", ".wal");
+		wal.deleteOnExit();
+		Catalogue cat = eventCatalogue(heapFile());
+		// A long group delay holds the force of a lone commit back
+		WriteAheadLog log = new WriteAheadLog(wal, 500000);
+		assertEquals(cat.attachLog(log), 0);
+		long before = Snapshot.getLatestVersion();
+		
+		Thread insert = new Thread(() -> {
+			try {
+				cat.insert("Event", java.util.Collections.singletonList(new String[] { "1", "k1" }));
+			} catch (DatabaseException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		insert.start();
+		
+		// The insert is not published while its commit waits for the force
+		assertTrue(eventually(() -> log.getCommitCount() == 1));
+		assertEquals(log.getForceCount(), 0L);
+		assertEquals(Snapshot.getLatestVersion(), before);
+		insert.join();
+		assertTrue(log.getForceCount() > 0);
+		assertTrue(Snapshot.getLatestVersion() > before);
+		log.close();
+	}
+
+	@Test void writeAheadLogRedoesUnwrittenInserts() throws Exception {
+		System.out.println("--- writeAheadLogRedoesUnwrittenInserts ---");
+		
+		File heap = heapFile();
+		File wal = File.createTempFile("sjdb", ".wal");
+		wal.deleteOnExit();
+		Catalogue cat = eventCatalogue(heap);
+		cat.attachLog(new WriteAheadLog(wal, 0));
+		for (int b = 0; b < 40; b++) {
+			java.util.List<String[]> batch = new ArrayList<String[]>();
+			for (int i = b * 10; i < b * 10 + 10; i++)
+				batch.add(new String[] { Integer.toString(i), "k" + (i % 5) });
+			cat.insert("Event", batch);
+		}
+		
+		// After a crash which wrote none of the pages, the log holds every insert
+		Catalogue recovered = eventCatalogue(heap);
+		assertEquals(recovered.attachLog(new WriteAheadLog(wal, 0)), 400);
+		assertEquals(recovered.getRelation("Event").getTupleCount(), 400);
+		assertEquals(recovered.getRelation("Event").getAttribute(new Attribute("ekind")).getValueCount(), 5);
+		java.util.Set<String> ids = new java.util.HashSet<String>();
+		TupleCursor cursor = recovered.getRelation("Event").getStorage().cursor();
+		while (cursor.next())
+			ids.add(cursor.getString(0));
+		assertEquals(ids.size(), 400);
+		assertEquals(wal.length(), 0L);
+	}
+
+	@Test void writeAheadLogSkipsRecordsInHeapFiles() throws Exception {
+		System.out.println("--- writeAheadLogSkipsRecordsInHeapFiles ---");
+		
+		File heap = heapFile();
+		File wal = File.createTempFile("sjdb", ".wal");
+		wal.deleteOnExit();
+		Catalogue cat = eventCatalogue(heap);
+		cat.attachLog(new WriteAheadLog(wal, 0));
+		java.util.List<String[]> batch = new ArrayList<String[]>();
+		for (int i = 0; i < 50; i++)
+			batch.add(new String[] { Integer.toString(i), "k" + (i % 5) });
+		cat.insert("Event", batch);
+		((HeapFile) cat.getRelation("Event").getStorage()).flush();
+		cat.insert("Event", java.util.Collections.singletonList(new String[] { "50", "k0" }));
+		
+		// Only the insert whose tuples did not reach the heap file is redone
+		Catalogue recovered = eventCatalogue(heap);
+		assertEquals(recovered.attachLog(new WriteAheadLog(wal, 0)), 1);
+		assertEquals(recovered.getRelation("Event").getTupleCount(), 51);
+	}
+
+	@Test void writeAheadLogDropsTornRecords() throws Exception {
+		System.out.println("--- writeAheadLogDropsTornRecords ---");
+		
+		File wal = File.createTempFile("sjdb", ".wal");
+		wal.deleteOnExit();
+		WriteAheadLog log = new WriteAheadLog(wal, 0);
+		long first = log.append("Event", 0, HeapPage.encode(new String[] { "1", "k1" }));
+		log.flush(log.append("Event", 1, HeapPage.encode(new String[] { "x", "y" })));
+		log.close();
+		
+		// A record torn by a crash is dropped when the log is opened, but
+		// the whole records before it are kept
+		try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(wal, "rw")) {
+			raf.setLength(raf.length() - 3);
+		}
+		WriteAheadLog torn = new WriteAheadLog(wal, 0);
+		assertEquals(torn.currentLsn(), first);
+		assertEquals(wal.length(), first);
+		torn.close();
+	}
+
+	@Test void snapshotsIsolateScansAndLookups() throws Exception {
+		System.out.println("--- snapshotsIsolateScansAndLookups ---");
+		
+		Catalogue cat = entryCatalogue(100);
+		PreparedStatement all = new PreparedStatement(cat, "SELECT nid\nFROM Entry");
+		PreparedStatement kind = new PreparedStatement(cat, "SELECT nid\nFROM Entry\nWHERE nkind=\"k1\"");
+		assertTrue(kind.getPlan().toString().contains("INDEX"));
+		
+		// A scan and an index lookup started before an insert do not see its tuples
+		ResultCursor scan = all.execute();
+		ResultCursor lookup = kind.execute();
+		int scanned = 0;
+		for (; scanned < 10; scanned++)
+			scan.next();
+		cat.insert("Entry", entries(100, 200));
+		while (scan.hasNext()) {
+			String[] tuple = scan.next();
+			assertTrue(Integer.parseInt(tuple[0]) < 100);
+			scanned++;
+		}
+		assertEquals(scanned, 100);
+		assertEquals(lookup.nextBatch(1000).size(), 25);
+		lookup.close();
+		try (ResultCursor later = kind.execute()) {
+			assertEquals(later.nextBatch(1000).size(), 50);
+		}
+	}
+
+	@Test void snapshotsIsolateStatistics() throws Exception {
+		System.out.println("--- snapshotsIsolateStatistics ---");
+		
+		Catalogue cat = entryCatalogue(100);
+		NamedRelation entry = cat.getRelation("Entry");
+		try (Snapshot before = Snapshot.open()) {
+			cat.insert("Entry", entries(100, 200));
+			
+			// The estimator reads the statistics a snapshot sees
+			Scan estimated = new Scan(entry);
+			estimated.accept(new Estimator(before));
+			assertEquals(estimated.getOutput().getTupleCount(), 100);
+			assertEquals(entry.getStatistics(before).getTupleCount(), 100);
+			assertEquals(entry.getStatistics(null).getTupleCount(), 200);
+			assertEquals(entry.getTupleCount(), 200);
+		}
+	}
+
+	@Test void snapshotVersionsAreDiscardedOnceSeen() throws Exception {
+		System.out.println("--- snapshotVersionsAreDiscardedOnceSeen ---");
+		
+		Catalogue cat = entryCatalogue(100);
+		HeapFile heap = (HeapFile) cat.getRelation("Entry").getStorage();
+		Snapshot before = Snapshot.open();
+		cat.insert("Entry", entries(100, 200));
+		long last = -1;
+		TupleCursor stored = heap.cursor();
+		while (stored.next())
+			last = stored.getRowId();
+		final long rowId = last;
+		
+		// Versions are kept while a snapshot which does not see them is open
+		heap.collect(Snapshot.getOldestVersion());
+		assertTrue(heap.getVersion(rowId) > before.getVersion());
+		before.close();
+		
+		// and are discarded in the background once no open snapshot needs
+		// them, including those of cursors which other tests did not close
+		assertTrue(eventually(() -> {
+			System.gc();
+			return heap.getVersion(rowId) == 0;
+		}));
+	}
+
+	@Test void readersSeeWholeInserts() throws Exception {
+		System.out.println("--- readersSeeWholeInserts ---");
+		
+		Catalogue cat = entryCatalogue(200);
+		PreparedStatement all = new PreparedStatement(cat, "SELECT nid\nFROM Entry");
+		java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+		java.util.List<Integer> counts = java.util.Collections.synchronizedList(new ArrayList<Integer>());
+		Thread reader = new Thread(() -> {
+			do {
+				try (ResultCursor cursor = all.execute()) {
+					int n = 0;
+					while (cursor.hasNext()) {
+						cursor.next();
+						n++;
+					}
+					counts.add(n);
+				}
+			} while (!done.get());
+		});
+		reader.start();
+		for (int b = 0; b < 50; b++)
+			cat.insert("Entry", entries(200 + b * 10, 210 + b * 10));
+		done.set(true);
+		reader.join();
+		assertFalse(counts.isEmpty());
+		for (int n : counts)
+			assertEquals(n % 10, 0);
+		assertEquals(cat.getRelation("Entry").getTupleCount(), 700);
+	}
+
+	@Test void partitionedJoinsExchangeTuples() throws Exception {
+		System.out.println("--- partitionedJoinsExchangeTuples ---");
+		
+		Catalogue cat = new Catalogue();
+		cat.createRelation("Dept", 0);
+		cat.createAttribute("Dept", "did", 0);
+		cat.createAttribute("Dept", "dname", 0);
+		cat.createRelation("Emp", 0);
+		cat.createAttribute("Emp", "eid", 0);
+		cat.createAttribute("Emp", "edept", 0);
+		cat.createAttribute("Emp", "ename", 0);
+		cat.createRelation("Assign", 0);
+		cat.createAttribute("Assign", "aemp", 0);
+		cat.createAttribute("Assign", "aproj", 0);
+		cat.createRelation("Proj", 0);
+		cat.createAttribute("Proj", "pid", 0);
+		cat.createAttribute("Proj", "pname", 0);
+		
+		java.util.List<String[]> depts = new ArrayList<String[]>();
+		for (int i = 0; i < 5; i++)
+			depts.add(new String[] { Integer.toString(i), "dept" + i });
+		java.util.List<String[]> emps = new ArrayList<String[]>();
+		for (int i = 0; i < 3000; i++)
+			emps.add(new String[] { Integer.toString(i), Integer.toString(i % 5), "emp" + i });
+		java.util.List<String[]> assigns = new ArrayList<String[]>();
+		for (int i = 0; i < 6000; i++)
+			assigns.add(new String[] { Integer.toString(i % 3000), Integer.toString(i % 40) });
+		java.util.List<String[]> projs = new ArrayList<String[]>();
+		for (int i = 0; i < 40; i++)
+			projs.add(new String[] { Integer.toString(i), "proj" + i });
+		
+		try (Cluster cluster = Cluster.launch(cat, 3)) {
+			Partitioning byEmp = Partitioning.hash(new Attribute("eid"), 3);
+			Partitioning byProj = Partitioning.hash(new Attribute("aproj"), 3);
+			cluster.partition("Dept", Partitioning.hash(new Attribute("did"), 3), depts);
+			cluster.partition("Emp", byEmp, emps);
+			cluster.partition("Assign", byProj, assigns);
+			cluster.partition("Proj", Partitioning.replicated(3), projs);
+			assertEquals(cat.getRelation("Emp").getTupleCount(), 3000);
+			
+			// The five departments are broadcast rather than the employees shuffled
+			Operator plan = cluster.plan("SELECT ename,dname\nFROM Emp,Dept\nWHERE edept=did");
+			assertTrue(plan.toString().contains("BROADCAST") && !plan.toString().contains("SHUFFLE"));
+			java.util.List<String> expected = new ArrayList<String>();
+			for (String[] e : emps)
+				expected.add(e[2] + "," + depts.get(Integer.parseInt(e[1]))[1]);
+			long before = cluster.getTransferredTuples();
+			java.util.List<String> found = new ArrayList<String>();
+			try (ResultCursor cursor = cluster.execute(plan)) {
+				while (cursor.hasNext())
+					found.add(String.join(",", cursor.next()));
+			}
+			java.util.Collections.sort(expected);
+			java.util.Collections.sort(found);
+			assertEquals(found, expected);
+			assertEquals(cluster.getTransferredTuples() - before, 5L * 2 + 3000);
+			
+			// The assignments are shuffled to the workers of their employees
+			plan = cluster.plan("SELECT ename,aproj\nFROM Emp,Assign\nWHERE eid=aemp");
+			assertTrue(plan.toString().contains("SHUFFLE [aemp]") && !plan.toString().contains("BROADCAST"));
+			expected.clear();
+			long moved = 0;
+			for (String[] a : assigns) {
+				expected.add(emps.get(Integer.parseInt(a[0]))[2] + "," + a[1]);
+				if (byEmp.partition(a[0]) != byProj.partition(a[1]))
+					moved++;
+			}
+			before = cluster.getTransferredTuples();
+			found.clear();
+			try (ResultCursor cursor = cluster.execute(plan)) {
+				while (cursor.hasNext())
+					found.add(String.join(",", cursor.next()));
+			}
+			java.util.Collections.sort(expected);
+			java.util.Collections.sort(found);
+			assertEquals(found, expected);
+			assertEquals(cluster.getTransferredTuples() - before, moved + 6000);
+			
+			// A replicated relation is joined where the other is, and the
+			// gathered tuples are aggregated by the coordinator
+			plan = cluster.plan("SELECT pname,COUNT(*)\nFROM Assign,Proj\nWHERE aproj=pid\nGROUP BY pname");
+			assertTrue(!plan.toString().contains("BROADCAST") && !plan.toString().contains("SHUFFLE"));
+			int groups = 0;
+			try (ResultCursor cursor = cluster.execute(plan)) {
+				while (cursor.hasNext()) {
+					assertEquals(cursor.next()[1], "150");
+					groups++;
+				}
+			}
+			assertEquals(groups, 40);
+		}
+	}
+
+	@Test void partitionPruningReadsOnePartition() throws Exception {
+		System.out.println("--- partitionPruningReadsOnePartition ---");
+		
+		Catalogue cat = new Catalogue();
+		cat.createRelation("Project", 0);
+		cat.createAttribute("Project", "pid", 0);
+		cat.createAttribute("Project", "pdept", 0);
+		cat.createAttribute("Project", "pname", 0);
+		java.util.List<String[]> projects = new ArrayList<String[]>();
+		for (int i = 0; i < 4000; i++)
+			projects.add(new String[] { Integer.toString(i), Integer.toString(i % 8), "p" + i });
+		Partitioning byDept = Partitioning.hash(new Attribute("pdept"), 4);
+		NamedRelation project = cat.getRelation("Project");
+		project.setPartitioning(byDept);
+		project.addStatistics(projects, 0);
+		
+		int partition = byDept.partition("3");
+		int held = 0;
+		java.util.Set<String> depts = new java.util.HashSet<String>();
+		for (String[] p : projects) {
+			if (byDept.partition(p[1]) == partition) {
+				held++;
+				depts.add(p[1]);
+			}
+		}
+		
+		// The scan reads only the partition holding the department, estimated
+		// from the statistics of that partition
+		Operator plan = new QueryParser(cat, new java.io.StringReader("SELECT pname\nFROM Project\nWHERE pdept=\"3\"")).parse();
+		plan.accept(new Estimator());
+		Optimiser optimiser = new Optimiser(cat);
+		optimiser.setVerbose(false);
+		Operator optimised = optimiser.optimise(plan);
+		optimised.accept(new Estimator());
+		Operator op = optimised;
+		while (!(op instanceof Scan))
+			op = op.getInputs().get(0);
+		Scan scan = (Scan) op;
+		java.util.BitSet expected = new java.util.BitSet();
+		expected.set(partition);
+		assertEquals(scan.getPartitions(), expected);
+		assertEquals(scan.getOutput().getTupleCount(), held);
+		assertEquals(scan.getOutput().getAttribute(new Attribute("pdept")).getValueCount(), depts.size());
+		assertEquals(optimised.getOutput().getTupleCount(), 500);
+		
+		// A predicate on another attribute prunes nothing
+		plan = new QueryParser(cat, new java.io.StringReader("SELECT pname\nFROM Project\nWHERE pid=\"3\"")).parse();
+		plan.accept(new Estimator());
+		op = optimiser.optimise(plan);
+		while (!(op instanceof Scan))
+			op = op.getInputs().get(0);
+		assertEquals(((Scan) op).getPartitions(), null);
+		
+		// Without statistics for each partition, those of the whole relation are scaled
+		cat.createRelation("Dept", 100);
+		cat.createAttribute("Dept", "did", 100);
+		cat.createAttribute("Dept", "dname", 10);
+		cat.getRelation("Dept").setPartitioning(Partitioning.hash(new Attribute("did"), 4));
+		Relation quarter = cat.getRelation("Dept").getStatistics(null, expected);
+		assertEquals(quarter.getTupleCount(), 25);
+		assertEquals(quarter.getAttribute(new Attribute("did")).getValueCount(), 25);
+		assertEquals(quarter.getAttribute(new Attribute("dname")).getValueCount(), 10);
+	}
+
+	@Test void catalogueImageReadsRelationsLazily() throws Exception {
+		System.out.println("--- catalogueImageReadsRelationsLazily ---");
+		
+		File text = File.createTempFile("sjdb", ".txt");
+		File image = File.createTempFile("sjdb", ".cat");
+		text.deleteOnExit();
+		image.deleteOnExit();
+		try (java.io.PrintWriter out = new java.io.PrintWriter(text)) {
+			out.println("Person:400:persid,400:persname,350:age,47,index");
+			out.println("Project:40:projid,40:projname,35:dept,4,bitmap");
+			out.println("Department:5:dept,5:deptname,5:manager,5");
+			for (int i = 0; i < 2000; i++) {
+				out.print("R" + i + ":" + (i + 1));
+				for (int j = 0; j < 20; j++) {
+					out.print(":r" + i + "a" + j + "," + (j + 1));
+				}
+				out.println();
+			}
+		}
+		CatalogueImage.convert(text, image);
+		assertTrue(CatalogueImage.isImage(image));
+		assertFalse(CatalogueImage.isImage(text));
+		
+		// Relations and attributes are those read from the text catalogue
+		Catalogue cat = new Catalogue();
+		cat.attachImage(image);
+		NamedRelation person = cat.getRelation("Person");
+		assertEquals(person.getTupleCount(), 400);
+		assertEquals(person.getAttributes().size(), 3);
+		assertEquals(person.getAttribute(new Attribute("age")).getValueCount(), 47);
+		assertTrue(person.getIndex(new Attribute("age")) != null);
+		assertTrue(person.getIndex(new Attribute("persid")) == null);
+		assertTrue(cat.getRelation("Project").getBitmapIndex(new Attribute("dept")) != null);
+		assertTrue(cat.getRelation("Person") == person);
+		assertEquals(cat.getRelation("R1234").getTupleCount(), 1235);
+		assertEquals(cat.getRelation("R1999").getAttribute(new Attribute("r1999a19")).getValueCount(), 20);
+		assertThrows(DatabaseException.class, () -> cat.getRelation("R2000"));
+		
+		// An attribute held by several relations is that of the last of them
+		Attribute dept = cat.getAttribute("dept");
+		assertEquals(dept.getValueCount(), 5);
+		assertTrue(cat.getRelation("Department").getAttributes().get(0) == dept);
+		assertEquals(cat.getAttribute("r7a3").getValueCount(), 4);
+		assertThrows(DatabaseException.class, () -> cat.getAttribute("r7a20"));
+		
+		// A dropped relation is not read from the image again
+		cat.dropRelation("Department");
+		assertThrows(DatabaseException.class, () -> cat.getRelation("Department"));
+		assertThrows(DatabaseException.class, () -> cat.getAttribute("deptname"));
+		assertEquals(cat.getAttribute("dept").getName(), "dept");
+		cat.dropRelation("R5");
+		assertThrows(DatabaseException.class, () -> cat.getAttribute("r5a0"));
+		
+		// Queries are planned as over the text catalogue
+		Catalogue parsed = new Catalogue();
+		new CatalogueParser(text.getPath(), parsed).parse();
+		Catalogue mapped = new Catalogue();
+		mapped.attachImage(image);
+		String query = "SELECT persname,projname\nFROM Person,Project\nWHERE persid=projid,age=\"30\"";
+		String[] plans = new String[2];
+		Catalogue[] cats = { parsed, mapped };
+		for (int i = 0; i < 2; i++) {
+			Operator plan = new QueryParser(cats[i], new java.io.StringReader(query)).parse();
+			plan.accept(new Estimator());
+			Optimiser optimiser = new Optimiser(cats[i]);
+			optimiser.setVerbose(false);
+			Operator optimised = optimiser.optimise(plan);
+			optimised.accept(new Estimator());
+			plans[i] = optimised + " " + optimised.getOutput().getTupleCount();
+		}
+		assertEquals(plans[1], plans[0]);
+	}
+
+	@Test void indexJoinsDoNotProbeBitmapScans() throws Exception {
+		System.out.println("--- indexJoinsDoNotProbeBitmapScans ---");
+		
+		Catalogue cat = new Catalogue();
+		load(cat, "R", "rid,rkind,rcol", 100000, i -> i + ",k" + (i % 4) + ",c" + (i % 5));
+		load(cat, "S", "sid", 20, i -> Integer.toString(i));
+		cat.createIndex("R", "rid");
+		cat.createBitmapIndex("R", "rkind");
+		cat.createBitmapIndex("R", "rcol");
+		
+		// The bitmap predicates of the inner relation are not lost to the index join
+		PreparedStatement statement = new PreparedStatement(cat, "SELECT *\nFROM R,S\nWHERE rid=sid,rkind=\"k1\",rcol=\"c2\"");
+		System.out.println(statement.getPlan());
+		try (ResultCursor cursor = statement.execute()) {
+			assertEquals(cursor.nextBatch(100).size(), 1);
+		}
+	}
+	
+	@Test void bitmapIndexesHoldIntRowIds() throws Exception {
+		System.out.println("--- bitmapIndexesHoldIntRowIds ---");
+		
+		BitmapIndex index = new BitmapIndex();
+		index.insert("a", 7);
+		index.insert("a", Integer.MAX_VALUE);
+		
+		// Row ids of heap files past 32768 pages do not fit, and are refused
+		long wide = (40000L << 16) | 3;
+		assertThrows(IllegalArgumentException.class, () -> index.insert("a", wide));
+		assertEquals(index.size(), 2L);
+		
+		// Lookups are copies, unchanged by later inserts or by their callers
+		RoaringBitmap found = index.search("a");
+		found.add(99);
+		index.insert("a", 8);
+		assertArrayEquals(found.toArray(), new int[] { 7, 99, Integer.MAX_VALUE });
+		assertArrayEquals(index.search("a").toArray(), new int[] { 7, 8, Integer.MAX_VALUE });
+		index.values().clear();
+		assertEquals(index.values().size(), 1);
+	}
+	
+	@Test void clusterFragmentsCarryAnyValue() throws Exception {
+		System.out.println("--- clusterFragmentsCarryAnyValue ---");
+		
+		Catalogue cat = new Catalogue();
+		cat.createRelation("Note", 0);
+		cat.createAttribute("Note", "nid", 0);
+		cat.createAttribute("Note", "ntext", 0);
+		String[] texts = { "a,b=\"c\"", "a", "b=\"c\"", "plain" };
+		java.util.List<String[]> notes = new ArrayList<String[]>();
+		for (int i = 0; i < 40; i++)
+			notes.add(new String[] { Integer.toString(i), texts[i % texts.length] });
+		
+		try (Cluster cluster = Cluster.launch(cat, 2)) {
+			cluster.partition("Note", Partitioning.hash(new Attribute("nid"), 2), notes);
+			
+			// A bound value which query text could not hold reaches the workers unchanged
+			java.util.List<Attribute> nid = new ArrayList<Attribute>();
+			nid.add(new Attribute("nid"));
+			Operator parsed = new Project(new Select(new Scan(cat.getRelation("Note")),
+					new Predicate(new Attribute("ntext"), texts[0])), nid);
+			java.util.List<Integer> found = new ArrayList<Integer>();
+			try (ResultCursor cursor = cluster.execute(cluster.plan(parsed))) {
+				while (cursor.hasNext())
+					found.add(Integer.parseInt(cursor.next()[0]));
+			}
+			java.util.Collections.sort(found);
+			assertEquals(found.size(), 10);
+			for (int i = 0; i < found.size(); i++)
+				assertEquals((int) found.get(i), i * texts.length);
+		}
+	}
+	
+	@Test void queryServerRefusesViewNamesWhichAreNotWords() throws Exception {
+		System.out.println("--- queryServerRefusesViewNamesWhichAreNotWords ---");
+		
+		Catalogue cat = new Catalogue();
+		load(cat, "Item", "iid,ikind", 500, i -> i + ",k" + (i % 5));
+		java.util.Set<File> before = viewFiles();
+		try (QueryServer server = new QueryServer(cat, 0)) {
+			server.start();
+			try (Session session = new Session(server)) {
+				// The name is refused before any file is made
+				session.send("CREATE MATERIALIZED VIEW ../kinds\nSELECT iid\nFROM Item\nWHERE ikind=\"k1\"\n\n");
+				assertTrue(session.readLine().startsWith("ERROR"));
+				assertEquals(viewFiles(), before);
+			}
+		}
+		assertTrue(cat.getViews().isEmpty());
+	}
+
+	@Test void queryServerSessionsSurviveBadRequests() throws Exception {
+		System.out.println("--- queryServerSessionsSurviveBadRequests ---");
+		
+		Catalogue cat = new Catalogue();
+		load(cat, "Item", "iid,ikind", 500, i -> i + ",k" + (i % 5));
+		try (QueryServer server = new QueryServer(cat, 0)) {
+			server.start();
+			try (Session session = new Session(server)) {
+				// A statement name is needed
+				session.send("EXECUTE \n\n");
+				assertTrue(session.readLine().startsWith("ERROR"));
+				session.send("EXECUTE missing\n\n");
+				assertTrue(session.readLine().startsWith("ERROR"));
+				
+				// The session still answers queries
+				session.send("SELECT iid\nFROM Item\nWHERE iid=\"7\"\n\n");
+				assertEquals(session.readLine(), "iid");
+				assertEquals(session.readLine(), "7");
+				assertEquals(session.readLine(), "OK 1");
+			}
+		}
+	}
+
+	@Test void queryServerDeletesDroppedViewFiles() throws Exception {
+		System.out.println("--- queryServerDeletesDroppedViewFiles ---");
+		
+		Catalogue cat = new Catalogue();
+		load(cat, "Item", "iid,ikind", 500, i -> i + ",k" + (i % 5));
+		java.util.Set<File> before = viewFiles();
+		try (QueryServer server = new QueryServer(cat, 0)) {
+			server.start();
+			try (Session session = new Session(server)) {
+				session.send("CREATE MATERIALIZED VIEW kinds\nSELECT iid\nFROM Item\nWHERE ikind=\"k1\"\n\n");
+				assertEquals(session.readLine(), "CREATED kinds 100");
+				assertEquals(session.readLine(), "OK 0");
+				java.util.Set<File> created = viewFiles();
+				created.removeAll(before);
+				assertEquals(created.size(), 1);
+				
+				// A view dropped twice is dropped once
+				session.send("DROP MATERIALIZED VIEW kinds\n\nDROP MATERIALIZED VIEW kinds\n\n");
+				assertEquals(session.readLine(), "DROPPED kinds");
+				assertEquals(session.readLine(), "OK 0");
+				assertTrue(session.readLine().startsWith("ERROR"));
+				assertFalse(created.iterator().next().exists());
+				assertThrows(DatabaseException.class, () -> cat.getRelation("kinds"));
+			}
+		}
+	}
+
+	@Test void queryServerDeletesViewFilesWhenClosed() throws Exception {
+		System.out.println("--- queryServerDeletesViewFilesWhenClosed ---");
+		
+		Catalogue cat = new Catalogue();
+		load(cat, "Item", "iid,ikind", 500, i -> i + ",k" + (i % 5));
+		java.util.Set<File> before = viewFiles();
+		try (QueryServer server = new QueryServer(cat, 0)) {
+			server.start();
+			try (Session session = new Session(server)) {
+				session.send("CREATE MATERIALIZED VIEW others\nSELECT iid\nFROM Item\nWHERE ikind=\"k2\"\n\n");
+				assertEquals(session.readLine(), "CREATED others 100");
+				assertEquals(session.readLine(), "OK 0");
+			}
+		}
+		assertEquals(viewFiles(), before);
+		assertThrows(DatabaseException.class, () -> cat.getRelation("others"));
+		assertTrue(cat.getViews().isEmpty());
+	}
+
+	@Test void viewsFollowRecoveredInserts() throws Exception {
+		System.out.println("--- viewsFollowRecoveredInserts ---");
+		
+		File cust = File.createTempFile("sjdb", ".heap");
+		File ord = File.createTempFile("sjdb", ".heap");
+		File wal = File.createTempFile("sjdb", ".wal");
+		for (File f : new File[] { cust, ord, wal }) {
+			f.delete();
+			f.deleteOnExit();
+		}
+		Catalogue cat = new Catalogue();
+		BufferPool pool = new BufferPool(256);
+		heap(cat, "Cust", cust, pool, "cid", "cname");
+		heap(cat, "Ord", ord, pool, "oid", "ocust");
+		cat.attachLog(new WriteAheadLog(wal, 0));
+		java.util.List<String[]> customers = new ArrayList<String[]>();
+		for (int i = 0; i < 10; i++)
+			customers.add(new String[] { Integer.toString(i), "c" + i });
+		cat.insert("Cust", customers);
+		java.util.List<String[]> orders = new ArrayList<String[]>();
+		for (int i = 0; i < 20; i++)
+			orders.add(new String[] { Integer.toString(i), Integer.toString(i % 12) });
+		cat.insert("Ord", orders);
+		cat.insert("Cust", java.util.Arrays.asList(new String[] { "10", "c10" }, new String[] { "11", "c11" }));
+		
+		// After a crash which wrote none of the pages, a view created before
+		// the log is attached gains the join of every redone tuple once
+		Catalogue recovered = new Catalogue();
+		pool = new BufferPool(256);
+		heap(recovered, "Cust", cust, pool, "cid", "cname");
+		heap(recovered, "Ord", ord, pool, "oid", "ocust");
+		File file = File.createTempFile("sjdb", ".heap");
+		file.deleteOnExit();
+		MaterialisedView view = recovered.createView("Placed", "SELECT oid,cname\nFROM Ord,Cust\nWHERE ocust=cid", file, pool);
+		assertEquals(view.getTupleCount(), 0);
+		assertEquals(recovered.attachLog(new WriteAheadLog(wal, 0)), 32);
+		java.util.Map<String, String> stored = new java.util.HashMap<String, String>();
+		TupleCursor cursor = view.getStorage().cursor();
+		while (cursor.next())
+			assertEquals(stored.put(cursor.getString(0), cursor.getString(1)), null);
+		assertEquals(stored.size(), 20);
+		assertEquals(stored.get("11"), "c11");
+		assertEquals(view.getTupleCount(), 20);
+	}
+
+	@Test void bulkLoadsRefuseRelationsJoinedByViews() throws Exception {
+		System.out.println("--- bulkLoadsRefuseRelationsJoinedByViews ---");
+		
+		Catalogue cat = new Catalogue();
+		BufferPool pool = new BufferPool(64);
+		File cust = File.createTempFile("sjdb", ".heap");
+		cust.delete();
+		cust.deleteOnExit();
+		heap(cat, "Cust", cust, pool, "cid", "cname");
+		cat.insert("Cust", java.util.Collections.singletonList(new String[] { "1", "c1" }));
+		File file = File.createTempFile("sjdb", ".heap");
+		file.deleteOnExit();
+		cat.createView("Named", "SELECT cname\nFROM Cust\nWHERE cid=\"1\"", file, pool);
+		
+		// Replacing the relation or the view would leave the view stale
+		assertThrows(DatabaseException.class, () -> load(cat, "Cust", "cid,cname", 2, i -> i + ",d" + i));
+		assertThrows(DatabaseException.class, () -> load(cat, "Named", "cname", 2, i -> "d" + i));
+		assertEquals(cat.getRelation("Cust").getStorage().getClass(), HeapFile.class);
+		
+		// Once the view is dropped the relation may be loaded again
+		cat.dropRelation("Named");
+		assertEquals(load(cat, "Cust", "cid,cname", 2, i -> i + ",d" + i).getTupleCount(), 2);
+	}
+	
+	/**
+	 * Load a relation into a temporary column store from generated CSV rows
+	 */
+	static NamedRelation load(Catalogue cat, String name, String header, int rows,
+			java.util.function.IntFunction<String> row) throws Exception {
+		File csv = File.createTempFile("sjdb", ".csv");
+		File file = File.createTempFile("sjdb", ".col");
+		csv.deleteOnExit();
+		file.deleteOnExit();
+		try (java.io.PrintWriter out = new java.io.PrintWriter(csv, "UTF-8")) {
+			out.println(header);
+			for (int i = 0; i < rows; i++)
+				out.println(row.apply(i));
+		}
+		return new BulkLoader(cat).load(name, csv, file);
+	}
+	
+	/**
+	 * Create a relation stored in a heap file, with attributes of no known values
+	 */
+	static NamedRelation heap(Catalogue cat, String name, File file, BufferPool pool, String... attributes)
+			throws Exception {
+		cat.createRelation(name, 0);
+		for (String a : attributes)
+			cat.createAttribute(name, a, 0);
+		return cat.attachHeapFile(name, file, pool);
+	}
+	
+	/**
+	 * Poll for up to ten seconds for a condition made true by another thread
+	 * @return true if the condition became true
+	 */
+	static boolean eventually(java.util.function.BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + java.util.concurrent.TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > deadline)
+				return false;
+			Thread.sleep(1);
+		}
+		return true;
+	}
+	
+	/**
+	 * Return a temporary file name at which a heap file may be created
+	 */
+	static File heapFile() throws Exception {
+		File file = File.createTempFile("sjdb", ".heap");
+		file.delete();
+		file.deleteOnExit();
+		return file;
+	}
+	
+	/**
+	 * Insert generated tuples of relation B into a heap file
+	 * @return row ids of the tuples, in order
+	 */
+	static java.util.List<Long> fill(HeapFile heap, int rows) throws Exception {
+		java.util.List<Long> rowIds = new ArrayList<Long>();
+		for (int i = 0; i < rows; i++)
+			rowIds.add(heap.insert(new String[] { Integer.toString(i), "b2-" + i, Integer.toString(i % 5) }));
+		return rowIds;
+	}
+	
+	/**
+	 * Return the files of the views created by query servers
+	 */
+	static java.util.Set<File> viewFiles() {
+		File tmp = new File(System.getProperty("java.io.tmpdir"));
+		File[] files = tmp.listFiles(f -> f.getName().startsWith("sjdb-view") && f.getName().endsWith(".heap"));
+		return new java.util.HashSet<File>(java.util.Arrays.asList(files));
+	}
+	
+	/**
+	 * A client session with a query server
+	 */
+	static class Session implements java.io.Closeable {
+		private java.net.Socket socket;
+		private java.io.BufferedReader in;
+		private java.io.Writer out;
+		
+		Session(QueryServer server) throws java.io.IOException {
+			this.socket = new java.net.Socket(java.net.InetAddress.getLoopbackAddress(), server.getPort());
+			this.in = new java.io.BufferedReader(new java.io.InputStreamReader(socket.getInputStream(), "UTF-8"));
+			this.out = new java.io.OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+		}
+		
+		void send(String commands) throws java.io.IOException {
+			out.write(commands);
+			out.flush();
+		}
+		
+		String readLine() throws java.io.IOException {
+			return in.readLine();
+		}
+		
+		public void close() throws java.io.IOException {
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Create a catalogue holding relation Event, stored in a heap file
+	 */
+	static Catalogue eventCatalogue(File file) throws Exception {
+		Catalogue cat = new Catalogue();
+		heap(cat, "Event", file, new BufferPool(256), "eid", "ekind");
+		return cat;
+	}
+	
+	/**
+	 * Create a catalogue holding relation Entry, stored in a heap file with
+	 * an index on nkind, and insert its first tuples
+	 */
+	static Catalogue entryCatalogue(int rows) throws Exception {
+		Catalogue cat = new Catalogue();
+		heap(cat, "Entry", heapFile(), new BufferPool(256), "nid", "nkind");
+		cat.createIndex("Entry", "nkind");
+		cat.insert("Entry", entries(0, rows));
+		return cat;
+	}
+	
+	/**
+	 * Generate the tuples of relation Entry with ids in a range
+	 */
+	static java.util.List<String[]> entries(int from, int to) {
+		java.util.List<String[]> tuples = new ArrayList<String[]>();
+		for (int i = from; i < to; i++)
+			tuples.add(new String[] { Integer.toString(i), "k" + (i % 4) });
+		return tuples;
+	}
+	
+	/**
+	 * Add the distinct operators of a plan to a set compared by identity
+	 */
+	static void collect(Operator plan, java.util.Set<Operator> operators) {
+		if (operators.add(plan)) {
+			for (Operator input : plan.inputs)
+				collect(input, operators);
+		}
+	}
+	
+	/**
+	 * Execute a plan and count its result tuples
+	 */
+	static long count(Operator plan) {
+		long rows = 0;
+		try (ResultCursor cursor = PlanExecutor.execute(plan)) {
+			while (cursor.hasNext()) {
+				cursor.next();
+				rows++;
+			}
+		}
+		return rows;
+	}
 }
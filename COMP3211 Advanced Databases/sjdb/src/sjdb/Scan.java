@@ -1,5 +1,8 @@
 package sjdb;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Iterator;
 
@@ -13,6 +16,19 @@ public class Scan extends Operator {
 	 * The named relation to be scanned
 	 */
 	private NamedRelation relation;
+	/**
+	 * Bloom filters pushed down from joins above this scan
+	 */
+	private List<BloomFilter> filters;
+	/**
+	 * Whether the scan emits the row id of each tuple
+	 */
+	private boolean rowIds;
+	/**
+	 * The partitions of a partitioned relation which may hold the tuples
+	 * selected above this scan, or null if every partition is read
+	 */
+	private BitSet partitions;
 	
 	/**
 	 * Create a new scan of a given named relation
@@ -20,6 +36,7 @@ public class Scan extends Operator {
 	 */
 	public Scan(NamedRelation relation) {
 		this.relation = relation;
+		this.filters = new ArrayList<BloomFilter>();
 		this.output = new Relation(relation.getTupleCount());
 		Iterator<Attribute> iter = relation.getAttributes().iterator();
 		
@@ -45,12 +62,117 @@ public class Scan extends Operator {
 		return this.relation;
 	}
 	
+	/**
+	 * Open a cursor over the stored tuples of the named relation. Columnar
+	 * files are read through memory-mapped buffers, and heap files page by
+	 * page through the buffer pool.
+	 * @return Cursor over the stored tuples
+	 * @throws DatabaseException if the relation has no storage
+	 */
+	public TupleCursor open() throws DatabaseException {
+		if (this.relation.getStorage() == null) {
+			throw new DatabaseException("Named relation " + this.relation + " has no storage");
+		}
+		return this.relation.getStorage().cursor();
+	}
+
+	/**
+	 * Open a cursor over the stored tuples which may satisfy a predicate of
+	 * the form attr=value. If the relation is stored in a column store, the
+	 * blocks whose zone maps show that they cannot hold the value are
+	 * skipped; the tuples returned must still be checked.
+	 * @param predicate Predicate to be satisfied
+	 * @return Cursor over the stored tuples
+	 * @throws DatabaseException if the relation has no storage
+	 */
+	public TupleCursor open(Predicate predicate) throws DatabaseException {
+		Storage storage = this.relation.getStorage();
+		if (!(storage instanceof ColumnStore) || !predicate.equalsValue()) {
+			return open();
+		}
+
+		ColumnStore store = (ColumnStore) storage;
+		int column = store.getColumn(predicate.getLeftAttribute());
+		if (column < 0) {
+			return open();
+		}
+		try {
+			return store.cursor(column, predicate.getRightValue());
+		} catch (IOException e) {
+			throw new DatabaseException("Zone map of " + this.relation + " could not be read", e);
+		}
+	}
+
+	/**
+	 * Set whether this scan emits the row id of each tuple as an additional
+	 * attribute, so that other attributes can be fetched late
+	 * @param rowIds Whether row ids are emitted
+	 */
+	public void setRowIds(boolean rowIds) {
+		if (rowIds && !this.rowIds) {
+			this.output.addAttribute(this.relation.getRowIdAttribute());
+		}
+		this.rowIds = rowIds;
+	}
+
+	/**
+	 * Return true if this scan emits the row id of each tuple
+	 * @return Whether row ids are emitted
+	 */
+	public boolean emitsRowIds() {
+		return this.rowIds;
+	}
+
+	/**
+	 * Add a Bloom filter built by a join above this scan; rows whose
+	 * probe attribute fails the filter are discarded by the scan
+	 * @param filter Bloom filter to be applied
+	 */
+	public void addFilter(BloomFilter filter) {
+		this.filters.add(filter);
+	}
+
+	/**
+	 * Restrict this scan to some partitions of its relation, those which
+	 * may hold the tuples selected above it
+	 * @param partitions Partitions read, or null for every partition
+	 */
+	public void setPartitions(BitSet partitions) {
+		this.partitions = partitions;
+	}
+
+	/**
+	 * Return the partitions of the relation read by this scan
+	 * @return Partitions read, or null if every partition is read
+	 */
+	public BitSet getPartitions() {
+		return this.partitions;
+	}
+
+	/**
+	 * Return the Bloom filters applied by this scan
+	 * @return Bloom filters
+	 */
+	public List<BloomFilter> getFilters() {
+		return this.filters;
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
 	@Override
 	public String toString() {
-		return this.relation.toString();
+		String ret = this.relation.toString();
+		if (this.partitions != null) {
+			ret = "PARTITIONS " + this.partitions + " (" + ret + ")";
+		}
+		Iterator<BloomFilter> iter = this.filters.iterator();
+
+		while (iter.hasNext()) {
+			ret = "BLOOM [" + iter.next().toString() + "] (" + ret + ")";
+		}
+
+		return ret;
 	}
 	
 	/* (non-Javadoc)
@@ -0,0 +1,43 @@
+package sjdb;
+
+/**
+ * This class represents a semi-join operator, which outputs the tuples of
+ * its left input which have a partner in its right input under the
+ * predicate, and only the attributes of the left input. A semi-join
+ * removes the dangling tuples of a relation before it is joined.
+ */
+public class SemiJoin extends BinaryOperator {
+	private Predicate predicate;
+
+	/**
+	 * Create a new semi-join operator.
+	 * @param left Left child operator, whose tuples are output
+	 * @param right Right child operator, whose tuples are partners
+	 * @param predicate Join predicate
+	 */
+	public SemiJoin(Operator left, Operator right, Predicate predicate) {
+		super(left, right);
+		this.predicate = predicate;
+	}
+
+	public Predicate getPredicate() {
+		return this.predicate;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.BinaryOperator#accept(sjdb.OperatorVisitor)
+	 */
+	public void accept(PlanVisitor visitor) {
+		super.accept(visitor);
+		visitor.visit(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "(" + this.getLeft().toString() + ") SEMIJOIN [" +
+				this.getPredicate().toString() +
+				"] (" + this.getRight().toString() + ")";
+	}
+}
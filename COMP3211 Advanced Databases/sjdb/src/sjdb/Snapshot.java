@@ -0,0 +1,263 @@
+package sjdb;
+
+import java.io.Closeable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is a snapshot of the database: the state left by every write
+ * committed before it was opened, and by none committed since.
+ *
+ * Each write, such as an insert into a relation and the maintenance of
+ * the views which join it, is given the next version number, and the
+ * tuples and statistics it adds are tagged with it. The write commits by
+ * publishing its version as the latest, and a snapshot sees exactly the
+ * versions up to the latest when it was opened. Writes are made one at a
+ * time, but a write which waits for its log records to become durable
+ * may let the next write start before it is published; versions are
+ * still published in order. A snapshot is opened without waiting for
+ * writes, by reading the latest version and adding itself to the set of
+ * open snapshots.
+ *
+ * Once every open snapshot sees a version, its tags are no longer needed,
+ * and a background thread discards them, along with the statistics which
+ * no open snapshot reads. A snapshot which is dropped without being
+ * closed, such as that of a cursor which is not read to the end, stops
+ * holding back versions once it is garbage collected.
+ */
+public class Snapshot implements Closeable {
+	// Time the collector waits after a write, and between attempts while a snapshot holds versions
+	private static final long COLLECT_DELAY_MILLIS = 10;
+
+	private static final AtomicLong latest = new AtomicLong();
+	private static final AtomicLong assigned = new AtomicLong();
+	private static final ConcurrentSkipListSet<Long> finished = new ConcurrentSkipListSet<Long>();
+	private static final AtomicLong opened = new AtomicLong();
+	private static final ConcurrentSkipListSet<Registration> open = new ConcurrentSkipListSet<Registration>();
+	private static final ReferenceQueue<Snapshot> dropped = new ReferenceQueue<Snapshot>();
+	private static final ReentrantLock writer = new ReentrantLock();
+
+	private static final Set<Versioned> pending = ConcurrentHashMap.newKeySet();
+	private static final AtomicBoolean scheduled = new AtomicBoolean();
+	private static final ScheduledExecutorService COLLECTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "sjdb-collector");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private long version;
+	private Registration registration;
+	private AtomicBoolean closed = new AtomicBoolean();
+
+	/**
+	 * The entry of a snapshot in the set of open snapshots, which refers to
+	 * it weakly so that a snapshot dropped without being closed is removed
+	 */
+	private static class Registration extends WeakReference<Snapshot> implements Comparable<Registration> {
+		long version;
+		long sequence;
+
+		Registration(Snapshot snapshot) {
+			super(snapshot, dropped);
+			this.version = snapshot.version;
+			this.sequence = opened.incrementAndGet();
+		}
+
+		public int compareTo(Registration other) {
+			int c = Long.compare(this.version, other.version);
+			return c != 0 ? c : Long.compare(this.sequence, other.sequence);
+		}
+	}
+
+	/**
+	 * Something holding versions which may be discarded once every open
+	 * snapshot sees them
+	 */
+	public interface Versioned {
+		/**
+		 * Discard the versions seen by every open snapshot
+		 * @param oldest Version of the oldest open snapshot
+		 * @return true if versions newer than the oldest are still held
+		 */
+		public boolean collect(long oldest);
+	}
+
+	private Snapshot(long version) {
+		this.version = version;
+		this.registration = new Registration(this);
+	}
+
+	/**
+	 * Open a snapshot of the latest committed version
+	 * @return snapshot, which must be closed once read
+	 */
+	public static Snapshot open() {
+		// A collector which reads the latest version before this snapshot
+		// is added must not have seen a newer one
+		while (true) {
+			Snapshot snapshot = new Snapshot(latest.get());
+			open.add(snapshot.registration);
+			if (latest.get() == snapshot.version) {
+				return snapshot;
+			}
+			open.remove(snapshot.registration);
+		}
+	}
+
+	/**
+	 * Return the version of this snapshot
+	 * @return the latest version committed when it was opened
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Return whether this snapshot sees a version
+	 * @param version Version tagging a tuple or statistics, or 0 if written before any snapshot
+	 * @return true if the version was committed when the snapshot was opened
+	 */
+	public boolean sees(long version) {
+		return version <= this.version;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			open.remove(registration);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "SNAPSHOT " + version;
+	}
+
+	/**
+	 * Return the latest committed version
+	 * @return version
+	 */
+	public static long getLatestVersion() {
+		return latest.get();
+	}
+
+	/**
+	 * Return the version of the oldest open snapshot, or the latest
+	 * version if none is open
+	 * @return version
+	 */
+	public static long getOldestVersion() {
+		Reference<? extends Snapshot> reference;
+		while ((reference = dropped.poll()) != null) {
+			open.remove(reference);
+		}
+		long version = latest.get();
+		try {
+			return Math.min(version, open.first().version);
+		} catch (java.util.NoSuchElementException e) {
+			return version;
+		}
+	}
+
+	/**
+	 * Start a write, waiting for any other write to finish
+	 * @return version of the write
+	 */
+	static long beginWrite() {
+		writer.lock();
+		return assigned.incrementAndGet();
+	}
+
+	/**
+	 * Commit a write, making its version visible to later snapshots. A
+	 * write which fails part way is committed too, since whatever it has
+	 * stored is kept.
+	 * @param version Version of the write
+	 */
+	static void endWrite(long version) {
+		writer.unlock();
+		publish(version);
+	}
+
+	/**
+	 * Finish a write without making its version visible, so that the next
+	 * write can start while this one waits to become durable; the version
+	 * must then be published
+	 */
+	static void releaseWrite() {
+		writer.unlock();
+	}
+
+	/**
+	 * Make the version of a finished write visible to later snapshots.
+	 * Versions are made visible in order, so this waits for the writes
+	 * before it to be published too.
+	 * @param version Version of the write
+	 */
+	static void publish(long version) {
+		boolean interrupted = false;
+		synchronized (finished) {
+			finished.add(version);
+			while (finished.remove(latest.get() + 1)) {
+				latest.incrementAndGet();
+			}
+			finished.notifyAll();
+			while (latest.get() < version) {
+				try {
+					finished.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Have the background thread discard the versions of something once
+	 * every open snapshot sees them
+	 * @param versioned Holder of versions
+	 */
+	static void retain(Versioned versioned) {
+		pending.add(versioned);
+		schedule();
+	}
+
+	private static void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			COLLECTOR.schedule(Snapshot::collect, COLLECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static void collect() {
+		scheduled.set(false);
+		long oldest = getOldestVersion();
+		for (Versioned versioned : new ArrayList<Versioned>(pending)) {
+			// A holder which gains versions while it is collected is retained again
+			pending.remove(versioned);
+			if (versioned.collect(oldest)) {
+				pending.add(versioned);
+			}
+		}
+		if (!pending.isEmpty()) {
+			schedule();
+		}
+	}
+}
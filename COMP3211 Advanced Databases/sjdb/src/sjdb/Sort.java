@@ -0,0 +1,108 @@
+package sjdb;
+
+import java.util.List;
+
+/**
+ * This class represents a Sort operator, which orders the tuples of its
+ * input by a list of attributes, each ascending or descending. A sort
+ * with a limit is a top-N operator, which outputs only the first n tuples
+ * in order and so holds no more than n tuples while reading its input.
+ *
+ * Values which are both integers are compared as numbers, and other
+ * values as strings.
+ */
+public class Sort extends UnaryOperator {
+	private List<Attribute> attributes;
+	private boolean[] descending;
+	private int limit;
+
+	/**
+	 * Create a new sort operator.
+	 * @param input Child operator
+	 * @param attributes List of attributes by which tuples are ordered
+	 * @param descending Whether each attribute is in descending order
+	 * @param limit Largest number of tuples to be output, or -1 for all
+	 */
+	public Sort(Operator input, List<Attribute> attributes, boolean[] descending, int limit) {
+		super(input);
+		this.attributes = attributes;
+		this.descending = descending;
+		this.limit = limit;
+	}
+
+	/**
+	 * Return the list of attributes by which tuples are ordered
+	 * @return List of attributes
+	 */
+	public List<Attribute> getAttributes() {
+		return this.attributes;
+	}
+
+	/**
+	 * Return whether each attribute is in descending order
+	 * @return descending flags, in the order of the attributes
+	 */
+	public boolean[] getDescending() {
+		return this.descending;
+	}
+
+	/**
+	 * Return the largest number of tuples output by this operator
+	 * @return tuple count, or -1 if every tuple is output
+	 */
+	public int getLimit() {
+		return this.limit;
+	}
+
+	/**
+	 * Compare two values in ascending order
+	 * @param a Value
+	 * @param b Value
+	 * @return negative, zero or positive as a is before, equal to or after b
+	 */
+	public static int compareValues(String a, String b) {
+		if (isInteger(a) && isInteger(b)) {
+			return Long.compare(Long.parseLong(a), Long.parseLong(b));
+		}
+		return a.compareTo(b);
+	}
+
+	private static boolean isInteger(String value) {
+		int start = value.startsWith("-") ? 1 : 0;
+		if (value.length() == start || value.length() - start > 18) {
+			return false;
+		}
+		for (int i = start; i < value.length(); i++) {
+			if (!Character.isDigit(value.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.UnaryOperator#accept(sjdb.OperatorVisitor)
+	 */
+	public void accept(PlanVisitor visitor) {
+		super.accept(visitor);
+		visitor.visit(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		String ret = "SORT [";
+
+		for (int i = 0; i < this.attributes.size(); i++) {
+			ret += (i == 0 ? "" : ",") + this.attributes.get(i).getName() + (this.descending[i] ? " DESC" : "");
+		}
+		ret += "]";
+		if (this.limit >= 0) {
+			ret += " LIMIT [" + this.limit + "]";
+		}
+		ret += " (" + getInput().toString() + ")";
+
+		return ret;
+	}
+}
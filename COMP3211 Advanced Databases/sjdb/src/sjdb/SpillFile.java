@@ -0,0 +1,121 @@
+package sjdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class holds tuples spilled to a temporary file by an operator
+ * which has run out of memory. Tuples are appended, and then read back in
+ * the order in which they were appended, any number of times. The file is
+ * deleted when the spill file is closed.
+ *
+ * Each tuple is written as its number of values followed by each value
+ * as a length and UTF-8 bytes.
+ */
+public class SpillFile implements Closeable {
+	private File file;
+	private DataOutputStream out;
+	private long tuples;
+
+	/**
+	 * Create a new empty spill file
+	 * @throws IOException
+	 */
+	public SpillFile() throws IOException {
+		this.file = File.createTempFile("sjdb", ".spill");
+		this.file.deleteOnExit();
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+	}
+
+	/**
+	 * Append a tuple
+	 * @param tuple Tuple
+	 * @throws IOException
+	 */
+	public void append(String[] tuple) throws IOException {
+		out.writeInt(tuple.length);
+		for (String value : tuple) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		tuples++;
+	}
+
+	/**
+	 * Return the number of tuples appended
+	 * @return tuple count
+	 */
+	public long getTupleCount() {
+		return this.tuples;
+	}
+
+	/**
+	 * Open a reader over the tuples appended so far
+	 * @return Reader
+	 * @throws IOException
+	 */
+	public Reader read() throws IOException {
+		out.flush();
+		return new Reader();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() throws IOException {
+		out.close();
+		file.delete();
+	}
+
+	/**
+	 * A reader over the tuples of a spill file
+	 */
+	public class Reader implements Closeable {
+		private DataInputStream in;
+		private long remaining = tuples;
+
+		private Reader() throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		}
+
+		/**
+		 * Return the next tuple
+		 * @return tuple, or null after the last tuple
+		 * @throws IOException
+		 */
+		public String[] next() throws IOException {
+			if (remaining == 0) {
+				return null;
+			}
+			try {
+				String[] tuple = new String[in.readInt()];
+				for (int i = 0; i < tuple.length; i++) {
+					byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					tuple[i] = new String(bytes, StandardCharsets.UTF_8);
+				}
+				remaining--;
+				return tuple;
+			} catch (EOFException e) {
+				throw new IOException("Spill file " + file + " is truncated", e);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
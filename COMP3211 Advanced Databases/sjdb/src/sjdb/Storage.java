@@ -0,0 +1,42 @@
+package sjdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * This is an interface for the stored tuples of a named relation, which
+ * are read by Scan operators.
+ */
+public interface Storage extends Closeable {
+	/**
+	 * Return the attributes stored, in column order
+	 * @return attributes
+	 */
+	public List<Attribute> getAttributes();
+	/**
+	 * Return the number of tuples stored
+	 * @return row count
+	 */
+	public long getRowCount();
+	/**
+	 * Return a cursor over the stored tuples
+	 * @return cursor
+	 */
+	public TupleCursor cursor();
+	/**
+	 * Return the stored tuple with a given row id
+	 * @param rowId Row id
+	 * @return One value per attribute, in column order, or null if there is no such tuple
+	 * @throws IOException
+	 */
+	public String[] get(long rowId) throws IOException;
+	/**
+	 * Return the version of the write which stored a tuple
+	 * @param rowId Row id
+	 * @return version, or 0 if every snapshot sees the tuple
+	 */
+	public default long getVersion(long rowId) {
+		return 0;
+	}
+}
@@ -0,0 +1,81 @@
+package sjdb;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class implements a dictionary which assigns dense int ids to
+ * strings: attribute names and attribute values. Attributes and
+ * predicates hold the ids of their names and values, so that they are
+ * compared as ints, and a predicate attr=value is resolved to an id once
+ * and then evaluated against stored values as an int comparison.
+ *
+ * Ids are never reassigned. Lookups do not lock; adding a string does.
+ */
+public class StringDictionary {
+	private static final StringDictionary INSTANCE = new StringDictionary();
+
+	private ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] strings = new String[64];
+	private int size;
+
+	/**
+	 * Return the dictionary shared by the whole database
+	 * @return dictionary
+	 */
+	public static StringDictionary getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Return the id of a string, adding it to the dictionary if absent
+	 * @param s String
+	 * @return id
+	 */
+	public int intern(String s) {
+		Integer id = ids.get(s);
+		if (id != null) {
+			return id.intValue();
+		}
+
+		synchronized (this) {
+			id = ids.get(s);
+			if (id != null) {
+				return id.intValue();
+			}
+			if (size == strings.length) {
+				strings = Arrays.copyOf(strings, size * 2);
+			}
+			strings[size] = s;
+			ids.put(s, size);
+			return size++;
+		}
+	}
+
+	/**
+	 * Return the id of a string without adding it to the dictionary
+	 * @param s String
+	 * @return id, or -1 if the string has no id
+	 */
+	public int getId(String s) {
+		Integer id = ids.get(s);
+		return id == null ? -1 : id.intValue();
+	}
+
+	/**
+	 * Return the string with an id
+	 * @param id Id
+	 * @return string
+	 */
+	public String getString(int id) {
+		return strings[id];
+	}
+
+	/**
+	 * Return the number of strings in the dictionary
+	 * @return size
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+}
@@ -0,0 +1,36 @@
+package sjdb;
+
+import java.io.IOException;
+
+/**
+ * This is an interface for a cursor which reads the stored tuples of a
+ * named relation one at a time.
+ */
+public interface TupleCursor {
+	/**
+	 * Advance to the next tuple
+	 * @return false if there are no more tuples
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException;
+	/**
+	 * Return the row id of the current tuple
+	 * @return row id
+	 */
+	public long getRowId();
+	/**
+	 * Return the value of a column in the current tuple
+	 * @param column Column index
+	 * @return value
+	 * @throws IOException
+	 */
+	public String getString(int column) throws IOException;
+	/**
+	 * Return the StringDictionary id of the value of a column in the current
+	 * tuple, without adding the value to the dictionary
+	 * @param column Column index
+	 * @return value id, or -1 if the value has no id
+	 * @throws IOException
+	 */
+	public int getValueId(int column) throws IOException;
+}
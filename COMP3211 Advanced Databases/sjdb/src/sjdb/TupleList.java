@@ -0,0 +1,76 @@
+package sjdb;
+
+import java.util.List;
+
+/**
+ * This class holds the tuples of a named relation in a list in memory,
+ * such as the tuples just added to a relation, which are read in its place
+ * when the materialised views which join it are maintained. The row id of
+ * a tuple is its position in the list.
+ */
+public class TupleList implements Storage {
+	private List<Attribute> attributes;
+	private List<String[]> tuples;
+
+	/**
+	 * Create a new list of tuples
+	 * @param attributes The attributes stored, in column order
+	 * @param tuples The tuples, with one value per attribute
+	 */
+	public TupleList(List<Attribute> attributes, List<String[]> tuples) {
+		this.attributes = attributes;
+		this.tuples = tuples;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Storage#getAttributes()
+	 */
+	public List<Attribute> getAttributes() {
+		return this.attributes;
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Storage#getRowCount()
+	 */
+	public long getRowCount() {
+		return this.tuples.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Storage#cursor()
+	 */
+	public TupleCursor cursor() {
+		return new TupleCursor() {
+			private int position = -1;
+
+			public boolean next() {
+				return ++position < tuples.size();
+			}
+
+			public long getRowId() {
+				return position;
+			}
+
+			public String getString(int column) {
+				return tuples.get(position)[column];
+			}
+
+			public int getValueId(int column) {
+				return StringDictionary.getInstance().getId(getString(column));
+			}
+		};
+	}
+
+	/* (non-Javadoc)
+	 * @see sjdb.Storage#get(long)
+	 */
+	public String[] get(long rowId) {
+		return this.tuples.get((int) rowId);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() {
+	}
+}
@@ -0,0 +1,294 @@
+package sjdb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class rewrites a canonical query plan, as built by QueryParser, to
+ * read materialised views in place of the relations which they join.
+ *
+ * A view matches a query if it joins only relations of the query, and each
+ * of its predicates is implied by the predicates of the query, either
+ * directly or through the equalities between attributes which they chain.
+ * The view then holds every tuple of the query's join of those relations,
+ * and the query is rewritten to scan the view in their place, keeping only
+ * the predicates which the view does not already imply. A view whose
+ * projection leaves out an attribute still needed by the query, whether
+ * selected, sorted, aggregated or named in a remaining predicate, does not
+ * match.
+ *
+ * Matching views are substituted one at a time for as long as each makes
+ * the optimised plan cheaper, as estimated by the Optimiser, so that a
+ * view is not read when the relations it joins are cheaper to read.
+ */
+public class ViewRewriter {
+	private Catalogue catalogue;
+	private Snapshot snapshot;
+
+	/**
+	 * Create a new rewriter, which estimates costs from the latest statistics
+	 * @param catalogue Catalogue holding the views
+	 */
+	public ViewRewriter(Catalogue catalogue) {
+		this(catalogue, null);
+	}
+
+	/**
+	 * Create a new rewriter, which estimates costs from the statistics
+	 * seen by a snapshot
+	 * @param catalogue Catalogue holding the views
+	 * @param snapshot Snapshot, or null for the latest statistics
+	 */
+	public ViewRewriter(Catalogue catalogue, Snapshot snapshot) {
+		this.catalogue = catalogue;
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Rewrite a canonical plan to read the views which make it cheapest
+	 * @param plan Canonical plan
+	 * @return the rewritten plan, or the plan itself if no view makes it cheaper
+	 */
+	public Operator rewrite(Operator plan) {
+		Collection<MaterialisedView> views = catalogue.getViews();
+		Query query = views.isEmpty() ? null : Query.decompose(plan);
+		if (query == null) {
+			return plan;
+		}
+
+		Query best = null;
+		int bestCost = cost(query);
+		boolean improved = true;
+		while (improved) {
+			improved = false;
+			Query current = best == null ? query : best;
+			for (MaterialisedView view : views) {
+				Query candidate = substitute(current, view);
+				if (candidate == null) {
+					continue;
+				}
+				int cost = cost(candidate);
+				if (cost < bestCost) {
+					best = candidate;
+					bestCost = cost;
+					improved = true;
+				}
+			}
+		}
+
+		return best == null ? plan : best.build();
+	}
+
+	/**
+	 * Return the cost of the optimised plan of a query
+	 */
+	private int cost(Query query) {
+		// The optimiser changes the scans of the plan it is given, so it is given a new plan
+		Operator plan = query.build();
+		plan.accept(new Estimator(snapshot));
+		Optimiser optimiser = new Optimiser(catalogue);
+		optimiser.setVerbose(false);
+		optimiser.setSnapshot(snapshot);
+		return optimiser.getPlanCost(optimiser.optimise(plan));
+	}
+
+	/**
+	 * Substitute a view for the relations which it joins in a query
+	 * @param query Query
+	 * @param view Materialised view
+	 * @return the rewritten query, or null if the view does not match
+	 */
+	static Query substitute(Query query, MaterialisedView view) {
+		List<NamedRelation> joined = view.getRelations();
+		if (!query.relations.containsAll(joined)) {
+			return null;
+		}
+		for (Predicate p : view.getPredicates()) {
+			if (!implies(query.predicates, p)) {
+				return null;
+			}
+		}
+
+		// Keep the predicates which the view does not imply
+		List<Predicate> remaining = new ArrayList<Predicate>();
+		List<Attribute> needed = new ArrayList<Attribute>();
+		for (Predicate p : query.predicates) {
+			if (!implies(view.getPredicates(), p)) {
+				remaining.add(p);
+				needed.add(p.getLeftAttribute());
+				if (!p.equalsValue()) {
+					needed.add(p.getRightAttribute());
+				}
+			}
+		}
+
+		// Find the attributes read above the selects; without a project or
+		// aggregate, every attribute is output, in the order of the relations
+		List<Operator> head = new ArrayList<Operator>(query.head);
+		boolean all = true;
+		for (Operator op : query.head) {
+			if (op instanceof Project) {
+				needed.addAll(((Project) op).getAttributes());
+				all = false;
+			} else if (op instanceof Aggregate) {
+				needed.addAll(((Aggregate) op).getInputAttributes());
+				all = false;
+			} else if (op instanceof Sort) {
+				needed.addAll(((Sort) op).getAttributes());
+			}
+		}
+		if (all) {
+			List<Attribute> attributes = new ArrayList<Attribute>();
+			for (NamedRelation r : query.relations) {
+				attributes.addAll(r.getAttributes());
+			}
+			needed.addAll(attributes);
+			head.add(new Project(null, attributes));
+		}
+
+		// The view must hold every needed attribute of the relations it joins
+		for (Attribute a : needed) {
+			for (NamedRelation r : joined) {
+				if (r.getAttributes().contains(a) && !view.getAttributes().contains(a)) {
+					return null;
+				}
+			}
+		}
+
+		List<NamedRelation> relations = new ArrayList<NamedRelation>();
+		for (NamedRelation r : query.relations) {
+			if (!joined.contains(r)) {
+				relations.add(r);
+			} else if (!relations.contains(view)) {
+				relations.add(view);
+			}
+		}
+		return new Query(head, relations, remaining);
+	}
+
+	/**
+	 * Return whether a predicate is implied by a list of predicates, either
+	 * directly or through the equalities between attributes which they chain
+	 * @param predicates List of predicates
+	 * @param predicate Predicate
+	 * @return true if every tuple satisfying the list satisfies the predicate
+	 */
+	static boolean implies(List<Predicate> predicates, Predicate predicate) {
+		HashMap<Attribute, Attribute> classes = new HashMap<Attribute, Attribute>();
+		for (Predicate p : predicates) {
+			if (!p.equalsValue()) {
+				classes.put(find(classes, p.getLeftAttribute()), find(classes, p.getRightAttribute()));
+			}
+		}
+
+		Attribute left = find(classes, predicate.getLeftAttribute());
+		if (!predicate.equalsValue()) {
+			return left.equals(find(classes, predicate.getRightAttribute()));
+		}
+		for (Predicate p : predicates) {
+			if (p.equalsValue() && p.getParameter() == predicate.getParameter()
+					&& (p.isParameter() || p.getRightValue().equals(predicate.getRightValue()))
+					&& left.equals(find(classes, p.getLeftAttribute()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the attribute representing the class of equal attributes of an attribute
+	 */
+	private static Attribute find(HashMap<Attribute, Attribute> classes, Attribute attribute) {
+		Attribute parent = classes.get(attribute);
+		if (parent == null || parent.equals(attribute)) {
+			return attribute;
+		}
+		Attribute root = find(classes, parent);
+		classes.put(attribute, root);
+		return root;
+	}
+
+	/**
+	 * A canonical plan taken apart: the relations of its products, the
+	 * predicates of its selects, and the operators above them
+	 */
+	static class Query {
+		/**
+		 * The limit, project, sort and aggregate operators, from the top down,
+		 * of which only the attributes and other arguments are used
+		 */
+		List<Operator> head;
+		List<NamedRelation> relations;
+		List<Predicate> predicates;
+
+		Query(List<Operator> head, List<NamedRelation> relations, List<Predicate> predicates) {
+			this.head = head;
+			this.relations = relations;
+			this.predicates = predicates;
+		}
+
+		/**
+		 * Take apart a canonical plan
+		 * @param plan Canonical plan
+		 * @return the query, or null if the plan is not canonical
+		 */
+		static Query decompose(Operator plan) {
+			List<Operator> head = new ArrayList<Operator>();
+			while (plan instanceof Limit || plan instanceof Project || plan instanceof Sort || plan instanceof Aggregate) {
+				head.add(plan);
+				plan = ((UnaryOperator) plan).getInput();
+			}
+
+			List<Predicate> predicates = new ArrayList<Predicate>();
+			while (plan instanceof Select) {
+				predicates.add(0, ((Select) plan).getPredicate());
+				plan = ((Select) plan).getInput();
+			}
+
+			List<NamedRelation> relations = new ArrayList<NamedRelation>();
+			return addRelations(plan, relations) ? new Query(head, relations, predicates) : null;
+		}
+
+		private static boolean addRelations(Operator plan, List<NamedRelation> relations) {
+			if (plan instanceof Product) {
+				return addRelations(((Product) plan).getLeft(), relations)
+						&& addRelations(((Product) plan).getRight(), relations);
+			}
+			if (plan != null && plan.getClass() == Scan.class) {
+				relations.add((NamedRelation) ((Scan) plan).getRelation());
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Build a new canonical plan for the query
+		 * @return plan
+		 */
+		Operator build() {
+			Operator plan = null;
+			for (NamedRelation r : relations) {
+				plan = plan == null ? new Scan(r) : new Product(plan, new Scan(r));
+			}
+			for (Predicate p : predicates) {
+				plan = new Select(plan, p);
+			}
+			for (int i = head.size() - 1; i >= 0; i--) {
+				Operator op = head.get(i);
+				if (op instanceof Project) {
+					plan = new Project(plan, ((Project) op).getAttributes());
+				} else if (op instanceof Sort) {
+					Sort sort = (Sort) op;
+					plan = new Sort(plan, sort.getAttributes(), sort.getDescending(), sort.getLimit());
+				} else if (op instanceof Aggregate) {
+					plan = new Aggregate(plan, ((Aggregate) op).getGroups(), ((Aggregate) op).getAggregations());
+				} else {
+					plan = new Limit(plan, ((Limit) op).getCount());
+				}
+			}
+			return plan;
+		}
+	}
+}
@@ -0,0 +1,515 @@
+package sjdb;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is a worker of a cluster: a process holding one partition of
+ * each partitioned relation in temporary heap files, which runs fragments
+ * of distributed plans over its partitions and sends their results to the
+ * other workers or to the coordinator.
+ *
+ * The worker listens on the loopback interface, and prints "PORT n" once
+ * it is ready. Each connection sends commands of one line, each answered
+ * by "OK n" or "ERROR message":
+ *
+ * - "PEERS i host:port,host:port" gives the address of every worker of the
+ *   cluster, in order, this worker being number i.
+ * - "CREATE name a,b,c" creates a relation of the attributes, unless it
+ *   exists already.
+ * - "LOAD name" is followed by a line of comma-separated values for each
+ *   tuple and an empty line, and inserts the tuples into the relation; n
+ *   is their number.
+ * - "DROP name" drops a relation.
+ * - "GATHER", "SHUFFLE name partitioning" and "BROADCAST name" are followed
+ *   by a fragment of a plan and an empty line. The fragment is run over
+ *   the relations held by this worker. A gather writes
+ *   a line for each result tuple before the OK line; a shuffle loads each
+ *   tuple into the named relation on the worker of its partition, and a
+ *   broadcast loads every tuple into it on every worker. n is the number of
+ *   tuples sent to other processes.
+ * - "QUIT" ends the connection.
+ *
+ * A fragment is sent as lines of comma-separated values: the names of the
+ * attributes it outputs, the names of the relations it joins, and then a
+ * line for each of its predicates, either "ATTRIBUTE",a,b for a=b or
+ * "VALUE",a,v for a="v". Values are quoted as in tuple lines rather than
+ * written as query text, so that any value is read back unchanged.
+ *
+ * The first value of each tuple line is always quoted, so that no tuple is
+ * read as an empty line or as the final line of a response. The worker
+ * exits when its standard input is closed, as it is when the coordinator
+ * which launched it exits.
+ */
+public class Worker implements Closeable {
+	// Number of frames of the buffer pool through which partitions are read
+	private static final int FRAMES = 1024;
+	// Number of tuples inserted into a relation at a time as they are loaded
+	private static final int LOAD_BATCH = 1024;
+
+	private Catalogue catalogue = new Catalogue();
+	private BufferPool pool = new BufferPool(FRAMES);
+	private Map<String, File> files = new ConcurrentHashMap<String, File>();
+	private volatile List<InetSocketAddress> peers = Collections.emptyList();
+	private volatile int index;
+	private ServerSocket server;
+	private ExecutorService sessions;
+	private Thread acceptor;
+	private Set<Socket> open = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+	/**
+	 * Create a new worker listening on the loopback interface. No
+	 * connections are accepted until the worker is started.
+	 * @param port Port, or 0 for any free port
+	 * @throws IOException
+	 */
+	public Worker(int port) throws IOException {
+		this.server = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+		this.sessions = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger n = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "sjdb-worker-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Return the port on which the worker listens
+	 * @return port
+	 */
+	public int getPort() {
+		return this.server.getLocalPort();
+	}
+
+	/**
+	 * Start accepting connections on a background thread
+	 */
+	public synchronized void start() {
+		if (acceptor != null) {
+			return;
+		}
+		acceptor = new Thread(new Runnable() {
+			public void run() {
+				while (!server.isClosed()) {
+					try {
+						Socket socket = server.accept();
+						socket.setTcpNoDelay(true);
+						open.add(socket);
+						sessions.execute(new Session(socket));
+					} catch (IOException e) {
+						// The server socket has been closed
+					}
+				}
+			}
+		}, "sjdb-worker-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() throws IOException {
+		server.close();
+		for (Socket socket : open) {
+			socket.close();
+		}
+		sessions.shutdownNow();
+		for (File file : files.values()) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Create a relation held in a temporary heap file, unless it exists
+	 */
+	private synchronized void create(String name, String[] attributes) throws DatabaseException, IOException {
+		if (files.containsKey(name)) {
+			return;
+		}
+		catalogue.createRelation(name, 0);
+		for (String attribute : attributes) {
+			catalogue.createAttribute(name, attribute, 0);
+		}
+		File file = File.createTempFile("sjdb-" + name, ".heap");
+		file.deleteOnExit();
+		catalogue.attachHeapFile(name, file, pool);
+		files.put(name, file);
+	}
+
+	/**
+	 * Drop a relation and delete its heap file
+	 */
+	private synchronized void drop(String name) throws DatabaseException {
+		catalogue.dropRelation(name);
+		File file = files.remove(name);
+		if (file != null) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Format a tuple as a line of comma-separated values, quoting the first
+	 * @param tuple Tuple
+	 * @return line, without a line break
+	 */
+	static String format(String[] tuple) {
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < tuple.length; i++) {
+			if (i == 0) {
+				line.append('"').append(tuple[i].replace("\"", "\"\"")).append('"');
+			} else {
+				line.append(',').append(QueryServer.quote(tuple[i]));
+			}
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Format a fragment of a distributed plan as the lines read by a worker
+	 * @param attributes Attributes output by the fragment
+	 * @param relations Names of the relations joined by the fragment
+	 * @param predicates Predicates of its selects and joins, of the form attr=attr or attr=value
+	 * @return lines, each ending in a line break
+	 * @throws IllegalArgumentException if a predicate has a parameter or a value spanning lines
+	 */
+	static String format(List<Attribute> attributes, List<String> relations, List<Predicate> predicates) {
+		String[] names = new String[attributes.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = attributes.get(i).getName();
+		}
+		StringBuilder lines = new StringBuilder();
+		lines.append(format(names)).append('\n');
+		lines.append(format(relations.toArray(new String[relations.size()]))).append('\n');
+		for (Predicate p : predicates) {
+			if (p.isParameter()) {
+				throw new IllegalArgumentException("Predicate " + p + " is not bound");
+			}
+			String[] fields = p.equalsValue()
+					? new String[] { "VALUE", p.getLeftAttribute().getName(), p.getRightValue() }
+					: new String[] { "ATTRIBUTE", p.getLeftAttribute().getName(), p.getRightAttribute().getName() };
+			if (fields[2].indexOf('\n') >= 0 || fields[2].indexOf('\r') >= 0) {
+				throw new IllegalArgumentException("Value of predicate " + p + " spans lines");
+			}
+			lines.append(format(fields)).append('\n');
+		}
+		return lines.toString();
+	}
+
+	/**
+	 * Optimise and execute a fragment of a distributed plan
+	 * @param lines Lines of the fragment, as written by format()
+	 * @return Cursor over the result tuples
+	 */
+	private ResultCursor execute(List<String> lines) throws DatabaseException {
+		if (lines.size() < 2) {
+			throw new DatabaseException("Fragment has no attributes or relations");
+		}
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		for (String name : BulkLoader.parse(lines.get(0))) {
+			attributes.add(new Attribute(name));
+		}
+		List<NamedRelation> relations = new ArrayList<NamedRelation>();
+		for (String name : BulkLoader.parse(lines.get(1))) {
+			relations.add(catalogue.getRelation(name));
+		}
+		List<Predicate> predicates = new ArrayList<Predicate>();
+		for (String line : lines.subList(2, lines.size())) {
+			String[] fields = BulkLoader.parse(line);
+			if (fields.length != 3 || !fields[0].equals("VALUE") && !fields[0].equals("ATTRIBUTE")) {
+				throw new DatabaseException("Fragment has a malformed predicate: " + line);
+			}
+			predicates.add(fields[0].equals("VALUE") ? new Predicate(new Attribute(fields[1]), fields[2])
+					: new Predicate(new Attribute(fields[1]), new Attribute(fields[2])));
+		}
+
+		List<Operator> head = new ArrayList<Operator>();
+		head.add(new Project(null, attributes));
+		Operator plan = new ViewRewriter.Query(head, relations, predicates).build();
+		try (Snapshot snapshot = Snapshot.open()) {
+			plan.accept(new Estimator(snapshot));
+			Optimiser optimiser = new Optimiser(catalogue);
+			optimiser.setVerbose(false);
+			optimiser.setSnapshot(snapshot);
+			plan = optimiser.optimiseForExecution(plan);
+		}
+		return PlanExecutor.execute(plan);
+	}
+
+	/**
+	 * A connection to another worker, into whose relation tuples are loaded
+	 */
+	private static class Sender implements Closeable {
+		private Socket socket;
+		private BufferedReader in;
+		private Writer out;
+
+		Sender(InetSocketAddress address, String relName) throws IOException {
+			this.socket = new Socket(address.getAddress(), address.getPort());
+			this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+			out.write("LOAD " + relName + "\n");
+		}
+
+		void send(String line) throws IOException {
+			out.write(line);
+			out.write('\n');
+		}
+
+		/**
+		 * End the load and wait for the other worker to insert the tuples
+		 */
+		void finish() throws IOException {
+			out.write("\nQUIT\n");
+			out.flush();
+			String line = in.readLine();
+			if (line == null || !line.startsWith("OK ")) {
+				throw new IOException("Tuples could not be loaded by " + socket.getRemoteSocketAddress() + ": " + line);
+			}
+		}
+
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	/**
+	 * A session reading commands from a socket and writing their responses
+	 */
+	private class Session implements Runnable {
+		private Socket socket;
+
+		Session(Socket socket) {
+			this.socket = socket;
+		}
+
+		public void run() {
+			try (Socket s = socket;
+					BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+					Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] words = line.trim().split("\\s+", 3);
+					if (words[0].isEmpty()) {
+						continue;
+					}
+					if (words[0].equals("QUIT")) {
+						break;
+					}
+					try {
+						switch (words[0]) {
+						case "PEERS":
+							peers(Integer.parseInt(words[1]), words[2]);
+							out.write("OK 0\n");
+							break;
+						case "CREATE":
+							create(words[1], words[2].split(","));
+							out.write("OK 0\n");
+							break;
+						case "LOAD":
+							out.write("OK " + load(words[1], in) + "\n");
+							break;
+						case "DROP":
+							drop(words[1]);
+							out.write("OK 0\n");
+							break;
+						case "GATHER":
+							gather(fragment(in), out);
+							break;
+						case "SHUFFLE":
+							out.write("OK " + exchange(fragment(in), words[1], Partitioning.parse(words[2])) + "\n");
+							break;
+						case "BROADCAST":
+							out.write("OK " + exchange(fragment(in), words[1], null) + "\n");
+							break;
+						default:
+							out.write("ERROR Unknown command " + words[0] + "\n");
+						}
+					} catch (Exception e) {
+						out.write("ERROR " + (e.getCause() == null ? e : e.getCause()).toString().replace('\n', ' ') + "\n");
+					}
+					out.flush();
+				}
+			} catch (SocketException e) {
+				// The coordinator or the worker closed the connection
+			} catch (IOException e) {
+				System.err.println(e.toString());
+			} finally {
+				open.remove(socket);
+			}
+		}
+
+		private void peers(int index, String addresses) {
+			List<InetSocketAddress> list = new ArrayList<InetSocketAddress>();
+			for (String address : addresses.split(",")) {
+				int colon = address.lastIndexOf(':');
+				list.add(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+			}
+			Worker.this.index = index;
+			Worker.this.peers = list;
+		}
+
+		/**
+		 * Read the lines of a fragment, up to an empty line
+		 */
+		private List<String> fragment(BufferedReader in) throws IOException {
+			List<String> lines = new ArrayList<String>();
+			String line;
+			while ((line = in.readLine()) != null && !line.isEmpty()) {
+				lines.add(line);
+			}
+			return lines;
+		}
+
+		/**
+		 * Insert the tuples on the lines up to an empty line, reading them
+		 * all even if they cannot be inserted
+		 */
+		private long load(String relName, BufferedReader in) throws IOException, DatabaseException {
+			List<String[]> batch = new ArrayList<String[]>();
+			DatabaseException failure = null;
+			long count = 0;
+			String line;
+			while ((line = in.readLine()) != null && !line.isEmpty()) {
+				batch.add(BulkLoader.parse(line));
+				if (batch.size() == LOAD_BATCH) {
+					failure = insert(relName, batch, failure);
+					count += LOAD_BATCH;
+					batch = new ArrayList<String[]>();
+				}
+			}
+			failure = insert(relName, batch, failure);
+			if (failure != null) {
+				throw failure;
+			}
+			return count + batch.size();
+		}
+
+		private DatabaseException insert(String relName, List<String[]> batch, DatabaseException failure) {
+			if (failure == null && !batch.isEmpty()) {
+				try {
+					catalogue.insert(relName, batch);
+				} catch (DatabaseException e) {
+					return e;
+				}
+			}
+			return failure;
+		}
+
+		/**
+		 * Run a fragment and write its result tuples, followed by "OK n"
+		 */
+		private void gather(List<String> fragment, Writer out) throws Exception {
+			try (ResultCursor cursor = execute(fragment)) {
+				while (cursor.hasNext()) {
+					out.write(format(cursor.next()));
+					out.write('\n');
+				}
+				out.write("OK " + cursor.getCount() + "\n");
+			}
+		}
+
+		/**
+		 * Run a fragment and load its result tuples into a relation on the
+		 * workers of their partitions, or on every worker
+		 * @param fragment Lines of the fragment
+		 * @param relName Relation into which the tuples are loaded
+		 * @param partitioning Partitioning of the tuples, or null to broadcast them
+		 * @return number of tuples sent to other workers
+		 */
+		private long exchange(List<String> fragment, String relName, Partitioning partitioning) throws Exception {
+			List<InetSocketAddress> workers = peers;
+			int self = index;
+			Sender[] senders = new Sender[workers.size()];
+			List<String[]> local = new ArrayList<String[]>();
+			long sent = 0;
+
+			try (ResultCursor cursor = execute(fragment)) {
+				int column = partitioning == null ? -1 : cursor.getAttributes().indexOf(partitioning.getAttribute());
+				if (partitioning != null && column < 0) {
+					throw new DatabaseException("Query does not output " + partitioning.getAttribute());
+				}
+				for (int i = 0; i < senders.length; i++) {
+					if (i != self) {
+						senders[i] = new Sender(workers.get(i), relName);
+					}
+				}
+
+				while (cursor.hasNext()) {
+					String[] tuple = cursor.next();
+					String line = null;
+					for (int i = 0; i < senders.length; i++) {
+						if (partitioning != null && partitioning.partition(tuple[column]) != i) {
+							continue;
+						}
+						if (i == self) {
+							local.add(tuple);
+							if (local.size() == LOAD_BATCH) {
+								catalogue.insert(relName, local);
+								local = new ArrayList<String[]>();
+							}
+						} else {
+							senders[i].send(line == null ? (line = format(tuple)) : line);
+							sent++;
+						}
+					}
+				}
+				if (!local.isEmpty()) {
+					catalogue.insert(relName, local);
+				}
+				for (Sender sender : senders) {
+					if (sender != null) {
+						sender.finish();
+					}
+				}
+			} finally {
+				for (Sender sender : senders) {
+					if (sender != null) {
+						sender.close();
+					}
+				}
+			}
+			return sent;
+		}
+	}
+
+	/**
+	 * Run a worker until its standard input is closed
+	 * @param args Optionally the port
+	 */
+	public static void main(String[] args) throws Exception {
+		Worker worker = new Worker(args.length > 0 ? Integer.parseInt(args[0]) : 0);
+		worker.start();
+		System.out.println("PORT " + worker.getPort());
+		System.out.flush();
+		while (System.in.read() >= 0) {
+		}
+		worker.close();
+		System.exit(0);
+	}
+}
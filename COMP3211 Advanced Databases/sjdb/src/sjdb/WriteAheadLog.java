@@ -0,0 +1,334 @@
+package sjdb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * This class is a write-ahead log of the tuples appended to heap files,
+ * which makes inserts durable without writing the pages of the heap files
+ * when they commit.
+ *
+ * Each record holds one tuple: the name of its relation, its row id, and
+ * its encoded values, preceded by the length of the record and a CRC32
+ * checksum of it. Records are appended to a buffer in memory, and a log
+ * sequence number (LSN), the position of the end of the record in the
+ * log, identifies each one. A heap file notes the LSN of the last record
+ * of each page, and forces the log up to it before the page is written, so
+ * that no page reaches the disk ahead of its records.
+ *
+ * Commits are grouped: the first thread to commit becomes the leader,
+ * waits up to a maximum delay for others to append their records, and
+ * then writes every buffered record with a single FileChannel.force; the
+ * threads whose records it wrote return together, and those which commit
+ * while it is forcing are grouped by the next leader. The number of forces
+ * is thus bounded by the fsync latency rather than by the commit rate.
+ *
+ * Recovery replays the records in order into the heap files. A record is
+ * redone only if the page does not hold its row id already, and reading
+ * stops at the first record which is torn or fails its checksum, which is
+ * where the log is truncated when it is opened.
+ */
+public class WriteAheadLog implements Closeable {
+	/**
+	 * Default time a leader waits for other commits to join its group
+	 */
+	public static final long DEFAULT_MAX_DELAY_MICROS = 100;
+
+	// A leader stops waiting once this many bytes of records are buffered
+	private static final int GROUP_BYTES = 1 << 20;
+	private static final int HEADER_SIZE = 8;
+
+	private File file;
+	private FileChannel channel;
+	private long maxDelayNanos;
+
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition full = lock.newCondition();
+	private Condition forced = lock.newCondition();
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private CRC32 crc = new CRC32();
+	// LSN of the start of the file, which grows when the log is truncated
+	private long start;
+	// LSN of the end of the last record appended, and of the last forced
+	private long appended;
+	private long durable;
+	private boolean forcing;
+	private IOException failure;
+	private long commits;
+	private long forces;
+
+	/**
+	 * A redo of the records of the log
+	 */
+	public interface Redo {
+		/**
+		 * Redo the append of a tuple
+		 * @param relName Name of the relation
+		 * @param rowId Row id of the tuple
+		 * @param record Tuple encoded by HeapPage.encode()
+		 * @throws IOException
+		 */
+		public void redo(String relName, long rowId, byte[] record) throws IOException;
+	}
+
+	/**
+	 * Open a log, creating it if it does not exist, and truncating any
+	 * record at its end which was torn by a crash
+	 * @param file The log file
+	 * @param maxDelayMicros Longest time a leader waits for commits to join its group
+	 * @throws IOException
+	 */
+	public WriteAheadLog(File file, long maxDelayMicros) throws IOException {
+		this.file = file;
+		this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxDelayMicros));
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long end = replay(null);
+		channel.truncate(end);
+		this.appended = end;
+		this.durable = end;
+	}
+
+	/**
+	 * Append a record to the buffer, without writing it
+	 * @param relName Name of the relation
+	 * @param rowId Row id of the tuple
+	 * @param record Tuple encoded by HeapPage.encode()
+	 * @return LSN of the record
+	 */
+	public long append(String relName, long rowId, byte[] record) {
+		byte[] name = relName.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 2 + name.length + 8 + record.length);
+		buf.putInt(buf.capacity() - HEADER_SIZE);
+		buf.putInt(0);
+		buf.putShort((short) name.length);
+		buf.put(name);
+		buf.putLong(rowId);
+		buf.put(record);
+
+		lock.lock();
+		try {
+			crc.reset();
+			crc.update(buf.array(), HEADER_SIZE, buf.capacity() - HEADER_SIZE);
+			buf.putInt(4, (int) crc.getValue());
+			pending.write(buf.array(), 0, buf.capacity());
+			appended += buf.capacity();
+			if (pending.size() >= GROUP_BYTES) {
+				full.signal();
+			}
+			return appended;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until the log is durable up to a record, grouping the force
+	 * with those of other threads committing at the same time
+	 * @param lsn LSN of the last record to be committed
+	 * @throws IOException if the log could not be written
+	 */
+	public void commit(long lsn) throws IOException {
+		lock.lock();
+		try {
+			commits++;
+		} finally {
+			lock.unlock();
+		}
+		force(lsn, maxDelayNanos);
+	}
+
+	/**
+	 * Wait until the log is durable up to a record, without waiting for
+	 * other commits
+	 * @param lsn LSN of the record
+	 * @throws IOException if the log could not be written
+	 */
+	public void flush(long lsn) throws IOException {
+		force(lsn, 0);
+	}
+
+	private void force(long lsn, long delay) throws IOException {
+		lock.lock();
+		try {
+			while (durable < lsn) {
+				if (failure != null) {
+					throw new IOException("Log " + file + " could not be written", failure);
+				}
+				if (forcing) {
+					forced.awaitUninterruptibly();
+					continue;
+				}
+
+				// Lead the group, letting other commits join it first
+				forcing = true;
+				long remaining = delay;
+				try {
+					while (remaining > 0 && pending.size() < GROUP_BYTES) {
+						remaining = full.awaitNanos(remaining);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				byte[] group = pending.toByteArray();
+				pending.reset();
+				long end = appended;
+				long position = end - group.length - start;
+
+				lock.unlock();
+				IOException error = null;
+				try {
+					ByteBuffer buf = ByteBuffer.wrap(group);
+					while (buf.hasRemaining()) {
+						position += channel.write(buf, position);
+					}
+					channel.force(false);
+				} catch (IOException e) {
+					error = e;
+				} finally {
+					lock.lock();
+				}
+
+				forcing = false;
+				if (error != null) {
+					failure = error;
+				} else {
+					durable = end;
+					forces++;
+				}
+				forced.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Empty the log, once the heap files hold every record in it. No
+	 * records may be appended until it returns.
+	 * @throws IOException
+	 */
+	public void truncate() throws IOException {
+		force(currentLsn(), 0);
+		lock.lock();
+		try {
+			channel.truncate(0);
+			channel.force(false);
+			start = appended;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return the LSN of the last record appended
+	 * @return LSN
+	 */
+	public long currentLsn() {
+		lock.lock();
+		try {
+			return this.appended;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return the number of commits
+	 * @return commit count
+	 */
+	public long getCommitCount() {
+		lock.lock();
+		try {
+			return this.commits;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return the number of times the log has been forced to disk
+	 * @return force count
+	 */
+	public long getForceCount() {
+		lock.lock();
+		try {
+			return this.forces;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Read the records in the file in order, up to the first which is torn
+	 * or fails its checksum
+	 * @param redo Redo of each record, or null to only find the end
+	 * @return Position of the end of the last record read
+	 * @throws IOException
+	 */
+	public long replay(Redo redo) throws IOException {
+		long size = channel.size();
+		long position = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		CRC32 check = new CRC32();
+
+		while (position + HEADER_SIZE <= size) {
+			header.clear();
+			read(header, position);
+			int length = header.getInt(0);
+			if (length < 10 || position + HEADER_SIZE + length > size) {
+				break;
+			}
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			read(payload, position + HEADER_SIZE);
+			check.reset();
+			check.update(payload.array(), 0, length);
+			if ((int) check.getValue() != header.getInt(4)) {
+				break;
+			}
+
+			if (redo != null) {
+				byte[] name = new byte[payload.getShort(0)];
+				if (2 + name.length + 8 > length) {
+					break;
+				}
+				payload.position(2);
+				payload.get(name);
+				long rowId = payload.getLong();
+				byte[] record = new byte[payload.remaining()];
+				payload.get(record);
+				redo.redo(new String(name, StandardCharsets.UTF_8), rowId, record);
+			}
+			position += HEADER_SIZE + length;
+		}
+		return position;
+	}
+
+	private void read(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position);
+			if (n < 0) {
+				throw new IOException("Unexpected end of log " + file);
+			}
+			position += n;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() throws IOException {
+		force(currentLsn(), 0);
+		channel.close();
+	}
+}
@@ -0,0 +1,146 @@
+package sjdb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class holds the zone map of one column of a ColumnStore: for each
+ * block, the smallest and largest stored value and a one-word Bloom filter
+ * of the stored values. A scan looking for a value can skip every block
+ * whose zone cannot hold it, so that selective scans of clustered data
+ * read only a few blocks.
+ *
+ * Stored values are those returned by ColumnStore.getInt: the value itself
+ * for INT columns, or the dictionary code for STRING columns. Codes are
+ * assigned in order of first appearance, so clustered strings also give
+ * narrow zones.
+ */
+public class ZoneMap {
+	/**
+	 * Size of the zone of one block in bytes: min, max, and filter
+	 */
+	static final int ZONE_BYTES = 16;
+
+	private int blocks;
+	private int[] min;
+	private int[] max;
+	private long[] filter;
+
+	/**
+	 * Create an empty zone map
+	 * @param capacity Number of blocks for which space is allocated
+	 */
+	ZoneMap(int capacity) {
+		this.min = new int[Math.max(capacity, 1)];
+		this.max = new int[Math.max(capacity, 1)];
+		this.filter = new long[Math.max(capacity, 1)];
+	}
+
+	/**
+	 * Read a zone map written by write()
+	 * @param buf Buffer positioned at the first zone
+	 * @param blocks Number of blocks
+	 * @return zone map
+	 */
+	static ZoneMap read(ByteBuffer buf, int blocks) {
+		ZoneMap zones = new ZoneMap(blocks);
+		zones.blocks = blocks;
+		for (int i = 0; i < blocks; i++) {
+			zones.min[i] = buf.getInt();
+			zones.max[i] = buf.getInt();
+			zones.filter[i] = buf.getLong();
+		}
+		return zones;
+	}
+
+	/**
+	 * Write the zones to a buffer of ZONE_BYTES per block
+	 * @param buf Buffer
+	 */
+	void write(ByteBuffer buf) {
+		for (int i = 0; i < blocks; i++) {
+			buf.putInt(min[i]);
+			buf.putInt(max[i]);
+			buf.putLong(filter[i]);
+		}
+	}
+
+	/**
+	 * Add a stored value to the zone of a block
+	 * @param block Block index
+	 * @param value Stored value
+	 */
+	void add(int block, int value) {
+		// Start a new zone
+		while (block >= blocks) {
+			if (blocks == min.length) {
+				min = Arrays.copyOf(min, blocks * 2);
+				max = Arrays.copyOf(max, blocks * 2);
+				filter = Arrays.copyOf(filter, blocks * 2);
+			}
+			min[blocks] = Integer.MAX_VALUE;
+			max[blocks] = Integer.MIN_VALUE;
+			filter[blocks] = 0;
+			blocks++;
+		}
+		min[block] = Math.min(min[block], value);
+		max[block] = Math.max(max[block], value);
+		filter[block] |= bit(value);
+	}
+
+	/**
+	 * Return the number of blocks
+	 * @return block count
+	 */
+	public int getBlockCount() {
+		return this.blocks;
+	}
+
+	/**
+	 * Return the smallest value stored in a block
+	 * @param block Block index
+	 * @return minimum
+	 */
+	public int getMin(int block) {
+		return this.min[block];
+	}
+
+	/**
+	 * Return the largest value stored in a block
+	 * @param block Block index
+	 * @return maximum
+	 */
+	public int getMax(int block) {
+		return this.max[block];
+	}
+
+	/**
+	 * Test whether a block may hold a value. A false result is definite.
+	 * @param block Block index
+	 * @param value Stored value
+	 * @return false if the block certainly does not hold the value
+	 */
+	public boolean mightContain(int block, int value) {
+		return value >= min[block] && value <= max[block] && (filter[block] & bit(value)) != 0;
+	}
+
+	/**
+	 * Return the number of blocks which may hold a value
+	 * @param value Stored value
+	 * @return block count
+	 */
+	public int countBlocks(int value) {
+		int n = 0;
+		for (int i = 0; i < blocks; i++) {
+			if (mightContain(i, value)) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private static long bit(int value) {
+		int h = value * 0x9e3779b9;
+		return 1L << (h >>> 26);
+	}
+}